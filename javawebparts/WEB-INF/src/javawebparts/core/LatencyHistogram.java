@@ -0,0 +1,244 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.core;
+
+
+/**
+ * This class counts elapsed times, in milliseconds, in buckets whose width
+ * grows with the value, so any percentile can be read back to within about
+ * 3% using a fixed, small amount of memory however many times are recorded.
+ * Times below 64ms each have a bucket of their own.  Above that, every
+ * power of two is split into 32 buckets of equal width.  Times longer than
+ * an hour all go in the last bucket, although the longest time is always
+ * kept exactly.
+ * <br><br>
+ * Recording a time is a handful of arithmetic under a lock held for no
+ * longer than that, so it adds next to nothing to a request.  It lives here
+ * because ElapsedTimeFilter and RecordedRequestPlayer both use it.
+ * <br><br>
+ * This class depends on the following extra packages, beyond the JDK,
+ * to compile and run: None.
+ *
+ * @author <a href="mailto:fzammetti@omnytex.com">Frank W. Zammetti</a>.
+ */
+public final class LatencyHistogram {
+
+
+  /**
+   * Number of bits of a time kept above its highest bit; 2 to the power of
+   * this is the number of buckets per power of two.
+   */
+  private static final int SUB_BITS = 5;
+
+
+  /**
+   * Number of buckets per power of two.
+   */
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+
+  /**
+   * Times below this each have a bucket of their own.
+   */
+  private static final int LINEAR = SUB_BUCKETS * 2;
+
+
+  /**
+   * The longest time, in milliseconds, given a bucket of its own.
+   */
+  public static final long HIGHEST = 60 * 60 * 1000L;
+
+
+  /**
+   * The counts.
+   */
+  private long[] counts = new long[index(HIGHEST) + 1];
+
+
+  /**
+   * Number of times recorded.
+   */
+  private long count;
+
+
+  /**
+   * Sum of the times recorded.
+   */
+  private long sum;
+
+
+  /**
+   * Longest time recorded.
+   */
+  private long max;
+
+
+  /**
+   * Records a time.
+   *
+   * @param millis The time, in milliseconds.  Negative times, which a clock
+   *               set back can produce, are recorded as 0.
+   */
+  public void record(long millis) {
+
+    long v = Math.max(0, millis);
+    int  i = index(Math.min(v, HIGHEST));
+    synchronized (this) {
+      counts[i]++;
+      count++;
+      sum += v;
+      if (v > max) {
+        max = v;
+      }
+    }
+
+  } // End record().
+
+
+  /**
+   * Returns the number of times recorded.
+   *
+   * @return The count.
+   */
+  public synchronized long getCount() {
+
+    return count;
+
+  } // End getCount().
+
+
+  /**
+   * Returns the longest time recorded.
+   *
+   * @return The time, in milliseconds, or 0 if none were recorded.
+   */
+  public synchronized long getMax() {
+
+    return max;
+
+  } // End getMax().
+
+
+  /**
+   * Returns the average time recorded.
+   *
+   * @return The time, in milliseconds, or 0 if none were recorded.
+   */
+  public synchronized double getMean() {
+
+    return count == 0 ? 0 : (double)sum / count;
+
+  } // End getMean().
+
+
+  /**
+   * Returns the time at or below which a given percentage of the times
+   * recorded are.  This is the highest time the bucket it falls in can hold,
+   * but no more than the longest time recorded.
+   *
+   * @param  percent The percentage, i.e. 99 for the 99th percentile.
+   * @return         The time, in milliseconds, or 0 if none were recorded.
+   */
+  public synchronized long getPercentile(double percent) {
+
+    if (count == 0) {
+      return 0;
+    }
+    long rank = Math.max(1,
+      (long)Math.ceil(count * Math.min(percent, 100) / 100));
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        // The last bucket also holds everything longer than HIGHEST.
+        return i == counts.length - 1 ? max : Math.min(highestIn(i), max);
+      }
+    }
+    return max;
+
+  } // End getPercentile().
+
+
+  /**
+   * Forgets all the times recorded.
+   */
+  public synchronized void reset() {
+
+    counts = new long[counts.length];
+    count  = 0;
+    sum    = 0;
+    max    = 0;
+
+  } // End reset().
+
+
+  /**
+   * Returns the counts, for logging purposes.
+   *
+   * @return The counts as a String.
+   */
+  public synchronized String toString() {
+
+    return "LatencyHistogram[count=" + count + ", mean=" +
+      Math.round(getMean()) + "ms, p50=" + getPercentile(50) + "ms, p90=" +
+      getPercentile(90) + "ms, p99=" + getPercentile(99) + "ms, max=" + max +
+      "ms]";
+
+  } // End toString().
+
+
+  /**
+   * Returns the bucket a time goes in.
+   *
+   * @param  v The time, from 0 to HIGHEST.
+   * @return   The bucket.
+   */
+  static int index(long v) {
+
+    if (v < LINEAR) {
+      return (int)v;
+    }
+    int shift = 1;
+    while ((v >>> shift) >= LINEAR) {
+      shift++;
+    }
+    return LINEAR + (shift - 1) * SUB_BUCKETS +
+      (int)(v >>> shift) - SUB_BUCKETS;
+
+  } // End index().
+
+
+  /**
+   * Returns the highest time a bucket holds.
+   *
+   * @param  i The bucket.
+   * @return   The time.
+   */
+  static long highestIn(int i) {
+
+    if (i < LINEAR) {
+      return i;
+    }
+    int shift = (i - LINEAR) / SUB_BUCKETS + 1;
+    long sub  = (i - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+    return ((sub + 1) << shift) - 1;
+
+  } // End highestIn().
+
+
+} // End class.
@@ -0,0 +1,523 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.core;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+
+/**
+ * This class is one request as recorded by RequestRecorderFilter in its
+ * binary format, and as played back by RecordedRequestPlayer.  It lives
+ * here because the two are in different packages.
+ * <br><br>
+ * A request is written as a record: an int giving the length of the rest of
+ * the record, then the arrival time and the time the server took, as longs
+ * in nanoseconds, then the method, the URL with its query string, the
+ * headers, the parameters and the first bytes of the body, along with how
+ * long the whole body was.  Strings are written as an int length followed
+ * by that many bytes of UTF-8, so, unlike writeUTF(), any length will do.
+ * Since every record starts with its length, a reader can skip records, or
+ * fields added to the end of a record by a later version, without knowing
+ * what is in them.  RecordedRequestWriter and RecordedRequestReader put
+ * the records in, and read them from, files.
+ * <br><br>
+ * This class depends on the following extra packages, beyond the JDK,
+ * to compile and run: None.
+ *
+ * @author <a href="mailto:fzammetti@omnytex.com">Frank W. Zammetti</a>.
+ */
+public final class RecordedRequest {
+
+
+  /**
+   * The bytes every file of records starts with.
+   */
+  public static final byte[] MAGIC = {'J', 'W', 'P', 'R'};
+
+
+  /**
+   * The version of the format, written after MAGIC.
+   */
+  public static final int VERSION = 1;
+
+
+  /**
+   * When the request arrived, in nanoseconds since January 1, 1970 UTC.
+   */
+  private long arrivalNanos;
+
+
+  /**
+   * How long the server took over the request, in nanoseconds.
+   */
+  private long elapsedNanos;
+
+
+  /**
+   * The HTTP method.
+   */
+  private String method = "GET";
+
+
+  /**
+   * The URL, with the query string if there was one.
+   */
+  private String url = "";
+
+
+  /**
+   * The headers, as String[2] of name and value, in order.
+   */
+  private ArrayList headers = new ArrayList();
+
+
+  /**
+   * The parameters, as String[2] of name and value, in order.
+   */
+  private ArrayList parameters = new ArrayList();
+
+
+  /**
+   * The first bytes of the body.
+   */
+  private byte[] body = new byte[0];
+
+
+  /**
+   * The length of the whole body, or -1 if not known.
+   */
+  private int bodyLength = -1;
+
+
+  /**
+   * arrivalNanos mutator.
+   *
+   * @param inArrivalNanos When the request arrived, in nanoseconds since
+   *                       January 1, 1970 UTC.
+   */
+  public void setArrivalNanos(long inArrivalNanos) {
+
+    arrivalNanos = inArrivalNanos;
+
+  } // End setArrivalNanos().
+
+
+  /**
+   * arrivalNanos accessor.
+   *
+   * @return When the request arrived, in nanoseconds since January 1, 1970
+   *         UTC.
+   */
+  public long getArrivalNanos() {
+
+    return arrivalNanos;
+
+  } // End getArrivalNanos().
+
+
+  /**
+   * elapsedNanos mutator.
+   *
+   * @param inElapsedNanos How long the server took, in nanoseconds.
+   */
+  public void setElapsedNanos(long inElapsedNanos) {
+
+    elapsedNanos = inElapsedNanos;
+
+  } // End setElapsedNanos().
+
+
+  /**
+   * elapsedNanos accessor.
+   *
+   * @return How long the server took, in nanoseconds.
+   */
+  public long getElapsedNanos() {
+
+    return elapsedNanos;
+
+  } // End getElapsedNanos().
+
+
+  /**
+   * method mutator.
+   *
+   * @param inMethod The HTTP method.
+   */
+  public void setMethod(String inMethod) {
+
+    method = inMethod;
+
+  } // End setMethod().
+
+
+  /**
+   * method accessor.
+   *
+   * @return The HTTP method.
+   */
+  public String getMethod() {
+
+    return method;
+
+  } // End getMethod().
+
+
+  /**
+   * url mutator.
+   *
+   * @param inUrl The URL, with the query string if there was one.
+   */
+  public void setUrl(String inUrl) {
+
+    url = inUrl;
+
+  } // End setUrl().
+
+
+  /**
+   * url accessor.
+   *
+   * @return The URL, with the query string if there was one.
+   */
+  public String getUrl() {
+
+    return url;
+
+  } // End getUrl().
+
+
+  /**
+   * Adds a header.
+   *
+   * @param name  The name.
+   * @param value The value.
+   */
+  public void addHeader(String name, String value) {
+
+    headers.add(new String[] {name, value});
+
+  } // End addHeader().
+
+
+  /**
+   * Returns the number of headers.
+   *
+   * @return The count.
+   */
+  public int getHeaderCount() {
+
+    return headers.size();
+
+  } // End getHeaderCount().
+
+
+  /**
+   * Returns the name of a header.
+   *
+   * @param  i The index of the header.
+   * @return   The name.
+   */
+  public String getHeaderName(int i) {
+
+    return ((String[])headers.get(i))[0];
+
+  } // End getHeaderName().
+
+
+  /**
+   * Returns the value of a header.
+   *
+   * @param  i The index of the header.
+   * @return   The value.
+   */
+  public String getHeaderValue(int i) {
+
+    return ((String[])headers.get(i))[1];
+
+  } // End getHeaderValue().
+
+
+  /**
+   * Adds a parameter.
+   *
+   * @param name  The name.
+   * @param value The value.
+   */
+  public void addParameter(String name, String value) {
+
+    parameters.add(new String[] {name, value});
+
+  } // End addParameter().
+
+
+  /**
+   * Returns the number of parameters.
+   *
+   * @return The count.
+   */
+  public int getParameterCount() {
+
+    return parameters.size();
+
+  } // End getParameterCount().
+
+
+  /**
+   * Returns the name of a parameter.
+   *
+   * @param  i The index of the parameter.
+   * @return   The name.
+   */
+  public String getParameterName(int i) {
+
+    return ((String[])parameters.get(i))[0];
+
+  } // End getParameterName().
+
+
+  /**
+   * Returns the value of a parameter.
+   *
+   * @param  i The index of the parameter.
+   * @return   The value.
+   */
+  public String getParameterValue(int i) {
+
+    return ((String[])parameters.get(i))[1];
+
+  } // End getParameterValue().
+
+
+  /**
+   * Sets the body.
+   *
+   * @param inBody       The first bytes of the body.
+   * @param inBodyLength The length of the whole body, or -1 if not known.
+   */
+  public void setBody(byte[] inBody, int inBodyLength) {
+
+    body       = inBody;
+    bodyLength = inBodyLength;
+
+  } // End setBody().
+
+
+  /**
+   * body accessor.
+   *
+   * @return The first bytes of the body.
+   */
+  public byte[] getBody() {
+
+    return body;
+
+  } // End getBody().
+
+
+  /**
+   * bodyLength accessor.
+   *
+   * @return The length of the whole body, or -1 if not known.
+   */
+  public int getBodyLength() {
+
+    return bodyLength;
+
+  } // End getBodyLength().
+
+
+  /**
+   * Determines whether getBody() is the whole body.
+   *
+   * @return True if it is.
+   */
+  public boolean isBodyComplete() {
+
+    return bodyLength == body.length;
+
+  } // End isBodyComplete().
+
+
+  /**
+   * Returns the record of this request, without its length.
+   *
+   * @return             The record.
+   * @throws IOException If it cannot be written, which should not happen.
+   */
+  public byte[] toRecord() throws IOException {
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+      256 + body.length);
+    DataOutputStream      out   = new DataOutputStream(bytes);
+    out.writeLong(arrivalNanos);
+    out.writeLong(elapsedNanos);
+    writeString(out, method);
+    writeString(out, url);
+    writePairs(out, headers);
+    writePairs(out, parameters);
+    out.writeInt(bodyLength);
+    out.writeInt(body.length);
+    out.write(body);
+    out.flush();
+    return bytes.toByteArray();
+
+  } // End toRecord().
+
+
+  /**
+   * Reads a request from a record, without its length.
+   *
+   * @param  record      The record.
+   * @return             The request.
+   * @throws IOException If the record is not valid.
+   */
+  public static RecordedRequest fromRecord(byte[] record) throws IOException {
+
+    DataInputStream in = new DataInputStream(
+      new ByteArrayInputStream(record));
+    RecordedRequest r  = new RecordedRequest();
+    r.arrivalNanos = in.readLong();
+    r.elapsedNanos = in.readLong();
+    r.method       = readString(in);
+    r.url          = readString(in);
+    readPairs(in, r.headers);
+    readPairs(in, r.parameters);
+    r.bodyLength   = in.readInt();
+    r.body         = new byte[checkLength(in.readInt(), in)];
+    in.readFully(r.body);
+    return r;
+
+  } // End fromRecord().
+
+
+  /**
+   * Returns a summary of the request, for logging purposes.
+   *
+   * @return The summary as a String.
+   */
+  public String toString() {
+
+    return "RecordedRequest[" + method + " " + url + ", headers=" +
+      headers.size() + ", parameters=" + parameters.size() + ", body=" +
+      body.length + "/" + bodyLength + ", arrivalNanos=" + arrivalNanos +
+      ", elapsedNanos=" + elapsedNanos + "]";
+
+  } // End toString().
+
+
+  /**
+   * Writes a String, as its length in bytes and its UTF-8 bytes.
+   *
+   * @param  out         Where to write it.
+   * @param  s           The String, which may be null.
+   * @throws IOException If it cannot be written.
+   */
+  private static void writeString(DataOutputStream out, String s)
+    throws IOException {
+
+    byte[] b = s == null ? new byte[0] : s.getBytes("UTF-8");
+    out.writeInt(b.length);
+    out.write(b);
+
+  } // End writeString().
+
+
+  /**
+   * Reads a String written by writeString().
+   *
+   * @param  in          Where to read it from.
+   * @return             The String.
+   * @throws IOException If it cannot be read.
+   */
+  private static String readString(DataInputStream in) throws IOException {
+
+    byte[] b = new byte[checkLength(in.readInt(), in)];
+    in.readFully(b);
+    return new String(b, "UTF-8");
+
+  } // End readString().
+
+
+  /**
+   * Writes a list of name/value pairs, as their number and then each name
+   * and value.
+   *
+   * @param  out         Where to write them.
+   * @param  pairs       The pairs, as String[2].
+   * @throws IOException If they cannot be written.
+   */
+  private static void writePairs(DataOutputStream out, ArrayList pairs)
+    throws IOException {
+
+    out.writeInt(pairs.size());
+    for (int i = 0; i < pairs.size(); i++) {
+      String[] p = (String[])pairs.get(i);
+      writeString(out, p[0]);
+      writeString(out, p[1]);
+    }
+
+  } // End writePairs().
+
+
+  /**
+   * Reads a list of name/value pairs written by writePairs().
+   *
+   * @param  in          Where to read them from.
+   * @param  pairs       The list to add them to, as String[2].
+   * @throws IOException If they cannot be read.
+   */
+  private static void readPairs(DataInputStream in, ArrayList pairs)
+    throws IOException {
+
+    int n = checkLength(in.readInt(), in);
+    for (int i = 0; i < n; i++) {
+      pairs.add(new String[] {readString(in), readString(in)});
+    }
+
+  } // End readPairs().
+
+
+  /**
+   * Checks that a length read from a record is no more than what is left
+   * of it, so a damaged record cannot make a reader allocate any amount of
+   * memory.
+   *
+   * @param  n           The length.
+   * @param  in          The rest of the record.
+   * @return             The length.
+   * @throws IOException If the length is not valid.
+   */
+  private static int checkLength(int n, DataInputStream in)
+    throws IOException {
+
+    if (n < 0 || n > in.available()) {
+      throw new IOException("Invalid length in record: " + n);
+    }
+    return n;
+
+  } // End checkLength().
+
+
+} // End class.
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.core;
+
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/**
+ * This class reads the RecordedRequests in a file written by
+ * RecordedRequestWriter one at a time, so however big the file, only one
+ * request is in memory at once.  A length of zero, as left at the end of a
+ * mapped file, or a record cut short, as left when a JVM dies while writing
+ * one, is taken for the end of the records.
+ * <br><br>
+ * This class depends on the following extra packages, beyond the JDK,
+ * to compile and run: None.
+ *
+ * @author <a href="mailto:fzammetti@omnytex.com">Frank W. Zammetti</a>.
+ */
+public final class RecordedRequestReader {
+
+
+  /**
+   * The largest record read; anything longer is taken to be damage.
+   */
+  private static final int MAX_RECORD = 64 * 1024 * 1024;
+
+
+  /**
+   * The file.
+   */
+  private DataInputStream in;
+
+
+  /**
+   * Set once the end of the records is reached.
+   */
+  private boolean done;
+
+
+  /**
+   * Constructor.
+   *
+   * @param  inFile      The file.
+   * @throws IOException If the file cannot be read, or is not a file of
+   *                     records.
+   */
+  public RecordedRequestReader(File inFile) throws IOException {
+
+    this(new FileInputStream(inFile));
+
+  } // End RecordedRequestReader().
+
+
+  /**
+   * Constructor.
+   *
+   * @param  inStream    The contents of a file of records.
+   * @throws IOException If it cannot be read, or is not a file of records.
+   */
+  public RecordedRequestReader(InputStream inStream) throws IOException {
+
+    in = new DataInputStream(new BufferedInputStream(inStream, 64 * 1024));
+    try {
+      if (!isRecordFile(in)) {
+        throw new IOException("Not a file of recorded requests");
+      }
+      int version = in.readInt();
+      if (version > RecordedRequest.VERSION) {
+        throw new IOException("Recorded requests are of version " +
+          version + ", only up to " + RecordedRequest.VERSION +
+          " can be read");
+      }
+    } catch (IOException e) {
+      in.close();
+      throw e;
+    }
+
+  } // End RecordedRequestReader().
+
+
+  /**
+   * Determines whether a stream starts with RecordedRequest.MAGIC, reading
+   * past it.
+   *
+   * @param  in          The stream.
+   * @return             True if it does.
+   * @throws IOException If it cannot be read.
+   */
+  public static boolean isRecordFile(InputStream in) throws IOException {
+
+    for (int i = 0; i < RecordedRequest.MAGIC.length; i++) {
+      if (in.read() != RecordedRequest.MAGIC[i]) {
+        return false;
+      }
+    }
+    return true;
+
+  } // End isRecordFile().
+
+
+  /**
+   * Reads the next request.
+   *
+   * @return             The request, or null at the end of the records.
+   * @throws IOException If the file cannot be read, or a record is not
+   *                     valid.
+   */
+  public RecordedRequest next() throws IOException {
+
+    if (done) {
+      return null;
+    }
+    try {
+      int n = in.readInt();
+      if (n <= 0) {
+        done = true;
+        return null;
+      }
+      if (n > MAX_RECORD) {
+        throw new IOException("Invalid record length: " + n);
+      }
+      byte[] record = new byte[n];
+      in.readFully(record);
+      return RecordedRequest.fromRecord(record);
+    } catch (EOFException e) {
+      done = true;
+      return null;
+    }
+
+  } // End next().
+
+
+  /**
+   * Closes the file.
+   *
+   * @throws IOException If it cannot be closed.
+   */
+  public void close() throws IOException {
+
+    in.close();
+
+  } // End close().
+
+
+} // End class.
@@ -0,0 +1,385 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.core;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * This class appends RecordedRequests to a file, in the format described
+ * by RecordedRequest.  The file starts with RecordedRequest.MAGIC and the
+ * version; if it already exists, records are added after those in it.
+ * <br><br>
+ * Once the file would grow beyond a maximum size, it is renamed to the
+ * first of file.1, file.2 and so on that does not exist yet, and a new file
+ * is started, so the oldest records are in the lowest numbered file.
+ * <br><br>
+ * Records are either gathered in a buffer and written with as few writes
+ * as possible, or, if asked for, copied straight into a region of the file
+ * mapped into memory, which leaves writing them to the operating system.
+ * The mapped file is grown a region at a time and cut back to the last
+ * record when closed.  Should the JVM die first, the rest of the file is
+ * zeros, which RecordedRequestReader takes for the end of the records, and
+ * which are dropped when the file is next appended to.  Platforms that do
+ * not allow a mapped file to be renamed cannot rotate mapped files.
+ * <br><br>
+ * An instance is not thread-safe; RequestRecorderFilter only ever uses one
+ * from its RecordWriter thread.
+ * <br><br>
+ * This class depends on the following extra packages, beyond the JDK,
+ * to compile and run: None.
+ *
+ * @author <a href="mailto:fzammetti@omnytex.com">Frank W. Zammetti</a>.
+ */
+public final class RecordedRequestWriter {
+
+
+  /**
+   * Size of the buffer, or of each mapped region.
+   */
+  private static final int REGION_SIZE = 1024 * 1024;
+
+
+  /**
+   * Length of the file header: MAGIC and the version.
+   */
+  private static final int HEADER_LENGTH = RecordedRequest.MAGIC.length + 4;
+
+
+  /**
+   * The file.
+   */
+  private File file;
+
+
+  /**
+   * The size beyond which the file is rotated, or 0 to never rotate it.
+   */
+  private long maxFileSize;
+
+
+  /**
+   * Whether to append through a mapped region.
+   */
+  private boolean mapped;
+
+
+  /**
+   * The open file.
+   */
+  private RandomAccessFile raf;
+
+
+  /**
+   * The open file's channel.
+   */
+  private FileChannel ch;
+
+
+  /**
+   * Where the next record goes in the file.
+   */
+  private long position;
+
+
+  /**
+   * The buffer, or the mapped region, records are put in.
+   */
+  private ByteBuffer buf;
+
+
+  /**
+   * Where in the file buf starts.
+   */
+  private long bufStart;
+
+
+  /**
+   * Number of files rotated so far.
+   */
+  private int rotations;
+
+
+  /**
+   * Number of times a mapped file could not be cut back when closed.
+   */
+  private int truncateFailures;
+
+
+  /**
+   * Constructor.  Opens the file.
+   *
+   * @param  inFile        The file.
+   * @param  inMaxFileSize The size beyond which the file is rotated, or 0 to
+   *                       never rotate it.
+   * @param  inMapped      Whether to append through a mapped region rather
+   *                       than with writes.
+   * @throws IOException   If the file cannot be opened, or is not a file of
+   *                       records.
+   */
+  public RecordedRequestWriter(File inFile, long inMaxFileSize,
+    boolean inMapped) throws IOException {
+
+    file        = inFile;
+    maxFileSize = inMaxFileSize;
+    mapped      = inMapped;
+    if (!mapped) {
+      buf = ByteBuffer.allocate(REGION_SIZE);
+    }
+    open();
+
+  } // End RecordedRequestWriter().
+
+
+  /**
+   * Appends a request.
+   *
+   * @param  r           The request.
+   * @throws IOException If it cannot be written.
+   */
+  public void write(RecordedRequest r) throws IOException {
+
+    byte[] record = r.toRecord();
+    long   length = 4 + record.length;
+    if (maxFileSize > 0 && position > HEADER_LENGTH &&
+      position + length > maxFileSize) {
+      rotate();
+    }
+    ensureRoom(4);
+    buf.putInt(record.length);
+    for (int off = 0; off < record.length;) {
+      ensureRoom(1);
+      int n = Math.min(buf.remaining(), record.length - off);
+      buf.put(record, off, n);
+      off += n;
+    }
+    position += length;
+
+  } // End write().
+
+
+  /**
+   * Writes out whatever has been appended but not yet written.  When mapped,
+   * that is up to the operating system, so this does nothing.
+   *
+   * @throws IOException If it cannot be written.
+   */
+  public void flush() throws IOException {
+
+    if (!mapped) {
+      long at = bufStart + buf.position();
+      buf.flip();
+      ch.position(bufStart);
+      while (buf.hasRemaining()) {
+        ch.write(buf);
+      }
+      buf.clear();
+      bufStart = at;
+    }
+
+  } // End flush().
+
+
+  /**
+   * Writes out everything and closes the file.
+   *
+   * @throws IOException If it cannot be written.
+   */
+  public void close() throws IOException {
+
+    try {
+      flush();
+      if (mapped) {
+        buf = null;
+        // Some platforms do not allow a file to be cut back while it is
+        // mapped, and there is no way to unmap it, so this may fail.  The
+        // zeros left over are read as the end of the records.
+        try {
+          ch.truncate(position);
+        } catch (IOException e) {
+          truncateFailures++;
+        }
+      }
+    } finally {
+      raf.close();
+    }
+
+  } // End close().
+
+
+  /**
+   * Returns the file.
+   *
+   * @return The file.
+   */
+  public File getFile() {
+
+    return file;
+
+  } // End getFile().
+
+
+  /**
+   * Returns the number of files rotated so far.
+   *
+   * @return The count.
+   */
+  public int getRotations() {
+
+    return rotations;
+
+  } // End getRotations().
+
+
+  /**
+   * Returns the number of times a mapped file could not be cut back to its
+   * last record when closed, which some platforms do not allow.
+   *
+   * @return The count.
+   */
+  public int getTruncateFailures() {
+
+    return truncateFailures;
+
+  } // End getTruncateFailures().
+
+
+  /**
+   * Opens the file, writing the header if it is new, or finding the end of
+   * the records if it is not.
+   *
+   * @throws IOException If the file cannot be opened, or is not a file of
+   *                     records.
+   */
+  private void open() throws IOException {
+
+    raf = new RandomAccessFile(file, "rw");
+    ch  = raf.getChannel();
+    try {
+      if (raf.length() == 0) {
+        raf.write(RecordedRequest.MAGIC);
+        raf.writeInt(RecordedRequest.VERSION);
+        position = HEADER_LENGTH;
+      } else {
+        // Drop whatever follows the last whole record, such as a record
+        // cut short when the JVM died, so it cannot be taken for one.
+        position = findEnd();
+        if (raf.length() > position) {
+          ch.truncate(position);
+        }
+      }
+    } catch (IOException e) {
+      raf.close();
+      throw e;
+    }
+    bufStart = position;
+    if (mapped) {
+      buf = ch.map(FileChannel.MapMode.READ_WRITE, position, REGION_SIZE);
+    }
+
+  } // End open().
+
+
+  /**
+   * Finds the end of the records in the file.
+   *
+   * @return             The position after the last whole record.
+   * @throws IOException If the file cannot be read, or is not a file of
+   *                     records.
+   */
+  private long findEnd() throws IOException {
+
+    long   size  = raf.length();
+    byte[] magic = new byte[RecordedRequest.MAGIC.length];
+    raf.seek(0);
+    if (size < HEADER_LENGTH) {
+      throw new IOException(file + " is not a file of recorded requests");
+    }
+    raf.readFully(magic);
+    for (int i = 0; i < magic.length; i++) {
+      if (magic[i] != RecordedRequest.MAGIC[i]) {
+        throw new IOException(file + " is not a file of recorded requests");
+      }
+    }
+    raf.readInt();
+    long p = HEADER_LENGTH;
+    while (p + 4 <= size) {
+      raf.seek(p);
+      int n = raf.readInt();
+      if (n <= 0 || p + 4 + n > size) {
+        break;
+      }
+      p += 4 + n;
+    }
+    return p;
+
+  } // End findEnd().
+
+
+  /**
+   * Makes sure there is room in buf for some bytes, writing it out or
+   * mapping the next region if there is not.
+   *
+   * @param  n           The number of bytes.
+   * @throws IOException If buf cannot be written, or the region mapped.
+   */
+  private void ensureRoom(int n) throws IOException {
+
+    if (buf.remaining() >= n) {
+      return;
+    }
+    if (mapped) {
+      long at = bufStart + buf.position();
+      buf      = ch.map(FileChannel.MapMode.READ_WRITE, at, REGION_SIZE);
+      bufStart = at;
+    } else {
+      flush();
+    }
+
+  } // End ensureRoom().
+
+
+  /**
+   * Closes the file, renames it to the first free file.N and starts a new
+   * one.
+   *
+   * @throws IOException If it cannot be renamed or the new one opened.
+   */
+  private void rotate() throws IOException {
+
+    close();
+    int  n = 1;
+    File to;
+    do {
+      to = new File(file.getPath() + "." + n++);
+    } while (to.exists());
+    if (!file.renameTo(to)) {
+      throw new IOException("Could not rename " + file + " to " + to);
+    }
+    rotations++;
+    open();
+
+  } // End rotate().
+
+
+} // End class.
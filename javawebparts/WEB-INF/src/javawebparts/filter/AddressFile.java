@@ -0,0 +1,307 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.filter;
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Timer;
+import java.util.TimerTask;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * This class holds the addresses listed in IPAccessControlFilter's
+ * addressFile as an IPRangeSet.  A background timer checks whether the file
+ * has changed at a fixed interval and, if so, reads it into a new set and
+ * then swaps it in as a whole, so requests are never held up by a reload
+ * and always see either the old list or the new one in full.
+ * <br><br>
+ * The file must be readable when an instance is created.  A later reload
+ * that fails, because the file is missing or has an invalid line, leaves
+ * the previous set in place; failures are counted and logged.  Each load
+ * logs the size of the set and the average time taken to look up an
+ * address in it.
+ *
+ * @author <a href="mailto:fzammetti@omnytex.com">Frank W. Zammetti</a>.
+ */
+public class AddressFile {
+
+
+  /**
+   * This static initializer block tries to load all the classes this one
+   * depends on (those not from standard Java anyway) and prints an error
+   * meesage if any cannot be loaded for any reason.
+   */
+  static {
+    try {
+      Class.forName("org.apache.commons.logging.Log");
+      Class.forName("org.apache.commons.logging.LogFactory");
+    } catch (ClassNotFoundException e) {
+      System.err.println("AddressFile" +
+        " could not be loaded by classloader because classes it depends" +
+        " on could not be found in the classpath...");
+      e.printStackTrace();
+    }
+  }
+
+
+  /**
+   * Log instance.
+   */
+  private static Log log = LogFactory.getLog(AddressFile.class);
+
+
+  /**
+   * Number of lookups timed after each load.
+   */
+  private static final int TIMED_LOOKUPS = 1 << 20;
+
+
+  /**
+   * The file.
+   */
+  private File file;
+
+
+  /**
+   * The current set.
+   */
+  private volatile IPRangeSet snapshot;
+
+
+  /**
+   * Modification time of the file the current set was read from.
+   */
+  private long lastModified;
+
+
+  /**
+   * Length of the file the current set was read from.
+   */
+  private long length;
+
+
+  /**
+   * Timer doing the reloads, or null if there are none.
+   */
+  private Timer timer;
+
+
+  /**
+   * Number of successful loads.
+   */
+  private long loads;
+
+
+  /**
+   * Number of failed reloads.
+   */
+  private long failures;
+
+
+  /**
+   * Constructor.  The file is read right away.
+   *
+   * @param  inFile          The file.
+   * @param  refreshInterval Milliseconds between checks for changes, or 0
+   *                         for none.
+   * @throws IOException     If the file cannot be read.
+   * @throws                 IllegalArgumentException If a line is not
+   *                         valid.
+   */
+  public AddressFile(File inFile, long refreshInterval) throws IOException {
+
+    file = inFile;
+    load();
+    if (refreshInterval > 0) {
+      timer = new Timer(true);
+      timer.schedule(new TimerTask() {
+        public void run() {
+          reloadIfChanged();
+        }
+      }, refreshInterval, refreshInterval);
+    }
+
+  } // End AddressFile().
+
+
+  /**
+   * Reads the file if it has changed since it was last read.
+   *
+   * @return True if it was read successfully.
+   */
+  public boolean reloadIfChanged() {
+
+    synchronized (this) {
+      if (file.lastModified() == lastModified && file.length() == length) {
+        return false;
+      }
+    }
+    try {
+      load();
+      return true;
+    } catch (Exception e) {
+      synchronized (this) {
+        failures++;
+        // Don't try the same broken file again until it changes.
+        lastModified = file.lastModified();
+        length       = file.length();
+      }
+      log.warn("Could not reload " + file + ", keeping " + snapshot +
+        ": " + e);
+      return false;
+    }
+
+  } // End reloadIfChanged().
+
+
+  /**
+   * Reads the file and swaps the new set in.
+   *
+   * @throws IOException If the file cannot be read.
+   */
+  private void load() throws IOException {
+
+    long   modified = file.lastModified();
+    long   len      = file.length();
+    Reader in       = new InputStreamReader(new FileInputStream(file),
+      "ISO-8859-1");
+    long   start    = System.currentTimeMillis();
+    IPRangeSet s;
+    try {
+      s = IPRangeSet.read(in);
+    } finally {
+      in.close();
+    }
+    long readTime = System.currentTimeMillis() - start;
+    snapshot = s;
+    synchronized (this) {
+      lastModified = modified;
+      length       = len;
+      loads++;
+    }
+    log.info("Loaded " + file + " in " + readTime + " ms: " + s +
+      ", lookup " + timeLookups(s) + " ns");
+
+  } // End load().
+
+
+  /**
+   * Times lookups of pseudo-random addresses in a set.
+   *
+   * @param  s The set.
+   * @return   The average time of a lookup, in nanoseconds.
+   */
+  private static long timeLookups(IPRangeSet s) {
+
+    int  addr  = 0x9e3779b9;
+    int  found = 0;
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < TIMED_LOOKUPS; i++) {
+      addr = addr * 1664525 + 1013904223;
+      if (s.contains(addr)) {
+        found++;
+      }
+    }
+    long elapsed = System.currentTimeMillis() - start;
+    // found keeps the loop from being optimized away.
+    return (elapsed * 1000000L + (found & 1)) / TIMED_LOOKUPS;
+
+  } // End timeLookups().
+
+
+  /**
+   * Determines whether an address is listed in the file.
+   *
+   * @param  addr The address, from IPAddressMatcher.parse().
+   * @return      True if it is.
+   */
+  public boolean contains(byte[] addr) {
+
+    return snapshot.contains(addr);
+
+  } // End contains().
+
+
+  /**
+   * Returns the current set.
+   *
+   * @return The set.
+   */
+  public IPRangeSet getSnapshot() {
+
+    return snapshot;
+
+  } // End getSnapshot().
+
+
+  /**
+   * Stops the reloads.
+   */
+  public void stop() {
+
+    if (timer != null) {
+      timer.cancel();
+    }
+
+  } // End stop().
+
+
+  /**
+   * Returns the number of successful loads, including the first.
+   *
+   * @return The count.
+   */
+  public synchronized long getLoads() {
+
+    return loads;
+
+  } // End getLoads().
+
+
+  /**
+   * Returns the number of reloads that failed.
+   *
+   * @return The count.
+   */
+  public synchronized long getReloadFailures() {
+
+    return failures;
+
+  } // End getReloadFailures().
+
+
+  /**
+   * Returns the file, its set and statistics, for logging purposes.
+   *
+   * @return The description as a String.
+   */
+  public synchronized String toString() {
+
+    return "AddressFile[file=" + file + ", " + snapshot + ", loads=" +
+      loads + ", reloadFailures=" + failures + "]";
+
+  } // End toString().
+
+
+} // End class.
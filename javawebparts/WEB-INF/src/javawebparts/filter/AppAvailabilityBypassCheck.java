@@ -28,6 +28,10 @@ import javax.servlet.ServletRequest;
  * access an unavailable application).  It can do any kind of check the
  * developer wants, it simply must implement the single doBypass() method
  * and return true if the filter should allow the request no matter what.
+ * <br><br>
+ * AppAvailabilityFilter creates a single instance when it is initialized
+ * and calls it for every request, from many threads at once, so an
+ * implementation must be thread-safe.
  *
  * @author <a href="mailto:fzammetti@omnytex.com">Frank W. Zammetti</a>.
  */
@@ -19,9 +19,7 @@ package javawebparts.filter;
 
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.GregorianCalendar;
 import java.util.StringTokenizer;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -66,13 +64,20 @@ import org.apache.commons.logging.LogFactory;
  * technically a misconfiguration).  If NEITHER is defined then the generic
  * filter mapping will be in effect only.</li>
  * <br><br>
+ * <li><b>pathDecisionCacheSize</b> - If greater than zero, the result of
+ * matching each requested path against pathList is remembered for up to this
+ * many distinct paths, so repeat requests skip the matching entirely.
+ * Required: No.  Default: 0 (no caching).</li>
+ * <br><br>
  * <li><b>bypassCheckClass</b> - This is a class you can optionally provide that
  * must implement the AppAvailabilityBypassCheck interface, to allow for the
  * capability to override the function of this filter.  For instance, you may
  * want a particular user to always be allowed in.  By supplying this class,
  * you can do that in whatever fashion is appropriate for your application
  * (i.e., maybe you need to grab a particular parameter from request and look
- * up the user in a database).  Required: Yes.  Default: None.</li>
+ * up the user in a database).  A single instance is created when the filter is
+ * initialized and shared by all requests, so it must be thread-safe.
+ * Required: Yes.  Default: None.</li>
  * <br><br>
  * <li><b>redirectTo</b> - The URL to redirect to if the app is not available.
  * You can either redirect to this URL or forward to it, but not both.
@@ -227,7 +232,7 @@ public class AppAvailabilityFilter implements Filter {
   /**
    * List of paths for filter functionality determination.
    */
-  private ArrayList pathList = new ArrayList();
+  private PathMatcher pathList;
 
 
   /**
@@ -243,93 +248,15 @@ public class AppAvailabilityFilter implements Filter {
 
 
   /**
-   * A class that will be used to allow for bypassing this filter.
-   */
-  private String bypassCheckClass;
-
-
-  /**
-   * The start of the time window the app is available during on Monday.
-   */
-  private int mondayStart;
-
-
-  /**
-   * The end of the time window the app is available during on Monday.
-   */
-  private int mondayEnd;
-
-
-  /**
-   * The start of the time window the app is available during on Tuesday.
-   */
-  private int tuesdayStart;
-
-
-  /**
-   * The end of the time window the app is available during on Tuesday.
-   */
-  private int tuesdayEnd;
-
-
-  /**
-   * The start of the time window the app is available during on Wednesday.
-   */
-  private int wednesdayStart;
-
-
-  /**
-   * The end of the time window the app is available during on Wednesday.
-   */
-  private int wednesdayEnd;
-
-
-  /**
-   * The start of the time window the app is available during on Thursday.
+   * The instance of bypassCheckClass, if configured, shared by all requests.
    */
-  private int thursdayStart;
+  private AppAvailabilityBypassCheck bypassCheck;
 
 
   /**
-   * The end of the time window the app is available during on Thursday.
+   * The days and times the app is available.
    */
-  private int thursdayEnd;
-
-
-  /**
-   * The start of the time window the app is available during on Friday.
-   */
-  private int fridayStart;
-
-
-  /**
-   * The end of the time window the app is available during on Friday.
-   */
-  private int fridayEnd;
-
-
-  /**
-   * The start of the time window the app is available during on Saturday.
-   */
-  private int saturdayStart;
-
-
-  /**
-   * The end of the time window the app is available during on Saturday.
-   */
-  private int saturdayEnd;
-
-
-  /**
-   * The start of the time window the app is available during on Sunday.
-   */
-  private int sundayStart;
-
-
-  /**
-   * The end of the time window the app is available during on Sunday.
-   */
-  private int sundayEnd;
+  private AvailabilitySchedule schedule;
 
 
   /**
@@ -354,9 +281,40 @@ public class AppAvailabilityFilter implements Filter {
     pathSpec = FilterHelpers.initPathSpec(getClass().getName(), filterConfig);
     pathList = FilterHelpers.initPathList(getClass().getName(), filterConfig);
 
-    // Get the bypassCheckClass init parameter.
-    bypassCheckClass = filterConfig.getInitParameter("bypassCheckClass");
+    // Get the bypassCheckClass init parameter, and create the one instance
+    // of it every request is checked with.
+    String bypassCheckClass = filterConfig.getInitParameter("bypassCheckClass");
     log.info("bypassCheckClass = " + bypassCheckClass);
+    if (bypassCheckClass != null) {
+      try {
+        bypassCheck = (AppAvailabilityBypassCheck)
+          Class.forName(bypassCheckClass).newInstance();
+      } catch (ClassNotFoundException cnfe) {
+        String es = getClass().getName() + " could not initialize " +
+                    "because bypassCheckClass " + bypassCheckClass +
+                    " could not be found";
+        log.error(es);
+        throw new ServletException(es);
+      } catch (InstantiationException ie) {
+        String es = getClass().getName() + " could not initialize " +
+                    "because bypassCheckClass " + bypassCheckClass +
+                    " could not be instantiated";
+        log.error(es);
+        throw new ServletException(es);
+      } catch (IllegalAccessException iae) {
+        String es = getClass().getName() + " could not initialize " +
+                    "because bypassCheckClass " + bypassCheckClass +
+                    " could not be instantiated";
+        log.error(es);
+        throw new ServletException(es);
+      } catch (ClassCastException cce) {
+        String es = getClass().getName() + " could not initialize " +
+                    "because bypassCheckClass " + bypassCheckClass +
+                    " does not implement AppAvailabilityBypassCheck";
+        log.error(es);
+        throw new ServletException(es);
+      }
+    }
 
     // Get the redirectTo and forwardTo init parameters and validate them.
     redirectTo = FilterHelpers.initRedirectTo(filterConfig);
@@ -364,22 +322,30 @@ public class AppAvailabilityFilter implements Filter {
     FilterHelpers.checkRedirectForwardTo(getClass().getName(),
                                          redirectTo, forwardTo);
 
-    // Get start/end times for all the days of the week.
-    // Get the pathSpec init parameter.
-    mondayStart    = getDayStartEnd(filterConfig, "monday",    TIME_START);
-    mondayEnd      = getDayStartEnd(filterConfig, "monday",    TIME_END);
-    tuesdayStart   = getDayStartEnd(filterConfig, "tuesday",   TIME_START);
-    tuesdayEnd     = getDayStartEnd(filterConfig, "tuesday",   TIME_END);
-    wednesdayStart = getDayStartEnd(filterConfig, "wednesday", TIME_START);
-    wednesdayEnd   = getDayStartEnd(filterConfig, "wednesday", TIME_END);
-    thursdayStart  = getDayStartEnd(filterConfig, "thursday",  TIME_START);
-    thursdayEnd    = getDayStartEnd(filterConfig, "thursday",  TIME_END);
-    fridayStart    = getDayStartEnd(filterConfig, "friday",    TIME_START);
-    fridayEnd      = getDayStartEnd(filterConfig, "friday",    TIME_END);
-    saturdayStart  = getDayStartEnd(filterConfig, "saturday",  TIME_START);
-    saturdayEnd    = getDayStartEnd(filterConfig, "saturday",  TIME_END);
-    sundayStart    = getDayStartEnd(filterConfig, "sunday",    TIME_START);
-    sundayEnd      = getDayStartEnd(filterConfig, "sunday",    TIME_END);
+    // Get start/end times for all the days of the week, and work out once
+    // from them which minutes of the week the app is available during.
+    schedule = new AvailabilitySchedule();
+    schedule.setDay(Calendar.MONDAY,
+      getDayStartEnd(filterConfig, "monday", TIME_START),
+      getDayStartEnd(filterConfig, "monday", TIME_END));
+    schedule.setDay(Calendar.TUESDAY,
+      getDayStartEnd(filterConfig, "tuesday", TIME_START),
+      getDayStartEnd(filterConfig, "tuesday", TIME_END));
+    schedule.setDay(Calendar.WEDNESDAY,
+      getDayStartEnd(filterConfig, "wednesday", TIME_START),
+      getDayStartEnd(filterConfig, "wednesday", TIME_END));
+    schedule.setDay(Calendar.THURSDAY,
+      getDayStartEnd(filterConfig, "thursday", TIME_START),
+      getDayStartEnd(filterConfig, "thursday", TIME_END));
+    schedule.setDay(Calendar.FRIDAY,
+      getDayStartEnd(filterConfig, "friday", TIME_START),
+      getDayStartEnd(filterConfig, "friday", TIME_END));
+    schedule.setDay(Calendar.SATURDAY,
+      getDayStartEnd(filterConfig, "saturday", TIME_START),
+      getDayStartEnd(filterConfig, "saturday", TIME_END));
+    schedule.setDay(Calendar.SUNDAY,
+      getDayStartEnd(filterConfig, "sunday", TIME_START),
+      getDayStartEnd(filterConfig, "sunday", TIME_END));
 
     log.info("init() completed");
 
@@ -444,40 +410,20 @@ public class AppAvailabilityFilter implements Filter {
       log.info("AppAvailabilityFilter firing...");
 
       // See if a bypass class has been configured, and if so,
-      // instantiate it and call its doBypass() method.
-      if (bypassCheckClass != null) {
-        try {
-          Class clazz = Class.forName(bypassCheckClass);
-          AppAvailabilityBypassCheck bc =
-            (AppAvailabilityBypassCheck)clazz.newInstance();
-          if (bc.doBypass(request)) {
-            filterChain.doFilter(request, response);
-            return;
-          }
-        // No exceptions should really occur here because at this point the
-        // bypassCheckClass has already been validated during init, and
-        // there shouldn't be anything else that can go wrong.  Famous
-        // last words!
-        } catch (ClassNotFoundException cnfe) {
-          log.error(cnfe);
-          throw new ServletException(cnfe);
-        } catch (InstantiationException ie) {
-          log.error(ie);
-          throw new ServletException(ie);
-        } catch (IllegalAccessException iae) {
-          log.error(iae);
-          throw new ServletException(iae);
-        }
+      // call its doBypass() method.
+      if (bypassCheck != null && bypassCheck.doBypass(request)) {
+        filterChain.doFilter(request, response);
+        return;
       }
 
       // If we're here it means the path was eligible for checking, and
       // a bypass was not done.  So, we check to see if we are within an
       // availability window.  If not, redirect (or forward) as configured.
-      if (!isAppAvailable()) {
+      if (!schedule.isAvailableAt(System.currentTimeMillis())) {
         FilterHelpers.redirectOrForward(redirectTo, forwardTo, request,
                                         response);
         return;
-      } // End if (!isAppAvailable()).
+      } // End if (!schedule.isAvailableAt()).
 
     } // End if (FilterHelpers.filterPath(path, pathList, pathSpec)).
 
@@ -488,106 +434,4 @@ public class AppAvailabilityFilter implements Filter {
   } // End doFilter().
 
 
-  /**
-   * This is called to determine if the app is available.  It does this by
-   * determining if the current time on the server is within the availability
-   * window configured for the current day of the week.
-   *
-   * @return True if the app is available, false if not.
-   */
-  private boolean isAppAvailable() {
-
-    // Based on the day of the week, get the appropriate range times.
-    GregorianCalendar currentDateTime = new GregorianCalendar();
-    int               rangeStart      = 0;
-    int               rangeEnd        = 0;
-    switch (currentDateTime.get(Calendar.DAY_OF_WEEK)){
-      case Calendar.MONDAY:
-        rangeStart = mondayStart;
-        rangeEnd   = mondayEnd;
-      break;
-      case Calendar.TUESDAY:
-        rangeStart = tuesdayStart;
-        rangeEnd   = tuesdayEnd;
-      break;
-      case Calendar.WEDNESDAY:
-        rangeStart = wednesdayStart;
-        rangeEnd   = wednesdayEnd;
-      break;
-      case Calendar.THURSDAY:
-        rangeStart = thursdayStart;
-        rangeEnd   = thursdayEnd;
-      break;
-      case Calendar.FRIDAY:
-        rangeStart = fridayStart;
-        rangeEnd   = fridayEnd;
-      break;
-      case Calendar.SATURDAY:
-        rangeStart = saturdayStart;
-        rangeEnd   = saturdayEnd;
-      break;
-      case Calendar.SUNDAY:
-        rangeStart = sundayStart;
-        rangeEnd   = sundayEnd;
-      break;
-      default:
-        rangeStart = 0000;
-        rangeEnd   = 2359;
-      break;
-    }
-
-    // Do the actual check, send redirect if not within range.
-    int currentTime = (currentDateTime.get(Calendar.HOUR_OF_DAY) * 100) +
-                       currentDateTime.get(Calendar.MINUTE);
-    return isTimeInRange(rangeStart, rangeEnd, currentTime);
-
-  } // End isAppAvailable().
-
-
-  /**
-   * This method checks if a given 24-hour time is within a given 24-hour
-   * time. Note that this should properly handle ranges that span days, i.e.,
-   * if the start time is 2000 and the end time is 800 (8pm-8am the following
-   * day), this should still work fine.
-   *
-   * @return             True if the checked time is within the range, false
-   *                     if it isn't.
-   * @param  rangeStart  Beginning of range.
-   * @param  rangeEnd    End of range.
-   * @param  timeToCheck The time to check against the range.
-   */
-  private boolean isTimeInRange(int rangeStart, int rangeEnd, int timeToCheck) {
-
-      boolean result = false;
-      // Special case: if the timeToCheck is equal to either the rangeStart
-      // or rangeEnd, it falls within the range.  This check needs to be
-      // done to catch certain situations that arose when the range spans
-      // a day.  I'm honestly not sure why it didn't work without out this,
-      // the logic seemed to be sound, but whatever, putting this in took care
-      // of it, and it IS a valid check anyway.  So be it!
-      if (timeToCheck == rangeStart || timeToCheck == rangeEnd) {
-          result = true;
-      } else {
-          // If the range DOES NOT span a day, do it this way...
-          if (rangeEnd > rangeStart) {
-              if (timeToCheck >= rangeStart && timeToCheck <= rangeEnd) {
-                  result = true;
-              } else {
-                  result = false;
-              }
-          }
-          // If the range DOES span a day, do it this way...
-          if (rangeStart > rangeEnd) {
-              if (timeToCheck >= rangeEnd && timeToCheck <= rangeStart) {
-                  result = false;
-              } else {
-                  result = true;
-              }
-          }
-      }
-      return result;
-
-  } // End isTimeInRange().
-
-
 } // End class.
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.filter;
+
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+
+/**
+ * This class is AppAvailabilityFilter's weekly schedule, compiled into one
+ * bit for every minute of the week, so checking whether the application is
+ * available is a single bit test.  The minute of the week is worked out
+ * with a Calendar only once a minute and otherwise taken from the last
+ * time, so most checks allocate nothing.  Working it out afresh each minute
+ * keeps daylight saving time changes right.
+ * <br><br>
+ * An instance may be shared by any number of threads once its days are
+ * set.
+ *
+ * @author <a href="mailto:fzammetti@omnytex.com">Frank W. Zammetti</a>.
+ */
+public final class AvailabilitySchedule {
+
+
+  /**
+   * Minutes in a day.
+   */
+  private static final int MINUTES_PER_DAY = 24 * 60;
+
+
+  /**
+   * Milliseconds in a minute.
+   */
+  private static final long MINUTE = 60 * 1000L;
+
+
+  /**
+   * One bit per minute of the week, Sunday midnight first, set if the
+   * application is available.
+   */
+  private long[] minutes = new long[(7 * MINUTES_PER_DAY + 63) / 64];
+
+
+  /**
+   * The minute of the week last worked out.
+   */
+  private volatile Minute current;
+
+
+  /**
+   * Sets the time range during which the application is available on a
+   * day.  A range whose end is earlier than its start spans midnight: the
+   * application is then available on that day until the end and again from
+   * the start.
+   *
+   * @param dayOfWeek  The day, as Calendar.SUNDAY to Calendar.SATURDAY.
+   * @param rangeStart The start, in 24-hour form, i.e. 800 for 8am.
+   * @param rangeEnd   The end, in 24-hour form, i.e. 1730 for 5:30pm.
+   */
+  public void setDay(int dayOfWeek, int rangeStart, int rangeEnd) {
+
+    int base = (dayOfWeek - Calendar.SUNDAY) * MINUTES_PER_DAY;
+    for (int m = 0; m < MINUTES_PER_DAY; m++) {
+      int i = base + m;
+      if (isTimeInRange(rangeStart, rangeEnd, (m / 60) * 100 + m % 60)) {
+        minutes[i >> 6] |= 1L << (i & 63);
+      } else {
+        minutes[i >> 6] &= ~(1L << (i & 63));
+      }
+    }
+
+  } // End setDay().
+
+
+  /**
+   * Determines whether the application is available at a given minute of
+   * the week.
+   *
+   * @param  minuteOfWeek The minute, 0 being Sunday midnight.
+   * @return              True if it is.
+   */
+  public boolean isAvailable(int minuteOfWeek) {
+
+    return (minutes[minuteOfWeek >> 6] & (1L << (minuteOfWeek & 63))) != 0;
+
+  } // End isAvailable().
+
+
+  /**
+   * Determines whether the application is available at a given time, in
+   * the server's time zone.
+   *
+   * @param  millis The time, as from System.currentTimeMillis().
+   * @return        True if it is.
+   */
+  public boolean isAvailableAt(long millis) {
+
+    Minute m = current;
+    if (m == null || millis < m.start || millis >= m.start + MINUTE) {
+      GregorianCalendar cal = new GregorianCalendar();
+      cal.setTimeInMillis(millis);
+      m = new Minute(millis - cal.get(Calendar.SECOND) * 1000L -
+        cal.get(Calendar.MILLISECOND),
+        (cal.get(Calendar.DAY_OF_WEEK) - Calendar.SUNDAY) * MINUTES_PER_DAY +
+        cal.get(Calendar.HOUR_OF_DAY) * 60 + cal.get(Calendar.MINUTE));
+      current = m;
+    }
+    return isAvailable(m.minuteOfWeek);
+
+  } // End isAvailableAt().
+
+
+  /**
+   * This method checks if a given 24-hour time is within a given 24-hour
+   * time. Note that this should properly handle ranges that span days, i.e.,
+   * if the start time is 2000 and the end time is 800 (8pm-8am the following
+   * day), this should still work fine.
+   *
+   * @return             True if the checked time is within the range, false
+   *                     if it isn't.
+   * @param  rangeStart  Beginning of range.
+   * @param  rangeEnd    End of range.
+   * @param  timeToCheck The time to check against the range.
+   */
+  private static boolean isTimeInRange(int rangeStart, int rangeEnd,
+    int timeToCheck) {
+
+      boolean result = false;
+      // Special case: if the timeToCheck is equal to either the rangeStart
+      // or rangeEnd, it falls within the range.  This check needs to be
+      // done to catch certain situations that arose when the range spans
+      // a day.  I'm honestly not sure why it didn't work without out this,
+      // the logic seemed to be sound, but whatever, putting this in took care
+      // of it, and it IS a valid check anyway.  So be it!
+      if (timeToCheck == rangeStart || timeToCheck == rangeEnd) {
+          result = true;
+      } else {
+          // If the range DOES NOT span a day, do it this way...
+          if (rangeEnd > rangeStart) {
+              if (timeToCheck >= rangeStart && timeToCheck <= rangeEnd) {
+                  result = true;
+              } else {
+                  result = false;
+              }
+          }
+          // If the range DOES span a day, do it this way...
+          if (rangeStart > rangeEnd) {
+              if (timeToCheck >= rangeEnd && timeToCheck <= rangeStart) {
+                  result = false;
+              } else {
+                  result = true;
+              }
+          }
+      }
+      return result;
+
+  } // End isTimeInRange().
+
+
+  /**
+   * A minute of the week and the time it started at.
+   */
+  private static final class Minute {
+
+    /**
+     * The time the minute started at.
+     */
+    private final long start;
+
+    /**
+     * The minute of the week.
+     */
+    private final int minuteOfWeek;
+
+    /**
+     * Constructor.
+     *
+     * @param inStart        The time the minute started at.
+     * @param inMinuteOfWeek The minute of the week.
+     */
+    private Minute(long inStart, int inMinuteOfWeek) {
+      start        = inStart;
+      minuteOfWeek = inMinuteOfWeek;
+    }
+
+  } // End Minute class.
+
+
+} // End class.
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.filter;
+
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+
+/**
+ * This class is a wrapper that keeps a copy of the first bytes of the
+ * request body as the application reads it, for RequestRecorderFilter.
+ * Nothing is read that the application does not read itself, so a body the
+ * application never looks at is not kept, and one read as parameters by the
+ * container is not kept either; the parameters are recorded instead.
+ *
+ * @author <a href="mailto:fzammetti@omnytex.com">Frank W. Zammetti</a>.
+ */
+public class BodyCaptureWrapper extends HttpServletRequestWrapper {
+
+
+  /**
+   * This static initializer block tries to load all the classes this one
+   * depends on (those not from standard Java anyway) and prints an error
+   * meesage if any cannot be loaded for any reason.
+   */
+  static {
+    try {
+      Class.forName("javax.servlet.ServletInputStream");
+      Class.forName("javax.servlet.http.HttpServletRequest");
+      Class.forName("javax.servlet.http.HttpServletRequestWrapper");
+    } catch (ClassNotFoundException e) {
+      System.err.println("BodyCaptureWrapper" +
+        " could not be loaded by classloader because classes it depends" +
+        " on could not be found in the classpath...");
+      e.printStackTrace();
+    }
+  }
+
+
+  /**
+   * The first bytes of the body read so far.
+   */
+  private byte[] prefix;
+
+
+  /**
+   * Number of bytes in prefix.
+   */
+  private int length;
+
+
+  /**
+   * The stream handed to the application, once it asks for one.
+   */
+  private ServletInputStream stream;
+
+
+  /**
+   * The reader handed to the application, once it asks for one.
+   */
+  private BufferedReader reader;
+
+
+  /**
+   * Constructor.
+   *
+   * @param inRequest   HttpServletRequest being serviced.
+   * @param inMaxLength Most bytes of the body kept.
+   */
+  public BodyCaptureWrapper(HttpServletRequest inRequest, int inMaxLength) {
+
+    super(inRequest);
+    prefix = new byte[Math.max(0, inMaxLength)];
+
+  } // End constructor.
+
+
+  /**
+   * Returns the body, keeping a copy of its first bytes as they are read.
+   *
+   * @return             The body.
+   * @throws IOException If it cannot be had.
+   */
+  public ServletInputStream getInputStream() throws IOException {
+
+    if (stream == null) {
+      final ServletInputStream in = super.getInputStream();
+      stream = new ServletInputStream() {
+        public int read() throws IOException {
+          int b = in.read();
+          if (b != -1 && length < prefix.length) {
+            prefix[length++] = (byte)b;
+          }
+          return b;
+        }
+        public int read(byte[] b, int off, int len) throws IOException {
+          int n = in.read(b, off, len);
+          keep(b, off, n);
+          return n;
+        }
+        public int readLine(byte[] b, int off, int len) throws IOException {
+          int n = in.readLine(b, off, len);
+          keep(b, off, n);
+          return n;
+        }
+        public int available() throws IOException {
+          return in.available();
+        }
+        public void close() throws IOException {
+          in.close();
+        }
+      };
+    }
+    return stream;
+
+  } // End getInputStream().
+
+
+  /**
+   * Returns the body as characters, keeping a copy of its first bytes as
+   * they are read.
+   *
+   * @return             The body.
+   * @throws IOException If it cannot be had.
+   */
+  public BufferedReader getReader() throws IOException {
+
+    if (reader == null) {
+      String enc = getCharacterEncoding();
+      if (enc == null) {
+        enc = "ISO-8859-1";
+      }
+      reader = new BufferedReader(new InputStreamReader(getInputStream(),
+        enc));
+    }
+    return reader;
+
+  } // End getReader().
+
+
+  /**
+   * Returns the first bytes of the body that have been read.
+   *
+   * @return The bytes, a copy.
+   */
+  public byte[] getPrefix() {
+
+    byte[] b = new byte[length];
+    System.arraycopy(prefix, 0, b, 0, length);
+    return b;
+
+  } // End getPrefix().
+
+
+  /**
+   * Keeps what fits of some bytes just read.
+   *
+   * @param b   The buffer they were read into.
+   * @param off Where in it they start.
+   * @param n   How many were read, or -1 at the end of the body.
+   */
+  private void keep(byte[] b, int off, int n) {
+
+    int k = Math.min(n, prefix.length - length);
+    if (k > 0) {
+      System.arraycopy(b, off, prefix, length, k);
+      length += k;
+    }
+
+  } // End keep().
+
+
+} // End class.
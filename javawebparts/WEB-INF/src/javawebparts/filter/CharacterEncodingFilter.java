@@ -19,7 +19,6 @@ package javawebparts.filter;
 
 
 import java.io.IOException;
-import java.util.ArrayList;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -65,6 +64,11 @@ import org.apache.commons.logging.LogFactory;
  * technically a misconfiguration).  If NEITHER is defined then the generic
  * filter mapping will be in effect only.</li>
  * <br><br>
+ * <li><b>pathDecisionCacheSize</b> - If greater than zero, the result of
+ * matching each requested path against pathList is remembered for up to this
+ * many distinct paths, so repeat requests skip the matching entirely.
+ * Required: No.  Default: 0 (no caching).</li>
+ * <br><br>
  * <li><b>encodingScheme</b> - This is the actual value to set in the header.
  * This can be any valid character encoding scheme value like ASCII, UTF-8,
  * etc.  Required: Yes.  Default: None.</li>
@@ -134,7 +138,7 @@ public class CharacterEncodingFilter implements Filter {
   /**
    * List of paths for filter functionality determination.
    */
-  private ArrayList pathList = new ArrayList();
+  private PathMatcher pathList;
 
 
   /**
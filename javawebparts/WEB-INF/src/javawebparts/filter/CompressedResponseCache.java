@@ -0,0 +1,332 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.filter;
+
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+
+/**
+ * This class is the cache CompressionFilter keeps of compressed responses.
+ * Entries are keyed by URL, query string and compression type, hold the
+ * compressed bytes plus the content type, locale and other headers the
+ * servlet set, and are evicted least recently used first once the total
+ * size of all bodies exceeds a byte budget.  An optional time to live
+ * expires entries regardless of use.
+ * <br><br>
+ * All access is synchronized on the cache, but the work done while holding
+ * the lock is a map lookup and some bookkeeping; the bytes are written to
+ * the client outside of it.
+ *
+ * @author <a href="mailto:fzammetti@omnytex.com">Frank W. Zammetti</a>.
+ */
+public class CompressedResponseCache {
+
+
+  /**
+   * The entries, in access order.
+   */
+  private LinkedHashMap entries = new LinkedHashMap(16, 0.75f, true);
+
+
+  /**
+   * The most bytes all bodies together may take.
+   */
+  private long maxBytes;
+
+
+  /**
+   * Milliseconds an entry lives for, 0 for no limit.
+   */
+  private long ttl;
+
+
+  /**
+   * The number of bytes all entries together currently take, bodies and
+   * headers.
+   */
+  private long currentBytes;
+
+
+  /**
+   * Number of lookups that found a live entry.
+   */
+  private long hits;
+
+
+  /**
+   * Number of lookups that did not.
+   */
+  private long misses;
+
+
+  /**
+   * Number of entries removed to stay within the byte budget.
+   */
+  private long evictions;
+
+
+  /**
+   * Constructor.
+   *
+   * @param inMaxBytes The most bytes all cached bodies together may take.
+   * @param inTtl      Milliseconds an entry lives for, 0 for no limit.
+   */
+  public CompressedResponseCache(long inMaxBytes, long inTtl) {
+
+    maxBytes = inMaxBytes;
+    ttl      = inTtl;
+
+  } // End CompressedResponseCache().
+
+
+  /**
+   * Builds the key for a request.
+   *
+   * @param  requestURI  The request URI.
+   * @param  queryString The query string, may be null.
+   * @param  ct          The compression type.
+   * @return             The key.
+   */
+  public static String makeKey(String requestURI, String queryString,
+    String ct) {
+
+    StringBuffer sb = new StringBuffer(requestURI.length() + 32);
+    sb.append(ct).append(' ').append(requestURI);
+    if (queryString != null) {
+      sb.append('?').append(queryString);
+    }
+    return sb.toString();
+
+  } // End makeKey().
+
+
+  /**
+   * Gets a cached response.
+   *
+   * @param  key The key, from makeKey().
+   * @return     The entry, or null if there is no live one.
+   */
+  public synchronized Entry get(String key) {
+
+    Entry e = (Entry)entries.get(key);
+    if (e != null && ttl > 0 &&
+        System.currentTimeMillis() - e.created > ttl) {
+      entries.remove(key);
+      currentBytes -= e.size;
+      e = null;
+    }
+    if (e == null) {
+      misses++;
+    } else {
+      hits++;
+    }
+    return e;
+
+  } // End get().
+
+
+  /**
+   * Caches a response, evicting the least recently used entries as needed.
+   * Bodies larger than the whole budget are not cached.
+   *
+   * @param key         The key, from makeKey().
+   * @param body        The compressed bytes.
+   * @param contentType The content type, may be null.
+   */
+  public void put(String key, byte[] body, String contentType) {
+
+    put(key, body, contentType, new String[0], null);
+
+  } // End put().
+
+
+  /**
+   * Caches a response with the headers to send it with, evicting the least
+   * recently used entries as needed.  The headers count against the
+   * budget along with the body, and responses larger than the whole budget
+   * are not cached.
+   *
+   * @param key         The key, from makeKey().
+   * @param body        The compressed bytes.
+   * @param contentType The content type, may be null.
+   * @param headers     The other headers, as name then value.
+   * @param locale      The locale, may be null.
+   */
+  public synchronized void put(String key, byte[] body, String contentType,
+    String[] headers, Locale locale) {
+
+    Entry n = new Entry(body, contentType, headers, locale);
+    if (n.size > maxBytes) {
+      return;
+    }
+    Entry old = (Entry)entries.remove(key);
+    if (old != null) {
+      currentBytes -= old.size;
+    }
+    for (Iterator it = entries.entrySet().iterator();
+         it.hasNext() && currentBytes + n.size > maxBytes;) {
+      Entry e = (Entry)((Map.Entry)it.next()).getValue();
+      currentBytes -= e.size;
+      it.remove();
+      evictions++;
+    }
+    entries.put(key, n);
+    currentBytes += n.size;
+
+  } // End put().
+
+
+  /**
+   * Returns the most bytes a single response can take and still be cached.
+   *
+   * @return The limit.
+   */
+  public long getMaxBytes() {
+
+    return maxBytes;
+
+  } // End getMaxBytes().
+
+
+  /**
+   * Returns the statistics of this cache, for logging purposes.
+   *
+   * @return The statistics as a String.
+   */
+  public synchronized String toString() {
+
+    return "CompressedResponseCache[entries=" + entries.size() +
+      ", bytes=" + currentBytes + "/" + maxBytes + ", hits=" + hits +
+      ", misses=" + misses + ", evictions=" + evictions + "]";
+
+  } // End toString().
+
+
+  /**
+   * A cached response.
+   */
+  public static final class Entry {
+
+    /**
+     * The compressed bytes.
+     */
+    private final byte[] body;
+
+    /**
+     * The content type.
+     */
+    private final String contentType;
+
+    /**
+     * The other headers, as name then value.
+     */
+    private final String[] headers;
+
+    /**
+     * The locale, or null.
+     */
+    private final Locale locale;
+
+    /**
+     * When the entry was created.
+     */
+    private final long created = System.currentTimeMillis();
+
+    /**
+     * The bytes the entry counts for against the budget: the body, and the
+     * characters of the content type and headers, which are sent a byte
+     * each.
+     */
+    private final long size;
+
+    /**
+     * Constructor.
+     *
+     * @param inBody        The compressed bytes.
+     * @param inContentType The content type.
+     * @param inHeaders     The other headers, as name then value.
+     * @param inLocale      The locale.
+     */
+    private Entry(byte[] inBody, String inContentType, String[] inHeaders,
+      Locale inLocale) {
+      body        = inBody;
+      contentType = inContentType;
+      headers     = inHeaders;
+      locale      = inLocale;
+      long n = body.length;
+      if (contentType != null) {
+        n += contentType.length();
+      }
+      for (int i = 0; i < headers.length; i++) {
+        n += headers[i].length();
+      }
+      size = n;
+    }
+
+    /**
+     * @return The compressed bytes.  They must not be modified.
+     */
+    public byte[] getBody() {
+      return body;
+    }
+
+    /**
+     * @return The content type, may be null.
+     */
+    public String getContentType() {
+      return contentType;
+    }
+
+    /**
+     * @return The number of other headers.
+     */
+    public int getHeaderCount() {
+      return headers.length / 2;
+    }
+
+    /**
+     * @param  i The index of a header.
+     * @return   Its name.
+     */
+    public String getHeaderName(int i) {
+      return headers[i * 2];
+    }
+
+    /**
+     * @param  i The index of a header.
+     * @return   Its value.
+     */
+    public String getHeaderValue(int i) {
+      return headers[i * 2 + 1];
+    }
+
+    /**
+     * @return The locale, may be null.
+     */
+    public Locale getLocale() {
+      return locale;
+    }
+
+  } // End Entry class.
+
+
+} // End class.
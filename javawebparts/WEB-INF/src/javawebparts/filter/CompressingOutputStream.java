@@ -0,0 +1,535 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.filter;
+
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
+
+
+/**
+ * This class writes either the GZip or the Deflate (zlib) format to an
+ * underlying stream, using a Deflater it is handed rather than one it
+ * creates.  It does the same job as GZIPOutputStream and DeflaterOutputStream
+ * but, unlike them, its flush() pushes everything written so far through the
+ * Deflater, so a client receiving a streamed response can decode it as it
+ * arrives.
+ * <br><br>
+ * Given a ParallelDeflater, once more than a threshold number of bytes has
+ * been written the stream sync flushes its own Deflater and from then on
+ * splits the input into blocks that the ParallelDeflater's threads compress
+ * concurrently.  The compressed blocks are written in order, and the
+ * trailer is built from the checksum this stream keeps of all the input, so
+ * the client receives one ordinary GZip or zlib stream either way.  At most
+ * twice as many blocks as there are threads are outstanding per stream,
+ * which bounds the memory a single response can tie up.
+ *
+ * @author <a href="mailto:fzammetti@omnytex.com">Frank W. Zammetti</a>.
+ */
+public class CompressingOutputStream extends FilterOutputStream {
+
+
+  /**
+   * The fixed GZip header: magic number, deflate method, no flags, no
+   * modification time, no extra flags, unknown OS.
+   */
+  private static final byte[] GZIP_HEADER = {
+    (byte)0x1f, (byte)0x8b, 8, 0, 0, 0, 0, 0, 0, (byte)0xff
+  };
+
+
+  /**
+   * Size of the buffer compressed output is collected in.
+   */
+  private static final int BUFFER_SIZE = 8192;
+
+
+  /**
+   * The Deflater doing the work.
+   */
+  private Deflater def;
+
+
+  /**
+   * Whether the GZip format is being written, as opposed to zlib.
+   */
+  private boolean gzip;
+
+
+  /**
+   * Checksum of the uncompressed data: a CRC32 for GZip, an Adler32 for
+   * zlib in case block mode needs it, or null if it never will.
+   */
+  private Checksum check;
+
+
+  /**
+   * Number of uncompressed bytes written.
+   */
+  private long totalIn;
+
+
+  /**
+   * Engine large responses are handed to, or null.
+   */
+  private ParallelDeflater parallel;
+
+
+  /**
+   * Number of bytes after which block mode is engaged.
+   */
+  private long parallelThreshold;
+
+
+  /**
+   * Whether block mode has been engaged.
+   */
+  private boolean engaged;
+
+
+  /**
+   * The last (up to) 32K of input, which primes the next block.
+   */
+  private byte[] window;
+
+
+  /**
+   * Number of bytes in window.
+   */
+  private int windowLen;
+
+
+  /**
+   * The block being filled, in block mode.
+   */
+  private byte[] block;
+
+
+  /**
+   * Number of bytes in block.
+   */
+  private int blockLen;
+
+
+  /**
+   * Blocks submitted but not yet written, oldest first.
+   */
+  private LinkedList pending;
+
+
+  /**
+   * Buffer compressed output is collected in.
+   */
+  private byte[] buf = new byte[BUFFER_SIZE];
+
+
+  /**
+   * Scratch array for single byte writes.
+   */
+  private byte[] one = new byte[1];
+
+
+  /**
+   * The compression level of the Deflater, needed when flushing.
+   */
+  private int level;
+
+
+  /**
+   * Whether anything has been written since the last flush.
+   */
+  private boolean dirty;
+
+
+  /**
+   * Whether finish() has been called.
+   */
+  private boolean finished;
+
+
+  /**
+   * Constructor.  The Deflater must have been created with nowrap set to
+   * true for GZip and false for Deflate, and must be freshly created or
+   * reset.
+   *
+   * @param  inOut       The stream to write compressed data to.
+   * @param  ct          CompressionResWrapper.GZIP or
+   *                     CompressionResWrapper.DEFLATE.
+   * @param  inDef       The Deflater to use.
+   * @param  inLevel     The level the Deflater is set to.
+   * @throws IOException If the GZip header cannot be written.
+   */
+  public CompressingOutputStream(OutputStream inOut, String ct,
+    Deflater inDef, int inLevel) throws IOException {
+
+    this(inOut, ct, inDef, inLevel, null, 0);
+
+  } // End CompressingOutputStream().
+
+
+  /**
+   * Constructor for a stream that hands large responses to a
+   * ParallelDeflater.  That ParallelDeflater must use the same compression
+   * level as the Deflater.
+   *
+   * @param  inOut       The stream to write compressed data to.
+   * @param  ct          CompressionResWrapper.GZIP or
+   *                     CompressionResWrapper.DEFLATE.
+   * @param  inDef       The Deflater to use.
+   * @param  inLevel     The level the Deflater is set to.
+   * @param  inParallel  The ParallelDeflater, or null for none.
+   * @param  inThreshold Number of bytes after which it takes over.
+   * @throws IOException If the GZip header cannot be written.
+   */
+  public CompressingOutputStream(OutputStream inOut, String ct,
+    Deflater inDef, int inLevel, ParallelDeflater inParallel,
+    long inThreshold) throws IOException {
+
+    super(inOut);
+    def   = inDef;
+    level = inLevel;
+    gzip  = ct.equalsIgnoreCase(CompressionResWrapper.GZIP);
+    if (inParallel != null && ParallelDeflater.isSupported()) {
+      parallel          = inParallel;
+      parallelThreshold = Math.max(inThreshold, 1);
+      window            = new byte[ParallelDeflater.WINDOW_SIZE];
+    }
+    if (gzip) {
+      check = new CRC32();
+      out.write(GZIP_HEADER);
+    } else if (parallel != null) {
+      check = new Adler32();
+    }
+
+  } // End CompressingOutputStream().
+
+
+  /**
+   * Creates a Deflater suitable for the given compression type.
+   *
+   * @param  ct    CompressionResWrapper.GZIP or
+   *               CompressionResWrapper.DEFLATE.
+   * @param  level The compression level.
+   * @return       A new Deflater.
+   */
+  public static Deflater createDeflater(String ct, int level) {
+
+    return new Deflater(level,
+      ct.equalsIgnoreCase(CompressionResWrapper.GZIP));
+
+  } // End createDeflater().
+
+
+  /**
+   * Writes a single byte.
+   *
+   * @param  b           The byte to write.
+   * @throws IOException IOException.
+   */
+  public void write(int b) throws IOException {
+
+    one[0] = (byte)b;
+    write(one, 0, 1);
+
+  } // End write().
+
+
+  /**
+   * Writes a byte array.
+   *
+   * @param  b           Byte array.
+   * @param  off         Offset into the array.
+   * @param  len         Number of bytes to write.
+   * @throws IOException IOException.
+   */
+  public void write(byte[] b, int off, int len) throws IOException {
+
+    if (finished) {
+      throw new IOException("write after finish");
+    }
+    if (len == 0) {
+      return;
+    }
+    if (check != null) {
+      check.update(b, off, len);
+    }
+    totalIn += len;
+    dirty    = true;
+    if (engaged) {
+      while (len > 0) {
+        int n = Math.min(len, block.length - blockLen);
+        System.arraycopy(b, off, block, blockLen, n);
+        blockLen += n;
+        off      += n;
+        len      -= n;
+        if (blockLen == block.length) {
+          submitBlock(false);
+        }
+      }
+      return;
+    }
+    def.setInput(b, off, len);
+    while (!def.needsInput()) {
+      drain();
+    }
+    if (parallel != null) {
+      remember(b, off, len);
+      if (totalIn >= parallelThreshold) {
+        // Everything so far goes out through our own Deflater, ending on a
+        // byte boundary, and the blocks carry on from there.
+        ParallelDeflater.syncFlush(def, out, buf);
+        engaged = true;
+        pending = new LinkedList();
+        block   = new byte[parallel.getBlockSize()];
+      }
+    }
+
+  } // End write().
+
+
+  /**
+   * Pushes everything written so far through the Deflater and flushes the
+   * underlying stream.  Where the Java version has no sync flush mode, this
+   * switches the Deflater to a level that uses a different compression
+   * function and back, which makes zlib close off the current block.  In
+   * block mode, the partial block is compressed and everything outstanding
+   * is waited for.
+   *
+   * @throws IOException IOException.
+   */
+  public void flush() throws IOException {
+
+    if (!finished && dirty) {
+      if (engaged) {
+        if (blockLen > 0) {
+          submitBlock(false);
+        }
+        writeBlocks(0);
+      } else if (ParallelDeflater.isSupported()) {
+        ParallelDeflater.syncFlush(def, out, buf);
+      } else {
+        def.setLevel(level == Deflater.NO_COMPRESSION ?
+          Deflater.BEST_SPEED : Deflater.NO_COMPRESSION);
+        def.setInput(one, 0, 0);
+        drain();
+        def.setLevel(level);
+      }
+      dirty = false;
+    }
+    out.flush();
+
+  } // End flush().
+
+
+  /**
+   * Completes the compressed data, including the trailer, without closing
+   * the underlying stream.  The Deflater is not ended, so it can be reset
+   * and reused by the caller.
+   *
+   * @throws IOException IOException.
+   */
+  public void finish() throws IOException {
+
+    if (finished) {
+      return;
+    }
+    finished = true;
+    if (engaged) {
+      // The last block ends the stream, even if it has no input.
+      submitBlock(true);
+      writeBlocks(0);
+      if (gzip) {
+        writeIntLE(check.getValue());
+        writeIntLE(totalIn);
+      } else {
+        long v = check.getValue();
+        out.write((int)((v >> 24) & 0xff));
+        out.write((int)((v >> 16) & 0xff));
+        out.write((int)((v >> 8) & 0xff));
+        out.write((int)(v & 0xff));
+      }
+      return;
+    }
+    def.finish();
+    while (!def.finished()) {
+      drain();
+    }
+    if (gzip) {
+      writeIntLE(check.getValue());
+      writeIntLE(totalIn);
+    }
+
+  } // End finish().
+
+
+  /**
+   * Finishes and closes the underlying stream.
+   *
+   * @throws IOException IOException.
+   */
+  public void close() throws IOException {
+
+    finish();
+    out.close();
+
+  } // End close().
+
+
+  /**
+   * Returns the Deflater this stream is using.
+   *
+   * @return The Deflater.
+   */
+  public Deflater getDeflater() {
+
+    return def;
+
+  } // End getDeflater().
+
+
+  /**
+   * Forgets the Deflater, once it has been given back to whoever supplied
+   * it.  The stream cannot be written to afterwards.
+   */
+  public void detachDeflater() {
+
+    def      = null;
+    finished = true;
+
+  } // End detachDeflater().
+
+
+  /**
+   * Determines whether block mode has been engaged.
+   *
+   * @return True if this stream's output is being compressed in parallel.
+   */
+  public boolean isParallel() {
+
+    return engaged;
+
+  } // End isParallel().
+
+
+  /**
+   * Hands the current block to the ParallelDeflater, with the 32K before it
+   * as its dictionary, then writes out finished blocks until no more than
+   * twice the thread count are outstanding.
+   *
+   * @param  last        True if this is the last block.
+   * @throws IOException IOException.
+   */
+  private void submitBlock(boolean last) throws IOException {
+
+    byte[] dict = null;
+    if (windowLen > 0) {
+      dict = new byte[windowLen];
+      System.arraycopy(window, 0, dict, 0, windowLen);
+    }
+    pending.addLast(parallel.submit(block, blockLen, dict, 0, windowLen,
+      last));
+    remember(block, 0, blockLen);
+    if (!last) {
+      block = new byte[block.length];
+    }
+    blockLen = 0;
+    writeBlocks(parallel.getThreads() * 2);
+
+  } // End submitBlock().
+
+
+  /**
+   * Writes out finished blocks, in order, waiting for them as needed, until
+   * no more than the given number are outstanding.
+   *
+   * @param  max         The most blocks left outstanding.
+   * @throws IOException If a block could not be compressed or written.
+   */
+  private void writeBlocks(int max) throws IOException {
+
+    while (pending.size() > max) {
+      ParallelDeflater.Block b =
+        (ParallelDeflater.Block)pending.removeFirst();
+      out.write(b.await());
+    }
+
+  } // End writeBlocks().
+
+
+  /**
+   * Keeps the last 32K of input in window.
+   *
+   * @param b   Byte array.
+   * @param off Offset into the array.
+   * @param len Number of bytes.
+   */
+  private void remember(byte[] b, int off, int len) {
+
+    if (len >= window.length) {
+      System.arraycopy(b, off + len - window.length, window, 0,
+        window.length);
+      windowLen = window.length;
+      return;
+    }
+    int keep = Math.min(windowLen, window.length - len);
+    System.arraycopy(window, windowLen - keep, window, 0, keep);
+    System.arraycopy(b, off, window, keep, len);
+    windowLen = keep + len;
+
+  } // End remember().
+
+
+  /**
+   * Runs the Deflater until it produces nothing more, writing its output.
+   *
+   * @throws IOException IOException.
+   */
+  private void drain() throws IOException {
+
+    int n = def.deflate(buf, 0, buf.length);
+    while (n > 0) {
+      out.write(buf, 0, n);
+      n = def.deflate(buf, 0, buf.length);
+    }
+
+  } // End drain().
+
+
+  /**
+   * Writes four bytes in little-endian order, as the GZip trailer needs.
+   *
+   * @param  v           The value to write.
+   * @throws IOException IOException.
+   */
+  private void writeIntLE(long v) throws IOException {
+
+    out.write((int)(v & 0xff));
+    out.write((int)((v >> 8) & 0xff));
+    out.write((int)((v >> 16) & 0xff));
+    out.write((int)((v >> 24) & 0xff));
+
+  } // End writeIntLE().
+
+
+} // End class.
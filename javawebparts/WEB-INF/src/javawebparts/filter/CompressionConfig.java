@@ -0,0 +1,370 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.filter;
+
+
+import java.util.ArrayList;
+import java.util.StringTokenizer;
+import java.util.zip.Deflater;
+
+
+/**
+ * This class holds the settings CompressionFilter hands down to each
+ * CompressionResWrapper and CompressionResStream it creates.  One instance
+ * is built when the filter is initialized and is shared, read-only, by all
+ * requests.
+ *
+ * @author <a href="mailto:fzammetti@omnytex.com">Frank W. Zammetti</a>.
+ */
+public class CompressionConfig {
+
+
+  /**
+   * Whether compressed output is streamed to the client rather than
+   * buffered.
+   */
+  private boolean streaming;
+
+
+  /**
+   * Responses smaller than this many bytes are not compressed.
+   */
+  private int minCompressSize;
+
+
+  /**
+   * Content types eligible for compression, lower-case.  Entries ending in
+   * an asterisk are prefixes.  Null means every type is eligible.
+   */
+  private String[] compressibleTypes;
+
+
+  /**
+   * Pool Deflaters are borrowed from, or null to create one per response.
+   */
+  private DeflaterPool deflaterPool;
+
+
+  /**
+   * Engine very large responses are compressed with, or null.
+   */
+  private ParallelDeflater parallelDeflater;
+
+
+  /**
+   * Number of bytes after which a response is handed to parallelDeflater.
+   */
+  private long parallelThreshold;
+
+
+  /**
+   * Whether HTML and JavaScript responses are minified before compression.
+   */
+  private boolean minify;
+
+
+  /**
+   * Cache of minified scripts, or null.
+   */
+  private MinificationCache minificationCache;
+
+
+  /**
+   * streaming mutator.
+   *
+   * @param inStreaming True to stream, false to buffer.
+   */
+  public void setStreaming(boolean inStreaming) {
+
+    streaming = inStreaming;
+
+  } // End setStreaming().
+
+
+  /**
+   * streaming accessor.
+   *
+   * @return True if streaming, false if buffering.
+   */
+  public boolean isStreaming() {
+
+    return streaming;
+
+  } // End isStreaming().
+
+
+  /**
+   * minCompressSize mutator.
+   *
+   * @param inMinCompressSize The size, in bytes, below which responses are
+   *                          sent uncompressed.
+   */
+  public void setMinCompressSize(int inMinCompressSize) {
+
+    minCompressSize = inMinCompressSize;
+
+  } // End setMinCompressSize().
+
+
+  /**
+   * minCompressSize accessor.
+   *
+   * @return The size, in bytes, below which responses are sent uncompressed.
+   */
+  public int getMinCompressSize() {
+
+    return minCompressSize;
+
+  } // End getMinCompressSize().
+
+
+  /**
+   * compressibleTypes mutator.
+   *
+   * @param inCompressibleTypes Comma-separated list of content types, where
+   *                            a trailing asterisk denotes a prefix (i.e.,
+   *                            "text/*").  Null means all types.
+   */
+  public void setCompressibleTypes(String inCompressibleTypes) {
+
+    if (inCompressibleTypes == null) {
+      compressibleTypes = null;
+      return;
+    }
+    ArrayList       al = new ArrayList();
+    StringTokenizer st = new StringTokenizer(inCompressibleTypes, ",");
+    while (st.hasMoreTokens()) {
+      String s = st.nextToken().trim().toLowerCase();
+      if (s.length() > 0) {
+        al.add(s);
+      }
+    }
+    compressibleTypes = (String[])al.toArray(new String[al.size()]);
+
+  } // End setCompressibleTypes().
+
+
+  /**
+   * Determines whether a response of the given content type may be
+   * compressed.  Any parameters (i.e., charset) are ignored.
+   *
+   * @param  contentType The content type of the response, may be null.
+   * @return             True if it may be compressed, false if not.
+   */
+  public boolean isCompressibleType(String contentType) {
+
+    if (compressibleTypes == null) {
+      return true;
+    }
+    if (contentType == null) {
+      return false;
+    }
+    String ct   = contentType.toLowerCase();
+    int    semi = ct.indexOf(';');
+    if (semi != -1) {
+      ct = ct.substring(0, semi);
+    }
+    ct = ct.trim();
+    for (int i = 0; i < compressibleTypes.length; i++) {
+      String t = compressibleTypes[i];
+      if (t.endsWith("*")) {
+        if (ct.startsWith(t.substring(0, t.length() - 1))) {
+          return true;
+        }
+      } else if (ct.equals(t)) {
+        return true;
+      }
+    }
+    return false;
+
+  } // End isCompressibleType().
+
+
+  /**
+   * deflaterPool mutator.
+   *
+   * @param inDeflaterPool The pool, or null to create a Deflater per
+   *                       response.
+   */
+  public void setDeflaterPool(DeflaterPool inDeflaterPool) {
+
+    deflaterPool = inDeflaterPool;
+
+  } // End setDeflaterPool().
+
+
+  /**
+   * deflaterPool accessor.
+   *
+   * @return The pool, or null if there is none.
+   */
+  public DeflaterPool getDeflaterPool() {
+
+    return deflaterPool;
+
+  } // End getDeflaterPool().
+
+
+  /**
+   * Gets a Deflater for a response, from the pool if there is one.
+   *
+   * @param  ct The compression type.
+   * @return    A Deflater ready for use.
+   */
+  public Deflater borrowDeflater(String ct) {
+
+    if (deflaterPool != null) {
+      return deflaterPool.borrow(ct);
+    }
+    return CompressingOutputStream.createDeflater(ct,
+      Deflater.DEFAULT_COMPRESSION);
+
+  } // End borrowDeflater().
+
+
+  /**
+   * Gives back a Deflater obtained from borrowDeflater().
+   *
+   * @param d  The Deflater.
+   * @param ct The compression type it was borrowed for.
+   */
+  public void releaseDeflater(Deflater d, String ct) {
+
+    if (deflaterPool != null) {
+      deflaterPool.release(d, ct);
+    } else {
+      d.end();
+    }
+
+  } // End releaseDeflater().
+
+
+  /**
+   * Returns the compression level Deflaters are set to.
+   *
+   * @return The compression level.
+   */
+  public int getCompressionLevel() {
+
+    if (deflaterPool != null) {
+      return deflaterPool.getLevel();
+    }
+    return Deflater.DEFAULT_COMPRESSION;
+
+  } // End getCompressionLevel().
+
+
+  /**
+   * parallelDeflater mutator.
+   *
+   * @param inParallelDeflater The engine, or null to always compress in the
+   *                           request's own thread.
+   * @param inThreshold        Number of bytes after which a response is
+   *                           handed to it.
+   */
+  public void setParallelDeflater(ParallelDeflater inParallelDeflater,
+    long inThreshold) {
+
+    parallelDeflater  = inParallelDeflater;
+    parallelThreshold = inThreshold;
+
+  } // End setParallelDeflater().
+
+
+  /**
+   * parallelDeflater accessor.
+   *
+   * @return The engine, or null if there is none.
+   */
+  public ParallelDeflater getParallelDeflater() {
+
+    return parallelDeflater;
+
+  } // End getParallelDeflater().
+
+
+  /**
+   * parallelThreshold accessor.
+   *
+   * @return Number of bytes after which a response is handed to the
+   *         ParallelDeflater.
+   */
+  public long getParallelThreshold() {
+
+    return parallelThreshold;
+
+  } // End getParallelThreshold().
+
+
+  /**
+   * minify mutator.
+   *
+   * @param inMinify            True to minify HTML and JavaScript
+   *                            responses before compressing them.
+   * @param inMinificationCache Cache of minified scripts, or null for none.
+   */
+  public void setMinify(boolean inMinify,
+    MinificationCache inMinificationCache) {
+
+    minify            = inMinify;
+    minificationCache = inMinificationCache;
+
+  } // End setMinify().
+
+
+  /**
+   * minify accessor.
+   *
+   * @return True if HTML and JavaScript responses are minified.
+   */
+  public boolean isMinify() {
+
+    return minify;
+
+  } // End isMinify().
+
+
+  /**
+   * minificationCache accessor.
+   *
+   * @return The cache of minified scripts, or null if there is none.
+   */
+  public MinificationCache getMinificationCache() {
+
+    return minificationCache;
+
+  } // End getMinificationCache().
+
+
+  /**
+   * Determines whether a response of the given content type is minified,
+   * which is when minify is on and the type is HTML or JavaScript.
+   *
+   * @param  contentType The content type of the response, may be null.
+   * @return             True if it is minified.
+   */
+  public boolean isMinifiedType(String contentType) {
+
+    return minify && contentType != null &&
+      (contentType.indexOf("text/html") != -1 ||
+       contentType.indexOf("javascript") != -1);
+
+  } // End isMinifiedType().
+
+
+} // End class.
@@ -19,7 +19,7 @@ package javawebparts.filter;
 
 
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.zip.Deflater;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -63,6 +63,11 @@ import org.apache.commons.logging.LogFactory;
  * technically a misconfiguration).  If NEITHER is defined then the generic
  * filter mapping will be in effect only.</li>
  * <br><br>
+ * <li><b>pathDecisionCacheSize</b> - If greater than zero, the result of
+ * matching each requested path against pathList is remembered for up to this
+ * many distinct paths, so repeat requests skip the matching entirely.
+ * Required: No.  Default: 0 (no caching).</li>
+ * <br><br>
  * <li><b>compressType</b> - What type of compression to perform.  The valid
  * values are 'gzip_only' (GZip will be used, if supported), 'deflate_only'
  * (Deflate will be used, if supported), 'gzip_first' (GZip will be used if
@@ -70,6 +75,89 @@ import org.apache.commons.logging.LogFactory;
  * (Deflate will be used if supported, otherwise GZip will be used if
  * supported).  Required: Yes.  Default: None (must be one of the valid values).
  * </li>
+ * <br><br>
+ * <li><b>outputMode</b> - Either "buffered" or "streaming".  When buffered,
+ * the whole compressed response is held in memory so that Content-Length
+ * can be set, and nothing is sent until the response is complete.  When
+ * streaming, compressed bytes are written straight to the client as they are
+ * produced (the container will use chunked transfer encoding), a flush by the
+ * servlet sends everything written so far, and memory use no longer grows
+ * with the response size.  Use buffered for clients that need
+ * Content-Length.  Required: No.  Default: buffered.</li>
+ * <br><br>
+ * <li><b>minCompressSize</b> - Responses smaller than this many bytes are
+ * sent uncompressed, since compressing them costs more than it saves.  Up to
+ * this many bytes are held in memory until the decision can be made.
+ * Required: No.  Default: 0 (everything is compressed).</li>
+ * <br><br>
+ * <li><b>compressibleTypes</b> - A comma-separated list of content types that
+ * will be compressed, i.e., "text/*,application/javascript,application/json".
+ * A trailing asterisk matches any type beginning with what precedes it.
+ * Responses of any other type, or with no type, are sent uncompressed, which
+ * avoids wasting time on images, archives and the like that are already
+ * compressed.  Responses the servlet set its own Content-Encoding on are
+ * never compressed again.  Required: No.  Default: None (all types are
+ * compressed).</li>
+ * <br><br>
+ * <li><b>compressionLevel</b> - The zlib compression level, from 0 (none) to
+ * 9 (best, and slowest).  Lower values trade ratio for CPU.  Required: No.
+ * Default: zlib's default (6).</li>
+ * <br><br>
+ * <li><b>strategy</b> - The zlib compression strategy, one of "default",
+ * "filtered" or "huffman_only".  Required: No.  Default: default.</li>
+ * <br><br>
+ * <li><b>deflaterPoolSize</b> - How many idle Deflaters (each of which holds
+ * native zlib memory) are kept for reuse, per compression type.  If more
+ * responses than this are compressed at once, extra Deflaters are created and
+ * then freed when those responses complete.  The pool statistics are logged
+ * when the filter is destroyed.  Required: No.  Default: 16.</li>
+ * <br><br>
+ * <li><b>parallelThreshold</b> - Once a response has grown past this many
+ * bytes, the rest of it is split into blocks that are compressed by several
+ * threads at once, which cuts the time to compress very large responses
+ * roughly by the number of threads.  The output is still a single ordinary
+ * GZip or Deflate stream.  This needs a Java version with sync flush support
+ * (Java 7 or later); on older versions it is ignored, with a warning.
+ * Required: No.  Default: 0 (never).</li>
+ * <br><br>
+ * <li><b>parallelBlockSize</b> - Size, in bytes, of the blocks compressed in
+ * parallel.  Larger blocks compress slightly better, smaller ones spread the
+ * work more evenly.  Only used if parallelThreshold is specified.  Required:
+ * No.  Default: 131072.</li>
+ * <br><br>
+ * <li><b>parallelThreads</b> - Number of threads, shared by all requests,
+ * that compress blocks.  Only used if parallelThreshold is specified.
+ * Required: No.  Default: the number of processors.</li>
+ * <br><br>
+ * <li><b>minify</b> - "true" to minify HTML and JavaScript responses, as
+ * JSCompressionFilter does, before compressing them.  The response is
+ * buffered once, and the minified output is fed straight to the compressor,
+ * rather than being buffered again as it would be with JSCompressionFilter
+ * in front of this filter.  Only responses that are compressed are
+ * minified.  Required: No.  Default: false.</li>
+ * <br><br>
+ * <li><b>minifyCacheSize</b> - The most bytes of memory used to remember
+ * minified scripts by their content, as JSCompressionFilter's parameter of
+ * the same name.  Only used if minify is true.  Required: No.  Default:
+ * 1048576.</li>
+ * <br><br>
+ * <li><b>cachePathList</b> - A comma-separated list of paths, with the same
+ * wildcard syntax as pathList, whose compressed responses are the same for
+ * every user and may therefore be cached.  GET requests to these paths are
+ * served straight from the cache, without invoking the rest of the chain,
+ * once a compressed 200 response that set no cookies, and varies by
+ * nothing but Accept-Encoding, has been seen for the same URL, query string
+ * and compression type, with the headers and locale that response was
+ * given.  Required: No.  Default: None (no caching).</li>
+ * <br><br>
+ * <li><b>cacheMaxBytes</b> - The most bytes all cached responses together,
+ * bodies and headers, may take.  The least recently used are evicted to make
+ * room.  Only used if cachePathList is specified.  Required: No.
+ * Default: 4194304.</li>
+ * <br><br>
+ * <li><b>cacheTTL</b> - How many seconds a cached response is served for
+ * before it is regenerated.  Only used if cachePathList is specified.
+ * Required: No.  Default: 0 (until evicted).</li>
  * </ul>
  * <br>
  * Example configuration in web.xml:
@@ -135,6 +223,33 @@ public class CompressionFilter implements Filter {
   private static Log log = LogFactory.getLog(CompressionFilter.class);
 
 
+  /**
+   * Number of idle Deflaters kept per compression type if deflaterPoolSize
+   * is not specified.
+   */
+  private static final int DEFAULT_POOL_SIZE = 16;
+
+
+  /**
+   * Total bytes of compressed responses cached if cacheMaxBytes is not
+   * specified.
+   */
+  private static final int DEFAULT_CACHE_MAX_BYTES = 4 * 1024 * 1024;
+
+
+  /**
+   * Size of the blocks compressed in parallel if parallelBlockSize is not
+   * specified.
+   */
+  private static final int DEFAULT_PARALLEL_BLOCK_SIZE = 128 * 1024;
+
+
+  /**
+   * Bytes of minified scripts cached if minifyCacheSize is not specified.
+   */
+  private static final int DEFAULT_MINIFY_CACHE_SIZE = 1024 * 1024;
+
+
   /**
    * Whether pathList includes or excludes.
    */
@@ -144,7 +259,7 @@ public class CompressionFilter implements Filter {
   /**
    * List of paths for filter functionality determination.
    */
-  private ArrayList pathList = new ArrayList();
+  private PathMatcher pathList;
 
 
   /**
@@ -159,11 +274,46 @@ public class CompressionFilter implements Filter {
   private String compressType;
 
 
+  /**
+   * The settings handed to every wrapper this filter creates.
+   */
+  private CompressionConfig config = new CompressionConfig();
+
+
+  /**
+   * Paths whose compressed responses may be cached, or null if caching is
+   * not enabled.
+   */
+  private PathMatcher cachePathList;
+
+
+  /**
+   * Cache of compressed responses, or null if caching is not enabled.
+   */
+  private CompressedResponseCache cache;
+
+
   /**
    * Destroy.
    */
   public void destroy() {
 
+    if (cache != null) {
+      log.info("Closing " + cache);
+    }
+    DeflaterPool pool = config.getDeflaterPool();
+    if (pool != null) {
+      log.info("Closing " + pool);
+      pool.close();
+    }
+    ParallelDeflater parallel = config.getParallelDeflater();
+    if (parallel != null) {
+      parallel.shutdown();
+    }
+    if (config.getMinificationCache() != null) {
+      log.info("Closing " + config.getMinificationCache());
+    }
+
   } // End destroy.
 
 
@@ -204,6 +354,122 @@ public class CompressionFilter implements Filter {
     }
     log.info("compressType = " + compressType);
 
+    // Get the outputMode init parameter.
+    String outputMode = filterConfig.getInitParameter("outputMode");
+    if (outputMode != null && !outputMode.equalsIgnoreCase("buffered") &&
+        !outputMode.equalsIgnoreCase("streaming")) {
+      String es = getClass().getName() + " could not initialize " +
+                  "because outputMode init " +
+                  "parameter did not have a valid value (must be one of " +
+                  "'buffered' or 'streaming')";
+      log.error(es);
+      throw new ServletException(es);
+    }
+    config.setStreaming(outputMode != null &&
+      outputMode.equalsIgnoreCase("streaming"));
+    log.info("outputMode = " + outputMode);
+
+    // Get the minCompressSize and compressibleTypes init parameters.
+    config.setMinCompressSize(FilterHelpers.initIntParam(
+      getClass().getName(), filterConfig, "minCompressSize", 0));
+    String compressibleTypes =
+      filterConfig.getInitParameter("compressibleTypes");
+    config.setCompressibleTypes(compressibleTypes);
+    log.info("compressibleTypes = " + compressibleTypes);
+
+    // Get the compressionLevel, strategy and deflaterPoolSize init
+    // parameters and set up the Deflater pool.
+    int level = Deflater.DEFAULT_COMPRESSION;
+    String levelParam = filterConfig.getInitParameter("compressionLevel");
+    if (levelParam != null) {
+      level = FilterHelpers.initIntParam(getClass().getName(), filterConfig,
+        "compressionLevel", 0);
+      if (level > Deflater.BEST_COMPRESSION) {
+        String es = getClass().getName() + " could not initialize " +
+                    "because compressionLevel init parameter must be " +
+                    "between 0 and 9";
+        log.error(es);
+        throw new ServletException(es);
+      }
+    }
+    int    strategy      = Deflater.DEFAULT_STRATEGY;
+    String strategyParam = filterConfig.getInitParameter("strategy");
+    if (strategyParam != null) {
+      if (strategyParam.equalsIgnoreCase("filtered")) {
+        strategy = Deflater.FILTERED;
+      } else if (strategyParam.equalsIgnoreCase("huffman_only")) {
+        strategy = Deflater.HUFFMAN_ONLY;
+      } else if (!strategyParam.equalsIgnoreCase("default")) {
+        String es = getClass().getName() + " could not initialize " +
+                    "because strategy init " +
+                    "parameter did not have a valid value (must be one of " +
+                    "'default', 'filtered' or 'huffman_only')";
+        log.error(es);
+        throw new ServletException(es);
+      }
+    }
+    log.info("strategy = " + strategyParam);
+    int poolSize = FilterHelpers.initIntParam(getClass().getName(),
+      filterConfig, "deflaterPoolSize", DEFAULT_POOL_SIZE);
+    config.setDeflaterPool(new DeflaterPool(poolSize, level, strategy));
+
+    // Get the parallelThreshold, parallelBlockSize and parallelThreads init
+    // parameters and start the parallel compression threads if needed.
+    int parallelThreshold = FilterHelpers.initIntParam(getClass().getName(),
+      filterConfig, "parallelThreshold", 0);
+    if (parallelThreshold > 0) {
+      int blockSize = FilterHelpers.initIntParam(getClass().getName(),
+        filterConfig, "parallelBlockSize", DEFAULT_PARALLEL_BLOCK_SIZE);
+      int threads = FilterHelpers.initIntParam(getClass().getName(),
+        filterConfig, "parallelThreads",
+        Runtime.getRuntime().availableProcessors());
+      if (blockSize < ParallelDeflater.WINDOW_SIZE || threads < 1) {
+        String es = getClass().getName() + " could not initialize " +
+                    "because parallelBlockSize init parameter must be at " +
+                    "least " + ParallelDeflater.WINDOW_SIZE + " and " +
+                    "parallelThreads init parameter at least 1";
+        log.error(es);
+        throw new ServletException(es);
+      }
+      if (ParallelDeflater.isSupported()) {
+        config.setParallelDeflater(new ParallelDeflater(threads, blockSize,
+          level, strategy), parallelThreshold);
+      } else {
+        log.warn("parallelThreshold ignored because this Java version " +
+          "cannot sync flush a Deflater");
+      }
+    }
+    log.info("parallelThreshold = " + parallelThreshold);
+
+    // Get the minify and minifyCacheSize init parameters.
+    String minify = filterConfig.getInitParameter("minify");
+    if (minify != null && !minify.equalsIgnoreCase("true") &&
+        !minify.equalsIgnoreCase("false")) {
+      String es = getClass().getName() + " could not initialize " +
+                  "because minify init parameter must be 'true' or 'false'";
+      log.error(es);
+      throw new ServletException(es);
+    }
+    if ("true".equalsIgnoreCase(minify)) {
+      int cacheSize = FilterHelpers.initIntParam(getClass().getName(),
+        filterConfig, "minifyCacheSize", DEFAULT_MINIFY_CACHE_SIZE);
+      config.setMinify(true,
+        cacheSize > 0 ? new MinificationCache(cacheSize) : null);
+    }
+    log.info("minify = " + minify);
+
+    // Get the cachePathList, cacheMaxBytes and cacheTTL init parameters.
+    String csvCachePathList = filterConfig.getInitParameter("cachePathList");
+    if (csvCachePathList != null) {
+      cachePathList = PathMatcher.compile(csvCachePathList);
+      int maxBytes = FilterHelpers.initIntParam(getClass().getName(),
+        filterConfig, "cacheMaxBytes", DEFAULT_CACHE_MAX_BYTES);
+      int ttl = FilterHelpers.initIntParam(getClass().getName(),
+        filterConfig, "cacheTTL", 0);
+      cache = new CompressedResponseCache(maxBytes, ttl * 1000L);
+    }
+    log.info("cachePathList = " + cachePathList);
+
     log.info("init() completed");
 
   } // End init().
@@ -255,22 +521,16 @@ public class CompressionFilter implements Filter {
           if (compressType.equalsIgnoreCase("gzip_only") ||
               compressType.equalsIgnoreCase("gzip_first")) {
             log.info("Doing GZip compression (1) on path = " + path);
-            CompressionResWrapper res =
-              new CompressionResWrapper((HttpServletResponse)response,
-                                        CompressionResWrapper.GZIP);
-            filterChain.doFilter(req, res);
-            res.complete();
+            doCompressed(req, (HttpServletResponse)response, filterChain,
+              CompressionResWrapper.GZIP);
             processChain = false;
           }
           // ... and configured to do Deflate only or first, do Deflate.
           if (compressType.equalsIgnoreCase("deflate_only") ||
               compressType.equalsIgnoreCase("deflate_first")) {
             log.info("Doing Deflate compression (1) on path = " + path);
-            CompressionResWrapper res =
-              new CompressionResWrapper((HttpServletResponse)response,
-                                        CompressionResWrapper.DEFLATE);
-            filterChain.doFilter(req, res);
-            res.complete();
+            doCompressed(req, (HttpServletResponse)response, filterChain,
+              CompressionResWrapper.DEFLATE);
             processChain = false;
           }
         // If only GZip is supported...
@@ -278,11 +538,8 @@ public class CompressionFilter implements Filter {
           // ... and configured to anything except "deflate_only", do GZip.
           if (!compressType.equalsIgnoreCase("deflate_only")) {
             log.info("Doing GZip compression (2) on path = " + path);
-            CompressionResWrapper res =
-              new CompressionResWrapper((HttpServletResponse)response,
-                                        CompressionResWrapper.GZIP);
-            filterChain.doFilter(req, res);
-            res.complete();
+            doCompressed(req, (HttpServletResponse)response, filterChain,
+              CompressionResWrapper.GZIP);
             processChain = false;
           }
         // If only Deflate is supported...
@@ -290,11 +547,8 @@ public class CompressionFilter implements Filter {
           // ... and configured to anything except "gzip_only", do Deflate.
           if (!compressType.equalsIgnoreCase("gzip_only")) {
             log.info("Doing Deflate compression (2) on path = " + path);
-            CompressionResWrapper res =
-              new CompressionResWrapper((HttpServletResponse)response,
-                                        CompressionResWrapper.DEFLATE);
-            filterChain.doFilter(req, res);
-            res.complete();
+            doCompressed(req, (HttpServletResponse)response, filterChain,
+              CompressionResWrapper.DEFLATE);
             processChain = false;
           }
         }
@@ -312,4 +566,80 @@ public class CompressionFilter implements Filter {
   } // End doFilter().
 
 
+  /**
+   * Runs the rest of the chain with the response wrapped for compression.
+   *
+   * @param  req              The current request object.
+   * @param  response         The current response object.
+   * @param  filterChain      The current filter chain.
+   * @param  ct               The compression type to use.
+   * @throws ServletException ServletException.
+   * @throws IOException      IOException.
+   */
+  private void doCompressed(HttpServletRequest req,
+    HttpServletResponse response, FilterChain filterChain, String ct)
+    throws ServletException, IOException {
+
+    // Serve from the cache if we can.
+    String key = null;
+    if (cache != null && req.getMethod().equalsIgnoreCase("GET") &&
+        cachePathList.matches(req)) {
+      key = CompressedResponseCache.makeKey(req.getRequestURI(),
+        req.getQueryString(), ct);
+      CompressedResponseCache.Entry e = cache.get(key);
+      if (e != null) {
+        byte[] body = e.getBody();
+        if (e.getLocale() != null) {
+          response.setLocale(e.getLocale());
+        }
+        if (e.getContentType() != null) {
+          response.setContentType(e.getContentType());
+        }
+        for (int i = 0; i < e.getHeaderCount(); i++) {
+          String name = e.getHeaderName(i);
+          // These are the filter's to send, and once only.
+          if (!name.equalsIgnoreCase("Vary") &&
+            !name.equalsIgnoreCase("Content-Encoding") &&
+            !name.equalsIgnoreCase("Content-Length")) {
+            response.addHeader(name, e.getHeaderValue(i));
+          }
+        }
+        response.addHeader("Content-Encoding", ct);
+        response.addHeader("Vary", "Accept-Encoding");
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+        return;
+      }
+    }
+
+    CompressionResWrapper res =
+      new CompressionResWrapper(response, ct, config);
+    if (key != null) {
+      response.addHeader("Vary", "Accept-Encoding");
+      res.captureOutput((int)Math.min(cache.getMaxBytes(), Integer.MAX_VALUE));
+    }
+    boolean completed = false;
+    try {
+      filterChain.doFilter(req, res);
+      res.complete();
+      completed = true;
+    } finally {
+      // Make sure a pooled Deflater finds its way back if anything failed.
+      if (!completed) {
+        res.abandon();
+      }
+    }
+
+    // Cache the result if it was compressed and is the same for everyone.
+    if (key != null && res.isCacheable()) {
+      byte[] captured = res.getCapturedOutput();
+      if (captured != null) {
+        cache.put(key, captured, res.getTrackedContentType(),
+          res.getTrackedHeaders(), res.getTrackedLocale());
+      }
+    }
+
+  } // End doCompressed().
+
+
 } // End class.
@@ -18,16 +18,25 @@
 package javawebparts.filter;
 
 
+import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.util.zip.DeflaterOutputStream;
-import java.util.zip.GZIPOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.ServletOutputStream;
 
 
 /**
- * This class is used to do compression.
+ * This class is used to do compression.  When minification is configured
+ * and the response is HTML or JavaScript, the response is collected in a
+ * single buffer and, once complete, read straight out of that buffer through
+ * HtmlScriptMinifier into the compressor, so the minified characters are
+ * never buffered on their own.
  *
  * @author <a href="mailto:fzammetti@omnytex.com">Frank W. Zammetti</a>.
  */
@@ -53,17 +62,47 @@ public class CompressionResStream extends ServletOutputStream {
 
 
   /**
-   * ByteArrayOutputStream ba.
+   * Nothing has been decided yet; output is being held in pending.
+   */
+  private static final int UNDECIDED = 0;
+
+
+  /**
+   * Output is being compressed.
+   */
+  private static final int COMPRESSING = 1;
+
+
+  /**
+   * Output is being passed through untouched.
+   */
+  private static final int PASSING = 2;
+
+
+  /**
+   * Output is being collected, to be minified and then compressed at close.
+   */
+  private static final int MINIFYING = 3;
+
+
+  /**
+   * ByteArrayOutputStream ba.  Only used when buffering compressed output.
    */
   private ByteArrayOutputStream ba;
 
 
   /**
-   * Our output stream.  Will either be a GZipOutputStream (subclass of
-   * DeflaterOutputStream) or an actual DeflaterOutputStream, depending on
-   * what type of compression it is configured to do.
+   * The uncompressed response, while minifying.
+   */
+  private JSCompressionResStream raw;
+
+
+  /**
+   * Our output stream, which does the actual GZip or Deflate compression.
+   * It writes either to ba when buffering or straight to out when
+   * streaming.
    */
-  private DeflaterOutputStream ops;
+  private CompressingOutputStream ops;
 
 
   /**
@@ -72,6 +111,13 @@ public class CompressionResStream extends ServletOutputStream {
   private HttpServletResponse resp;
 
 
+  /**
+   * The wrapper that created this stream, which knows the content type and
+   * length the servlet set, or null if there is none.
+   */
+  private CompressionResWrapper owner;
+
+
   /**
    * ServletOutputStream out.
    */
@@ -85,7 +131,56 @@ public class CompressionResStream extends ServletOutputStream {
 
 
   /**
-   * Constructor.
+   * The filter's settings.
+   */
+  private CompressionConfig config;
+
+
+  /**
+   * Where this stream is in deciding whether to compress.
+   */
+  private int state = UNDECIDED;
+
+
+  /**
+   * Uncompressed output held while the decision is pending.  It never grows
+   * beyond minCompressSize.
+   */
+  private byte[] pending;
+
+
+  /**
+   * Number of bytes in pending.
+   */
+  private int pendingCount;
+
+
+  /**
+   * Whether close() has been called.
+   */
+  private boolean closed;
+
+
+  /**
+   * The most compressed bytes to capture for caching, or -1 to capture none.
+   */
+  private int captureLimit = -1;
+
+
+  /**
+   * Copy of the compressed output when streaming and capturing.
+   */
+  private ByteArrayOutputStream capture;
+
+
+  /**
+   * The compressed output, once complete, if it was captured.
+   */
+  private byte[] captured;
+
+
+  /**
+   * Constructor.  Output is always compressed, and buffered.
    *
    * @param  inResponse  The HTTPServletResponse being services.
    * @param  ct          What type of compression to perform.
@@ -94,17 +189,33 @@ public class CompressionResStream extends ServletOutputStream {
   public CompressionResStream(HttpServletResponse inResponse, String ct)
                               throws IOException {
 
+    this(inResponse, ct, new CompressionConfig(), null);
+
+  } // End CompressionResStream().
+
+
+  /**
+   * Constructor.
+   *
+   * @param  inResponse  The HTTPServletResponse being services.
+   * @param  ct          What type of compression to perform.
+   * @param  inConfig    The filter's settings.
+   * @param  inOwner     The wrapper creating this stream, or null.
+   * @throws IOException IOException.
+   */
+  public CompressionResStream(HttpServletResponse inResponse, String ct,
+    CompressionConfig inConfig, CompressionResWrapper inOwner)
+    throws IOException {
+
     super();
-    resp = inResponse;
-    out  = resp.getOutputStream();
-    ba   = new ByteArrayOutputStream();
+    resp            = inResponse;
+    out             = resp.getOutputStream();
     compressionType = ct;
-    if (ct.equalsIgnoreCase(CompressionResWrapper.GZIP)) {
-      ops = new GZIPOutputStream(ba);
-    }
-    if (ct.equalsIgnoreCase(CompressionResWrapper.DEFLATE)) {
-      ops = new DeflaterOutputStream(ba);
-    }
+    config          = inConfig;
+    owner           = inOwner;
+    // With no minCompressSize pending is empty, so the decision is made on
+    // the first write (or at close, for an empty response).
+    pending = new byte[Math.max(config.getMinCompressSize(), 0)];
 
   } // End CompressionResStream().
 
@@ -117,7 +228,18 @@ public class CompressionResStream extends ServletOutputStream {
    */
   public void write(int b) throws IOException {
 
-    ops.write((byte)b);
+    if (state == UNDECIDED && pendingCount < pending.length) {
+      pending[pendingCount++] = (byte)b;
+      return;
+    }
+    decide(false);
+    if (state == COMPRESSING) {
+      ops.write((byte)b);
+    } else if (state == MINIFYING) {
+      raw.write(b);
+    } else {
+      out.write(b);
+    }
 
   } // End write().
 
@@ -129,11 +251,32 @@ public class CompressionResStream extends ServletOutputStream {
    */
   public void close() throws IOException {
 
-    ops.finish();
-    byte[] bytes = ba.toByteArray();
-    resp.addHeader("Content-Length",   Integer.toString(bytes.length));
-    resp.addHeader("Content-Encoding", compressionType);
-    out.write(bytes);
+    if (closed) {
+      return;
+    }
+    closed = true;
+    decide(true);
+    if (state == MINIFYING) {
+      minifyRaw();
+    }
+    if (state == COMPRESSING) {
+      try {
+        ops.finish();
+      } finally {
+        releaseDeflater();
+      }
+      if (!config.isStreaming()) {
+        byte[] bytes = ba.toByteArray();
+        resp.addHeader("Content-Length",   Integer.toString(bytes.length));
+        resp.addHeader("Content-Encoding", compressionType);
+        out.write(bytes);
+        if (bytes.length <= captureLimit) {
+          captured = bytes;
+        }
+      } else if (capture != null && capture.size() <= captureLimit) {
+        captured = capture.toByteArray();
+      }
+    }
     out.flush();
     out.close();
 
@@ -163,20 +306,260 @@ public class CompressionResStream extends ServletOutputStream {
    */
   public void write(byte[] bytes, int o, int leng) throws IOException {
 
-    ops.write(bytes, o, leng);
+    if (state == UNDECIDED) {
+      if (pendingCount + leng <= pending.length) {
+        System.arraycopy(bytes, o, pending, pendingCount, leng);
+        pendingCount += leng;
+        if (pendingCount < pending.length) {
+          return;
+        }
+        decide(false);
+        return;
+      }
+      decide(false);
+    }
+    if (state == COMPRESSING) {
+      ops.write(bytes, o, leng);
+    } else if (state == MINIFYING) {
+      raw.write(bytes, o, leng);
+    } else {
+      out.write(bytes, o, leng);
+    }
 
   }
 
 
   /**
-   * Flush the output stream.
+   * Flush the output stream.  When streaming, this sends everything written
+   * so far to the client.  When buffering there is nowhere to flush to, so
+   * nothing is done.  Nor is anything done while the compression decision is
+   * still pending, or while minifying.
    * @throws IOException IOException.
    */
   public void flush() throws IOException {
 
-    ops.flush();
+    if (closed) {
+      return;
+    }
+    if (state == COMPRESSING && config.isStreaming()) {
+      ops.flush();
+    } else if (state == PASSING) {
+      out.flush();
+    }
 
   } // End flush().
 
 
+  /**
+   * Asks for the compressed output to be kept so it can be cached.  This
+   * must be called before anything is written to the stream.
+   *
+   * @param limit The most bytes to keep; larger output is not kept.
+   */
+  public void setCaptureLimit(int limit) {
+
+    captureLimit = limit;
+
+  } // End setCaptureLimit().
+
+
+  /**
+   * Returns the complete compressed output, if it was captured.
+   *
+   * @return The bytes, or null if the output was not compressed, was larger
+   *         than the capture limit, or capturing was not asked for.
+   */
+  public byte[] getCaptured() {
+
+    return captured;
+
+  } // End getCaptured().
+
+
+  /**
+   * Gives the Deflater back without writing anything more.  This is used
+   * when the request failed and the response will never be completed.
+   */
+  public void abandon() {
+
+    closed = true;
+    releaseDeflater();
+
+  } // End abandon().
+
+
+  /**
+   * Decides, once, whether to compress.  Output is compressed if it reached
+   * minCompressSize, its content type is compressible, and the servlet did
+   * not encode it itself.  Anything held in pending is then sent on.
+   *
+   * @param  atClose     True if called from close(), meaning the response
+   *                     is complete and pending holds all of it.
+   * @throws IOException IOException.
+   */
+  private void decide(boolean atClose) throws IOException {
+
+    if (state != UNDECIDED) {
+      return;
+    }
+    String  contentType = owner == null ? null : owner.getTrackedContentType();
+    boolean bigEnough   = !atClose || pendingCount >= pending.length;
+    if (bigEnough && config.isCompressibleType(contentType) &&
+        !alreadyEncoded()) {
+      if (config.isMinifiedType(contentType)) {
+        state = MINIFYING;
+        raw   = new JSCompressionResStream();
+        raw.write(pending, 0, pendingCount);
+      } else {
+        startCompressing();
+        ops.write(pending, 0, pendingCount);
+      }
+    } else {
+      state = PASSING;
+      if (atClose) {
+        resp.setContentLength(pendingCount);
+      } else if (owner != null && owner.getTrackedContentLength() >= 0) {
+        resp.setContentLength(owner.getTrackedContentLength());
+      }
+      out.write(pending, 0, pendingCount);
+    }
+    pending = null;
+
+  } // End decide().
+
+
+  /**
+   * Minifies the collected response into the compressor.  The response is
+   * decoded in place with its character encoding, and the minified
+   * characters are encoded straight into the Deflater.
+   *
+   * @throws IOException IOException.
+   */
+  private void minifyRaw() throws IOException {
+
+    String contentType = owner.getTrackedContentType();
+    String enc         = JSCompressionFilter.getEncoding(resp);
+    startCompressing();
+    Reader reader = new InputStreamReader(raw.getInputStream(), enc);
+    Writer writer = new BufferedWriter(new OutputStreamWriter(ops, enc));
+    HtmlScriptMinifier minifier = new HtmlScriptMinifier();
+    minifier.setCache(config.getMinificationCache());
+    if (contentType.indexOf("text/html") != -1) {
+      minifier.minify(reader, writer);
+    } else {
+      minifier.minifyScript(reader, writer);
+    }
+    // Not closed, as that would close ops before close() finishes it.
+    writer.flush();
+    raw = null;
+
+  } // End minifyRaw().
+
+
+  /**
+   * Sets up compression, writing either to a buffer or to the client.
+   *
+   * @throws IOException IOException.
+   */
+  private void startCompressing() throws IOException {
+
+    state = COMPRESSING;
+    OutputStream target;
+    if (config.isStreaming()) {
+      // Nothing has been written yet, so the header can still be set.
+      resp.addHeader("Content-Encoding", compressionType);
+      target = out;
+      if (captureLimit >= 0) {
+        capture = new ByteArrayOutputStream();
+        target  = new CaptureOutputStream(out);
+      }
+    } else {
+      ba     = new ByteArrayOutputStream();
+      target = ba;
+    }
+    ops = new CompressingOutputStream(target, compressionType,
+      config.borrowDeflater(compressionType), config.getCompressionLevel(),
+      config.getParallelDeflater(), config.getParallelThreshold());
+
+  } // End startCompressing().
+
+
+  /**
+   * Gives the Deflater, if one was borrowed, back to the config.
+   */
+  private void releaseDeflater() {
+
+    if (ops != null && ops.getDeflater() != null) {
+      config.releaseDeflater(ops.getDeflater(), compressionType);
+      ops.detachDeflater();
+    }
+
+  } // End releaseDeflater().
+
+
+  /**
+   * Determines whether the servlet set a Content-Encoding of its own.
+   *
+   * @return True if it did.
+   */
+  private boolean alreadyEncoded() {
+
+    return owner != null && owner.isContentEncodingSet();
+
+  } // End alreadyEncoded().
+
+
+  /**
+   * Passes compressed output on to the client while copying it into
+   * capture, until the copy exceeds the capture limit.
+   */
+  private final class CaptureOutputStream extends FilterOutputStream {
+
+    /**
+     * Constructor.
+     *
+     * @param inOut The stream to pass output on to.
+     */
+    private CaptureOutputStream(OutputStream inOut) {
+      super(inOut);
+    }
+
+    /**
+     * @param  b           The byte to write.
+     * @throws IOException IOException.
+     */
+    public void write(int b) throws IOException {
+      out.write(b);
+      if (capture != null) {
+        capture.write(b);
+        checkLimit();
+      }
+    }
+
+    /**
+     * @param  b           Byte array.
+     * @param  off         Offset.
+     * @param  len         Length.
+     * @throws IOException IOException.
+     */
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      if (capture != null) {
+        capture.write(b, off, len);
+        checkLimit();
+      }
+    }
+
+    /**
+     * Stops capturing once the limit is passed.
+     */
+    private void checkLimit() {
+      if (capture.size() > captureLimit) {
+        capture = null;
+      }
+    }
+
+  } // End CaptureOutputStream class.
+
+
 } // End CompressionResStream class.
@@ -21,6 +21,13 @@ package javawebparts.filter;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Locale;
+import java.util.StringTokenizer;
+import java.util.TimeZone;
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpServletResponseWrapper;
 import javax.servlet.ServletOutputStream;
@@ -90,16 +97,84 @@ public class CompressionResWrapper extends HttpServletResponseWrapper {
 
 
   /**
-   * Constructor.
+   * The filter's settings.
+   */
+  private CompressionConfig config;
+
+
+  /**
+   * The content type the servlet set, if any.  Servlet 2.3 offers no way to
+   * read it back from the response, so it is tracked here.
+   */
+  private String contentType;
+
+
+  /**
+   * The (uncompressed) content length the servlet set, or -1 if it set none.
+   */
+  private int contentLength = -1;
+
+
+  /**
+   * Whether the servlet set a Content-Encoding header itself.
+   */
+  private boolean contentEncodingSet;
+
+
+  /**
+   * Whether the response is one that may be cached: a plain 200 with no
+   * cookies, varying by nothing but Accept-Encoding.
+   */
+  private boolean cacheable = true;
+
+
+  /**
+   * The headers the servlet set, other than Content-Type and
+   * Content-Length, as name then value, so a cached copy of the response
+   * can be sent with them.
+   */
+  private ArrayList headers = new ArrayList();
+
+
+  /**
+   * The locale the servlet set, or null.
+   */
+  private Locale locale;
+
+
+  /**
+   * The most compressed bytes the stream should keep for caching, or -1.
+   */
+  private int captureLimit = -1;
+
+
+  /**
+   * Constructor.  Output is always compressed, and buffered.
    *
    * @param inResp HttpServletResponse being serviced.
    * @param ct     Compression type to do.
    */
   public CompressionResWrapper(HttpServletResponse inResp, String ct) {
 
+    this(inResp, ct, new CompressionConfig());
+
+  } // End CompressionResWrapper().
+
+
+  /**
+   * Constructor.
+   *
+   * @param inResp   HttpServletResponse being serviced.
+   * @param ct       Compression type to do.
+   * @param inConfig The settings of the filter creating this wrapper.
+   */
+  public CompressionResWrapper(HttpServletResponse inResp, String ct,
+    CompressionConfig inConfig) {
+
     super(inResp);
     resp = inResp;
     compressionType = ct;
+    config          = inConfig;
 
   } // End CompressionResWrapper().
 
@@ -126,7 +201,10 @@ public class CompressionResWrapper extends HttpServletResponseWrapper {
   private ServletOutputStream createOutputStream() throws IOException {
 
     if (strm == null) {
-      return new CompressionResStream(resp, compressionType);
+      CompressionResStream crs =
+        new CompressionResStream(resp, compressionType, config, this);
+      crs.setCaptureLimit(captureLimit);
+      return crs;
     } else {
       return strm;
     }
@@ -167,6 +245,19 @@ public class CompressionResWrapper extends HttpServletResponseWrapper {
   } // End complete().
 
 
+  /**
+   * Releases resources without completing the response.  This is called
+   * instead of complete() when the request failed.
+   */
+  public void abandon() {
+
+    if (strm instanceof CompressionResStream) {
+      ((CompressionResStream)strm).abandon();
+    }
+
+  } // End abandon().
+
+
   /**
    * Creates a suitable custom ServletOutputStream.
    *
@@ -188,9 +279,414 @@ public class CompressionResWrapper extends HttpServletResponseWrapper {
    */
   public void flushBuffer() throws IOException {
 
-    strm.flush();
+    if (wrtr != null) {
+      wrtr.flush();
+    } else if (strm != null) {
+      strm.flush();
+    }
 
   } // End flushBuffer().
 
 
+  /**
+   * Records the length set by the servlet rather than passing it on, since
+   * it is the length of the uncompressed content.  The stream sets the
+   * proper length itself, if it can.
+   *
+   * @param len The uncompressed content length.
+   */
+  public void setContentLength(int len) {
+
+    contentLength = len;
+
+  } // End setContentLength().
+
+
+  /**
+   * Sets the content type, remembering it so the stream can decide whether
+   * to compress.
+   *
+   * @param type The content type.
+   */
+  public void setContentType(String type) {
+
+    contentType = type;
+    super.setContentType(type);
+
+  } // End setContentType().
+
+
+  /**
+   * Sets the locale, remembering it so a cached copy of the response can
+   * be sent with the same Content-Language.
+   *
+   * @param loc The locale.
+   */
+  public void setLocale(Locale loc) {
+
+    locale = loc;
+    super.setLocale(loc);
+
+  } // End setLocale().
+
+  /**
+   * Sets a header, intercepting the ones compression has to know about.
+   *
+   * @param name  The header name.
+   * @param value The header value.
+   */
+  public void setHeader(String name, String value) {
+
+    if (trackHeader(name, value, true)) {
+      super.setHeader(name, value);
+    }
+
+  } // End setHeader().
+
+
+  /**
+   * Adds a header, intercepting the ones compression has to know about.
+   *
+   * @param name  The header name.
+   * @param value The header value.
+   */
+  public void addHeader(String name, String value) {
+
+    if (trackHeader(name, value, false)) {
+      super.addHeader(name, value);
+    }
+
+  } // End addHeader().
+
+
+  /**
+   * Sets an integer header, intercepting Content-Length.
+   *
+   * @param name  The header name.
+   * @param value The header value.
+   */
+  public void setIntHeader(String name, int value) {
+
+    if (trackHeader(name, Integer.toString(value), true)) {
+      super.setIntHeader(name, value);
+    }
+
+  } // End setIntHeader().
+
+
+  /**
+   * Adds an integer header, intercepting Content-Length.
+   *
+   * @param name  The header name.
+   * @param value The header value.
+   */
+  public void addIntHeader(String name, int value) {
+
+    if (trackHeader(name, Integer.toString(value), false)) {
+      super.addIntHeader(name, value);
+    }
+
+  } // End addIntHeader().
+
+
+  /**
+   * Sets a date header, remembering it for the cache.
+   *
+   * @param name  The header name.
+   * @param date  The header value, in milliseconds since the epoch.
+   */
+  public void setDateHeader(String name, long date) {
+
+    keepHeader(name, formatDate(date), true);
+    super.setDateHeader(name, date);
+
+  } // End setDateHeader().
+
+
+  /**
+   * Adds a date header, remembering it for the cache.
+   *
+   * @param name  The header name.
+   * @param date  The header value, in milliseconds since the epoch.
+   */
+  public void addDateHeader(String name, long date) {
+
+    keepHeader(name, formatDate(date), false);
+    super.addDateHeader(name, date);
+
+  } // End addDateHeader().
+
+
+  /**
+   * Sets the status, noting that anything but 200 cannot be cached.
+   *
+   * @param sc The status code.
+   */
+  public void setStatus(int sc) {
+
+    if (sc != HttpServletResponse.SC_OK) {
+      cacheable = false;
+    }
+    super.setStatus(sc);
+
+  } // End setStatus().
+
+
+  /**
+   * Sends an error, which cannot be cached.
+   *
+   * @param  sc          The status code.
+   * @throws IOException IOException.
+   */
+  public void sendError(int sc) throws IOException {
+
+    cacheable = false;
+    super.sendError(sc);
+
+  } // End sendError().
+
+
+  /**
+   * Sends an error, which cannot be cached.
+   *
+   * @param  sc          The status code.
+   * @param  msg         The message.
+   * @throws IOException IOException.
+   */
+  public void sendError(int sc, String msg) throws IOException {
+
+    cacheable = false;
+    super.sendError(sc, msg);
+
+  } // End sendError().
+
+
+  /**
+   * Sends a redirect, which cannot be cached.
+   *
+   * @param  location    The location to redirect to.
+   * @throws IOException IOException.
+   */
+  public void sendRedirect(String location) throws IOException {
+
+    cacheable = false;
+    super.sendRedirect(location);
+
+  } // End sendRedirect().
+
+
+  /**
+   * Adds a cookie, which makes the response user-specific and therefore not
+   * cacheable.
+   *
+   * @param cookie The cookie.
+   */
+  public void addCookie(Cookie cookie) {
+
+    cacheable = false;
+    super.addCookie(cookie);
+
+  } // End addCookie().
+
+
+  /**
+   * Returns whether the response may be cached.
+   *
+   * @return True if it may.
+   */
+  public boolean isCacheable() {
+
+    return cacheable;
+
+  } // End isCacheable().
+
+
+  /**
+   * Asks for the compressed output to be kept so it can be cached.  This
+   * must be called before the servlet runs.
+   *
+   * @param limit The most bytes to keep.
+   */
+  public void captureOutput(int limit) {
+
+    captureLimit = limit;
+
+  } // End captureOutput().
+
+
+  /**
+   * Returns the compressed output, once complete, if it was captured.
+   *
+   * @return The bytes, or null if there are none.
+   */
+  public byte[] getCapturedOutput() {
+
+    return strm instanceof CompressionResStream ?
+      ((CompressionResStream)strm).getCaptured() : null;
+
+  } // End getCapturedOutput().
+
+
+  /**
+   * Returns the content type the servlet set.
+   *
+   * @return The content type, or null if none was set.
+   */
+  public String getTrackedContentType() {
+
+    return contentType;
+
+  } // End getTrackedContentType().
+
+
+  /**
+   * Returns the headers the servlet set, other than Content-Type and
+   * Content-Length, in the order set.
+   *
+   * @return The headers, as name then value.
+   */
+  public String[] getTrackedHeaders() {
+
+    return (String[])headers.toArray(new String[headers.size()]);
+
+  } // End getTrackedHeaders().
+
+
+  /**
+   * Returns the locale the servlet set.
+   *
+   * @return The locale, or null if none was set.
+   */
+  public Locale getTrackedLocale() {
+
+    return locale;
+
+  } // End getTrackedLocale().
+
+
+  /**
+   * Returns the uncompressed content length the servlet set.
+   *
+   * @return The content length, or -1 if none was set.
+   */
+  public int getTrackedContentLength() {
+
+    return contentLength;
+
+  } // End getTrackedContentLength().
+
+
+  /**
+   * Returns whether the servlet set a Content-Encoding of its own, in which
+   * case the output must not be compressed again.
+   *
+   * @return True if it did.
+   */
+  public boolean isContentEncodingSet() {
+
+    return contentEncodingSet;
+
+  } // End isContentEncodingSet().
+
+
+  /**
+   * Records the headers compression needs to know about, and keeps the
+   * rest for the cache.
+   *
+   * @param  name    The header name.
+   * @param  value   The header value.
+   * @param  replace Whether the header replaces any of the same name.
+   * @return         True if the header should be passed on to the
+   *                 response, false if it is being held back
+   *                 (Content-Length).
+   */
+  private boolean trackHeader(String name, String value, boolean replace) {
+
+    if (name.equalsIgnoreCase("Content-Length")) {
+      try {
+        contentLength = Integer.parseInt(value.trim());
+      } catch (NumberFormatException e) {
+        contentLength = -1;
+      }
+      return false;
+    }
+    if (name.equalsIgnoreCase("Content-Type")) {
+      contentType = value;
+      return true;
+    }
+    if (name.equalsIgnoreCase("Content-Encoding")) {
+      contentEncodingSet = true;
+      cacheable          = false;
+    } else if (name.equalsIgnoreCase("Set-Cookie") ||
+      name.equalsIgnoreCase("Set-Cookie2")) {
+      cacheable = false;
+    } else if (name.equalsIgnoreCase("Vary") && !variesByEncoding(value)) {
+      cacheable = false;
+    }
+    keepHeader(name, value, replace);
+    return true;
+
+  } // End trackHeader().
+
+
+  /**
+   * Tells whether a Vary header names nothing but Accept-Encoding, which
+   * the cache already keys on.  A response that varies by anything else
+   * is not the same for everyone asking for its URL.
+   *
+   * @param  value The header value.
+   * @return       True if it only names Accept-Encoding.
+   */
+  private static boolean variesByEncoding(String value) {
+
+    StringTokenizer st = new StringTokenizer(value, ",");
+    while (st.hasMoreTokens()) {
+      if (!st.nextToken().trim().equalsIgnoreCase("Accept-Encoding")) {
+        return false;
+      }
+    }
+    return true;
+
+  } // End variesByEncoding().
+
+
+  /**
+   * Keeps a header for the cache.
+   *
+   * @param name    The header name.
+   * @param value   The header value.
+   * @param replace Whether the header replaces any of the same name.
+   */
+  private void keepHeader(String name, String value, boolean replace) {
+
+    if (replace) {
+      for (int i = headers.size() - 2; i >= 0; i -= 2) {
+        if (((String)headers.get(i)).equalsIgnoreCase(name)) {
+          headers.remove(i + 1);
+          headers.remove(i);
+        }
+      }
+    }
+    headers.add(name);
+    headers.add(value);
+
+  } // End keepHeader().
+
+
+  /**
+   * Formats a date as an HTTP header value.
+   *
+   * @param  date Milliseconds since the epoch.
+   * @return      The date, as in RFC 1123.
+   */
+  private static String formatDate(long date) {
+
+    SimpleDateFormat df = new SimpleDateFormat(
+      "EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+    df.setTimeZone(TimeZone.getTimeZone("GMT"));
+    return df.format(new Date(date));
+
+  } // End formatDate().
+
+
 } // End CompressionResWrapper class.
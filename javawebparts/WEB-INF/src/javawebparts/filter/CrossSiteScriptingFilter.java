@@ -19,7 +19,6 @@ package javawebparts.filter;
 
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -66,6 +65,11 @@ import org.apache.commons.logging.LogFactory;
  * technically a misconfiguration).  If NEITHER is defined then the generic
  * filter mapping will be in effect only.</li>
  * <br><br>
+ * <li><b>pathDecisionCacheSize</b> - If greater than zero, the result of
+ * matching each requested path against pathList is remembered for up to this
+ * many distinct paths, so repeat requests skip the matching entirely.
+ * Required: No.  Default: 0 (no caching).</li>
+ * <br><br>
  * <li><b>cssRegex</b> - This is the regular expression that will be used to
  * check parameter and String attribute values.  The default string is
  * [&lt;&gt;%()] which will effectively disallow any parameter or String
@@ -153,7 +157,7 @@ public class CrossSiteScriptingFilter implements Filter {
   /**
    * List of paths for filter functionality determination.
    */
-  private ArrayList pathList = new ArrayList();
+  private PathMatcher pathList;
 
 
   /**
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.filter;
+
+
+import java.util.zip.Deflater;
+
+
+/**
+ * This class is a bounded pool of Deflater objects.  Every Deflater holds a
+ * native zlib context that is only freed when end() is called (or, much
+ * later, when it is garbage collected), so creating one per response makes
+ * native memory climb under load.  Pooled Deflaters are reset() and reused
+ * instead.
+ * <br><br>
+ * GZip and Deflate need differently configured Deflaters, so there are two
+ * stacks, each holding at most maxIdle idle instances.  When a stack is
+ * empty (the pool is exhausted) a new Deflater is created rather than making
+ * the request wait, and when a stack is full on release the Deflater is
+ * ended right away.  The number of live native contexts therefore never
+ * exceeds twice maxIdle plus the number of responses being compressed at
+ * that moment.  Both events are counted, so an undersized pool shows up in
+ * the statistics.
+ *
+ * @author <a href="mailto:fzammetti@omnytex.com">Frank W. Zammetti</a>.
+ */
+public class DeflaterPool {
+
+
+  /**
+   * Compression level for every Deflater this pool creates.
+   */
+  private int level;
+
+
+  /**
+   * Compression strategy for every Deflater this pool creates.
+   */
+  private int strategy;
+
+
+  /**
+   * Idle Deflaters for GZip (created with nowrap true).
+   */
+  private Deflater[] gzipIdle;
+
+
+  /**
+   * Number of entries in gzipIdle.
+   */
+  private int gzipCount;
+
+
+  /**
+   * Idle Deflaters for Deflate (created with nowrap false).
+   */
+  private Deflater[] deflateIdle;
+
+
+  /**
+   * Number of entries in deflateIdle.
+   */
+  private int deflateCount;
+
+
+  /**
+   * Whether close() has been called.
+   */
+  private boolean closed;
+
+
+  /**
+   * Number of Deflaters handed out.
+   */
+  private long borrowed;
+
+
+  /**
+   * Number of times a borrow found the pool empty.
+   */
+  private long exhausted;
+
+
+  /**
+   * Number of Deflaters ended because the pool was full on release.
+   */
+  private long discarded;
+
+
+  /**
+   * Constructor.
+   *
+   * @param maxIdle    The most idle Deflaters kept per compression type.
+   * @param inLevel    Compression level, Deflater.DEFAULT_COMPRESSION or
+   *                   0 through 9.
+   * @param inStrategy Deflater.DEFAULT_STRATEGY, Deflater.FILTERED or
+   *                   Deflater.HUFFMAN_ONLY.
+   */
+  public DeflaterPool(int maxIdle, int inLevel, int inStrategy) {
+
+    level       = inLevel;
+    strategy    = inStrategy;
+    gzipIdle    = new Deflater[maxIdle];
+    deflateIdle = new Deflater[maxIdle];
+
+  } // End DeflaterPool().
+
+
+  /**
+   * Gets a Deflater, ready to use, for the given compression type.
+   *
+   * @param  ct CompressionResWrapper.GZIP or CompressionResWrapper.DEFLATE.
+   * @return    A Deflater.
+   */
+  public Deflater borrow(String ct) {
+
+    boolean gzip = ct.equalsIgnoreCase(CompressionResWrapper.GZIP);
+    synchronized (this) {
+      borrowed++;
+      if (gzip && gzipCount > 0) {
+        Deflater d = gzipIdle[--gzipCount];
+        gzipIdle[gzipCount] = null;
+        return d;
+      }
+      if (!gzip && deflateCount > 0) {
+        Deflater d = deflateIdle[--deflateCount];
+        deflateIdle[deflateCount] = null;
+        return d;
+      }
+      exhausted++;
+    }
+    Deflater d = CompressingOutputStream.createDeflater(ct, level);
+    d.setStrategy(strategy);
+    return d;
+
+  } // End borrow().
+
+
+  /**
+   * Returns a Deflater to the pool.  It is reset here, so it must not be
+   * used by the caller afterwards.
+   *
+   * @param d  The Deflater.
+   * @param ct The compression type it was borrowed for.
+   */
+  public void release(Deflater d, String ct) {
+
+    boolean gzip = ct.equalsIgnoreCase(CompressionResWrapper.GZIP);
+    d.reset();
+    synchronized (this) {
+      if (!closed) {
+        if (gzip && gzipCount < gzipIdle.length) {
+          gzipIdle[gzipCount++] = d;
+          return;
+        }
+        if (!gzip && deflateCount < deflateIdle.length) {
+          deflateIdle[deflateCount++] = d;
+          return;
+        }
+      }
+      discarded++;
+    }
+    d.end();
+
+  } // End release().
+
+
+  /**
+   * Ends every idle Deflater.  Any released afterwards are ended as well.
+   */
+  public synchronized void close() {
+
+    closed = true;
+    for (int i = 0; i < gzipCount; i++) {
+      gzipIdle[i].end();
+      gzipIdle[i] = null;
+    }
+    for (int i = 0; i < deflateCount; i++) {
+      deflateIdle[i].end();
+      deflateIdle[i] = null;
+    }
+    gzipCount    = 0;
+    deflateCount = 0;
+
+  } // End close().
+
+
+  /**
+   * Returns the compression level of the Deflaters in this pool.
+   *
+   * @return The level.
+   */
+  public int getLevel() {
+
+    return level;
+
+  } // End getLevel().
+
+
+  /**
+   * Returns the compression strategy of the Deflaters in this pool.
+   *
+   * @return The strategy.
+   */
+  public int getStrategy() {
+
+    return strategy;
+
+  } // End getStrategy().
+
+
+  /**
+   * Returns the number of Deflaters handed out.
+   *
+   * @return The count.
+   */
+  public synchronized long getBorrowed() {
+
+    return borrowed;
+
+  } // End getBorrowed().
+
+
+  /**
+   * Returns the number of times a borrow found no idle Deflater, and so had
+   * to create one.
+   *
+   * @return The count.
+   */
+  public synchronized long getExhausted() {
+
+    return exhausted;
+
+  } // End getExhausted().
+
+
+  /**
+   * Returns the number of Deflaters ended because the pool was full.
+   *
+   * @return The count.
+   */
+  public synchronized long getDiscarded() {
+
+    return discarded;
+
+  } // End getDiscarded().
+
+
+  /**
+   * Returns the number of idle Deflaters currently held.
+   *
+   * @return The count.
+   */
+  public synchronized int getIdle() {
+
+    return gzipCount + deflateCount;
+
+  } // End getIdle().
+
+
+  /**
+   * Returns the statistics of this pool, for logging purposes.
+   *
+   * @return The statistics as a String.
+   */
+  public synchronized String toString() {
+
+    return "DeflaterPool[level=" + level + ", strategy=" + strategy +
+      ", idle=" + (gzipCount + deflateCount) + ", borrowed=" + borrowed +
+      ", exhausted=" + exhausted +
+      ", discarded=" + discarded + "]";
+
+  } // End toString().
+
+
+} // End class.
@@ -96,6 +96,12 @@ public class DependencyConfig {
   private ArrayList createForPathsAL;
 
 
+  /**
+   * The compiled form of createForPaths, used for matching requests.
+   */
+  private PathMatcher createForPathsMatcher;
+
+
   /**
    * This is the collection of paths for which the dependency will be created.
    * THIS IS ONLY NEEDED TO ALLOW DIGESTER TO HAVE SOMETHING TO SET.  It
@@ -193,6 +199,7 @@ public class DependencyConfig {
         // Modified paths can now be added to the collection.
         createForPathsAL.add(sb.toString());
       }
+      createForPathsMatcher = PathMatcher.compile(inCreateForPaths);
     }
     log.info("createForPathsAL = " + createForPathsAL);
 
@@ -228,6 +235,19 @@ public class DependencyConfig {
   } // End getCreateForPathsAL().
 
 
+  /**
+   * createForPathsMatcher accessor.
+   *
+   * @return The compiled collection of paths for which the dependency will
+   *         be created, or null if createForPaths was never set.
+   */
+  public PathMatcher getCreateForPathsMatcher() {
+
+    return createForPathsMatcher;
+
+  } // End getCreateForPathsMatcher().
+
+
   /**
    * Max Age mutator.
    *
@@ -466,9 +466,9 @@ public class DependencyFilter implements Filter {
         // Get the DependencyConfig object and some values from it.
         DependencyConfig dc =
           (DependencyConfig)dependencyConfigs.get((String)it0.next());
-        String    scope          = dc.getScope();
-        String    name           = dc.getName();
-        ArrayList createForPaths = dc.getCreateForPathsAL();
+        String      scope          = dc.getScope();
+        String      name           = dc.getName();
+        PathMatcher createForPaths = dc.getCreateForPathsMatcher();
         log.info("Object name: " + name + " ... scope: " + scope +
           "createForPaths: " + createForPaths);
 
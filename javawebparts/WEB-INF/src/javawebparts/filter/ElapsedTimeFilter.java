@@ -20,6 +20,7 @@ package javawebparts.filter;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.StringTokenizer;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -32,9 +33,16 @@ import org.apache.commons.logging.LogFactory;
 
 
 /**
- * This filter writes to the log a message at the end of every request to
- * show the elapsed time for the request.  It allows for including or
- * excluding paths from filter functionality.
+ * This filter measures the elapsed time of every request.  The times are
+ * counted in a LatencyHistogram per path, from which the 50th, 90th and 99th
+ * percentiles, the longest time and the number of requests per second can
+ * be read at any time, and, unless turned off, also written to the log.  It
+ * allows for including or excluding paths from filter functionality.
+ * <br><br>
+ * The histograms are kept in a LatencyStats in the application context,
+ * under STATS_KEY, where ElapsedTimeStatusServlet reports them.  Paths that
+ * differ only in an ID or the like can be grouped under a template so they
+ * are counted together.
  * <br><br>
  * Init parameters are:
  * <br>
@@ -60,6 +68,32 @@ import org.apache.commons.logging.LogFactory;
  * specified by pathList IS NOT, then the filter WILL NEVER EXECUTE (this is
  * technically a misconfiguration).  If NEITHER is defined then the generic
  * filter mapping will be in effect only.</li>
+ * <br><br>
+ * <li><b>pathDecisionCacheSize</b> - If greater than zero, the result of
+ * matching each requested path against pathList is remembered for up to this
+ * many distinct paths, so repeat requests skip the matching entirely.
+ * Required: No.  Default: 0 (no caching).</li>
+ * <br><br>
+ * <li><b>pathTemplates</b> - A comma-separated list of templates to group
+ * paths under, i.e., "/order/*&zwj;/view.do".  An asterisk matches anything
+ * but a slash.  A path is counted under the first template it matches, or
+ * under itself if it matches none.  Required: No.  Default: None.</li>
+ * <br><br>
+ * <li><b>maxPaths</b> - The number of paths (or templates) to count
+ * separately.  Requests for any further paths are counted together under
+ * "(other)".  Required: No.  Default: 500.</li>
+ * <br><br>
+ * <li><b>logRequests</b> - Either "true" or "false".  Whether to write the
+ * elapsed time of every request to the log, as this filter always used to.
+ * Required: No.  Default: true.</li>
+ * <br><br>
+ * <li><b>slowThreshold</b> - If greater than zero, requests taking at least
+ * this many milliseconds are logged as slow, along with the frames their
+ * thread was most often seen in, sampled by a SlowRequestSampler while they
+ * ran.  Required: No.  Default: 0 (off).</li>
+ * <br><br>
+ * <li><b>sampleInterval</b> - How often, in milliseconds, requests running
+ * longer than slowThreshold are sampled.  Required: No.  Default: 50.</li>
  * </ul>
  * <br>
  * Example configuration in web.xml:
@@ -128,7 +162,62 @@ public class ElapsedTimeFilter implements Filter {
   /**
    * List of paths for filter functionality determination.
    */
-  private ArrayList pathList = new ArrayList();
+  private PathMatcher pathList;
+
+
+  /**
+   * The application context attribute the LatencyStats are kept under.
+   */
+  public static final String STATS_KEY =
+    "javawebparts.filter.ElapsedTimeFilter.stats";
+
+
+  /**
+   * Number of paths counted separately if maxPaths is not specified.
+   */
+  public static final int DEFAULT_MAX_PATHS = 500;
+
+
+  /**
+   * Milliseconds between samples if sampleInterval is not specified.
+   */
+  public static final int DEFAULT_SAMPLE_INTERVAL = 50;
+
+
+  /**
+   * The templates paths are grouped under, or null if there are none.
+   */
+  private RegexListMatcher pathTemplates;
+
+
+  /**
+   * The text of each template, in the order of pathTemplates.
+   */
+  private String[] templateNames;
+
+
+  /**
+   * Whether to log the elapsed time of every request.
+   */
+  private boolean logRequests;
+
+
+  /**
+   * The histograms.
+   */
+  private LatencyStats stats;
+
+
+  /**
+   * Milliseconds after which a request is slow, or 0 if none are.
+   */
+  private int slowThreshold;
+
+
+  /**
+   * Samples slow requests, or null if slowThreshold is 0.
+   */
+  private SlowRequestSampler sampler;
 
 
   /**
@@ -143,6 +232,46 @@ public class ElapsedTimeFilter implements Filter {
     pathSpec = FilterHelpers.initPathSpec(getClass().getName(), filterConfig);
     pathList = FilterHelpers.initPathList(getClass().getName(), filterConfig);
 
+    // Get the pathTemplates init parameter, and compile the templates into
+    // regexes that match them all in one pass.
+    String pt = filterConfig.getInitParameter("pathTemplates");
+    log.info("pathTemplates = " + pt);
+    if (pt != null && !pt.trim().equalsIgnoreCase("")) {
+      ArrayList names   = new ArrayList();
+      ArrayList regexes = new ArrayList();
+      for (StringTokenizer st = new StringTokenizer(pt, ",");
+        st.hasMoreTokens();) {
+        String t = st.nextToken().trim();
+        if (!t.equalsIgnoreCase("")) {
+          names.add(t);
+          regexes.add(templateToRegex(t));
+        }
+      }
+      templateNames = (String[])names.toArray(new String[names.size()]);
+      pathTemplates = RegexListMatcher.compile(regexes);
+    }
+
+    // Get the maxPaths and logRequests init parameters.
+    int maxPaths = FilterHelpers.initIntParam(getClass().getName(),
+      filterConfig, "maxPaths", DEFAULT_MAX_PATHS);
+    String lr = filterConfig.getInitParameter("logRequests");
+    logRequests = lr == null || !lr.trim().equalsIgnoreCase("false");
+    log.info("logRequests = " + logRequests);
+
+    // Get the slowThreshold and sampleInterval init parameters, and start
+    // sampling slow requests if there is a threshold.
+    slowThreshold = FilterHelpers.initIntParam(getClass().getName(),
+      filterConfig, "slowThreshold", 0);
+    int sampleInterval = FilterHelpers.initIntParam(getClass().getName(),
+      filterConfig, "sampleInterval", DEFAULT_SAMPLE_INTERVAL);
+    if (slowThreshold > 0) {
+      sampler = new SlowRequestSampler(slowThreshold,
+        Math.max(1, sampleInterval));
+    }
+
+    stats = new LatencyStats(maxPaths);
+    filterConfig.getServletContext().setAttribute(STATS_KEY, stats);
+
     log.info("init() completed");
 
   } // End init().
@@ -153,6 +282,12 @@ public class ElapsedTimeFilter implements Filter {
    */
   public void destroy() {
 
+    log.info("destroy(): " + stats);
+    if (sampler != null) {
+      log.info("destroy(): " + sampler);
+      sampler.stop();
+    }
+
   } // End destroy.
 
 
@@ -169,16 +304,32 @@ public class ElapsedTimeFilter implements Filter {
                        FilterChain filterChain)
                        throws ServletException, IOException {
 
-    String path = ((HttpServletRequest)request).getServletPath();
-
     if (FilterHelpers.filterPath(request, pathList, pathSpec)) {
-      log.info("ElapsedTimeFilter firing 1...");
-      long start = System.currentTimeMillis();
-      filterChain.doFilter(request, response);
-      log.info("ElapsedTimeFilter firing 2...");
-      long end = System.currentTimeMillis();
-      long elapsed = end - start;
-      log.info(path + ": " + elapsed + "ms");
+      if (log.isDebugEnabled()) {
+        log.debug("ElapsedTimeFilter firing...");
+      }
+      long                     start = System.currentTimeMillis();
+      SlowRequestSampler.Entry entry = null;
+      if (sampler != null) {
+        entry = sampler.begin(start);
+      }
+      try {
+        filterChain.doFilter(request, response);
+      } finally {
+        long   elapsed = System.currentTimeMillis() - start;
+        String path    = ((HttpServletRequest)request).getServletPath();
+        stats.record(templateFor(path), elapsed);
+        if (logRequests) {
+          log.info(path + ": " + elapsed + "ms");
+        }
+        if (sampler != null) {
+          String hot = sampler.end(entry);
+          if (elapsed >= slowThreshold) {
+            log.warn("Slow request " + path + ": " + elapsed + "ms" +
+              (hot == null ? "" : " (" + hot + ")"));
+          }
+        }
+      }
     } else {
       filterChain.doFilter(request, response);
     }
@@ -186,4 +337,49 @@ public class ElapsedTimeFilter implements Filter {
   } // End doFilter().
 
 
+  /**
+   * Returns the name a path is counted under: the first template it
+   * matches, or the path itself.
+   *
+   * @param  path The path.
+   * @return      The name.
+   */
+  private String templateFor(String path) {
+
+    if (pathTemplates != null && path != null) {
+      int i = pathTemplates.match(path);
+      if (i >= 0) {
+        return templateNames[i];
+      }
+    }
+    return path;
+
+  } // End templateFor().
+
+
+  /**
+   * Converts a template into a regex, in which an asterisk matches anything
+   * but a slash and everything else matches itself.
+   *
+   * @param  template The template.
+   * @return          The regex.
+   */
+  private static String templateToRegex(String template) {
+
+    StringBuffer sb = new StringBuffer();
+    for (int i = 0; i < template.length(); i++) {
+      char c = template.charAt(i);
+      if (c == '*') {
+        sb.append("[^/]*");
+      } else if ("\\[](){}.+?^$|".indexOf(c) != -1) {
+        sb.append('\\').append(c);
+      } else {
+        sb.append(c);
+      }
+    }
+    return sb.toString();
+
+  } // End templateToRegex().
+
+
 } // End class.
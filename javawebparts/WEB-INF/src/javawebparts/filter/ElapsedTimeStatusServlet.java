@@ -0,0 +1,175 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.filter;
+
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Date;
+import java.util.Iterator;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.ServletException;
+import javawebparts.core.LatencyHistogram;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * This servlet reports the elapsed times ElapsedTimeFilter has counted, as
+ * plain text with one line per path: the number of requests, requests per
+ * second, the average, the 50th, 90th and 99th percentiles and the longest
+ * time, all in milliseconds, then the path.  The first line is for all
+ * requests together.  POSTing to it with the parameter reset=true starts the
+ * counting afresh after reporting; a GET never resets, so that a crawler or
+ * a prefetching browser cannot wipe the counts.  It lives alongside the
+ * filter, whose LatencyStats it reads from the application context.
+ * <br><br>
+ * Since the report shows what the application is used for, it should
+ * usually be mapped somewhere only administrators can reach.
+ * <br><br>
+ * Example configuration in web.xml:
+ * <br><br>
+ * &lt;servlet&gt;<br>
+ * &nbsp;&nbsp;&lt;servlet-name&gt;ElapsedTimeStatusServlet&lt;/servlet-name&gt;
+ * <br>
+ * &nbsp;&nbsp;&lt;servlet-class&gt;javawebparts.filter.
+ * ElapsedTimeStatusServlet&lt;/servlet-class&gt;<br>
+ * &lt;/servlet&gt;
+ * <br><br>
+ * &lt;servlet-mapping&gt;<br>
+ * &nbsp;&nbsp;&lt;servlet-name&gt;ElapsedTimeStatusServlet&lt;/servlet-name&gt;
+ * <br>
+ * &nbsp;&nbsp;&lt;url-pattern&gt;/admin/elapsedTime&lt;/url-pattern&gt;<br>
+ * &lt;/servlet-mapping&gt;
+ *
+ * @author <a href="mailto:fzammetti@omnytex.com">Frank W. Zammetti</a>.
+ */
+public class ElapsedTimeStatusServlet extends HttpServlet {
+
+
+  /**
+   * This static initializer block tries to load all the classes this one
+   * depends on (those not from standard Java anyway) and prints an error
+   * meesage if any cannot be loaded for any reason.
+   */
+  static {
+    try {
+      Class.forName("javax.servlet.http.HttpServlet");
+      Class.forName("javax.servlet.http.HttpServletRequest");
+      Class.forName("javax.servlet.http.HttpServletResponse");
+      Class.forName("javax.servlet.ServletException");
+      Class.forName("javawebparts.core.LatencyHistogram");
+      Class.forName("org.apache.commons.logging.Log");
+      Class.forName("org.apache.commons.logging.LogFactory");
+    } catch (ClassNotFoundException e) {
+      System.err.println("ElapsedTimeStatusServlet" +
+        " could not be loaded by classloader because classes it depends" +
+        " on could not be found in the classpath...");
+      e.printStackTrace();
+    }
+  }
+
+
+  /**
+   * Log instance.
+   */
+  private static Log log = LogFactory.getLog(ElapsedTimeStatusServlet.class);
+
+
+  /**
+   * doGet.  Calls doPost() to do real work.
+   *
+   * @param  request          HTTPServletRequest.
+   * @param  response         HTTPServletResponse.
+   * @throws ServletException ServletException.
+   * @throws IOException      IOException.
+   */
+  public void doGet(HttpServletRequest request, HttpServletResponse response)
+    throws ServletException, IOException {
+
+    doPost(request, response);
+
+  } // End doGet().
+
+
+  /**
+   * doPost.  Writes the report, and resets the counts if asked to.
+   *
+   * @param  request          HTTPServletRequest
+   * @param  response         HTTPServletResponse
+   * @throws ServletException ServletException
+   * @throws IOException      IOException
+   */
+  public void doPost(HttpServletRequest request, HttpServletResponse response)
+    throws ServletException, IOException {
+
+    LatencyStats stats = (LatencyStats)getServletContext().getAttribute(
+      ElapsedTimeFilter.STATS_KEY);
+    if (stats == null) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND,
+        "ElapsedTimeFilter is not configured");
+      return;
+    }
+    response.setContentType("text/plain");
+    response.setHeader("Cache-Control", "no-cache");
+    PrintWriter out = response.getWriter();
+    long        now = System.currentTimeMillis();
+    out.println("# Since " + new Date(stats.getSince()));
+    out.println("# count rate/s mean p50 p90 p99 max path");
+    printLine(out, "*", stats.getAll(), stats, now);
+    for (Iterator it = stats.getPaths().iterator(); it.hasNext();) {
+      String           path = (String)it.next();
+      LatencyHistogram h    = stats.get(path);
+      // It may have been reset in the meantime.
+      if (h != null) {
+        printLine(out, path, h, stats, now);
+      }
+    }
+    if ("POST".equalsIgnoreCase(request.getMethod()) &&
+      "true".equalsIgnoreCase(request.getParameter("reset"))) {
+      log.info("Resetting " + stats);
+      stats.reset();
+    }
+
+  } // End doPost().
+
+
+  /**
+   * Writes the line of one path.
+   *
+   * @param out   Where to write it.
+   * @param path  The path.
+   * @param h     The path's histogram.
+   * @param stats The histograms.
+   * @param now   The current time.
+   */
+  private void printLine(PrintWriter out, String path, LatencyHistogram h,
+    LatencyStats stats, long now) {
+
+    out.println(h.getCount() + " " +
+      Math.round(stats.getRate(h, now) * 100) / 100.0 + " " +
+      Math.round(h.getMean()) + " " + h.getPercentile(50) + " " +
+      h.getPercentile(90) + " " + h.getPercentile(99) + " " + h.getMax() +
+      " " + path);
+
+  } // End printLine().
+
+
+} // End class.
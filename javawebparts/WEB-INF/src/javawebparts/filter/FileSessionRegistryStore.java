@@ -0,0 +1,324 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.filter;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.StringTokenizer;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * This class is a SessionRegistryStore kept in a file that any number of
+ * JVMs on the same host can share, which is mostly useful for trying out a
+ * cluster on a single machine.  Every call locks the file, reads the counts,
+ * updates them and writes them back, so the JVMs never see each other's
+ * changes half done.  The file holds one line per node, with the slots it
+ * holds, the time of its last heartbeat and its name.  It is created if it
+ * does not exist.
+ * <br><br>
+ * Heartbeats are compared with each JVM's own clock, so nodes sharing the
+ * file over a network file system must have their clocks in sync.
+ * <br><br>
+ * Init parameters are those of MemorySessionRegistryStore, plus:
+ * <br>
+ * <ul>
+ * <li><b>registryFile</b> - The file.  A relative path is taken to be
+ * relative to the root of the webapp.  Required: Yes.  Default: None.</li>
+ * </ul>
+ *
+ * @author Tamas Szabo
+ */
+public class FileSessionRegistryStore extends MemorySessionRegistryStore {
+
+
+  /**
+   * This static initializer block tries to load all the classes this one
+   * depends on (those not from standard Java anyway) and prints an error
+   * meesage if any cannot be loaded for any reason.
+   */
+  static {
+    try {
+      Class.forName("javax.servlet.FilterConfig");
+      Class.forName("javax.servlet.ServletException");
+      Class.forName("org.apache.commons.logging.Log");
+      Class.forName("org.apache.commons.logging.LogFactory");
+    } catch (ClassNotFoundException e) {
+      System.err.println("FileSessionRegistryStore" +
+        " could not be loaded by classloader because classes it depends" +
+        " on could not be found in the classpath...");
+      e.printStackTrace();
+    }
+  }
+
+
+  /**
+   * Log instance.
+   */
+  private static Log log = LogFactory.getLog(FileSessionRegistryStore.class);
+
+
+  /**
+   * Lock held while the file is locked.  A JVM may only hold one lock on a
+   * file at a time, and several stores in it may share the file.
+   */
+  private static final Object JVM_LOCK = new Object();
+
+
+  /**
+   * The file.
+   */
+  private File file;
+
+
+  /**
+   * Constructor, for use with init().
+   */
+  public FileSessionRegistryStore() {
+  } // End FileSessionRegistryStore().
+
+
+  /**
+   * Constructor.
+   *
+   * @param inFile The file.
+   */
+  public FileSessionRegistryStore(File inFile) {
+
+    file = inFile;
+
+  } // End FileSessionRegistryStore().
+
+
+  /**
+   * Initializes the store.
+   *
+   * @param  filterConfig     The configuration of the filter using it.
+   * @throws ServletException If registryFile is missing.
+   */
+  public void init(FilterConfig filterConfig) throws ServletException {
+
+    super.init(filterConfig);
+    String f = filterConfig.getInitParameter("registryFile");
+    if (f == null || f.equalsIgnoreCase("")) {
+      String es = getClass().getName() + " could not initialize " +
+        "because required parameter registryFile was not found";
+      log.error(es);
+      throw new ServletException(es);
+    }
+    file = new File(f);
+    if (!file.isAbsolute()) {
+      String real = filterConfig.getServletContext().getRealPath(
+        f.startsWith("/") ? f : "/" + f);
+      if (real != null) {
+        file = new File(real);
+      }
+    }
+    log.info("registryFile = " + file);
+
+  } // End init().
+
+
+  /**
+   * Leases slots to a node.
+   *
+   * @param  node        The node.
+   * @param  wanted      The number of slots wanted.
+   * @param  maxSessions The number of slots there are in all.
+   * @return             The number of slots leased.
+   * @throws IOException If the file cannot be read or written.
+   */
+  public int lease(String node, int wanted, int maxSessions)
+    throws IOException {
+
+    synchronized (JVM_LOCK) {
+      RandomAccessFile raf = lockAndLoad();
+      try {
+        int granted = super.lease(node, wanted, maxSessions);
+        save(raf);
+        return granted;
+      } finally {
+        raf.close();
+      }
+    }
+
+  } // End lease().
+
+
+  /**
+   * Gives back slots.
+   *
+   * @param  node        The node.
+   * @param  count       The number of slots.
+   * @throws IOException If the file cannot be read or written.
+   */
+  public void release(String node, int count) throws IOException {
+
+    synchronized (JVM_LOCK) {
+      RandomAccessFile raf = lockAndLoad();
+      try {
+        super.release(node, count);
+        save(raf);
+      } finally {
+        raf.close();
+      }
+    }
+
+  } // End release().
+
+
+  /**
+   * Records a heartbeat and reclaims the slots of silent nodes.
+   *
+   * @param  node        The node.
+   * @return             The number of slots the node holds.
+   * @throws IOException If the file cannot be read or written.
+   */
+  public int heartbeat(String node) throws IOException {
+
+    synchronized (JVM_LOCK) {
+      RandomAccessFile raf = lockAndLoad();
+      try {
+        int held = super.heartbeat(node);
+        save(raf);
+        return held;
+      } finally {
+        raf.close();
+      }
+    }
+
+  } // End heartbeat().
+
+
+  /**
+   * Removes a node.
+   *
+   * @param  node        The node.
+   * @throws IOException If the file cannot be read or written.
+   */
+  public void remove(String node) throws IOException {
+
+    synchronized (JVM_LOCK) {
+      RandomAccessFile raf = lockAndLoad();
+      try {
+        super.remove(node);
+        save(raf);
+      } finally {
+        raf.close();
+      }
+    }
+
+  } // End remove().
+
+
+  /**
+   * Returns the number of slots leased to all nodes.
+   *
+   * @return             The count.
+   * @throws IOException If the file cannot be read.
+   */
+  public int getLeased() throws IOException {
+
+    synchronized (JVM_LOCK) {
+      RandomAccessFile raf = lockAndLoad();
+      try {
+        return super.getLeased();
+      } finally {
+        raf.close();
+      }
+    }
+
+  } // End getLeased().
+
+
+  /**
+   * Opens and locks the file and reads the counts from it.  Closing the
+   * file releases the lock.
+   *
+   * @return             The open file.
+   * @throws IOException If the file cannot be read.
+   */
+  private RandomAccessFile lockAndLoad() throws IOException {
+
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.getChannel().lock();
+      byte[] b = new byte[(int)raf.length()];
+      raf.readFully(b);
+      synchronized (this) {
+        nodes.clear();
+        StringTokenizer lines = new StringTokenizer(
+          new String(b, "ISO-8859-1"), "\n");
+        while (lines.hasMoreTokens()) {
+          String line = lines.nextToken();
+          int    s1   = line.indexOf(' ');
+          int    s2   = line.indexOf(' ', s1 + 1);
+          if (s1 == -1 || s2 == -1) {
+            continue;
+          }
+          try {
+            nodes.put(line.substring(s2 + 1), new long[] {
+              Long.parseLong(line.substring(0, s1)),
+              Long.parseLong(line.substring(s1 + 1, s2))});
+          } catch (NumberFormatException e) {
+            log.warn("Ignoring invalid line in " + file + ": " + line);
+          }
+        }
+      }
+      return raf;
+    } catch (IOException e) {
+      raf.close();
+      throw e;
+    }
+
+  } // End lockAndLoad().
+
+
+  /**
+   * Writes the counts to the file.
+   *
+   * @param  raf         The open file.
+   * @throws IOException If the file cannot be written.
+   */
+  private void save(RandomAccessFile raf) throws IOException {
+
+    StringBuffer sb = new StringBuffer();
+    synchronized (this) {
+      for (Iterator it = nodes.entrySet().iterator(); it.hasNext();) {
+        Map.Entry e = (Map.Entry)it.next();
+        long[]    n = (long[])e.getValue();
+        sb.append(n[0]).append(' ').append(n[1]).append(' ');
+        sb.append(e.getKey()).append('\n');
+      }
+    }
+    byte[] b = sb.toString().getBytes("ISO-8859-1");
+    raf.seek(0);
+    raf.write(b);
+    raf.setLength(b.length);
+
+  } // End save().
+
+
+} // End class.
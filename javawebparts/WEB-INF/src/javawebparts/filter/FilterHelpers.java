@@ -20,10 +20,6 @@ package javawebparts.filter;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.StringTokenizer;
 import javax.servlet.FilterConfig;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpServletRequest;
@@ -114,44 +110,87 @@ public final class FilterHelpers {
 
   /**
    * This is a common function used by a number of filters to get the list
-   * of paths the filter will function or not function on.
+   * of paths the filter will function or not function on.  The list is
+   * compiled into a PathMatcher here, once, so that filterPath() does not
+   * have to do any regex compilation per request.  If the filter specifies
+   * the pathDecisionCacheSize init parameter, a PathDecisionCache of that
+   * size is attached to the matcher as well.
    * @param  filterName       The name of the filter calling this function.
    *                          This is for logging purposes.
    * @param  filterConfig     The filterConfig instance associated with the
    *                          filter.
-   * @return                  The list of paths configured for the filter.
+   * @return                  The compiled list of paths configured for the
+   *                          filter.
+   * @throws ServletException If pathDecisionCacheSize is not valid or is
+   *                          larger than PathDecisionCache.MAX_SIZE.
    */
-  public static ArrayList initPathList(String filterName,
-    FilterConfig filterConfig) {
+  public static PathMatcher initPathList(String filterName,
+    FilterConfig filterConfig) throws ServletException {
 
     // Get the comma-separater list of paths pathList init parameter.
-    String    csvPathList = filterConfig.getInitParameter("pathList");
-    ArrayList al          = new ArrayList();
-    if (csvPathList != null) {
-      log.info("csvPathList = " + csvPathList);
-      StringTokenizer st = new StringTokenizer(csvPathList, ",");
-      // Parse the CSV.
-      while (st.hasMoreTokens()) {
-        String s  = st.nextToken();
-        StringBuffer sb = new StringBuffer(s.length() + 10);
-        // We need to replace any wildcard characters with a suitable regex.
-        for (int i = 0; i < s.length(); i++) {
-          if (s.charAt(i) == '*') {
-            sb.append(".*");
-          } else {
-            sb.append(s.charAt(i));
-          }
-        }
-        // Modified paths can now be added to the collection.
-        al.add(sb.toString());
-      }
+    String csvPathList = filterConfig.getInitParameter("pathList");
+    log.info("csvPathList = " + csvPathList);
+    PathMatcher pm = PathMatcher.compile(csvPathList);
+    log.info("pathList = " + pm);
+
+    // Attach a decision cache if one was asked for.
+    int cacheSize = initIntParam(filterName, filterConfig,
+      "pathDecisionCacheSize", 0);
+    if (cacheSize > PathDecisionCache.MAX_SIZE) {
+      String es = filterName + " could not initialize " +
+        "because the pathDecisionCacheSize init parameter must be no more " +
+        "than " + PathDecisionCache.MAX_SIZE;
+      log.error(es);
+      throw new ServletException(es);
     }
-    log.info("pathList = " + al);
-    return al;
+    if (cacheSize > 0) {
+      pm.setDecisionCache(new PathDecisionCache(cacheSize));
+      log.info("pathDecisionCache = " + pm.getDecisionCache());
+    }
+    return pm;
 
   } // End initPathList().
 
 
+  /**
+   * Gets an optional init parameter that must be a non-negative integer.
+   *
+   * @param  filterName       The name of the filter calling this function.
+   *                          This is for logging purposes.
+   * @param  filterConfig     The filterConfig instance associated with the
+   *                          filter.
+   * @param  paramName        The name of the init parameter.
+   * @param  defaultValue     The value to use if the parameter is not
+   *                          present.
+   * @return                  The value of the init parameter.
+   * @throws ServletException If the value is not a non-negative integer.
+   */
+  public static int initIntParam(String filterName, FilterConfig filterConfig,
+    String paramName, int defaultValue) throws ServletException {
+
+    String value = filterConfig.getInitParameter(paramName);
+    int    i     = defaultValue;
+    if (value != null) {
+      i = -1;
+      try {
+        i = Integer.parseInt(value.trim());
+      } catch (NumberFormatException e) {
+        log.error("NumberFormatException parsing " + paramName);
+      }
+      if (i < 0) {
+        String es = filterName + " could not initialize " +
+          "because the " + paramName + " init parameter must be " +
+          "a non-negative integer";
+        log.error(es);
+        throw new ServletException(es);
+      }
+    }
+    log.info(paramName + " = " + i);
+    return i;
+
+  } // End initIntParam().
+
+
   /**
    * Gets the redirectTo init parameter that is common to many filters.
    *
@@ -215,76 +254,73 @@ public final class FilterHelpers {
 
 
   /**
-   * Determines whether a filter should do its work.  It is passed an
-   * ArrayList containing a list of paths, with wildcard support, and whether
-   * those paths should be included or excluded by the filter.
+   * Determines whether a filter should do its work.  It is passed a
+   * PathMatcher containing the precompiled list of paths, with wildcard
+   * support, and whether those paths should be included or excluded by the
+   * filter.
    *
    * @param  request    ServlerRequest object.
-   * @param  pathList   The ArrayList containing the lists of paths to either
-   *                    include or exclude.
+   * @param  pathList   The PathMatcher containing the lists of paths to
+   *                    either include or exclude.
    * @param  inPathSpec Whether the paths are included or excluded.
    * @return            True if the calling filter should apply itself to the
    *                    request, false if not.
    */
-  public static boolean filterPath(ServletRequest request, ArrayList pathList,
-    String inPathSpec) {
-
-
-    String pathSpec = inPathSpec;
+  public static boolean filterPath(ServletRequest request,
+    PathMatcher pathList, String inPathSpec) {
 
     // Quick check #1: if pathSpec and pathList are both null, return true
     // because the generic filter mapping is in effect only.
-    if (pathList == null && pathSpec == null) {
+    if (pathList == null && inPathSpec == null) {
       return true;
     }
 
-    // Quick check #2: If pathSpec is null but pathList IS NOT null, then
-    // we're going to pretend pathSpec is 'exclude'.
-    if (pathSpec == null && pathList != null) {
-      pathSpec = "exclude";
-    }
-
-    // Quick check #3: If pathSpec is not null and pathList IS null, then
+    // Quick check #2: If pathSpec is not null and pathList IS null, then
     // we're going to just return false since this is really technically
     // a configuration error and we don't know for sure what to do here.
-    if (pathSpec != null && pathList == null) {
+    if (pathList == null) {
       return false;
     }
 
-    // Getting the requested path
-    HttpServletRequest req = (HttpServletRequest)request;
-    String path = req.getServletPath();
-    String pathInfo = req.getPathInfo();
-    if (pathInfo != null) {
-      path += pathInfo;
-    }
-    // See if the requested path matches any (or multiple) paths in the
-    // pathList collection.
-    boolean pathInCollection = false;
-    for (Iterator it = pathList.iterator(); it.hasNext();) {
-      String  np = (String)it.next();
-      Pattern p  = Pattern.compile(np);
-      Matcher m  = p.matcher(path);
-      if (m.matches()) {
-        pathInCollection = true;
-        break;
-      }
+    // If pathSpec is null we pretend it's 'exclude'.  If the path was in the
+    // collection and the pathSpec is include, or if the path was NOT in the
+    // collection and pathSpec is exclude, then we want the calling filter to
+    // do its work, so return true, otherwise return false.
+    boolean pathInCollection =
+      pathList.matches((HttpServletRequest)request);
+    if (inPathSpec == null || inPathSpec.equalsIgnoreCase("exclude")) {
+      return !pathInCollection;
     }
+    return pathInCollection && inPathSpec.equalsIgnoreCase("include");
+
+  } // End filterPath().
+
+
+  /**
+   * Determines whether a filter should do its work.  It is passed an
+   * ArrayList containing a list of paths in regex form, and whether those
+   * paths should be included or excluded by the filter.
+   *
+   * @param  request    ServlerRequest object.
+   * @param  pathList   The ArrayList containing the lists of paths to either
+   *                    include or exclude.
+   * @param  inPathSpec Whether the paths are included or excluded.
+   * @return            True if the calling filter should apply itself to the
+   *                    request, false if not.
+   * @deprecated        Compiles the list on every call.  Use
+   *                    filterPath(ServletRequest, PathMatcher, String) with
+   *                    the PathMatcher returned by initPathList() instead.
+   */
+  public static boolean filterPath(ServletRequest request, ArrayList pathList,
+    String inPathSpec) {
 
-    // If the path was in the collection and the pathSpec is include, or if
-    // the path was NOT in the collection and pathSpec is exclude, then
-    // we want the calling filter to do its work, so return true, otherwise
-    // return false.
-    boolean retVal = false;
-    if ((pathInCollection && pathSpec.equalsIgnoreCase("include")) ||
-       (!pathInCollection && pathSpec.equalsIgnoreCase("exclude"))) {
-      retVal = true;
-    } else {
-      retVal = false;
+    if (pathList == null) {
+      return filterPath(request, (PathMatcher)null, inPathSpec);
     }
-    return retVal;
+    return filterPath(request, PathMatcher.compileRegexList(pathList),
+      inPathSpec);
 
-  } // Ebd filterPath().
+  } // End filterPath().
 
 
   /**
@@ -317,4 +353,26 @@ public final class FilterHelpers {
   } // End redirectOrForward().
 
 
+  /**
+   * Gets the address of the client making a request.  This is either the
+   * remote address of the connection, or, behind a load balancer or proxy,
+   * the value of a header the balancer sets.
+   *
+   * @param  request    The current request.
+   * @param  headerName The name of the header to take the address from, or
+   *                    null to use the remote address.
+   * @return            The client's address, or null if the header is not
+   *                    present.
+   */
+  public static String getClientAddr(ServletRequest request,
+    String headerName) {
+
+    if (headerName == null) {
+      return request.getRemoteAddr();
+    }
+    return ((HttpServletRequest)request).getHeader(headerName);
+
+  } // End getClientAddr().
+
+
 } // End class.
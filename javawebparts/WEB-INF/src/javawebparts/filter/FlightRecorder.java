@@ -0,0 +1,310 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.filter;
+
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * This class keeps the most recent requests in memory, for
+ * RequestRecorderFilter, so that when something goes wrong the requests
+ * leading up to it can be looked at without every request having been
+ * written to a file.  The requests are kept in a ring of slots, all
+ * allocated up front; each request overwrites the oldest slot, so recording
+ * one allocates nothing and does no I/O.  A request thread only takes the
+ * next slot number, under a lock held for an increment, and fills the slot
+ * in under the slot's own lock, which no other request thread will want
+ * until the ring has gone all the way round.
+ * <br><br>
+ * The ring is dumped as text, oldest request first, on demand through
+ * FlightRecorderServlet, or to a file in the background, as
+ * RequestRecorderFilter does when a request takes too long.
+ *
+ * @author <a href="mailto:fzammetti@omnytex.com">Frank W. Zammetti</a>.
+ */
+public final class FlightRecorder {
+
+
+  /**
+   * This static initializer block tries to load all the classes this one
+   * depends on (those not from standard Java anyway) and prints an error
+   * meesage if any cannot be loaded for any reason.
+   */
+  static {
+    try {
+      Class.forName("org.apache.commons.logging.Log");
+      Class.forName("org.apache.commons.logging.LogFactory");
+    } catch (ClassNotFoundException e) {
+      System.err.println("FlightRecorder" +
+        " could not be loaded by classloader because classes it depends" +
+        " on could not be found in the classpath...");
+      e.printStackTrace();
+    }
+  }
+
+
+  /**
+   * Log instance.
+   */
+  private static Log log = LogFactory.getLog(FlightRecorder.class);
+
+
+  /**
+   * The slots.
+   */
+  private Slot[] slots;
+
+
+  /**
+   * Number of requests recorded, and so the number of the next one.
+   * Guarded by this.
+   */
+  private long next;
+
+
+  /**
+   * When the last background dump was started, or 0.  Guarded by this.
+   */
+  private long lastDump;
+
+
+  /**
+   * Constructor.
+   *
+   * @param capacity The number of requests kept.
+   */
+  public FlightRecorder(int capacity) {
+
+    slots = new Slot[Math.max(1, capacity)];
+    for (int i = 0; i < slots.length; i++) {
+      slots[i] = new Slot();
+    }
+
+  } // End FlightRecorder().
+
+
+  /**
+   * Records a request, overwriting the oldest one kept.
+   *
+   * @param arrival    When the request arrived, as from
+   *                   System.currentTimeMillis().
+   * @param elapsed    Milliseconds the request took.
+   * @param method     The HTTP method.
+   * @param uri        The request URI.
+   * @param query      The query string, or null.
+   * @param remoteAddr The address of the client.
+   */
+  public void record(long arrival, long elapsed, String method, String uri,
+    String query, String remoteAddr) {
+
+    long n;
+    synchronized (this) {
+      n = next++;
+    }
+    Slot s = slots[(int)(n % slots.length)];
+    synchronized (s) {
+      // With a small ring and a slow thread, a later request may already
+      // have this slot.
+      if (s.number > n) {
+        return;
+      }
+      s.number     = n;
+      s.arrival    = arrival;
+      s.elapsed    = elapsed;
+      s.method     = method;
+      s.uri        = uri;
+      s.query      = query;
+      s.remoteAddr = remoteAddr;
+    }
+
+  } // End record().
+
+
+  /**
+   * Returns the number of requests kept.
+   *
+   * @return The number.
+   */
+  public int getCapacity() {
+
+    return slots.length;
+
+  } // End getCapacity().
+
+
+  /**
+   * Returns the number of requests recorded so far.
+   *
+   * @return The count.
+   */
+  public synchronized long getRecorded() {
+
+    return next;
+
+  } // End getRecorded().
+
+
+  /**
+   * Writes the requests kept, oldest first, one per line: when it arrived,
+   * the milliseconds it took, the method, the URI with the query string and
+   * the client's address.
+   *
+   * @param out Where to write them.
+   */
+  public void dump(PrintWriter out) {
+
+    long end;
+    synchronized (this) {
+      end = next;
+    }
+    long             start = Math.max(0, end - slots.length);
+    SimpleDateFormat df    = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+    Slot             copy  = new Slot();
+    out.println("# The last " + (end - start) + " of " + end +
+      " requests, at " + new Date());
+    out.println("# arrival elapsed method uri client");
+    for (long n = start; n < end; n++) {
+      Slot s = slots[(int)(n % slots.length)];
+      synchronized (s) {
+        // Skip a slot not filled in yet, or filled in again since.
+        if (s.number != n) {
+          continue;
+        }
+        copy.arrival    = s.arrival;
+        copy.elapsed    = s.elapsed;
+        copy.method     = s.method;
+        copy.uri        = s.uri;
+        copy.query      = s.query;
+        copy.remoteAddr = s.remoteAddr;
+      }
+      out.println(df.format(new Date(copy.arrival)) + " " + copy.elapsed +
+        " " + copy.method + " " + copy.uri +
+        (copy.query == null ? "" : "?" + copy.query) + " " +
+        copy.remoteAddr);
+    }
+    out.flush();
+
+  } // End dump().
+
+
+  /**
+   * Dumps the requests kept to a file, on a thread of its own, unless
+   * another such dump was started too recently.
+   *
+   * @param  file        The file.
+   * @param  now         The current time, as from
+   *                     System.currentTimeMillis().
+   * @param  minInterval Milliseconds that must pass between dumps.
+   * @return             True if a dump was started.
+   */
+  public boolean dumpInBackground(final File file, long now,
+    long minInterval) {
+
+    synchronized (this) {
+      if (lastDump != 0 && now - lastDump < minInterval) {
+        return false;
+      }
+      lastDump = now;
+    }
+    Thread t = new Thread("FlightRecorder dump " + file.getName()) {
+      public void run() {
+        try {
+          PrintWriter out = new PrintWriter(new FileWriter(file));
+          try {
+            dump(out);
+          } finally {
+            out.close();
+          }
+          log.info("Dumped recent requests to " + file);
+        } catch (IOException e) {
+          log.error("Could not dump recent requests to " + file + ": " + e);
+        }
+      }
+    };
+    t.setDaemon(true);
+    t.start();
+    return true;
+
+  } // End dumpInBackground().
+
+
+  /**
+   * Returns the counts, for logging purposes.
+   *
+   * @return The counts as a String.
+   */
+  public synchronized String toString() {
+
+    return "FlightRecorder[capacity=" + slots.length + ", recorded=" + next +
+      "]";
+
+  } // End toString().
+
+
+  /**
+   * One request in the ring.  All fields are guarded by the slot itself.
+   */
+  private static final class Slot {
+
+    /**
+     * The number of the request, or -1 if none has been recorded.
+     */
+    private long number = -1;
+
+    /**
+     * When the request arrived.
+     */
+    private long arrival;
+
+    /**
+     * Milliseconds the request took.
+     */
+    private long elapsed;
+
+    /**
+     * The HTTP method.
+     */
+    private String method;
+
+    /**
+     * The request URI.
+     */
+    private String uri;
+
+    /**
+     * The query string, or null.
+     */
+    private String query;
+
+    /**
+     * The address of the client.
+     */
+    private String remoteAddr;
+
+  } // End Slot class.
+
+
+} // End class.
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.filter;
+
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.ServletException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * This servlet dumps the recent requests RequestRecorderFilter keeps in
+ * memory when its format is "ring", as plain text with one line per request,
+ * oldest first: when it arrived, the milliseconds it took, the method, the
+ * URI with the query string and the client's address.  It lives alongside
+ * the filter, whose FlightRecorder it reads from the application context.
+ * <br><br>
+ * Since the dump shows what users have been doing, it should usually be
+ * mapped somewhere only administrators can reach.
+ * <br><br>
+ * Example configuration in web.xml:
+ * <br><br>
+ * &lt;servlet&gt;<br>
+ * &nbsp;&nbsp;&lt;servlet-name&gt;FlightRecorderServlet&lt;/servlet-name&gt;
+ * <br>
+ * &nbsp;&nbsp;&lt;servlet-class&gt;javawebparts.filter.
+ * FlightRecorderServlet&lt;/servlet-class&gt;<br>
+ * &lt;/servlet&gt;
+ * <br><br>
+ * &lt;servlet-mapping&gt;<br>
+ * &nbsp;&nbsp;&lt;servlet-name&gt;FlightRecorderServlet&lt;/servlet-name&gt;
+ * <br>
+ * &nbsp;&nbsp;&lt;url-pattern&gt;/admin/recentRequests&lt;/url-pattern&gt;<br>
+ * &lt;/servlet-mapping&gt;
+ *
+ * @author <a href="mailto:fzammetti@omnytex.com">Frank W. Zammetti</a>.
+ */
+public class FlightRecorderServlet extends HttpServlet {
+
+
+  /**
+   * This static initializer block tries to load all the classes this one
+   * depends on (those not from standard Java anyway) and prints an error
+   * meesage if any cannot be loaded for any reason.
+   */
+  static {
+    try {
+      Class.forName("javax.servlet.http.HttpServlet");
+      Class.forName("javax.servlet.http.HttpServletRequest");
+      Class.forName("javax.servlet.http.HttpServletResponse");
+      Class.forName("javax.servlet.ServletException");
+      Class.forName("org.apache.commons.logging.Log");
+      Class.forName("org.apache.commons.logging.LogFactory");
+    } catch (ClassNotFoundException e) {
+      System.err.println("FlightRecorderServlet" +
+        " could not be loaded by classloader because classes it depends" +
+        " on could not be found in the classpath...");
+      e.printStackTrace();
+    }
+  }
+
+
+  /**
+   * Log instance.
+   */
+  private static Log log = LogFactory.getLog(FlightRecorderServlet.class);
+
+
+  /**
+   * doGet.  Calls doPost() to do real work.
+   *
+   * @param  request          HTTPServletRequest.
+   * @param  response         HTTPServletResponse.
+   * @throws ServletException ServletException.
+   * @throws IOException      IOException.
+   */
+  public void doGet(HttpServletRequest request, HttpServletResponse response)
+    throws ServletException, IOException {
+
+    doPost(request, response);
+
+  } // End doGet().
+
+
+  /**
+   * doPost.
+   *
+   * @param  request          HTTPServletRequest
+   * @param  response         HTTPServletResponse
+   * @throws ServletException ServletException
+   * @throws IOException      IOException
+   */
+  public void doPost(HttpServletRequest request, HttpServletResponse response)
+    throws ServletException, IOException {
+
+    FlightRecorder recorder = (FlightRecorder)getServletContext().getAttribute(
+      RequestRecorderFilter.FLIGHT_RECORDER_KEY);
+    if (recorder == null) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND,
+        "RequestRecorderFilter is not configured with format ring");
+      return;
+    }
+    log.debug("Dumping " + recorder);
+    response.setContentType("text/plain");
+    response.setHeader("Cache-Control", "no-cache");
+    PrintWriter out = response.getWriter();
+    recorder.dump(out);
+
+  } // End doPost().
+
+
+} // End class.
@@ -0,0 +1,482 @@
+/*
+ * Copyright 2006 Herman van Rosmalen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package javawebparts.filter;
+
+import java.io.CharArrayReader;
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * This class copies an HTML page from a Reader to a Writer in a single
+ * pass, minifying the body of every script element with JSMin on the way.
+ * Tags are matched without regard to case and may carry attributes; script
+ * elements whose type or language attribute is not one of JavaScript's
+ * (i.e., templates) are copied as they are.  Everything outside script
+ * elements is copied untouched.
+ * <br><br>
+ * Each script body is read into a buffer that is reused from one script to
+ * the next, minified into another, and only written out once JSMin has
+ * accepted all of it.  If JSMin rejects a script (an unterminated string,
+ * say), that script is written unchanged and the rest of the page is still
+ * minified.  Given a MinificationCache, scripts that have been seen before
+ * are not minified again.  An instance may be reused for any number of
+ * pages, but not by more than one thread at a time.
+ *
+ * @author <a href="mailto:herros@gmail.com">Herman van Rosmalen </a>.
+ */
+public class HtmlScriptMinifier {
+
+  /**
+   * The characters following '&lt;' that open a script element.
+   */
+  private static final char[] OPEN = "script".toCharArray();
+
+  /**
+   * The characters following '&lt;' that close a script element.
+   */
+  private static final char[] CLOSE = "/script".toCharArray();
+
+  /**
+   * The values of the type attribute that mark a script as JavaScript.
+   */
+  private static final Set JS_TYPES = new HashSet(Arrays.asList(
+    new String[] { "text/javascript", "application/javascript",
+      "application/x-javascript", "text/x-javascript", "text/ecmascript",
+      "application/ecmascript", "application/x-ecmascript",
+      "text/x-ecmascript", "text/jscript", "text/livescript",
+      "text/javascript1.0", "text/javascript1.1", "text/javascript1.2",
+      "text/javascript1.3", "text/javascript1.4", "text/javascript1.5",
+      "module" }));
+
+  /**
+   * End of input.
+   */
+  private static final int EOF = -1;
+
+  /**
+   * The minifier.
+   */
+  private JSMin jsmin = new JSMin();
+
+  /**
+   * Cache of minified scripts, or null.
+   */
+  private MinificationCache cache;
+
+  /**
+   * The page being read.
+   */
+  private Reader in;
+
+  /**
+   * Input buffer, refilled from in.
+   */
+  private char[] buf = new char[4096];
+
+  /**
+   * Position of the next character in buf.
+   */
+  private int bufPos;
+
+  /**
+   * Number of characters in buf.
+   */
+  private int bufLen;
+
+  /**
+   * Characters read ahead and given back, last one first.
+   */
+  private char[] pushback = new char[CLOSE.length + 1];
+
+  /**
+   * Number of characters in pushback.
+   */
+  private int pushbackLen;
+
+  /**
+   * Scratch array for lookingAt().
+   */
+  private char[] seen = new char[CLOSE.length + 1];
+
+  /**
+   * The opening tag of the current script element, lower-cased.
+   */
+  private StringBuffer tag = new StringBuffer(64);
+
+  /**
+   * The current script as read.
+   */
+  private Chars raw = new Chars(4096);
+
+  /**
+   * The current script as minified.
+   */
+  private CharArrayWriter min = new CharArrayWriter(4096);
+
+  /**
+   * cache mutator.
+   *
+   * @param inCache The cache of minified scripts, or null for none.
+   */
+  public void setCache(MinificationCache inCache) {
+
+    cache = inCache;
+
+  } // End setCache().
+
+  /**
+   * Copies a page, minifying its scripts.  Neither the Reader nor the
+   * Writer is closed, and the Writer is not flushed.
+   *
+   * @param  reader      The page.
+   * @param  writer      Where to write the page.
+   * @return             The number of scripts minified.
+   * @throws IOException If reading or writing fails.
+   */
+  public int minify(Reader reader, Writer writer) throws IOException {
+
+    in          = reader;
+    bufPos      = 0;
+    bufLen      = 0;
+    pushbackLen = 0;
+    int count   = 0;
+    try {
+      int c;
+      while ((c = read()) != EOF) {
+        writer.write(c);
+        if (c == '<' && lookingAt(OPEN, true)) {
+          if (copyOpeningTag(writer)) {
+            if (minifyBody(writer)) {
+              count++;
+            }
+          }
+        }
+      }
+    } finally {
+      in = null;
+      if (raw.size() > buf.length * 16) {
+        // Don't hold on to the buffers of an unusually large script.
+        raw = new Chars(buf.length);
+        min = new CharArrayWriter(buf.length);
+      }
+    }
+    return count;
+
+  } // End minify().
+
+  /**
+   * Copies the rest of a script element's opening tag, which has been read
+   * as far as the '&lt;', and decides whether its body should be minified.
+   *
+   * @param  writer      Where to write the tag.
+   * @return             True if the element has a JavaScript body.
+   * @throws IOException If reading or writing fails.
+   */
+  private boolean copyOpeningTag(Writer writer) throws IOException {
+
+    tag.setLength(0);
+    int  c;
+    int  prev  = EOF;
+    char quote = 0;
+    while ((c = read()) != EOF) {
+      writer.write(c);
+      if (quote != 0) {
+        if (c == quote) {
+          quote = 0;
+        }
+      } else if (c == '"' || c == '\'') {
+        quote = (char)c;
+      } else if (c == '>') {
+        break;
+      }
+      if (tag.length() < 256) {
+        tag.append(Character.toLowerCase((char)c));
+      }
+      prev = c;
+    }
+    if (c == EOF || prev == '/') {
+      return false;
+    }
+    String attrs = tag.toString();
+    String type  = attributeValue(attrs, "type");
+    if (type != null) {
+      int i = type.indexOf(';');
+      if (i != -1) {
+        type = type.substring(0, i).trim();
+      }
+      return type.length() == 0 || JS_TYPES.contains(type);
+    }
+    String language = attributeValue(attrs, "language");
+    return language == null || language.length() == 0 ||
+      language.startsWith("javascript") || language.equals("jscript") ||
+      language.equals("ecmascript") || language.equals("livescript");
+
+  } // End copyOpeningTag().
+
+  /**
+   * Returns the value of an attribute of an opening tag, without its
+   * quotes.  Only whole attribute names are matched, so "type" does not
+   * match "data-type".
+   *
+   * @param  attrs The tag after the '&lt;', lower-cased.
+   * @param  name  The name of the attribute, in lower case.
+   * @return       The value, which is "" for an attribute without one, or
+   *               null if the tag does not have the attribute.
+   */
+  static String attributeValue(String attrs, String name) {
+
+    int len = attrs.length();
+    int i   = OPEN.length;
+    while (i < len) {
+      char c = attrs.charAt(i);
+      if (Character.isWhitespace(c) || c == '/') {
+        i++;
+        continue;
+      }
+      if (c == '>') {
+        break;
+      }
+      int start = i;
+      while (i < len && !Character.isWhitespace(c = attrs.charAt(i)) &&
+        c != '=' && c != '>' && c != '/') {
+        i++;
+      }
+      String attr = attrs.substring(start, i);
+      while (i < len && Character.isWhitespace(attrs.charAt(i))) {
+        i++;
+      }
+      String value = "";
+      if (i < len && attrs.charAt(i) == '=') {
+        i++;
+        while (i < len && Character.isWhitespace(attrs.charAt(i))) {
+          i++;
+        }
+        if (i < len && (attrs.charAt(i) == '"' || attrs.charAt(i) == '\'')) {
+          char quote = attrs.charAt(i++);
+          int  end   = attrs.indexOf(quote, i);
+          if (end == -1) {
+            end = len;
+          }
+          value = attrs.substring(i, end);
+          i     = end + 1;
+        } else {
+          start = i;
+          while (i < len && !Character.isWhitespace(c = attrs.charAt(i)) &&
+            c != '>') {
+            i++;
+          }
+          value = attrs.substring(start, i);
+        }
+      }
+      if (attr.equals(name)) {
+        return value.trim();
+      }
+    }
+    return null;
+
+  } // End attributeValue().
+
+  /**
+   * Minifies a whole script, such as a .js file, and writes it, or writes it
+   * unchanged if JSMin rejects it.  Neither the Reader nor the Writer is
+   * closed, and the Writer is not flushed.
+   *
+   * @param  reader      The script.
+   * @param  writer      Where to write the script.
+   * @return             True if the script was minified.
+   * @throws IOException If reading or writing fails.
+   */
+  public boolean minifyScript(Reader reader, Writer writer)
+    throws IOException {
+
+    raw.reset();
+    int n;
+    while ((n = reader.read(buf, 0, buf.length)) != EOF) {
+      raw.write(buf, 0, n);
+    }
+    return minifyRaw(writer);
+
+  } // End minifyScript().
+
+  /**
+   * Reads a script body, up to but not including its closing tag, then
+   * minifies and writes it.
+   *
+   * @param  writer      Where to write the body.
+   * @return             True if the body was minified.
+   * @throws IOException If reading or writing fails.
+   */
+  private boolean minifyBody(Writer writer) throws IOException {
+
+    raw.reset();
+    int c;
+    while ((c = read()) != EOF) {
+      if (c == '<' && lookingAt(CLOSE, false)) {
+        pushback[pushbackLen++] = '<';
+        break;
+      }
+      raw.write(c);
+    }
+    return minifyRaw(writer);
+
+  } // End minifyBody().
+
+  /**
+   * Writes the script in raw minified, from the cache if it is there, or
+   * unchanged if JSMin rejects it.
+   *
+   * @param  writer      Where to write the script.
+   * @return             True if the script was minified.
+   * @throws IOException If writing fails.
+   */
+  private boolean minifyRaw(Writer writer) throws IOException {
+
+    Object key = null;
+    if (cache != null) {
+      key = raw.makeKey();
+      char[] cached = cache.get(key);
+      if (cached == MinificationCache.REJECTED) {
+        raw.writeTo(writer);
+        return false;
+      }
+      if (cached != null) {
+        writer.write(cached);
+        return true;
+      }
+    }
+    min.reset();
+    boolean ok = false;
+    try {
+      jsmin.compress(raw.getReader(), min);
+      ok = true;
+    } catch (JSMin.UnterminatedCommentException e) {
+      ok = false;
+    } catch (JSMin.UnterminatedRegExpLiteralException e) {
+      ok = false;
+    } catch (JSMin.UnterminatedStringLiteralException e) {
+      ok = false;
+    }
+    if (cache != null) {
+      cache.put(key, ok ? min.toCharArray() : MinificationCache.REJECTED);
+    }
+    if (ok) {
+      min.writeTo(writer);
+    } else {
+      raw.writeTo(writer);
+    }
+    return ok;
+
+  } // End minifyRaw().
+
+  /**
+   * Determines whether the next characters match the given ones, ignoring
+   * case, without consuming them.  For an opening tag, the match must also
+   * be followed by whitespace, '/' or '&gt;'.
+   *
+   * @param  chars       The characters, in lower case.
+   * @param  delimited   Whether a delimiter must follow.
+   * @return             True if they match.
+   * @throws IOException If reading fails.
+   */
+  private boolean lookingAt(char[] chars, boolean delimited)
+    throws IOException {
+
+    int     n     = 0;
+    boolean match = true;
+    int     want  = delimited ? chars.length + 1 : chars.length;
+    while (n < want) {
+      int c = read();
+      if (c == EOF) {
+        match = false;
+        break;
+      }
+      seen[n++] = (char)c;
+      if (n <= chars.length) {
+        if (Character.toLowerCase((char)c) != chars[n - 1]) {
+          match = false;
+          break;
+        }
+      } else if (!(c == '>' || c == '/' || Character.isWhitespace((char)c))) {
+        match = false;
+      }
+    }
+    while (n > 0) {
+      pushback[pushbackLen++] = seen[--n];
+    }
+    return match;
+
+  } // End lookingAt().
+
+  /**
+   * Reads the next character of the page.
+   *
+   * @return             The character, or EOF.
+   * @throws IOException If reading fails.
+   */
+  private int read() throws IOException {
+
+    if (pushbackLen > 0) {
+      return pushback[--pushbackLen];
+    }
+    if (bufPos == bufLen) {
+      bufLen = in.read(buf, 0, buf.length);
+      bufPos = 0;
+      if (bufLen <= 0) {
+        bufLen = 0;
+        return EOF;
+      }
+    }
+    return buf[bufPos++];
+
+  } // End read().
+
+  /**
+   * A CharArrayWriter whose contents can be read and hashed without a copy.
+   */
+  private static final class Chars extends CharArrayWriter {
+
+    /**
+     * Constructor.
+     *
+     * @param size Initial capacity.
+     */
+    private Chars(int size) {
+      super(size);
+    }
+
+    /**
+     * @return A Reader over the characters written so far.
+     */
+    private Reader getReader() {
+      return new CharArrayReader(buf, 0, count);
+    }
+
+    /**
+     * @return The MinificationCache key of the characters written so far.
+     */
+    private Object makeKey() {
+      return MinificationCache.makeKey(buf, 0, count);
+    }
+
+  } // End Chars class.
+
+} // End class.
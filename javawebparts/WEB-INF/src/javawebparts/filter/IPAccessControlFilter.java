@@ -18,19 +18,16 @@
 package javawebparts.filter;
 
 
+import java.io.File;
 import java.io.IOException;
-import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
-import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
-import java.util.StringTokenizer;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
-import javax.servlet.http.HttpServletRequest;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
@@ -67,6 +64,11 @@ import org.apache.commons.logging.LogFactory;
  * technically a misconfiguration).  If NEITHER is defined then the generic
  * filter mapping will be in effect only.</li>
  * <br><br>
+ * <li><b>pathDecisionCacheSize</b> - If greater than zero, the result of
+ * matching each requested path against pathList is remembered for up to this
+ * many distinct paths, so repeat requests skip the matching entirely.
+ * Required: No.  Default: 0 (no caching).</li>
+ * <br><br>
  * <li><b>addressSpec</b> - This determines whether the list of IP addresses
  * is a list of addresses to allow or to disallow.  Required: Yes.
  * Default: None.
@@ -77,11 +79,16 @@ import org.apache.commons.logging.LogFactory;
  * <br><br>
  * <li><b>addressList</b> - This is the list of IP address that will either be
  * denied access or allowed access, depending on the setting of addressSpec.
+ * Required: Yes, unless addressFile is specified.
  * <i>Standard:</i> This is comma-separated list of values where each value can
  * be the special word "localhost", or a literal IP address in the form
  * 999.999.999.999, or a literal IP address in the form *.*.*.* where any of the
  * octets can be the wildcard character (*), or an IP range in the form
- * 999.999.999.999-999.999.999.999.<br>
+ * 999.999.999.999-999.999.999.999, or a literal IPv6 address, or a CIDR
+ * block such as 192.168.0.0/16 or 2001:db8::/32.  The list is compiled when
+ * the filter is initialized, so checking an address takes the same time
+ * however long the list is, and an invalid entry stops the filter from
+ * initializing.<br>
  * <i>regex:</i> This is comma-separated list of regular expressions. e.g.
  * localhost, 127\.0\.0\.1, more generally you can match any IP using this kind
  * of pattern (25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\.
@@ -89,6 +96,32 @@ import org.apache.commons.logging.LogFactory;
  * ){2}(25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)
  * </li>
  * <br><br>
+ * <li><b>addressFile</b> - A file listing more IPv4 addresses, in addition to
+ * addressList, one entry per line, meant for large lists such as a threat
+ * feed.  An entry may be a literal address, a range, a CIDR block or an
+ * address with trailing "*" octets; anything after '#' or ';' is ignored and
+ * IPv6 entries are skipped.  The entries are merged into sorted ranges, so
+ * even hundreds of thousands of them take little memory and are checked by
+ * binary search.  A relative path is taken to be relative to the root of
+ * the webapp.  The file is checked for changes every addressFileRefresh
+ * seconds and reloaded in the background, requests using the old list until
+ * the new one is completely read.  If a reload fails the old list is kept.
+ * The size of the list and the time to check an address are logged on each
+ * load.  Used with either matchType.  Required: No.  Default: None.</li>
+ * <br><br>
+ * <li><b>addressFileRefresh</b> - How often, in seconds, addressFile is
+ * checked for changes.  0 means it is read only once.  Required: No.
+ * Default: 60.</li>
+ * <br><br>
+ * <li><b>localAddressRefresh</b> - How often, in seconds, the addresses of
+ * the server's network interfaces, which the "localhost" entry matches, are
+ * looked up again in the background.  They are first looked up when the
+ * filter is initialized, never on a request thread.  Failed refreshes keep
+ * the previous addresses and are counted; the count is logged when the
+ * filter is destroyed.  0 means the addresses are looked up only once.
+ * Only used in standard mode when addressList includes "localhost".
+ * Required: No.  Default: 300.</li>
+ * <br><br>
  * <li><b>redirectTo</b> - The URL to redirect to if the request is denied.
  * Required: Yes (either this or forwardTo).  Default: None.</li>
  * <br><br>
@@ -186,7 +219,7 @@ public class IPAccessControlFilter implements Filter {
   /**
    * List of paths for filter functionality determination.
    */
-  private ArrayList pathList = new ArrayList();
+  private PathMatcher pathList;
 
 
   /**
@@ -209,9 +242,41 @@ public class IPAccessControlFilter implements Filter {
 
 
   /**
-   * The list of Pattern to allow or deny IP addresses.
+   * The compiled address list, in standard mode.
+   */
+  private IPAddressMatcher addressMatcher;
+
+
+  /**
+   * The server's addresses, if addressList includes "localhost".
+   */
+  private LocalAddresses localAddresses;
+
+
+  /**
+   * The addresses listed in addressFile, or null if there is none.
+   */
+  private AddressFile addressFile;
+
+
+  /**
+   * Seconds between checks of addressFile if addressFileRefresh is not
+   * specified.
+   */
+  private static final int DEFAULT_ADDRESS_FILE_REFRESH = 60;
+
+
+  /**
+   * Seconds between refreshes of localAddresses if localAddressRefresh is
+   * not specified.
+   */
+  private static final int DEFAULT_LOCAL_ADDRESS_REFRESH = 300;
+
+
+  /**
+   * The regular expressions to allow or deny IP addresses, merged into one.
    */
-  private Pattern[] addressPattern = new Pattern[0];
+  private RegexListMatcher addressPattern;
 
 
   /**
@@ -237,6 +302,17 @@ public class IPAccessControlFilter implements Filter {
    * Destroy.
    */
   public void destroy() {
+
+    if (addressFile != null) {
+      addressFile.stop();
+      log.info("Stopped " + addressFile);
+    }
+
+    if (localAddresses != null) {
+      localAddresses.stop();
+      log.info("Stopped " + localAddresses);
+    }
+
   } // End destroy.
 
 
@@ -278,14 +354,24 @@ public class IPAccessControlFilter implements Filter {
     }
     log.info("addressSpec = " + addressSpec);
     String aList = filterConfig.getInitParameter("addressList");
-    if (aList == null || aList.equalsIgnoreCase("")) {
+    String aFile = filterConfig.getInitParameter("addressFile");
+    if ((aList == null || aList.equalsIgnoreCase("")) &&
+      (aFile == null || aFile.equalsIgnoreCase(""))) {
       String es = getClass().getName() + " could not initialize " +
-        "because required parameter addressList was not found";
+        "because neither parameter addressList nor addressFile was found";
       log.error(es);
       throw new ServletException(es);
     }
+    if (aList == null) {
+      aList = "";
+    }
+    if (aFile != null && !aFile.equalsIgnoreCase("")) {
+      initAddressFile(filterConfig, aFile);
+    }
     addressList = new ArrayList();
-    addressList = Arrays.asList(aList.split(",")); // ;-)
+    if (aList.length() > 0) {
+      addressList = Arrays.asList(aList.split(",")); // ;-)
+    }
 
     // Process addressList to set addressPattern.
     if (matchType.equalsIgnoreCase("regex")) {
@@ -302,21 +388,37 @@ public class IPAccessControlFilter implements Filter {
         if (!ipPattern.endsWith("\\b")) {
           ipPattern = ipPattern + "\\b";
         }
-
-        try {
-          regexList.add(Pattern.compile(ipPattern));
-        } catch (PatternSyntaxException e) {
-          String es = getClass().getName() + " could not initialize " +
-          "Problem with pattern " + e.getPattern() +
-          " at index " + e.getIndex();
-          log.error(es);
-          throw new ServletException(e);
-        }
+        regexList.add(ipPattern);
 
       }
 
-      Pattern[] regexArray = new Pattern[regexList.size()];
-      addressPattern = (Pattern[])regexList.toArray(regexArray);
+      try {
+        addressPattern = RegexListMatcher.compile(regexList);
+      } catch (PatternSyntaxException e) {
+        String es = getClass().getName() + " could not initialize " +
+        "Problem with pattern " + e.getPattern() +
+        " at index " + e.getIndex();
+        log.error(es);
+        throw new ServletException(e);
+      }
+      log.info("addressList compiled into " + addressPattern.size() +
+        " patterns" + (addressPattern.isMerged() ? ", merged" : ""));
+    } else {
+      try {
+        addressMatcher = IPAddressMatcher.compile(aList);
+      } catch (IllegalArgumentException e) {
+        String es = getClass().getName() + " could not initialize " +
+          "because addressList is not valid: " + e.getMessage();
+        log.error(es);
+        throw new ServletException(es);
+      }
+      log.info("addressList = " + addressMatcher);
+      if (addressMatcher.isLocalhostListed()) {
+        int refresh = FilterHelpers.initIntParam(getClass().getName(),
+          filterConfig, "localAddressRefresh", DEFAULT_LOCAL_ADDRESS_REFRESH);
+        localAddresses = new LocalAddresses(refresh * 1000L);
+        log.info("localAddresses = " + localAddresses);
+      }
     }
 
     // Get the headerName init parameter (if any).
@@ -327,6 +429,44 @@ public class IPAccessControlFilter implements Filter {
   } // End init().
 
 
+  /**
+   * Loads addressFile and starts checking it for changes.
+   *
+   * @param  filterConfig     The configuration information for this filter.
+   * @param  aFile            The addressFile init parameter.
+   * @throws ServletException If the file cannot be read or is not valid.
+   */
+  private void initAddressFile(FilterConfig filterConfig, String aFile)
+    throws ServletException {
+
+    File f = new File(aFile);
+    if (!f.isAbsolute()) {
+      String real = filterConfig.getServletContext().getRealPath(
+        aFile.startsWith("/") ? aFile : "/" + aFile);
+      if (real != null) {
+        f = new File(real);
+      }
+    }
+    int refresh = FilterHelpers.initIntParam(getClass().getName(),
+      filterConfig, "addressFileRefresh", DEFAULT_ADDRESS_FILE_REFRESH);
+    try {
+      addressFile = new AddressFile(f, refresh * 1000L);
+    } catch (IOException e) {
+      String es = getClass().getName() + " could not initialize " +
+        "because addressFile " + f + " could not be read: " + e;
+      log.error(es);
+      throw new ServletException(es);
+    } catch (IllegalArgumentException e) {
+      String es = getClass().getName() + " could not initialize " +
+        "because addressFile " + f + " is not valid: " + e.getMessage();
+      log.error(es);
+      throw new ServletException(es);
+    }
+    log.info("addressFile = " + addressFile);
+
+  } // End initAddressFile().
+
+
   /**
    * Do filter's work.
    *
@@ -343,9 +483,8 @@ public class IPAccessControlFilter implements Filter {
 
       log.info("IPAccessControlFilter firing...");
 
-      // Get the server's IP address and the client's IP address.
-      InetAddress ia         = InetAddress.getLocalHost();
-      String      localAddr  = ia.getHostAddress();
+      // Get the client's IP address.  The server's addresses are already
+      // known, in localAddresses.
       String remoteAddr = null;
       if (headerName == null) {
         remoteAddr = getRemoteAddr(request);
@@ -353,7 +492,6 @@ public class IPAccessControlFilter implements Filter {
         remoteAddr = getHeaderAddr(request);
       }
 
-      log.info("localAddr = " + localAddr);
       log.info("remoteAddr = " + remoteAddr);
 
       // If the client's IP address is NOT covered by the address list and
@@ -361,37 +499,12 @@ public class IPAccessControlFilter implements Filter {
       // If the client's IP address IS covered by the address list and the
       // addressSpec is "exclude", then the request must not continue.
       // In all other cases, the request should continue.
-      if (addressSpec.equalsIgnoreCase("include")) {
-        if (matchType.equalsIgnoreCase("standard")) {
-          if (!addressInList(localAddr, remoteAddr)) {
-            FilterHelpers.redirectOrForward(redirectTo, forwardTo,
-                request, response);
-            return;
-          }
-        } else if (matchType.equalsIgnoreCase("regex")) {
-          if (!addressInPattern(localAddr, remoteAddr)) {
-            FilterHelpers.redirectOrForward(redirectTo, forwardTo,
-                request, response);
-            return;
-          }
-        }
-
-      }
-      if (addressSpec.equalsIgnoreCase("exclude")) {
-        if (matchType.equalsIgnoreCase("standard")) {
-          if (addressInList(localAddr, remoteAddr)) {
-            FilterHelpers.redirectOrForward(redirectTo, forwardTo,
-                request, response);
-            return;
-          }
-        } else if (matchType.equalsIgnoreCase("regex")) {
-          if (addressInPattern(localAddr, remoteAddr)) {
-            FilterHelpers.redirectOrForward(redirectTo, forwardTo,
-                request, response);
-            return;
-          }
-        }
-
+      boolean listed = addressListed(remoteAddr);
+      if ((addressSpec.equalsIgnoreCase("include") && !listed) ||
+        (addressSpec.equalsIgnoreCase("exclude") && listed)) {
+        FilterHelpers.redirectOrForward(redirectTo, forwardTo,
+            request, response);
+        return;
       }
     }
 
@@ -410,7 +523,7 @@ public class IPAccessControlFilter implements Filter {
    */
   protected String getRemoteAddr(ServletRequest request) {
 
-    return request.getRemoteAddr();
+    return FilterHelpers.getClientAddr(request, null);
 
   } // End getRemoteAddr().
 
@@ -423,35 +536,52 @@ public class IPAccessControlFilter implements Filter {
    */
   protected String getHeaderAddr(ServletRequest request) {
 
-    return ((HttpServletRequest)request).getHeader(headerName);
+    return FilterHelpers.getClientAddr(request, headerName);
 
   } // End getHeaderAddr().
 
 
+  /**
+   * Called to determine if a given remote IP address is covered by
+   * addressFile or by addressList, whichever matchType it uses.
+   *
+   * @param  remoteAddr The IP address of the client.
+   * @return            True if the address is covered, false if not.
+   */
+  private boolean addressListed(String remoteAddr) {
+
+    if (addressFile != null &&
+      addressFile.contains(IPAddressMatcher.parse(remoteAddr))) {
+      return true;
+    }
+    if (matchType.equalsIgnoreCase("regex")) {
+      return addressInPattern(remoteAddr);
+    }
+    return addressInList(remoteAddr);
+
+  } // End addressListed().
+
+
   /**
    * Called to determine if a given remote IP address is valid against the
    * regular expressions of addresses read in from config.
    *
-   * @param  localAddr  The IP address of the server.
    * @param  remoteAddr The IP address of the client.
    * @return            True if the address matches one of the regex, false
    *                    if not.
    */
-  private boolean addressInPattern(String localAddr, String remoteAddr) {
+  private boolean addressInPattern(String remoteAddr) {
 
-    // Scan the list of expressions configured and see if the remoteAddr
-    // matches any.
-    boolean ret = false;
-    for (int i = 0; i < addressPattern.length; i++) {
-
-      if (addressPattern[i].matcher(remoteAddr).matches()) {
-        log.info("Match Pattern " + i);
-        return true;
-      }
-
-    } // End iterator loop.
-
-    return ret;
+    // All the expressions configured are tried in one pass; the index of
+    // the one remoteAddr matched is only needed for logging.
+    int rule = addressPattern.match(remoteAddr);
+    if (rule == -1) {
+      return false;
+    }
+    if (log.isDebugEnabled()) {
+      log.debug("Match Pattern " + rule);
+    }
+    return true;
 
   } // End addressInPattern().
 
@@ -460,155 +590,14 @@ public class IPAccessControlFilter implements Filter {
    * Called to determine if a given remote IP address is valid against the list
    * of addresses read in from config.
    *
-   * @param  localAddr  The IP address of the server.
    * @param  remoteAddr The IP address of the client.
    * @return            True if the address is in the list, false if not.
    */
-  private boolean addressInList(String localAddr, String remoteAddr) {
-
-    // Scan the list of addresses configured and see if the remoteAddr
-    // matches any.
-    boolean ret = false;
-    for (Iterator it = addressList.iterator(); it.hasNext();) {
-
-      String nextAddr = (String)it.next();
-
-      // Match test 1: localhost.
-      if (nextAddr.equalsIgnoreCase("localhost")) {
-        log.info("Match test 1");
-        if (remoteAddr.equalsIgnoreCase(localAddr)) {
-          ret = true;
-        }
-      }
-
-      // Match test 2: exact address match.
-      if (nextAddr.indexOf("*") == -1 & nextAddr.indexOf("-") == -1) {
-        log.info("Match test 2");
-        if (remoteAddr.equalsIgnoreCase(nextAddr)) {
-          ret = true;
-        }
-      }
+  private boolean addressInList(String remoteAddr) {
 
-      // Match test 3: A single address with wildcards.
-      if (nextAddr.indexOf("*") != -1) {
-        log.info("Match test 3");
-        // Get all four octets from both the next address in the list and
-        // the remote address so we can examine them individually.
-        StringTokenizer nt = new StringTokenizer(nextAddr,   ".");
-        StringTokenizer rt = new StringTokenizer(remoteAddr, ".");
-        String nextAddrOctet1   = (String)nt.nextToken();
-        String nextAddrOctet2   = (String)nt.nextToken();
-        String nextAddrOctet3   = (String)nt.nextToken();
-        String nextAddrOctet4   = (String)nt.nextToken();
-        String remoteAddrOctet1 = (String)rt.nextToken();
-        String remoteAddrOctet2 = (String)rt.nextToken();
-        String remoteAddrOctet3 = (String)rt.nextToken();
-        String remoteAddrOctet4 = (String)rt.nextToken();
-        // Now, for each octet, see if we have either an exact match or a
-        // wildcard match, and if so set the appropriate octet flag.
-        boolean octet1Ok = false;
-        boolean octet2Ok = false;
-        boolean octet3Ok = false;
-        boolean octet4Ok = false;
-        if (remoteAddrOctet1.equalsIgnoreCase(nextAddrOctet1) ||
-            nextAddrOctet1.equalsIgnoreCase("*")) {
-          octet1Ok = true;
-        }
-        if (remoteAddrOctet2.equalsIgnoreCase(nextAddrOctet2) ||
-            nextAddrOctet2.equalsIgnoreCase("*")) {
-          octet2Ok = true;
-        }
-        if (remoteAddrOctet3.equalsIgnoreCase(nextAddrOctet3) ||
-            nextAddrOctet3.equalsIgnoreCase("*")) {
-          octet3Ok = true;
-        }
-        if (remoteAddrOctet4.equalsIgnoreCase(nextAddrOctet4) ||
-            nextAddrOctet4.equalsIgnoreCase("*")) {
-          octet4Ok = true;
-        }
-        // Finally, if all four flags are true, the address is OK.
-        if (octet1Ok & octet2Ok & octet3Ok & octet4Ok) {
-          ret = true;
-        }
-      }
-
-      // Match test 4: IP range.
-      if (nextAddr.indexOf("-") != -1) {
-        log.info("Match test 4");
-        StringTokenizer st             = new StringTokenizer(nextAddr, "-");
-        String          rangeStart     = st.nextToken();
-        String          rangeEnd       = st.nextToken();
-        long            rangeStartLong = ipToLong(rangeStart);
-        long            rangeEndLong   = ipToLong(rangeEnd);
-        long            remoteAddrLong = ipToLong(remoteAddr);
-        if (remoteAddrLong >= rangeStartLong &&
-            remoteAddrLong <= rangeEndLong) {
-          ret = true;
-        }
-      }
-
-    } // End iterator loop.
-
-    return ret;
+    return addressMatcher.matches(remoteAddr, localAddresses);
 
   } // End addressInList().
 
 
-  /**
-   * Method that converts an IP address to a long.
-   *
-   * @param  ip The IP address to convert.
-   * @return    The IP address as a long.
-   */
-  private static long ipToLong(String ip) {
-
-    StringTokenizer st  = new StringTokenizer(ip, ".");
-    int o1 = Integer.parseInt((String)st.nextToken());
-    int o2 = Integer.parseInt((String)st.nextToken());
-    int o3 = Integer.parseInt((String)st.nextToken());
-    int o4 = Integer.parseInt((String)st.nextToken());
-    String o1S = Integer.toBinaryString(o1).trim();
-    String o2S = Integer.toBinaryString(o2).trim();
-    String o3S = Integer.toBinaryString(o3).trim();
-    String o4S = Integer.toBinaryString(o4).trim();
-    o1S = padBinByteStr(o1S);
-    o2S = padBinByteStr(o2S);
-    o3S = padBinByteStr(o3S);
-    o4S = padBinByteStr(o4S);
-    String bin = o1S + o2S + o3S + o4S;
-    long res = 0;
-    long j   = 2147483648L;
-    for (int i = 0; i < 32; i++) {
-      char c = bin.charAt(i);
-      if (c == '1') {
-        res = res + j;
-      }
-      j = j / 2;
-    }
-    return res;
-
-  } // End ipToLong().
-
-
-  /**
-   * Method that pads (prefixes) a string representation of a byte with 0's.
-   *
-   * @param  binByte String of the byte (maybe less than 8 bits) to pad.
-   * @return         String of the byte guaranteed to have 8 bits.
-   */
-  private static String padBinByteStr(String binByte) {
-
-    if (binByte.length() == 8) {
-      return binByte;
-    }
-    StringBuffer sb = new StringBuffer();
-    for (int i = 0; i < (8 - binByte.length()); i++) {
-      sb.append("0");
-    }
-    sb.append(binByte);
-    return sb.toString();
-
-  } // End padBinByteStr().
-
-
 } // End class.
@@ -0,0 +1,556 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.filter;
+
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.StringTokenizer;
+
+
+/**
+ * This class is IPAccessControlFilter's address list in "standard" mode,
+ * compiled once so that checking an address does not depend on the length
+ * of the list.  Every entry is turned into one or more prefixes (address
+ * and number of leading bits) held in a binary trie, one for IPv4 and one
+ * for IPv6.  Looking an address up walks at most 32 or 128 nodes and stops
+ * at the first prefix covering it, without allocating anything.
+ * <br><br>
+ * Entries may be:
+ * <ul>
+ * <li>"localhost", which matches any address of the server's, as held by
+ * a LocalAddresses.</li>
+ * <li>A literal IPv4 or IPv6 address.</li>
+ * <li>An IPv4 address where any octets are "*", i.e. 10.1.*.*.  Trailing
+ * wildcards form a prefix; the rare address with a wildcard followed by a
+ * literal octet is kept as a mask and value that are checked one by one.</li>
+ * <li>An IPv4 range, i.e. 10.0.0.5-10.0.1.20, which is split into the
+ * fewest prefixes covering exactly that range.</li>
+ * <li>A CIDR block, i.e. 192.168.0.0/16 or 2001:db8::/32.</li>
+ * </ul>
+ * An instance is immutable once compiled and may be shared by any number of
+ * threads.
+ *
+ * @author <a href="mailto:fzammetti@omnytex.com">Frank W. Zammetti</a>.
+ */
+public class IPAddressMatcher {
+
+
+  /**
+   * Trie of IPv4 prefixes.
+   */
+  private Trie v4 = new Trie();
+
+
+  /**
+   * Trie of IPv6 prefixes.
+   */
+  private Trie v6 = new Trie();
+
+
+  /**
+   * Masks of IPv4 wildcard entries that are not prefixes.
+   */
+  private int[] wildMasks = new int[0];
+
+
+  /**
+   * Values of IPv4 wildcard entries that are not prefixes.
+   */
+  private int[] wildValues = new int[0];
+
+
+  /**
+   * Whether the list includes "localhost".
+   */
+  private boolean localhost;
+
+
+  /**
+   * Number of entries compiled.
+   */
+  private int entries;
+
+
+  /**
+   * Compiles a comma-separated address list.
+   *
+   * @param  csv The list.
+   * @return     The compiled list.
+   * @throws     IllegalArgumentException If an entry is not valid.
+   */
+  public static IPAddressMatcher compile(String csv) {
+
+    IPAddressMatcher m     = new IPAddressMatcher();
+    ArrayList        masks = new ArrayList();
+    StringTokenizer  st    = new StringTokenizer(csv, ",");
+    while (st.hasMoreTokens()) {
+      String entry = st.nextToken().trim();
+      if (entry.length() == 0) {
+        continue;
+      }
+      m.entries++;
+      if (entry.equalsIgnoreCase("localhost")) {
+        m.localhost = true;
+      } else if (entry.indexOf('*') != -1) {
+        m.addWildcard(entry, masks);
+      } else if (entry.indexOf('/') != -1) {
+        m.addCidr(entry);
+      } else if (entry.indexOf('-') != -1) {
+        m.addRange(entry);
+      } else {
+        byte[] a = parse(entry);
+        if (a == null) {
+          throw new IllegalArgumentException("Invalid address: " + entry);
+        }
+        m.trieFor(a).insert(a, a.length * 8);
+      }
+    }
+    m.wildMasks  = new int[masks.size() / 2];
+    m.wildValues = new int[masks.size() / 2];
+    for (int i = 0; i < m.wildMasks.length; i++) {
+      m.wildMasks[i]  = ((Integer)masks.get(i * 2)).intValue();
+      m.wildValues[i] = ((Integer)masks.get(i * 2 + 1)).intValue();
+    }
+    return m;
+
+  } // End compile().
+
+
+  /**
+   * Parses a literal IPv4 or IPv6 address.  No name lookup is ever done.
+   * An IPv4-mapped IPv6 address is returned as IPv4.
+   *
+   * @param  addr The address.
+   * @return      Its 4 or 16 bytes, or null if it is not a literal address.
+   */
+  public static byte[] parse(String addr) {
+
+    if (addr == null) {
+      return null;
+    }
+    if (addr.indexOf(':') == -1) {
+      return parseIPv4(addr);
+    }
+    // Leave out any zone (i.e., %eth0), and refuse anything that is not
+    // hex digits, colons and dots, so InetAddress never does a lookup.
+    int pct = addr.indexOf('%');
+    if (pct != -1) {
+      addr = addr.substring(0, pct);
+    }
+    if (addr.startsWith("[") && addr.endsWith("]")) {
+      addr = addr.substring(1, addr.length() - 1);
+    }
+    for (int i = 0; i < addr.length(); i++) {
+      char c = addr.charAt(i);
+      if (Character.digit(c, 16) == -1 && c != ':' && c != '.') {
+        return null;
+      }
+    }
+    try {
+      return InetAddress.getByName(addr).getAddress();
+    } catch (UnknownHostException e) {
+      return null;
+    }
+
+  } // End parse().
+
+
+  /**
+   * Determines whether an address is covered by the list.
+   *
+   * @param  remoteAddr The address, as a String.
+   * @param  local      The server's addresses, which "localhost" matches,
+   *                    or null if "localhost" is not in the list.
+   * @return            True if it is covered, false if not, or if it is not
+   *                    a literal address.
+   */
+  public boolean matches(String remoteAddr, LocalAddresses local) {
+
+    byte[] addr = parse(remoteAddr);
+    if (addr == null) {
+      return false;
+    }
+    return matches(addr) || (localhost && local != null &&
+      local.contains(addr));
+
+  } // End matches().
+
+
+  /**
+   * Determines whether the list includes "localhost".
+   *
+   * @return True if it does.
+   */
+  public boolean isLocalhostListed() {
+
+    return localhost;
+
+  } // End isLocalhostListed().
+
+
+  /**
+   * Determines whether a parsed address is covered by the list, leaving
+   * "localhost" aside.
+   *
+   * @param  addr The address, from parse().
+   * @return      True if it is covered, false if not or if addr is null.
+   */
+  public boolean matches(byte[] addr) {
+
+    if (addr == null) {
+      return false;
+    }
+    if (addr.length == 4) {
+      if (v4.contains(addr)) {
+        return true;
+      }
+      int a = ((addr[0] & 0xff) << 24) | ((addr[1] & 0xff) << 16) |
+              ((addr[2] & 0xff) << 8) | (addr[3] & 0xff);
+      for (int i = 0; i < wildMasks.length; i++) {
+        if ((a & wildMasks[i]) == wildValues[i]) {
+          return true;
+        }
+      }
+      return false;
+    }
+    return v6.contains(addr);
+
+  } // End matches().
+
+
+  /**
+   * Returns a description of this list, for logging purposes.
+   *
+   * @return The description as a String.
+   */
+  public String toString() {
+
+    return "IPAddressMatcher[entries=" + entries + ", ipv4Nodes=" +
+      v4.size + ", ipv6Nodes=" + v6.size + ", wildcards=" + wildMasks.length +
+      ", localhost=" + localhost + "]";
+
+  } // End toString().
+
+
+  /**
+   * Adds an IPv4 address with wildcard octets.
+   *
+   * @param entry The entry.
+   * @param masks Where to add the mask and value if it is not a prefix.
+   */
+  private void addWildcard(String entry, ArrayList masks) {
+
+    String[] octets = split(entry, '.');
+    if (octets.length != 4) {
+      throw new IllegalArgumentException("Invalid address: " + entry);
+    }
+    int     mask     = 0;
+    int     value    = 0;
+    boolean isPrefix = true;
+    boolean wild     = false;
+    for (int i = 0; i < 4; i++) {
+      mask  <<= 8;
+      value <<= 8;
+      if (octets[i].equals("*")) {
+        wild = true;
+      } else {
+        int o = parseOctet(octets[i]);
+        if (o == -1) {
+          throw new IllegalArgumentException("Invalid address: " + entry);
+        }
+        if (wild) {
+          isPrefix = false;
+        }
+        mask  |= 0xff;
+        value |= o;
+      }
+    }
+    if (isPrefix) {
+      int bits = 0;
+      while (bits < 32 && (mask & (0x80000000 >>> bits)) != 0) {
+        bits++;
+      }
+      v4.insert(intToBytes(value), bits);
+    } else {
+      masks.add(new Integer(mask));
+      masks.add(new Integer(value));
+    }
+
+  } // End addWildcard().
+
+
+  /**
+   * Adds a CIDR block.
+   *
+   * @param entry The entry.
+   */
+  private void addCidr(String entry) {
+
+    int    slash = entry.indexOf('/');
+    byte[] a     = parse(entry.substring(0, slash));
+    int    bits  = -1;
+    try {
+      bits = Integer.parseInt(entry.substring(slash + 1).trim());
+    } catch (NumberFormatException e) {
+      bits = -1;
+    }
+    if (a == null || bits < 0 || bits > a.length * 8) {
+      throw new IllegalArgumentException("Invalid CIDR block: " + entry);
+    }
+    trieFor(a).insert(a, bits);
+
+  } // End addCidr().
+
+
+  /**
+   * Adds an IPv4 range as the fewest prefixes that cover it.
+   *
+   * @param entry The entry.
+   */
+  private void addRange(String entry) {
+
+    int    dash  = entry.indexOf('-');
+    byte[] s     = parseIPv4(entry.substring(0, dash).trim());
+    byte[] e     = parseIPv4(entry.substring(dash + 1).trim());
+    if (s == null || e == null) {
+      throw new IllegalArgumentException("Invalid range: " + entry);
+    }
+    long start = bytesToInt(s) & 0xffffffffL;
+    long end   = bytesToInt(e) & 0xffffffffL;
+    while (start <= end) {
+      // The largest block that starts at start and does not pass end.
+      int size = 0;
+      while (size < 32 && (start & ((1L << (size + 1)) - 1)) == 0 &&
+             start + (1L << (size + 1)) - 1 <= end) {
+        size++;
+      }
+      v4.insert(intToBytes((int)start), 32 - size);
+      start += 1L << size;
+    }
+
+  } // End addRange().
+
+
+  /**
+   * Returns the trie for an address of the given length.
+   *
+   * @param  a The address.
+   * @return   The trie.
+   */
+  private Trie trieFor(byte[] a) {
+
+    return a.length == 4 ? v4 : v6;
+
+  } // End trieFor().
+
+
+  /**
+   * Parses a dotted-decimal IPv4 address.
+   *
+   * @param  addr The address.
+   * @return      Its 4 bytes, or null if it is not valid.
+   */
+  private static byte[] parseIPv4(String addr) {
+
+    byte[] a      = new byte[4];
+    int    octet  = 0;
+    int    value  = 0;
+    int    digits = 0;
+    for (int i = 0; i < addr.length(); i++) {
+      char c = addr.charAt(i);
+      if (c >= '0' && c <= '9') {
+        value = value * 10 + (c - '0');
+        if (++digits > 3 || value > 255) {
+          return null;
+        }
+      } else if (c == '.' && digits > 0 && octet < 3) {
+        a[octet++] = (byte)value;
+        value      = 0;
+        digits     = 0;
+      } else {
+        return null;
+      }
+    }
+    if (octet != 3 || digits == 0) {
+      return null;
+    }
+    a[3] = (byte)value;
+    return a;
+
+  } // End parseIPv4().
+
+
+  /**
+   * Parses one decimal octet.
+   *
+   * @param  s The octet.
+   * @return   Its value, or -1 if it is not valid.
+   */
+  private static int parseOctet(String s) {
+
+    byte[] a = parseIPv4("0.0.0." + s);
+    return a == null ? -1 : a[3] & 0xff;
+
+  } // End parseOctet().
+
+
+  /**
+   * Splits a String on a character, keeping empty parts.
+   *
+   * @param  s The String.
+   * @param  c The character.
+   * @return   The parts.
+   */
+  private static String[] split(String s, char c) {
+
+    ArrayList parts = new ArrayList();
+    int       from  = 0;
+    int       i;
+    while ((i = s.indexOf(c, from)) != -1) {
+      parts.add(s.substring(from, i).trim());
+      from = i + 1;
+    }
+    parts.add(s.substring(from).trim());
+    return (String[])parts.toArray(new String[parts.size()]);
+
+  } // End split().
+
+
+  /**
+   * Converts 4 bytes to an int.
+   *
+   * @param  a The bytes.
+   * @return   The int.
+   */
+  private static int bytesToInt(byte[] a) {
+
+    return ((a[0] & 0xff) << 24) | ((a[1] & 0xff) << 16) |
+           ((a[2] & 0xff) << 8) | (a[3] & 0xff);
+
+  } // End bytesToInt().
+
+
+  /**
+   * Converts an int to 4 bytes.
+   *
+   * @param  v The int.
+   * @return   The bytes.
+   */
+  private static byte[] intToBytes(int v) {
+
+    return new byte[] {(byte)(v >>> 24), (byte)(v >>> 16), (byte)(v >>> 8),
+      (byte)v};
+
+  } // End intToBytes().
+
+
+  /**
+   * A binary trie of prefixes.  Node n's children are child[2n] (next bit
+   * 0) and child[2n + 1] (next bit 1), 0 meaning none since the root, node
+   * 0, is never a child.  A terminal node ends a prefix, and nothing below
+   * one is ever stored.
+   */
+  private static final class Trie {
+
+    /**
+     * Children of every node.
+     */
+    private int[] child = new int[32];
+
+    /**
+     * Whether each node ends a prefix.
+     */
+    private boolean[] terminal = new boolean[16];
+
+    /**
+     * Number of nodes, including the root.
+     */
+    private int size = 1;
+
+    /**
+     * Adds a prefix.
+     *
+     * @param a    The address.
+     * @param bits The number of leading bits that matter.
+     */
+    private void insert(byte[] a, int bits) {
+      int n = 0;
+      for (int i = 0; i < bits; i++) {
+        if (terminal[n]) {
+          return;
+        }
+        int slot = 2 * n + bit(a, i);
+        if (child[slot] == 0) {
+          if (size == terminal.length) {
+            int[] c = new int[child.length * 2];
+            System.arraycopy(child, 0, c, 0, child.length);
+            child = c;
+            boolean[] t = new boolean[terminal.length * 2];
+            System.arraycopy(terminal, 0, t, 0, terminal.length);
+            terminal = t;
+          }
+          child[slot] = size++;
+        }
+        n = child[slot];
+      }
+      terminal[n] = true;
+      // Whatever was below is now covered by this prefix.
+      child[2 * n]     = 0;
+      child[2 * n + 1] = 0;
+    }
+
+    /**
+     * Determines whether a prefix covers an address.
+     *
+     * @param  a The address.
+     * @return   True if one does.
+     */
+    private boolean contains(byte[] a) {
+      int n    = 0;
+      int bits = a.length * 8;
+      for (int i = 0; ; i++) {
+        if (terminal[n]) {
+          return true;
+        }
+        if (i == bits) {
+          return false;
+        }
+        n = child[2 * n + bit(a, i)];
+        if (n == 0) {
+          return false;
+        }
+      }
+    }
+
+    /**
+     * Returns a bit of an address.
+     *
+     * @param  a The address.
+     * @param  i Which bit, 0 being the most significant.
+     * @return   0 or 1.
+     */
+    private static int bit(byte[] a, int i) {
+      return (a[i >> 3] >> (7 - (i & 7))) & 1;
+    }
+
+  } // End Trie class.
+
+
+} // End class.
@@ -0,0 +1,381 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.filter;
+
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+
+/**
+ * This class is a large set of IPv4 addresses, such as a threat feed, held
+ * as sorted, non-overlapping ranges in two int arrays.  Overlapping and
+ * adjacent entries are merged when the set is built, so it takes 8 bytes
+ * per distinct range however many addresses each covers, and an address is
+ * looked up by binary search, about 20 steps for a million ranges, without
+ * allocating anything.
+ * <br><br>
+ * The set is read from a list with one entry per line.  An entry may be a
+ * literal address, a range such as 10.0.0.5-10.0.1.20, a CIDR block such
+ * as 192.168.0.0/16, or an address whose trailing octets are "*".  Anything
+ * after a '#' or ';' is a comment, and blank lines are ignored, so most
+ * published feeds can be used as they are.  IPv6 entries are counted but
+ * otherwise skipped.  Any other line is an error.
+ * <br><br>
+ * An instance is immutable once built and may be shared by any number of
+ * threads.
+ *
+ * @author <a href="mailto:fzammetti@omnytex.com">Frank W. Zammetti</a>.
+ */
+public final class IPRangeSet {
+
+
+  /**
+   * Added to an address so that signed comparison orders addresses as
+   * unsigned.
+   */
+  private static final int BIAS = 0x80000000;
+
+
+  /**
+   * The first address of each range, biased, in ascending order.
+   */
+  private int[] lows;
+
+
+  /**
+   * The last address of each range, biased.
+   */
+  private int[] highs;
+
+
+  /**
+   * Number of entries read.
+   */
+  private int entries;
+
+
+  /**
+   * Number of IPv6 entries skipped.
+   */
+  private int skipped;
+
+
+  /**
+   * Constructor.
+   */
+  private IPRangeSet() {
+  } // End IPRangeSet().
+
+
+  /**
+   * Reads a list of entries, one per line.  The Reader is not closed.
+   *
+   * @param  in          The list.
+   * @return             The set.
+   * @throws IOException If reading fails.
+   * @throws             IllegalArgumentException If a line is not valid.
+   */
+  public static IPRangeSet read(Reader in) throws IOException {
+
+    IPRangeSet     s      = new IPRangeSet();
+    BufferedReader br     = new BufferedReader(in);
+    long[]         ranges = new long[1024];
+    int            n      = 0;
+    int            lineNo = 0;
+    String         line;
+    while ((line = br.readLine()) != null) {
+      lineNo++;
+      int c = line.indexOf('#');
+      if (c != -1) {
+        line = line.substring(0, c);
+      }
+      c = line.indexOf(';');
+      if (c != -1) {
+        line = line.substring(0, c);
+      }
+      line = line.trim();
+      if (line.length() == 0) {
+        continue;
+      }
+      s.entries++;
+      if (line.indexOf(':') != -1) {
+        s.skipped++;
+        continue;
+      }
+      long range = parseEntry(line, lineNo);
+      if (n == ranges.length) {
+        long[] a = new long[n * 2];
+        System.arraycopy(ranges, 0, a, 0, n);
+        ranges = a;
+      }
+      ranges[n++] = range;
+    }
+    s.merge(ranges, n);
+    return s;
+
+  } // End read().
+
+
+  /**
+   * Determines whether an address is in the set.
+   *
+   * @param  addr The address, from IPAddressMatcher.parse().
+   * @return      True if it is, false if not or if it is not IPv4.
+   */
+  public boolean contains(byte[] addr) {
+
+    if (addr == null || addr.length != 4) {
+      return false;
+    }
+    return contains(((addr[0] & 0xff) << 24) | ((addr[1] & 0xff) << 16) |
+                    ((addr[2] & 0xff) << 8) | (addr[3] & 0xff));
+
+  } // End contains().
+
+
+  /**
+   * Determines whether an address is in the set.
+   *
+   * @param  addr The address as an int, first octet highest.
+   * @return      True if it is.
+   */
+  public boolean contains(int addr) {
+
+    int a  = addr ^ BIAS;
+    int lo = 0;
+    int hi = lows.length - 1;
+    // Find the last range starting at or before a.
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      if (lows[mid] <= a) {
+        lo = mid + 1;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return hi >= 0 && highs[hi] >= a;
+
+  } // End contains().
+
+
+  /**
+   * Returns the number of ranges after merging.
+   *
+   * @return The count.
+   */
+  public int getRanges() {
+
+    return lows.length;
+
+  } // End getRanges().
+
+
+  /**
+   * Returns the number of entries read, including skipped ones.
+   *
+   * @return The count.
+   */
+  public int getEntries() {
+
+    return entries;
+
+  } // End getEntries().
+
+
+  /**
+   * Returns the number of IPv6 entries skipped.
+   *
+   * @return The count.
+   */
+  public int getSkipped() {
+
+    return skipped;
+
+  } // End getSkipped().
+
+
+  /**
+   * Returns the number of addresses in the set.
+   *
+   * @return The count.
+   */
+  public long getAddresses() {
+
+    long total = 0;
+    for (int i = 0; i < lows.length; i++) {
+      total += (long)highs[i] - lows[i] + 1;
+    }
+    return total;
+
+  } // End getAddresses().
+
+
+  /**
+   * Returns the memory taken by the ranges.
+   *
+   * @return The size in bytes.
+   */
+  public long getBytes() {
+
+    return lows.length * 8L;
+
+  } // End getBytes().
+
+
+  /**
+   * Returns a description of this set, for logging purposes.
+   *
+   * @return The description as a String.
+   */
+  public String toString() {
+
+    return "IPRangeSet[entries=" + entries + ", skipped=" + skipped +
+      ", ranges=" + lows.length + ", addresses=" + getAddresses() +
+      ", bytes=" + getBytes() + "]";
+
+  } // End toString().
+
+
+  /**
+   * Sorts and merges ranges into lows and highs.
+   *
+   * @param ranges The ranges, from parseEntry().
+   * @param n      The number of ranges.
+   */
+  private void merge(long[] ranges, int n) {
+
+    // The biased low address is in the upper half of each long, so they
+    // sort by it.
+    Arrays.sort(ranges, 0, n);
+    int[] l     = new int[n];
+    int[] h     = new int[n];
+    int   count = 0;
+    for (int i = 0; i < n; i++) {
+      int lo = (int)(ranges[i] >> 32);
+      int hi = (int)ranges[i];
+      if (count > 0 && (long)lo <= (long)h[count - 1] + 1) {
+        if (hi > h[count - 1]) {
+          h[count - 1] = hi;
+        }
+      } else {
+        l[count] = lo;
+        h[count] = hi;
+        count++;
+      }
+    }
+    lows  = new int[count];
+    highs = new int[count];
+    System.arraycopy(l, 0, lows, 0, count);
+    System.arraycopy(h, 0, highs, 0, count);
+
+  } // End merge().
+
+
+  /**
+   * Parses an IPv4 entry into a range.
+   *
+   * @param  entry  The entry.
+   * @param  lineNo The number of the line it is on.
+   * @return        The biased first address in the upper half and the
+   *                biased last address in the lower half.
+   * @throws        IllegalArgumentException If the entry is not valid.
+   */
+  private static long parseEntry(String entry, int lineNo) {
+
+    long start;
+    long end;
+    int  i;
+    if ((i = entry.indexOf('-')) != -1) {
+      start = toLong(IPAddressMatcher.parse(entry.substring(0, i).trim()));
+      end   = toLong(IPAddressMatcher.parse(entry.substring(i + 1).trim()));
+    } else if ((i = entry.indexOf('/')) != -1) {
+      start = toLong(IPAddressMatcher.parse(entry.substring(0, i).trim()));
+      int bits;
+      try {
+        bits = Integer.parseInt(entry.substring(i + 1).trim());
+      } catch (NumberFormatException e) {
+        bits = -1;
+      }
+      if (bits < 0 || bits > 32 || start == -1) {
+        start = -1;
+        end   = -1;
+      } else {
+        long size = 1L << (32 - bits);
+        start &= ~(size - 1);
+        end    = start + size - 1;
+      }
+    } else if ((i = entry.indexOf('*')) != -1) {
+      String prefix = entry.substring(0, i);
+      String rest   = entry.substring(i);
+      int    octets = 0;
+      for (int j = 0; j < rest.length(); j++) {
+        char c = rest.charAt(j);
+        if (c == '*') {
+          octets++;
+        } else if (c != '.') {
+          octets = 5;
+        }
+      }
+      // The wildcards must be whole octets, so the prefix must be empty or
+      // end on an octet boundary.
+      if (octets > 4 ||
+        !rest.equals("*.*.*.*".substring(8 - octets * 2)) ||
+        (prefix.length() > 0 && !prefix.endsWith("."))) {
+        start = -1;
+      } else if (octets == 4) {
+        start = 0;
+      } else {
+        start = toLong(IPAddressMatcher.parse(
+          prefix + "0.0.0.0".substring(8 - octets * 2)));
+      }
+      end = start == -1 ? -1 : start + (1L << (octets * 8)) - 1;
+    } else {
+      start = toLong(IPAddressMatcher.parse(entry));
+      end   = start;
+    }
+    if (start == -1 || end == -1 || start > end) {
+      throw new IllegalArgumentException("Invalid entry on line " + lineNo +
+        ": " + entry);
+    }
+    return ((long)((int)start ^ BIAS) << 32) |
+           (((int)end ^ BIAS) & 0xffffffffL);
+
+  } // End parseEntry().
+
+
+  /**
+   * Converts an IPv4 address to a non-negative long.
+   *
+   * @param  a The address, from IPAddressMatcher.parse().
+   * @return   The long, or -1 if a is null or not IPv4.
+   */
+  private static long toLong(byte[] a) {
+
+    if (a == null || a.length != 4) {
+      return -1;
+    }
+    return ((a[0] & 0xffL) << 24) | ((a[1] & 0xff) << 16) |
+           ((a[2] & 0xff) << 8) | (a[3] & 0xff);
+
+  } // End toLong().
+
+
+} // End class.
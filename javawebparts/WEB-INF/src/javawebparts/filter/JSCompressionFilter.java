@@ -16,12 +16,13 @@
 
 package javawebparts.filter;
 
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
-
-import javawebparts.filter.JSMin.UnterminatedCommentException;
-import javawebparts.filter.JSMin.UnterminatedRegExpLiteralException;
-import javawebparts.filter.JSMin.UnterminatedStringLiteralException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -43,6 +44,17 @@ import org.apache.commons.logging.LogFactory;
  * want to know how it works and what is does: www.crockford.com
  * It allows for including or excluding paths from filter functionality. <br>
  * <br>
+ * The whole response is captured before any of it is sent, since its
+ * content type is not known until then.  JavaScript responses are minified
+ * as a whole, and sent unchanged if JSMin rejects them.  HTML responses are
+ * scanned once, start to finish, and streamed to the client with the body
+ * of each script element minified as it goes by; a script JSMin rejects is
+ * sent unchanged without affecting the rest of the page.  The response is
+ * decoded and encoded with its own character encoding.  Any Content-Length
+ * the servlet sets is held back, as it would be wrong once minified;
+ * JavaScript and untouched responses are sent with their real length, and
+ * HTML pages, being streamed, with none. <br>
+ * <br>
  * Init parameters are: <br>
  * <ul>
  * <li><b>pathSpec </b>- Either "include" or "exclude". This determines
@@ -67,6 +79,18 @@ import org.apache.commons.logging.LogFactory;
  * by pathList IS NOT, then the filter WILL NEVER EXECUTE (this is technically a
  * misconfiguration). If NEITHER is defined then the generic filter mapping will
  * be in effect only.</li>
+ * <br><br>
+ * <li><b>pathDecisionCacheSize</b> - If greater than zero, the result of
+ * matching each requested path against pathList is remembered for up to this
+ * many distinct paths, so repeat requests skip the matching entirely.
+ * Required: No.  Default: 0 (no caching).</li>
+ * <br><br>
+ * <li><b>minifyCacheSize</b> - The most bytes of memory used to remember
+ * minified scripts by their content, so a .js file or script block seen
+ * before, on any page, is not minified again.  The least recently used are
+ * evicted to make room, and the cache statistics (including the hit ratio)
+ * are logged when the filter is destroyed.  0 disables the cache.
+ * Required: No.  Default: 1048576.</li>
  * </ul>
  * <br>
  * Example configuration in web.xml: <br>
@@ -134,13 +158,27 @@ public class JSCompressionFilter implements Filter {
   /**
    * List of paths for filter functionality determination.
    */
-  private static ArrayList pathList = new ArrayList();
+  private static PathMatcher pathList;
+
+  /**
+   * Bytes of minified scripts cached if minifyCacheSize is not specified.
+   */
+  private static final int DEFAULT_MINIFY_CACHE_SIZE = 1024 * 1024;
+
+  /**
+   * Cache of minified scripts, or null if caching is disabled.
+   */
+  private MinificationCache cache;
 
   /**
    * Destroy.
    */
   public void destroy() {
 
+    if (cache != null) {
+      log.info("Closing " + cache);
+    }
+
   } // End destroy.
 
   /**
@@ -161,6 +199,14 @@ public class JSCompressionFilter implements Filter {
     pathList = FilterHelpers.initPathList(getClass().getName(),
         filterConfig);
 
+    // Get the minifyCacheSize init parameter and set up the cache.
+    int cacheSize = FilterHelpers.initIntParam(getClass().getName(),
+        filterConfig, "minifyCacheSize", DEFAULT_MINIFY_CACHE_SIZE);
+    if (cacheSize > 0) {
+      cache = new MinificationCache(cacheSize);
+    }
+    log.info("minifyCacheSize = " + cacheSize);
+
     log.info("init() completed");
 
   } // End init().
@@ -201,20 +247,45 @@ public class JSCompressionFilter implements Filter {
       String ct = wrappedResp.getContentType();
 
       log.debug("Request content type: " + ct);
-      byte[] bytes =
-        ((JSCompressionResStream) wrappedResp.getOutputStream())
-          .getData();
+      JSCompressionResStream strm =
+        (JSCompressionResStream) wrappedResp.getOutputStream();
       if (ct != null &&
           (ct.indexOf("text/html") != -1 ||
            ct.indexOf("javascript") != -1)) {
         boolean isHtml = ct.indexOf("text/html") >= 0;
-        log.info("Length before compression " + bytes.length);
-        byte[] bytesOut = compress(bytes, isHtml);
-        out.write(bytesOut);
-        wrappedResp.setContentLength(bytesOut.length);
-        log.info("Length after compression " + bytesOut.length);
+        String  enc    = getEncoding(wrappedResp);
+        log.info("Length before compression " + strm.size());
+        Reader reader = new InputStreamReader(strm.getInputStream(), enc);
+        HtmlScriptMinifier minifier = new HtmlScriptMinifier();
+        minifier.setCache(cache);
+        if (isHtml) {
+          // The length is not known until the page has been sent, so none
+          // is given, and the container sends it chunked or closes the
+          // connection after it.
+          Writer writer =
+            new BufferedWriter(new OutputStreamWriter(out, enc));
+          int scripts = minifier.minify(reader, writer);
+          writer.flush();
+          log.info("Scripts compressed " + scripts);
+        } else {
+          // The script is encoded as JSMin writes it, rather than
+          // collected as characters and copied into a String to encode.
+          ByteArrayOutputStream result =
+            new ByteArrayOutputStream(strm.size());
+          Writer writer = new OutputStreamWriter(result, enc);
+          if (minifier.minifyScript(reader, writer)) {
+            writer.flush();
+            response.setContentLength(result.size());
+            result.writeTo(out);
+            log.info("Length after compression " + result.size());
+          } else {
+            response.setContentLength(strm.size());
+            strm.writeTo(out);
+          }
+        }
       } else {
-        out.write(bytes);
+        response.setContentLength(strm.size());
+        strm.writeTo(out);
       }
     } else {
     // if not in filterPath
@@ -223,42 +294,15 @@ public class JSCompressionFilter implements Filter {
   } // End doFilter().
 
   /**
-   * Do compression.
+   * Returns the character encoding of a response, or ISO-8859-1 (the
+   * servlet default) if the container does not say.
    *
-   * @param bytes   The text to check
-   * @param isHtml  Are we compressing Html (or a .js file)
-   * @return byte[] The compressed result
+   * @param response The response
+   * @return String  The character encoding
    */
-  private byte[] compress(byte[] bytes, boolean isHtml) {
-    StringBuffer result = new StringBuffer();
-    try {
-      String text = new String(bytes);
-      JSMin jsmin = new JSMin();
-      if (!isHtml) {
-        result.append(jsmin.compress(text));
-      } else {
-        int from = text.toLowerCase().indexOf("<script>");
-        int to = 0;
-        while (from > 0) {
-          result.append(text.substring(0, from));
-          to = text.toLowerCase().indexOf("</script>", from) + 9;
-          String compressed = jsmin.compress(text.substring(from, to));
-          result.append(compressed);
-          text = text.substring(to);
-          from = text.toLowerCase().indexOf("<script>");
-        }
-        result.append(text);
-      }
-    } catch (IOException e) {
-        return bytes;
-    } catch (UnterminatedRegExpLiteralException e) {
-        return bytes;
-    } catch (UnterminatedCommentException e) {
-        return bytes;
-    } catch (UnterminatedStringLiteralException e) {
-        return bytes;
-    }
-    return result.toString().getBytes();
+  static String getEncoding(ServletResponse response) {
+    String enc = response.getCharacterEncoding();
+    return enc == null ? "ISO-8859-1" : enc;
   }
 
 
@@ -18,8 +18,11 @@
 package javawebparts.filter;
 
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 import javax.servlet.ServletOutputStream;
 
@@ -53,7 +56,7 @@ public class JSCompressionResStream extends ServletOutputStream {
   /**
    * ByteArrayOutputStream ba.
    */
-  private ByteArrayOutputStream ba;
+  private Buffer ba;
 
 
   /**
@@ -62,7 +65,7 @@ public class JSCompressionResStream extends ServletOutputStream {
   public JSCompressionResStream() {
 
     super();
-    ba   = new ByteArrayOutputStream();
+    ba   = new Buffer();
   } // End JSCompressionResStream().
 
 
@@ -79,6 +82,21 @@ public class JSCompressionResStream extends ServletOutputStream {
   } // End write().
 
 
+  /**
+   * Writes a byte array to the output stream.
+   *
+   * @param  b           Byte array.
+   * @param  off         Offset into the array.
+   * @param  len         Number of bytes to write.
+   * @throws IOException IOException.
+   */
+  public void write(byte[] b, int off, int len) throws IOException {
+
+    ba.write(b, off, len);
+
+  } // End write().
+
+
   /**
    * Clean up.
    *
@@ -86,8 +104,8 @@ public class JSCompressionResStream extends ServletOutputStream {
    */
   public void close() throws IOException {
 
-    byte[] bytes = ba.toByteArray();
-//do something
+    // The output is kept for the filter, which writes it out itself.
+
   } // End close().
 
   /**
@@ -98,5 +116,51 @@ public class JSCompressionResStream extends ServletOutputStream {
   public byte[] getData() {
     return ba.toByteArray();
   }
-  
+
+  /**
+   * Returns the number of bytes collected.
+   *
+   * @return int the number of bytes collected
+   */
+  public int size() {
+    return ba.size();
+  }
+
+  /**
+   * Writes the collected output to a stream, without copying it the way
+   * getData() does.
+   *
+   * @param  out         The stream.
+   * @throws IOException If writing fails.
+   */
+  public void writeTo(OutputStream out) throws IOException {
+    ba.writeTo(out);
+  }
+
+  /**
+   * Returns a stream over the collected output, which reads it in place
+   * rather than copying it the way getData() does.
+   *
+   * @return InputStream the collected output
+   */
+  public InputStream getInputStream() {
+    return ba.getInputStream();
+  }
+
+  /**
+   * A ByteArrayOutputStream whose contents can be read without a copy.
+   */
+  private static final class Buffer extends ByteArrayOutputStream {
+
+    /**
+     * Returns a stream over the bytes written so far.
+     *
+     * @return InputStream the bytes written so far
+     */
+    private InputStream getInputStream() {
+      return new ByteArrayInputStream(buf, 0, count);
+    }
+
+  } // End Buffer class.
+
 } // End JSCompressionResStream class.
@@ -19,6 +19,7 @@ package javawebparts.filter;
 
 
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 
 import javax.servlet.ServletOutputStream;
@@ -79,19 +80,24 @@ public class JSCompressionResWrapper extends HttpServletResponseWrapper {
 
     super(inResp);
     strm = new JSCompressionResStream();
-    wrtr = new PrintWriter(strm);
 
   } // End JSCompressionResWrapper().
 
 
   /**
-   * Gets the PrintWriter off the output stream.
+   * Gets the PrintWriter off the output stream.  It encodes with the
+   * response's character encoding, which is what JSCompressionFilter decodes
+   * the collected output with.
    *
    * @return             PrintWriter on the OutputStream created.
    * @throws IOException IOException.
    */
   public PrintWriter getWriter() throws IOException {
 
+    if (wrtr == null) {
+      wrtr = new PrintWriter(new OutputStreamWriter(strm,
+        JSCompressionFilter.getEncoding(this)));
+    }
     return wrtr;
 
   } // End getWriter().
@@ -110,6 +116,78 @@ public class JSCompressionResWrapper extends HttpServletResponseWrapper {
   } // End getOutputStream().
 
 
+  /**
+   * Holds back the length set by the servlet, since it is the length of the
+   * content before minifying.  JSCompressionFilter sets the proper length
+   * itself, when it knows it.
+   *
+   * @param len The content length before minifying.
+   */
+  public void setContentLength(int len) {
+
+  } // End setContentLength().
+
+
+  /**
+   * Sets a header, holding back Content-Length.
+   *
+   * @param name  The header name.
+   * @param value The header value.
+   */
+  public void setHeader(String name, String value) {
+
+    if (!name.equalsIgnoreCase("Content-Length")) {
+      super.setHeader(name, value);
+    }
+
+  } // End setHeader().
+
+
+  /**
+   * Adds a header, holding back Content-Length.
+   *
+   * @param name  The header name.
+   * @param value The header value.
+   */
+  public void addHeader(String name, String value) {
+
+    if (!name.equalsIgnoreCase("Content-Length")) {
+      super.addHeader(name, value);
+    }
+
+  } // End addHeader().
+
+
+  /**
+   * Sets an integer header, holding back Content-Length.
+   *
+   * @param name  The header name.
+   * @param value The header value.
+   */
+  public void setIntHeader(String name, int value) {
+
+    if (!name.equalsIgnoreCase("Content-Length")) {
+      super.setIntHeader(name, value);
+    }
+
+  } // End setIntHeader().
+
+
+  /**
+   * Adds an integer header, holding back Content-Length.
+   *
+   * @param name  The header name.
+   * @param value The header value.
+   */
+  public void addIntHeader(String name, int value) {
+
+    if (!name.equalsIgnoreCase("Content-Length")) {
+      super.addIntHeader(name, value);
+    }
+
+  } // End addIntHeader().
+
+
   /**
    * @see javax.servlet.ServletResponse#setContentType(java.lang.String)
    */
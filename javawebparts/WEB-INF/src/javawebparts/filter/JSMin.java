@@ -47,21 +47,46 @@
 
 package javawebparts.filter;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.PushbackInputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
 
 /**
- * This class is used to do compression.
+ * This class is used to do compression.  It reads from a Reader and writes
+ * to a Writer one character at a time, holding no more than a small input
+ * buffer and one character of lookahead, so it can minify a script as it is
+ * streamed rather than from a String.  An instance may be reused for any
+ * number of scripts, but not by more than one thread at a time.
  *
  * @author <a href="mailto:herros@gmail.com">Herman van Rosmalen </a>.
  */
 public class JSMin {
     private static final int EOF = -1;
 
-    private PushbackInputStream in;
+    /**
+     * Marks lookahead as holding nothing.
+     */
+    private static final int NONE = -2;
+
+    private Reader in;
+
+    private Writer out;
+
+    /**
+     * Input buffer, refilled from in.
+     */
+    private char[] buf = new char[4096];
+
+    private int bufPos;
 
-    private StringBuffer out;
+    private int bufLen;
+
+    /**
+     * The character peek() looked at, or NONE.
+     */
+    private int lookahead = NONE;
 
     private int theA;
 
@@ -97,7 +122,12 @@ public class JSMin {
      *             IOException.
      */
     int get() throws IOException {
-        int c = in.read();
+        int c = lookahead;
+        if (c == NONE) {
+            c = read();
+        } else {
+            lookahead = NONE;
+        }
 
         if (c >= ' ' || c == '\n' || c == EOF) {
             return c;
@@ -118,9 +148,30 @@ public class JSMin {
      *             IOException.
      */
     int peek() throws IOException {
-        int lookaheadChar = in.read();
-        in.unread(lookaheadChar);
-        return lookaheadChar;
+        if (lookahead == NONE) {
+            lookahead = read();
+        }
+        return lookahead;
+    }
+
+    /**
+     * Reads the next raw character from the input buffer, refilling it as
+     * needed.
+     *
+     * @return int the next character as int, or EOF.
+     * @throws IOException
+     *             IOException.
+     */
+    private int read() throws IOException {
+        if (bufPos == bufLen) {
+            bufLen = in.read(buf, 0, buf.length);
+            bufPos = 0;
+            if (bufLen <= 0) {
+                bufLen = 0;
+                return EOF;
+            }
+        }
+        return buf[bufPos++];
     }
 
     /**
@@ -191,13 +242,13 @@ public class JSMin {
       UnterminatedCommentException, UnterminatedStringLiteralException {
     switch (d) {
     case 1:
-      out.append((char) theA);
+      out.write((char) theA);
     case 2:
       theA = theB;
 
       if (theA == '\'' || theA == '"') {
         for (;;) {
-          out.append((char) theA);
+          out.write((char) theA);
           theA = get();
           if (theA == theB) {
             break;
@@ -206,7 +257,7 @@ public class JSMin {
             throw new UnterminatedStringLiteralException();
           }
           if (theA == '\\') {
-            out.append((char) theA);
+            out.write((char) theA);
             theA = get();
           }
         }
@@ -215,19 +266,19 @@ public class JSMin {
     case 3:
       theB = next();
       if (theB == '/' && (theA == '(' || theA == ',' || theA == '=')) {
-        out.append((char) theA);
-        out.append((char) theB);
+        out.write((char) theA);
+        out.write((char) theB);
         for (;;) {
           theA = get();
           if (theA == '/') {
             break;
           } else if (theA == '\\') {
-            out.append((char) theA);
+            out.write((char) theA);
             theA = get();
           } else if (theA <= '\n') {
             throw new UnterminatedRegExpLiteralException();
           }
-          out.append((char) theA);
+          out.write((char) theA);
         }
         theB = next();
       }
@@ -256,9 +307,40 @@ public class JSMin {
     public String compress(String text) throws IOException,
             UnterminatedRegExpLiteralException, UnterminatedCommentException,
             UnterminatedStringLiteralException {
-        this.in = new PushbackInputStream(new ByteArrayInputStream(text
-                .getBytes()));
-        this.out = new StringBuffer();
+        StringWriter sw = new StringWriter(text.length());
+        compress(new StringReader(text), sw);
+        return sw.toString();
+    }
+
+    /**
+     * compress -- Copy everything the Reader returns to the Writer, deleting
+     * the characters which are insignificant to JavaScript, as
+     * compress(String) does.  Neither is closed, and the Writer is not
+     * flushed.  If an exception is thrown, part of the output may already
+     * have been written.
+     *
+     * @param reader
+     *            The script to compress.
+     * @param writer
+     *            Where to write the compressed script.
+     *
+     * @throws IOException
+     *             IOException.
+     * @throws UnterminatedRegExpLiteralException
+     *             UnterminatedRegExpLiteralException.
+     * @throws UnterminatedCommentException
+     *             UnterminatedCommentException.
+     * @throws UnterminatedStringLiteralException
+     *             UnterminatedStringLiteralException.
+     */
+    public void compress(Reader reader, Writer writer) throws IOException,
+            UnterminatedRegExpLiteralException, UnterminatedCommentException,
+            UnterminatedStringLiteralException {
+        this.in = reader;
+        this.out = writer;
+        bufPos = 0;
+        bufLen = 0;
+        lookahead = NONE;
         theA = '\n';
         action(3);
         while (theA != EOF) {
@@ -324,7 +406,8 @@ public class JSMin {
                 }
             }
         }
-        return out.toString();
+        this.in = null;
+        this.out = null;
     }
 
     /**
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.filter;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javawebparts.core.LatencyHistogram;
+
+
+/**
+ * This class is the set of LatencyHistograms ElapsedTimeFilter records
+ * into: one per path, or per template paths are grouped under, plus one for
+ * all requests together.  It is kept in the application context under
+ * ElapsedTimeFilter.STATS_KEY, where ElapsedTimeStatusServlet finds it.
+ * <br><br>
+ * The histograms are looked up in a map that is never changed once
+ * published: a new path copies it, adds its histogram and publishes the
+ * copy.  New paths soon stop turning up, so almost every lookup is a plain
+ * HashMap get with no locking at all.  Only so many paths are tracked, so a
+ * client requesting endless made-up URLs cannot use up memory; requests for
+ * paths beyond that are counted under OTHER.
+ *
+ * @author <a href="mailto:fzammetti@omnytex.com">Frank W. Zammetti</a>.
+ */
+public final class LatencyStats {
+
+
+  /**
+   * The name requests for paths beyond the maximum are counted under.
+   */
+  public static final String OTHER = "(other)";
+
+
+  /**
+   * The histograms, keyed by path.  Never changed once assigned.
+   */
+  private volatile Map histograms = new HashMap();
+
+
+  /**
+   * The histogram of all requests.
+   */
+  private LatencyHistogram all = new LatencyHistogram();
+
+
+  /**
+   * The number of paths tracked individually.
+   */
+  private int maxPaths;
+
+
+  /**
+   * When the counting started, as from System.currentTimeMillis().
+   */
+  private volatile long since = System.currentTimeMillis();
+
+
+  /**
+   * Constructor.
+   *
+   * @param inMaxPaths The number of paths to track individually.
+   */
+  public LatencyStats(int inMaxPaths) {
+
+    maxPaths = inMaxPaths;
+
+  } // End LatencyStats().
+
+
+  /**
+   * Records the elapsed time of a request.
+   *
+   * @param path   The path, or the template it is grouped under.
+   * @param millis The time, in milliseconds.
+   */
+  public void record(String path, long millis) {
+
+    all.record(millis);
+    Map              m = histograms;
+    LatencyHistogram h = (LatencyHistogram)m.get(path);
+    if (h == null && m.size() >= maxPaths) {
+      h = (LatencyHistogram)m.get(OTHER);
+    }
+    if (h == null) {
+      h = add(path);
+    }
+    h.record(millis);
+
+  } // End record().
+
+
+  /**
+   * Returns the histogram of all requests.
+   *
+   * @return The histogram.
+   */
+  public LatencyHistogram getAll() {
+
+    return all;
+
+  } // End getAll().
+
+
+  /**
+   * Returns the histogram of a path.
+   *
+   * @param  path The path, template or OTHER.
+   * @return      The histogram, or null if no request for it was recorded.
+   */
+  public LatencyHistogram get(String path) {
+
+    return (LatencyHistogram)histograms.get(path);
+
+  } // End get().
+
+
+  /**
+   * Returns the paths recorded, sorted.
+   *
+   * @return The paths.
+   */
+  public List getPaths() {
+
+    List paths = new ArrayList(histograms.keySet());
+    Collections.sort(paths);
+    return paths;
+
+  } // End getPaths().
+
+
+  /**
+   * Returns when the counting started.
+   *
+   * @return The time, as from System.currentTimeMillis().
+   */
+  public long getSince() {
+
+    return since;
+
+  } // End getSince().
+
+
+  /**
+   * Returns the number of requests per second for a histogram.
+   *
+   * @param  h   The histogram.
+   * @param  now The current time, as from System.currentTimeMillis().
+   * @return     The rate.
+   */
+  public double getRate(LatencyHistogram h, long now) {
+
+    return h.getCount() * 1000.0 / Math.max(1, now - since);
+
+  } // End getRate().
+
+
+  /**
+   * Forgets all the times recorded and starts counting afresh.
+   */
+  public synchronized void reset() {
+
+    histograms = new HashMap();
+    all.reset();
+    since = System.currentTimeMillis();
+
+  } // End reset().
+
+
+  /**
+   * Returns the number of paths and all requests' histogram, for logging
+   * purposes.
+   *
+   * @return The counts as a String.
+   */
+  public String toString() {
+
+    return "LatencyStats[paths=" + histograms.size() + ", all=" + all + "]";
+
+  } // End toString().
+
+
+  /**
+   * Adds the histogram of a path, or returns that of OTHER if the maximum
+   * number of paths is already tracked.
+   *
+   * @param  path The path.
+   * @return      The histogram.
+   */
+  private synchronized LatencyHistogram add(String path) {
+
+    // Another thread may have added it while this one waited.
+    LatencyHistogram h = (LatencyHistogram)histograms.get(path);
+    if (h != null) {
+      return h;
+    }
+    String key = path;
+    if (histograms.size() >= maxPaths) {
+      key = OTHER;
+      h   = (LatencyHistogram)histograms.get(OTHER);
+      if (h != null) {
+        return h;
+      }
+    }
+    h = new LatencyHistogram();
+    Map m = new HashMap(histograms);
+    m.put(key, h);
+    histograms = m;
+    return h;
+
+  } // End add().
+
+
+} // End class.
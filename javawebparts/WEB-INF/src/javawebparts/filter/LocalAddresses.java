@@ -0,0 +1,230 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.filter;
+
+
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.util.Enumeration;
+import java.util.Timer;
+import java.util.TimerTask;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * This class holds the addresses of every network interface of the server,
+ * which is what the "localhost" entry of IPAccessControlFilter matches.
+ * Looking them up can mean a blocking name service call, so it is done once
+ * up front and then again by a background timer at a fixed interval, never
+ * on a request thread.  Requests check the latest snapshot, which is
+ * replaced as a whole on each refresh.
+ * <br><br>
+ * A refresh that fails leaves the previous snapshot in place.  Failures are
+ * counted and logged, so a host whose interfaces cannot be read shows up in
+ * the statistics rather than silently matching nothing.
+ *
+ * @author <a href="mailto:fzammetti@omnytex.com">Frank W. Zammetti</a>.
+ */
+public class LocalAddresses {
+
+
+  /**
+   * This static initializer block tries to load all the classes this one
+   * depends on (those not from standard Java anyway) and prints an error
+   * meesage if any cannot be loaded for any reason.
+   */
+  static {
+    try {
+      Class.forName("org.apache.commons.logging.Log");
+      Class.forName("org.apache.commons.logging.LogFactory");
+    } catch (ClassNotFoundException e) {
+      System.err.println("LocalAddresses" +
+        " could not be loaded by classloader because classes it depends" +
+        " on could not be found in the classpath...");
+      e.printStackTrace();
+    }
+  }
+
+
+  /**
+   * Log instance.
+   */
+  private static Log log = LogFactory.getLog(LocalAddresses.class);
+
+
+  /**
+   * The current snapshot.
+   */
+  private volatile IPAddressMatcher snapshot =
+    IPAddressMatcher.compile("");
+
+
+  /**
+   * The addresses in the current snapshot, for logging purposes.
+   */
+  private volatile String addresses = "";
+
+
+  /**
+   * Timer doing the refreshes, or null if there are none.
+   */
+  private Timer timer;
+
+
+  /**
+   * Number of successful refreshes.
+   */
+  private long refreshes;
+
+
+  /**
+   * Number of failed refreshes.
+   */
+  private long failures;
+
+
+  /**
+   * Constructor.  The addresses are looked up right away.
+   *
+   * @param refreshInterval Milliseconds between refreshes, or 0 for none.
+   */
+  public LocalAddresses(long refreshInterval) {
+
+    refresh();
+    if (refreshInterval > 0) {
+      timer = new Timer(true);
+      timer.schedule(new TimerTask() {
+        public void run() {
+          refresh();
+        }
+      }, refreshInterval, refreshInterval);
+    }
+
+  } // End LocalAddresses().
+
+
+  /**
+   * Looks up the addresses of every network interface, plus the address
+   * the host name resolves to, and replaces the snapshot.
+   *
+   * @return True if the refresh succeeded.
+   */
+  public boolean refresh() {
+
+    StringBuffer sb = new StringBuffer();
+    try {
+      for (Enumeration ifs = NetworkInterface.getNetworkInterfaces();
+           ifs != null && ifs.hasMoreElements();) {
+        NetworkInterface ni = (NetworkInterface)ifs.nextElement();
+        for (Enumeration as = ni.getInetAddresses(); as.hasMoreElements();) {
+          sb.append(((InetAddress)as.nextElement()).getHostAddress());
+          sb.append(',');
+        }
+      }
+      try {
+        sb.append(InetAddress.getLocalHost().getHostAddress());
+      } catch (Exception e) {
+        // The interfaces already cover it in all but odd setups.
+        log.debug("Could not resolve the local host name: " + e);
+      }
+      if (sb.length() == 0) {
+        throw new IllegalStateException("no addresses found");
+      }
+      IPAddressMatcher m = IPAddressMatcher.compile(sb.toString());
+      snapshot  = m;
+      addresses = sb.toString();
+      synchronized (this) {
+        refreshes++;
+      }
+      return true;
+    } catch (Exception e) {
+      synchronized (this) {
+        failures++;
+      }
+      log.warn("Could not refresh local addresses, keeping " + addresses +
+        ": " + e);
+      return false;
+    }
+
+  } // End refresh().
+
+
+  /**
+   * Determines whether an address is one of this server's.
+   *
+   * @param  addr The address, from IPAddressMatcher.parse().
+   * @return      True if it is.
+   */
+  public boolean contains(byte[] addr) {
+
+    return snapshot.matches(addr);
+
+  } // End contains().
+
+
+  /**
+   * Stops the refreshes.
+   */
+  public void stop() {
+
+    if (timer != null) {
+      timer.cancel();
+    }
+
+  } // End stop().
+
+
+  /**
+   * Returns the number of successful refreshes, including the first.
+   *
+   * @return The count.
+   */
+  public synchronized long getRefreshes() {
+
+    return refreshes;
+
+  } // End getRefreshes().
+
+
+  /**
+   * Returns the number of refreshes that failed.
+   *
+   * @return The count.
+   */
+  public synchronized long getRefreshFailures() {
+
+    return failures;
+
+  } // End getRefreshFailures().
+
+
+  /**
+   * Returns the addresses and statistics, for logging purposes.
+   *
+   * @return The description as a String.
+   */
+  public synchronized String toString() {
+
+    return "LocalAddresses[addresses=" + addresses + ", refreshes=" +
+      refreshes + ", refreshFailures=" + failures + "]";
+
+  } // End toString().
+
+
+} // End class.
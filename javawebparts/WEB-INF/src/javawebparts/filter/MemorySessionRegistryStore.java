@@ -0,0 +1,228 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.filter;
+
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+
+
+/**
+ * This class is the default SessionRegistryStore, which keeps its counts in
+ * memory.  It limits the sessions of a single node, which is what
+ * SessionLimiterFilter does when no other store is configured.  Other stores
+ * may extend it and use its counting, only loading the counts before and
+ * saving them after each call.
+ * <br><br>
+ * Init parameters are:
+ * <br>
+ * <ul>
+ * <li><b>nodeTimeout</b> - How long, in seconds, a node may go without a
+ * heartbeat before its slots are reclaimed.  Required: No.
+ * Default: 60.</li>
+ * </ul>
+ *
+ * @author Tamas Szabo
+ */
+public class MemorySessionRegistryStore implements SessionRegistryStore {
+
+
+  /**
+   * Seconds a node may go without a heartbeat if nodeTimeout is not
+   * specified.
+   */
+  public static final int DEFAULT_NODE_TIMEOUT = 60;
+
+
+  /**
+   * The slots held and the last heartbeat of each node, as long[2] keyed
+   * by node.
+   */
+  protected Map nodes = new HashMap();
+
+
+  /**
+   * Milliseconds a node may go without a heartbeat.
+   */
+  private long nodeTimeout = DEFAULT_NODE_TIMEOUT * 1000L;
+
+
+  /**
+   * Initializes the store.
+   *
+   * @param  filterConfig     The configuration of the filter using it.
+   * @throws ServletException If the configuration is not valid.
+   */
+  public void init(FilterConfig filterConfig) throws ServletException {
+
+    setNodeTimeout(FilterHelpers.initIntParam(getClass().getName(),
+      filterConfig, "nodeTimeout", DEFAULT_NODE_TIMEOUT) * 1000L);
+
+  } // End init().
+
+
+  /**
+   * nodeTimeout mutator.
+   *
+   * @param inNodeTimeout Milliseconds a node may go without a heartbeat.
+   */
+  public void setNodeTimeout(long inNodeTimeout) {
+
+    nodeTimeout = inNodeTimeout;
+
+  } // End setNodeTimeout().
+
+
+  /**
+   * Leases slots to a node.
+   *
+   * @param  node        The node.
+   * @param  wanted      The number of slots wanted.
+   * @param  maxSessions The number of slots there are in all.
+   * @return             The number of slots leased.
+   * @throws IOException Never, here.
+   */
+  public synchronized int lease(String node, int wanted, int maxSessions)
+    throws IOException {
+
+    long[] n       = touch(node);
+    int    granted = Math.max(0, Math.min(wanted, maxSessions - total()));
+    n[0] += granted;
+    return granted;
+
+  } // End lease().
+
+
+  /**
+   * Gives back slots.
+   *
+   * @param  node        The node.
+   * @param  count       The number of slots.
+   * @throws IOException Never, here.
+   */
+  public synchronized void release(String node, int count)
+    throws IOException {
+
+    long[] n = touch(node);
+    n[0] = Math.max(0, n[0] - count);
+
+  } // End release().
+
+
+  /**
+   * Records a heartbeat and reclaims the slots of silent nodes.
+   *
+   * @param  node        The node.
+   * @return             The number of slots the node holds.
+   * @throws IOException Never, here.
+   */
+  public synchronized int heartbeat(String node) throws IOException {
+
+    return (int)touch(node)[0];
+
+  } // End heartbeat().
+
+
+  /**
+   * Removes a node.
+   *
+   * @param  node        The node.
+   * @throws IOException Never, here.
+   */
+  public synchronized void remove(String node) throws IOException {
+
+    nodes.remove(node);
+
+  } // End remove().
+
+
+  /**
+   * Returns the number of slots leased to all nodes.
+   *
+   * @return             The count.
+   * @throws IOException Never, here.
+   */
+  public synchronized int getLeased() throws IOException {
+
+    return total();
+
+  } // End getLeased().
+
+
+  /**
+   * Records a heartbeat from a node, adding it if it is new, and drops the
+   * nodes that have been silent for too long.
+   *
+   * @param  node The node.
+   * @return      The node's counts.
+   */
+  protected long[] touch(String node) {
+
+    long now = currentTime();
+    for (Iterator it = nodes.entrySet().iterator(); it.hasNext();) {
+      Map.Entry e = (Map.Entry)it.next();
+      if (((long[])e.getValue())[1] < now - nodeTimeout &&
+        !e.getKey().equals(node)) {
+        it.remove();
+      }
+    }
+    long[] n = (long[])nodes.get(node);
+    if (n == null) {
+      n = new long[2];
+      nodes.put(node, n);
+    }
+    n[1] = now;
+    return n;
+
+  } // End touch().
+
+
+  /**
+   * Returns the current time heartbeats are compared with.  Tests override
+   * this to move time on without waiting.
+   *
+   * @return The time, as from System.currentTimeMillis().
+   */
+  protected long currentTime() {
+
+    return System.currentTimeMillis();
+
+  } // End currentTime().
+
+
+  /**
+   * Returns the slots held by all nodes.
+   *
+   * @return The count.
+   */
+  protected int total() {
+
+    long t = 0;
+    for (Iterator it = nodes.values().iterator(); it.hasNext();) {
+      t += ((long[])it.next())[0];
+    }
+    return (int)t;
+
+  } // End total().
+
+
+} // End class.
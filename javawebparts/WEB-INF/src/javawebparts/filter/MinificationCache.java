@@ -0,0 +1,349 @@
+/*
+ * Copyright 2006 Herman van Rosmalen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package javawebparts.filter;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class is the cache JSCompressionFilter keeps of minified scripts,
+ * so a script it has seen before, whether a whole .js file or a block in a
+ * page, is not run through JSMin again.  Scripts are keyed by their content
+ * rather than by URL, so the same block repeated across many pages is only
+ * minified once.
+ * <br><br>
+ * The key is a 64-bit FNV-1a hash of the script plus a second, independent
+ * 32-bit hash and the length, which makes lookups cheap, but neither hash
+ * is cryptographic and page content may come from users, so two scripts
+ * could be made to share them.  Each entry therefore keeps a copy of the
+ * script it was made from, and a hit is only taken once the script looked
+ * up has been compared with it in full.  An entry costs about two bytes
+ * for each character of the script and of its minified form.  Entries are
+ * evicted least recently used first once the total exceeds a byte budget.
+ * Scripts JSMin rejected are remembered too, so they are not retried.
+ * <br><br>
+ * All access is synchronized on the cache, but only a map lookup and some
+ * bookkeeping are done while holding the lock.
+ *
+ * @author <a href="mailto:herros@gmail.com">Herman van Rosmalen </a>.
+ */
+public class MinificationCache {
+
+  /**
+   * Returned by get() for a script JSMin rejected.
+   */
+  public static final char[] REJECTED = new char[0];
+
+  /**
+   * Approximate bytes an entry takes beyond its characters.
+   */
+  private static final int ENTRY_OVERHEAD = 64;
+
+  /**
+   * FNV-1a 64-bit offset basis.
+   */
+  private static final long FNV_BASIS = 0xcbf29ce484222325L;
+
+  /**
+   * FNV-1a 64-bit prime.
+   */
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  /**
+   * The entries, in access order.
+   */
+  private LinkedHashMap entries = new LinkedHashMap(16, 0.75f, true);
+
+  /**
+   * The most bytes all entries together may take.
+   */
+  private long maxBytes;
+
+  /**
+   * The number of bytes all entries together currently take.
+   */
+  private long currentBytes;
+
+  /**
+   * Number of lookups that found an entry.
+   */
+  private long hits;
+
+  /**
+   * Number of lookups that did not.
+   */
+  private long misses;
+
+  /**
+   * Number of entries removed to stay within the byte budget.
+   */
+  private long evictions;
+
+  /**
+   * Characters of script that hits kept from going through JSMin.
+   */
+  private long charsSkipped;
+
+  /**
+   * Characters removed from the scripts served from this cache.
+   */
+  private long charsSaved;
+
+  /**
+   * Constructor.
+   *
+   * @param inMaxBytes The most bytes all entries together may take.
+   */
+  public MinificationCache(long inMaxBytes) {
+
+    maxBytes = inMaxBytes;
+
+  } // End MinificationCache().
+
+  /**
+   * Builds the key for a script.  The key refers to buf rather than
+   * copying it, so the script must not change until the key has been
+   * given to get() and put(); put() keeps a copy of its own.
+   *
+   * @param  buf Array holding the script.
+   * @param  off Offset of the script.
+   * @param  len Length of the script.
+   * @return     The key.
+   */
+  public static Object makeKey(char[] buf, int off, int len) {
+
+    long h1  = FNV_BASIS;
+    int  h2  = 0;
+    int  end = off + len;
+    for (int i = off; i < end; i++) {
+      char c = buf[i];
+      h1 = (h1 ^ (c & 0xff)) * FNV_PRIME;
+      h1 = (h1 ^ (c >>> 8)) * FNV_PRIME;
+      h2 = 31 * h2 + c;
+    }
+    return new Key(h1, h2, buf, off, len);
+
+  } // End makeKey().
+
+  /**
+   * Gets a minified script.
+   *
+   * @param  key The key, from makeKey().
+   * @return     The minified script, REJECTED if JSMin rejected it, or null
+   *             if it is not cached.  The array must not be modified.
+   */
+  public synchronized char[] get(Object key) {
+
+    char[] min = (char[])entries.get(key);
+    if (min == null) {
+      misses++;
+      return null;
+    }
+    hits++;
+    int len = ((Key)key).len;
+    charsSkipped += len;
+    if (min != REJECTED) {
+      charsSaved += len - min.length;
+    }
+    return min;
+
+  } // End get().
+
+  /**
+   * Caches a minified script, evicting the least recently used entries as
+   * needed.
+   *
+   * @param key The key, from makeKey().
+   * @param min The minified script, or REJECTED.
+   */
+  public synchronized void put(Object key, char[] min) {
+
+    Key  k    = (Key)key;
+    long size = sizeOf(k, min);
+    if (size > maxBytes) {
+      return;
+    }
+    char[] old = (char[])entries.remove(k);
+    if (old != null) {
+      currentBytes -= sizeOf(k, old);
+    }
+    for (Iterator it = entries.entrySet().iterator();
+         it.hasNext() && currentBytes + size > maxBytes;) {
+      Map.Entry e = (Map.Entry)it.next();
+      currentBytes -= sizeOf((Key)e.getKey(), (char[])e.getValue());
+      it.remove();
+      evictions++;
+    }
+    entries.put(k.copy(), min);
+    currentBytes += size;
+
+  } // End put().
+
+  /**
+   * Returns the approximate bytes an entry takes.
+   *
+   * @param  key The key, holding the script.
+   * @param  min The minified script.
+   * @return     The size.
+   */
+  private static long sizeOf(Key key, char[] min) {
+
+    return (key.len + min.length) * 2L + ENTRY_OVERHEAD;
+
+  } // End sizeOf().
+
+  /**
+   * Returns the fraction of lookups that were hits.
+   *
+   * @return The hit ratio, between 0 and 1.
+   */
+  public synchronized double getHitRatio() {
+
+    long total = hits + misses;
+    return total == 0 ? 0 : (double)hits / total;
+
+  } // End getHitRatio().
+
+  /**
+   * Returns the number of characters of script that did not have to go
+   * through JSMin because they were found here.
+   *
+   * @return The count.
+   */
+  public synchronized long getCharsSkipped() {
+
+    return charsSkipped;
+
+  } // End getCharsSkipped().
+
+  /**
+   * Returns the number of characters minification removed from the scripts
+   * served from this cache.
+   *
+   * @return The count.
+   */
+  public synchronized long getCharsSaved() {
+
+    return charsSaved;
+
+  } // End getCharsSaved().
+
+  /**
+   * Returns the statistics of this cache, for logging purposes.
+   *
+   * @return The statistics as a String.
+   */
+  public synchronized String toString() {
+
+    long total = hits + misses;
+    return "MinificationCache[entries=" + entries.size() +
+      ", bytes=" + currentBytes + "/" + maxBytes + ", hits=" + hits +
+      ", misses=" + misses + ", hitRatio=" +
+      (total == 0 ? 0 : hits * 100 / total) + "%, charsSkipped=" +
+      charsSkipped + ", charsSaved=" + charsSaved +
+      ", evictions=" + evictions + "]";
+
+  } // End toString().
+
+  /**
+   * The key of a script.
+   */
+  private static final class Key {
+
+    /**
+     * FNV-1a hash.
+     */
+    private final long h1;
+
+    /**
+     * Polynomial hash.
+     */
+    private final int h2;
+
+    /**
+     * Array holding the script.
+     */
+    private final char[] buf;
+
+    /**
+     * Offset of the script.
+     */
+    private final int off;
+
+    /**
+     * Length of the script.
+     */
+    private final int len;
+
+    /**
+     * Constructor.
+     *
+     * @param inH1  FNV-1a hash.
+     * @param inH2  Polynomial hash.
+     * @param inBuf Array holding the script.
+     * @param inOff Offset of the script.
+     * @param inLen Length of the script.
+     */
+    private Key(long inH1, int inH2, char[] inBuf, int inOff, int inLen) {
+      h1  = inH1;
+      h2  = inH2;
+      buf = inBuf;
+      off = inOff;
+      len = inLen;
+    }
+
+    /**
+     * @return A key for the same script holding a copy of it.
+     */
+    private Key copy() {
+      char[] c = new char[len];
+      System.arraycopy(buf, off, c, 0, len);
+      return new Key(h1, h2, c, 0, len);
+    }
+
+    /**
+     * @return The hash code.
+     */
+    public int hashCode() {
+      return (int)(h1 ^ (h1 >>> 32));
+    }
+
+    /**
+     * @param  o The other object.
+     * @return   True if o is a Key for the same script, compared character
+     *           by character.
+     */
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key k = (Key)o;
+      if (h1 != k.h1 || h2 != k.h2 || len != k.len) {
+        return false;
+      }
+      for (int i = 0; i < len; i++) {
+        if (buf[off + i] != k.buf[k.off + i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+  } // End Key class.
+
+} // End class.
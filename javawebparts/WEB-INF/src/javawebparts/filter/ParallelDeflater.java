@@ -0,0 +1,505 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.filter;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.LinkedList;
+import java.util.zip.Deflater;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * This class is a shared set of worker threads that compress blocks of a
+ * response in parallel, in the manner of pigz.  Each block is raw-deflated
+ * with the 32K of input preceding it as its dictionary and ends with a sync
+ * flush, so the compressed blocks can simply be written one after another to
+ * form a single valid Deflate stream.  CompressingOutputStream does that
+ * stitching, and keeps the checksum of the whole input itself, since that
+ * is cheap compared to compressing it.
+ * <br><br>
+ * Sync flushing needs Deflater.SYNC_FLUSH, which only arrived in Java 7.
+ * It is looked up reflectively so this code still builds under J2SE 1.4;
+ * when it is not there isSupported() returns false and CompressionFilter
+ * sticks to single-threaded compression.
+ *
+ * @author <a href="mailto:fzammetti@omnytex.com">Frank W. Zammetti</a>.
+ */
+public class ParallelDeflater {
+
+
+  /**
+   * This static initializer block tries to load all the classes this one
+   * depends on (those not from standard Java anyway) and prints an error
+   * meesage if any cannot be loaded for any reason.  It also looks up the
+   * sync flush support of the running Java version.
+   */
+  static {
+    try {
+      Class.forName("org.apache.commons.logging.Log");
+      Class.forName("org.apache.commons.logging.LogFactory");
+    } catch (ClassNotFoundException e) {
+      System.err.println("ParallelDeflater" +
+        " could not be loaded by classloader because classes it depends" +
+        " on could not be found in the classpath...");
+      e.printStackTrace();
+    }
+    Method m    = null;
+    Integer sf  = null;
+    try {
+      m  = Deflater.class.getMethod("deflate", new Class[] {
+        byte[].class, Integer.TYPE, Integer.TYPE, Integer.TYPE });
+      sf = new Integer(Deflater.class.getField("SYNC_FLUSH").getInt(null));
+    } catch (Exception e) {
+      m = null;
+    }
+    deflateWithFlush = m;
+    syncFlushMode    = sf;
+  }
+
+
+  /**
+   * Log instance.
+   */
+  private static Log log = LogFactory.getLog(ParallelDeflater.class);
+
+
+  /**
+   * Size of the 32K window Deflate can refer back into, and therefore of
+   * the dictionary each block is primed with.
+   */
+  public static final int WINDOW_SIZE = 32768;
+
+
+  /**
+   * Deflater.deflate(byte[], int, int, int), or null if not available.
+   */
+  private static Method deflateWithFlush;
+
+
+  /**
+   * Deflater.SYNC_FLUSH, or null if not available.
+   */
+  private static Integer syncFlushMode;
+
+
+  /**
+   * Blocks waiting for a worker.
+   */
+  private LinkedList queue = new LinkedList();
+
+
+  /**
+   * The worker threads.
+   */
+  private Thread[] workers;
+
+
+  /**
+   * Size of the blocks responses are split into.
+   */
+  private int blockSize;
+
+
+  /**
+   * Compression level of the worker Deflaters.
+   */
+  private int level;
+
+
+  /**
+   * Compression strategy of the worker Deflaters.
+   */
+  private int strategy;
+
+
+  /**
+   * Whether shutdown() has been called.
+   */
+  private boolean shutdown;
+
+
+  /**
+   * Number of blocks compressed.
+   */
+  private long blocks;
+
+
+  /**
+   * Constructor.  The worker threads are daemons, and are started here.
+   *
+   * @param threads     Number of worker threads.
+   * @param inBlockSize Size of the blocks responses are split into.
+   * @param inLevel     Compression level.
+   * @param inStrategy  Compression strategy.
+   */
+  public ParallelDeflater(int threads, int inBlockSize, int inLevel,
+    int inStrategy) {
+
+    blockSize = Math.max(inBlockSize, WINDOW_SIZE);
+    level     = inLevel;
+    strategy  = inStrategy;
+    workers   = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      workers[i] = new Worker();
+      workers[i].setName("ParallelDeflater-" + i);
+      workers[i].setDaemon(true);
+      workers[i].start();
+    }
+
+  } // End ParallelDeflater().
+
+
+  /**
+   * Determines whether the running Java version can do sync flushes, which
+   * both this class and CompressingOutputStream.flush() make use of.
+   *
+   * @return True if it can.
+   */
+  public static boolean isSupported() {
+
+    return deflateWithFlush != null;
+
+  } // End isSupported().
+
+
+  /**
+   * Sync flushes a Deflater: every byte of input given to it so far is
+   * compressed and output, ending on a byte boundary, without ending the
+   * stream.
+   *
+   * @param  def         The Deflater.
+   * @param  out         Where to write the output.
+   * @param  buf         Scratch buffer.
+   * @throws IOException If sync flushing is not supported or writing fails.
+   */
+  public static void syncFlush(Deflater def, OutputStream out, byte[] buf)
+    throws IOException {
+
+    if (deflateWithFlush == null) {
+      throw new IOException("Deflater.SYNC_FLUSH is not available");
+    }
+    Object[] args = {buf, new Integer(0), new Integer(buf.length),
+      syncFlushMode};
+    int n;
+    do {
+      try {
+        n = ((Integer)deflateWithFlush.invoke(def, args)).intValue();
+      } catch (IllegalAccessException e) {
+        throw new IOException(e.toString());
+      } catch (InvocationTargetException e) {
+        throw new IOException(e.getTargetException().toString());
+      }
+      out.write(buf, 0, n);
+    } while (n == buf.length);
+
+  } // End syncFlush().
+
+
+  /**
+   * Returns the size of the blocks responses are split into.
+   *
+   * @return The block size.
+   */
+  public int getBlockSize() {
+
+    return blockSize;
+
+  } // End getBlockSize().
+
+
+  /**
+   * Returns the number of worker threads.
+   *
+   * @return The number of threads.
+   */
+  public int getThreads() {
+
+    return workers.length;
+
+  } // End getThreads().
+
+
+  /**
+   * Queues a block for compression.  If this has been shut down, the block
+   * is compressed right away in the calling thread instead.
+   *
+   * @param  input       The block's input.  It must not be modified until
+   *                     the block is done.
+   * @param  inputLen    Number of bytes of input.
+   * @param  dict        Array holding the dictionary, or null for none.
+   * @param  dictOff     Offset of the dictionary.
+   * @param  dictLen     Length of the dictionary.
+   * @param  last        True if this is the last block of the stream.
+   * @return             The block, to be waited on with await().
+   * @throws IOException If compressing in the calling thread fails.
+   */
+  public Block submit(byte[] input, int inputLen, byte[] dict, int dictOff,
+    int dictLen, boolean last) throws IOException {
+
+    Block b = new Block(input, inputLen, dict, dictOff, dictLen, last);
+    synchronized (queue) {
+      if (!shutdown) {
+        queue.addLast(b);
+        queue.notify();
+        return b;
+      }
+    }
+    Deflater def = new Deflater(level, true);
+    def.setStrategy(strategy);
+    try {
+      b.compress(def, new byte[8192]);
+    } finally {
+      def.end();
+    }
+    return b;
+
+  } // End submit().
+
+
+  /**
+   * Stops the worker threads once the queue is empty.
+   */
+  public void shutdown() {
+
+    synchronized (queue) {
+      shutdown = true;
+      queue.notifyAll();
+    }
+    log.info("ParallelDeflater shut down after " + getBlocks() + " blocks");
+
+  } // End shutdown().
+
+
+  /**
+   * Returns the number of blocks compressed by the workers.
+   *
+   * @return The count.
+   */
+  public synchronized long getBlocks() {
+
+    return blocks;
+
+  } // End getBlocks().
+
+
+  /**
+   * Counts a compressed block.
+   */
+  private synchronized void countBlock() {
+
+    blocks++;
+
+  } // End countBlock().
+
+
+  /**
+   * A block of input and, once done, its compressed output.
+   */
+  public static final class Block {
+
+    /**
+     * The input.
+     */
+    private byte[] input;
+
+    /**
+     * Length of the input.
+     */
+    private int inputLen;
+
+    /**
+     * Array holding the dictionary, or null.
+     */
+    private byte[] dict;
+
+    /**
+     * Offset of the dictionary.
+     */
+    private int dictOff;
+
+    /**
+     * Length of the dictionary.
+     */
+    private int dictLen;
+
+    /**
+     * Whether this is the last block.
+     */
+    private boolean last;
+
+    /**
+     * The compressed output.
+     */
+    private byte[] output;
+
+    /**
+     * Set if compression failed.
+     */
+    private IOException error;
+
+    /**
+     * Whether compression has finished, successfully or not.
+     */
+    private boolean done;
+
+    /**
+     * Constructor.
+     *
+     * @param inInput    The input.
+     * @param inInputLen Length of the input.
+     * @param inDict     Dictionary array, or null.
+     * @param inDictOff  Offset of the dictionary.
+     * @param inDictLen  Length of the dictionary.
+     * @param inLast     Whether this is the last block.
+     */
+    private Block(byte[] inInput, int inInputLen, byte[] inDict,
+      int inDictOff, int inDictLen, boolean inLast) {
+      input    = inInput;
+      inputLen = inInputLen;
+      dict     = inDict;
+      dictOff  = inDictOff;
+      dictLen  = inDictLen;
+      last     = inLast;
+    }
+
+    /**
+     * Determines whether the block is done.
+     *
+     * @return True if it is.
+     */
+    public synchronized boolean isDone() {
+      return done;
+    }
+
+    /**
+     * Waits for the block to be done.
+     *
+     * @return             The compressed output.
+     * @throws IOException If compression failed or the wait was
+     *                     interrupted.
+     */
+    public synchronized byte[] await() throws IOException {
+      while (!done) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          throw new IOException("Interrupted waiting for block");
+        }
+      }
+      if (error != null) {
+        throw error;
+      }
+      return output;
+    }
+
+    /**
+     * Compresses the block with the given Deflater, which is reset first.
+     *
+     * @param def The Deflater, created with nowrap true.
+     * @param buf Scratch buffer.
+     */
+    private void compress(Deflater def, byte[] buf) {
+      byte[]      result = null;
+      IOException ex     = null;
+      try {
+        ByteArrayOutputStream bo =
+          new ByteArrayOutputStream(inputLen / 2 + 64);
+        def.reset();
+        if (dict != null && dictLen > 0) {
+          def.setDictionary(dict, dictOff, dictLen);
+        }
+        def.setInput(input, 0, inputLen);
+        if (last) {
+          def.finish();
+          while (!def.finished()) {
+            int n = def.deflate(buf, 0, buf.length);
+            bo.write(buf, 0, n);
+          }
+        } else {
+          while (!def.needsInput()) {
+            int n = def.deflate(buf, 0, buf.length);
+            bo.write(buf, 0, n);
+          }
+          syncFlush(def, bo, buf);
+        }
+        result = bo.toByteArray();
+      } catch (IOException e) {
+        ex = e;
+      } catch (RuntimeException e) {
+        ex = new IOException(e.toString());
+      }
+      synchronized (this) {
+        output = result;
+        error  = ex;
+        done   = true;
+        // The input is no longer needed by this block.
+        input  = null;
+        dict   = null;
+        notifyAll();
+      }
+    }
+
+  } // End Block class.
+
+
+  /**
+   * A worker thread, with its own Deflater.
+   */
+  private final class Worker extends Thread {
+
+    /**
+     * Takes blocks off the queue and compresses them until shut down.
+     */
+    public void run() {
+      Deflater def = new Deflater(level, true);
+      def.setStrategy(strategy);
+      byte[]   buf = new byte[8192];
+      try {
+        while (true) {
+          Block b;
+          synchronized (queue) {
+            while (queue.isEmpty() && !shutdown) {
+              try {
+                queue.wait();
+              } catch (InterruptedException e) {
+                return;
+              }
+            }
+            if (queue.isEmpty()) {
+              return;
+            }
+            b = (Block)queue.removeFirst();
+          }
+          b.compress(def, buf);
+          countBlock();
+        }
+      } finally {
+        def.end();
+      }
+    }
+
+  } // End Worker class.
+
+
+} // End class.
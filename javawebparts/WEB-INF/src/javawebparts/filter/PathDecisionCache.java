@@ -0,0 +1,303 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.filter;
+
+
+/**
+ * This class is a small, bounded cache of path match decisions, keyed by
+ * servlet path plus path info.  It is attached to a PathMatcher when a
+ * filter specifies the pathDecisionCacheSize init parameter, and it saves
+ * the matcher from re-evaluating the pathList for paths it has seen before.
+ * <br><br>
+ * The cache is a fixed array of slots, split into small sets.  A key may
+ * only live in its own set, and within a set slots are replaced using the
+ * CLOCK algorithm (a slot that has been hit since the last sweep gets a
+ * second chance).  No locks are taken: entries are immutable apart from
+ * their reference bit, so a racing reader sees either the old entry or the
+ * new one, and the worst a race can do is cost one extra evaluation.  For
+ * the same reason the hit and miss counters are approximate under heavy
+ * concurrency, which is good enough for verifying that the cache is doing
+ * its job.
+ *
+ * @author <a href="mailto:fzammetti@omnytex.com">Frank W. Zammetti</a>.
+ */
+public final class PathDecisionCache {
+
+
+  /**
+   * Returned by lookup() when the decision is not in the cache.
+   */
+  public static final int UNKNOWN = -1;
+
+
+  /**
+   * Number of slots per set.
+   */
+  private static final int SET_SIZE = 4;
+
+
+  /**
+   * The most decisions a cache holds, whatever size it is asked for.
+   */
+  public static final int MAX_SIZE = 1 << 20;
+
+
+  /**
+   * The slots.
+   */
+  private Entry[] slots;
+
+
+  /**
+   * Mask applied to a hash to pick a set.
+   */
+  private int setMask;
+
+
+  /**
+   * Number of lookups answered from the cache.
+   */
+  private volatile long hits;
+
+
+  /**
+   * Number of lookups not answered from the cache.
+   */
+  private volatile long misses;
+
+
+  /**
+   * Number of entries replaced to make room for another.
+   */
+  private volatile long evictions;
+
+
+  /**
+   * Constructor.
+   *
+   * @param size The maximum number of decisions to hold.  It is rounded up
+   *             to a power of two no smaller than the set size, and no
+   *             larger than MAX_SIZE.
+   */
+  public PathDecisionCache(int size) {
+
+    int capacity = SET_SIZE;
+    while (capacity < Math.min(size, MAX_SIZE)) {
+      capacity <<= 1;
+    }
+    slots   = new Entry[capacity];
+    setMask = capacity / SET_SIZE - 1;
+
+  } // End PathDecisionCache().
+
+
+  /**
+   * Looks up a decision.
+   *
+   * @param  servletPath The servlet path, never null.
+   * @param  pathInfo    The path info, may be null.
+   * @return             1 if the path matched, 0 if it didn't, UNKNOWN if
+   *                     the decision is not cached.
+   */
+  public int lookup(String servletPath, String pathInfo) {
+
+    int base = setFor(servletPath, pathInfo);
+    for (int i = 0; i < SET_SIZE; i++) {
+      Entry e = slots[base + i];
+      if (e != null && e.isFor(servletPath, pathInfo)) {
+        e.referenced = true;
+        hits++;
+        return e.decision ? 1 : 0;
+      }
+    }
+    misses++;
+    return UNKNOWN;
+
+  } // End lookup().
+
+
+  /**
+   * Stores a decision, replacing an entry in the key's set if it is full.
+   *
+   * @param servletPath The servlet path, never null.
+   * @param pathInfo    The path info, may be null.
+   * @param decision    Whether the path matched.
+   */
+  public void store(String servletPath, String pathInfo, boolean decision) {
+
+    int   base = setFor(servletPath, pathInfo);
+    Entry ne   = new Entry(servletPath, pathInfo, decision);
+    // Use an empty slot if there is one.
+    for (int i = 0; i < SET_SIZE; i++) {
+      if (slots[base + i] == null) {
+        slots[base + i] = ne;
+        return;
+      }
+    }
+    // Otherwise sweep the set, giving referenced entries a second chance.
+    // Two passes always find a victim, since the first clears every bit.
+    for (int i = 0; i < SET_SIZE * 2; i++) {
+      int   slot = base + (i % SET_SIZE);
+      Entry e    = slots[slot];
+      if (e == null || !e.referenced) {
+        slots[slot] = ne;
+        evictions++;
+        return;
+      }
+      e.referenced = false;
+    }
+
+  } // End store().
+
+
+  /**
+   * Returns the number of decisions the cache can hold.
+   *
+   * @return The capacity.
+   */
+  public int getCapacity() {
+
+    return slots.length;
+
+  } // End getCapacity().
+
+
+  /**
+   * Returns the number of lookups answered from the cache.
+   *
+   * @return The hit count.
+   */
+  public long getHits() {
+
+    return hits;
+
+  } // End getHits().
+
+
+  /**
+   * Returns the number of lookups not answered from the cache.
+   *
+   * @return The miss count.
+   */
+  public long getMisses() {
+
+    return misses;
+
+  } // End getMisses().
+
+
+  /**
+   * Returns the number of entries replaced to make room for others.
+   *
+   * @return The eviction count.
+   */
+  public long getEvictions() {
+
+    return evictions;
+
+  } // End getEvictions().
+
+
+  /**
+   * Returns the statistics of this cache, for logging purposes.
+   *
+   * @return The statistics as a String.
+   */
+  public String toString() {
+
+    return "PathDecisionCache[capacity=" + slots.length + ", hits=" + hits +
+      ", misses=" + misses + ", evictions=" + evictions + "]";
+
+  } // End toString().
+
+
+  /**
+   * Computes the index of the first slot in the set for a key.
+   *
+   * @param  servletPath The servlet path.
+   * @param  pathInfo    The path info, may be null.
+   * @return             The index of the first slot of the set.
+   */
+  private int setFor(String servletPath, String pathInfo) {
+
+    int h = servletPath.hashCode() * 31;
+    if (pathInfo != null) {
+      h += pathInfo.hashCode();
+    }
+    h ^= h >>> 16;
+    return (h & setMask) * SET_SIZE;
+
+  } // End setFor().
+
+
+  /**
+   * A cached decision.
+   */
+  private static final class Entry {
+
+    /**
+     * The servlet path.
+     */
+    private final String servletPath;
+
+    /**
+     * The path info, may be null.
+     */
+    private final String pathInfo;
+
+    /**
+     * Whether the path matched.
+     */
+    private final boolean decision;
+
+    /**
+     * CLOCK reference bit.
+     */
+    private volatile boolean referenced;
+
+    /**
+     * Constructor.
+     *
+     * @param sp The servlet path.
+     * @param pi The path info.
+     * @param d  The decision.
+     */
+    private Entry(String sp, String pi, boolean d) {
+      servletPath = sp;
+      pathInfo    = pi;
+      decision    = d;
+    }
+
+    /**
+     * Determines whether this entry is for the given key.
+     *
+     * @param  sp The servlet path.
+     * @param  pi The path info.
+     * @return    True if it is, false if not.
+     */
+    private boolean isFor(String sp, String pi) {
+      if (!servletPath.equals(sp)) {
+        return false;
+      }
+      return pathInfo == null ? pi == null : pathInfo.equals(pi);
+    }
+
+  } // End Entry class.
+
+
+} // End class.
@@ -0,0 +1,575 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.filter;
+
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.servlet.http.HttpServletRequest;
+
+
+/**
+ * This class is a precompiled form of the pathList init parameter that many
+ * of the JWP filters support.  The list is compiled once, when the filter
+ * is initialized, and can then be queried for every request without
+ * compiling anything and without allocating any objects.
+ * <br><br>
+ * Each entry in the list is sorted into one of four buckets:
+ * <br>
+ * <ul>
+ * <li>Exact paths (no wildcard at all), i.e., "/index.jsp".</li>
+ * <li>Prefix paths (a single trailing wildcard), i.e., "/secure/*".</li>
+ * <li>Suffix paths (a single leading wildcard), i.e., "*&zwj;/bigimage.gif".
+ * </li>
+ * <li>Everything else (wildcards in the middle, regex characters, etc).</li>
+ * </ul>
+ * <br>
+ * The first two buckets are stored in a single character trie, the third in
+ * a trie built from the reversed entries, and whatever is left is combined
+ * into a single regex alternation.  Note that a period in an exact, prefix or
+ * suffix entry is matched literally, which is what every pathList in
+ * practice intends anyway.  Entries with any other regex characters are
+ * matched exactly as they always have been.
+ *
+ * @author <a href="mailto:fzammetti@omnytex.com">Frank W. Zammetti</a>.
+ */
+public final class PathMatcher {
+
+
+  /**
+   * Characters that make an entry something other than a plain path, and
+   * therefore send it to the regex bucket.  The period is intentionally not
+   * in this list, as discussed in the class comments.
+   */
+  private static final String REGEX_CHARS = "\\^$|?+()[]{}";
+
+
+  /**
+   * The root of the trie holding exact and prefix entries.
+   */
+  private Node forward = new Node();
+
+
+  /**
+   * The root of the trie holding suffix entries, stored reversed.
+   */
+  private Node reverse = new Node();
+
+
+  /**
+   * The single combined pattern for all entries that could not be placed in
+   * one of the tries, or null if there were none.
+   */
+  private Pattern combined;
+
+
+  /**
+   * Per-thread Matcher (and the CharSequence it works over) for the combined
+   * pattern, so that a request never needs to allocate one.
+   */
+  private ThreadLocal regexState = new ThreadLocal() {
+    protected Object initialValue() {
+      RegexState rs = new RegexState();
+      rs.matcher = combined.matcher(rs.path);
+      return rs;
+    }
+  };
+
+
+  /**
+   * Optional cache of previous decisions, or null if there is none.
+   */
+  private PathDecisionCache decisionCache;
+
+
+  /**
+   * The original entries, kept only for logging.
+   */
+  private List entries = new ArrayList();
+
+
+  /**
+   * Constructor.  Instances are created via the compile methods.
+   */
+  private PathMatcher() {
+  } // End PathMatcher().
+
+
+  /**
+   * Compiles a comma-separated list of paths, using asterisk for wildcards,
+   * as found in the pathList init parameter.
+   *
+   * @param  csvPathList The comma-separated list of paths.  May be null, in
+   *                     which case an empty matcher is returned.
+   * @return             A compiled PathMatcher.
+   */
+  public static PathMatcher compile(String csvPathList) {
+
+    PathMatcher  pm    = new PathMatcher();
+    StringBuffer regex = new StringBuffer();
+    if (csvPathList != null) {
+      StringTokenizer st = new StringTokenizer(csvPathList, ",");
+      while (st.hasMoreTokens()) {
+        pm.addEntry(st.nextToken(), regex);
+      }
+    }
+    if (regex.length() > 0) {
+      pm.combined = Pattern.compile(regex.toString());
+    }
+    return pm;
+
+  } // End compile().
+
+
+  /**
+   * Compiles a list of paths that have already been converted to regex
+   * form (as the pathList ArrayList used to be).  All entries go into the
+   * combined pattern, so matching behaves exactly as it always has.
+   *
+   * @param  regexList List of regex Strings.
+   * @return           A compiled PathMatcher.
+   */
+  public static PathMatcher compileRegexList(List regexList) {
+
+    PathMatcher  pm    = new PathMatcher();
+    StringBuffer regex = new StringBuffer();
+    if (regexList != null) {
+      for (Iterator it = regexList.iterator(); it.hasNext();) {
+        String s = (String)it.next();
+        pm.entries.add(s);
+        appendAlternative(regex, s);
+      }
+    }
+    if (regex.length() > 0) {
+      pm.combined = Pattern.compile(regex.toString());
+    }
+    return pm;
+
+  } // End compileRegexList().
+
+
+  /**
+   * Returns true if this matcher has no entries at all.
+   *
+   * @return True if empty, false if not.
+   */
+  public boolean isEmpty() {
+
+    return entries.isEmpty();
+
+  } // End isEmpty().
+
+
+  /**
+   * Determines whether the servlet path plus path info of the request
+   * matches any entry.
+   *
+   * @param  request The current request.
+   * @return         True if the path matches, false if not.
+   */
+  public boolean matches(HttpServletRequest request) {
+
+    return matches(request.getServletPath(), request.getPathInfo());
+
+  } // End matches().
+
+
+  /**
+   * Determines whether a path, given in two parts as the servlet container
+   * provides it, matches any entry.  The two parts are never concatenated.
+   * If a decision cache is attached it is consulted first.
+   *
+   * @param  servletPath The servlet path.
+   * @param  pathInfo    The path info, or null if there is none.
+   * @return             True if the path matches, false if not.
+   */
+  public boolean matches(String servletPath, String pathInfo) {
+
+    if (servletPath == null) {
+      servletPath = "";
+    }
+    PathDecisionCache dc = decisionCache;
+    if (dc == null) {
+      return evaluate(servletPath, pathInfo);
+    }
+    int cached = dc.lookup(servletPath, pathInfo);
+    if (cached != PathDecisionCache.UNKNOWN) {
+      return cached == 1;
+    }
+    boolean b = evaluate(servletPath, pathInfo);
+    dc.store(servletPath, pathInfo, b);
+    return b;
+
+  } // End matches().
+
+
+  /**
+   * Attaches a decision cache to this matcher.
+   *
+   * @param inDecisionCache The cache, or null to remove it.
+   */
+  public void setDecisionCache(PathDecisionCache inDecisionCache) {
+
+    decisionCache = inDecisionCache;
+
+  } // End setDecisionCache().
+
+
+  /**
+   * Returns the decision cache attached to this matcher, so its statistics
+   * can be examined.
+   *
+   * @return The cache, or null if there is none.
+   */
+  public PathDecisionCache getDecisionCache() {
+
+    return decisionCache;
+
+  } // End getDecisionCache().
+
+
+  /**
+   * Evaluates a path against the compiled entries.
+   *
+   * @param  servletPath The servlet path, never null.
+   * @param  pathInfo    The path info, or null if there is none.
+   * @return             True if the path matches, false if not.
+   */
+  private boolean evaluate(String servletPath, String pathInfo) {
+
+    if (walkForward(servletPath, pathInfo)) {
+      return true;
+    }
+    if (walkReverse(servletPath, pathInfo)) {
+      return true;
+    }
+    if (combined != null) {
+      RegexState rs = (RegexState)regexState.get();
+      rs.path.set(servletPath, pathInfo);
+      rs.matcher.reset(rs.path);
+      boolean b = rs.matcher.matches();
+      rs.path.set(null, null);
+      return b;
+    }
+    return false;
+
+  } // End evaluate().
+
+
+  /**
+   * Returns the list of entries, for logging purposes.
+   *
+   * @return The entries as a String.
+   */
+  public String toString() {
+
+    return entries.toString();
+
+  } // End toString().
+
+
+  /**
+   * Classifies a single pathList entry and adds it to the proper bucket.
+   *
+   * @param s     The entry, as it appeared in the pathList.
+   * @param regex The combined regex under construction.
+   */
+  private void addEntry(String s, StringBuffer regex) {
+
+    entries.add(s);
+    boolean plain = true;
+    int     stars = 0;
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '*') {
+        stars++;
+      } else if (REGEX_CHARS.indexOf(c) != -1) {
+        plain = false;
+      }
+    }
+    int len = s.length();
+    if (plain && stars == 0) {
+      forward.insert(s, 0, len, 1, false);
+    } else if (plain && stars == 1 && s.charAt(len - 1) == '*') {
+      forward.insert(s, 0, len - 1, 1, true);
+    } else if (plain && stars == 1 && s.charAt(0) == '*') {
+      reverse.insert(s, len - 1, 0, -1, true);
+    } else {
+      // The same wildcard to regex conversion initPathList always did.
+      StringBuffer sb = new StringBuffer(len + 10);
+      for (int i = 0; i < len; i++) {
+        if (s.charAt(i) == '*') {
+          sb.append(".*");
+        } else {
+          sb.append(s.charAt(i));
+        }
+      }
+      appendAlternative(regex, sb.toString());
+    }
+
+  } // End addEntry().
+
+
+  /**
+   * Appends a regex to the combined alternation.
+   *
+   * @param regex The combined regex under construction.
+   * @param s     The regex to append.
+   */
+  private static void appendAlternative(StringBuffer regex, String s) {
+
+    if (regex.length() > 0) {
+      regex.append('|');
+    }
+    regex.append("(?:").append(s).append(')');
+
+  } // End appendAlternative().
+
+
+  /**
+   * Walks the forward trie over servletPath followed by pathInfo.
+   *
+   * @param  a First part of the path.
+   * @param  b Second part of the path, may be null.
+   * @return   True if an exact or prefix entry matches.
+   */
+  private boolean walkForward(String a, String b) {
+
+    Node n    = forward;
+    int  lenA = a.length();
+    int  len  = lenA + (b == null ? 0 : b.length());
+    for (int i = 0; i < len; i++) {
+      if (n.prefix) {
+        return true;
+      }
+      n = n.child(i < lenA ? a.charAt(i) : b.charAt(i - lenA));
+      if (n == null) {
+        return false;
+      }
+    }
+    return n.exact || n.prefix;
+
+  } // End walkForward().
+
+
+  /**
+   * Walks the reverse trie over pathInfo then servletPath, both backwards.
+   *
+   * @param  a First part of the path.
+   * @param  b Second part of the path, may be null.
+   * @return   True if a suffix entry matches.
+   */
+  private boolean walkReverse(String a, String b) {
+
+    Node n    = reverse;
+    int  lenB = b == null ? 0 : b.length();
+    int  len  = a.length() + lenB;
+    for (int i = len - 1; i >= 0; i--) {
+      if (n.prefix) {
+        return true;
+      }
+      n = n.child(i >= a.length() ? b.charAt(i - a.length()) : a.charAt(i));
+      if (n == null) {
+        return false;
+      }
+    }
+    return n.prefix;
+
+  } // End walkReverse().
+
+
+  /**
+   * A node in one of the tries.  Children are kept in a sorted char array
+   * so lookups are a binary search with no boxing.
+   */
+  private static final class Node {
+
+    /**
+     * Sorted child keys.
+     */
+    private char[] keys = new char[0];
+
+    /**
+     * Children, parallel to keys.
+     */
+    private Node[] kids = new Node[0];
+
+    /**
+     * True if a path ending at this node is an exact match.
+     */
+    private boolean exact;
+
+    /**
+     * True if any path continuing from this node is a match.
+     */
+    private boolean prefix;
+
+    /**
+     * Finds the child for the given character.
+     *
+     * @param  c The character.
+     * @return   The child node, or null if there is none.
+     */
+    private Node child(char c) {
+      int lo = 0;
+      int hi = keys.length - 1;
+      while (lo <= hi) {
+        int mid = (lo + hi) >>> 1;
+        if (keys[mid] < c) {
+          lo = mid + 1;
+        } else if (keys[mid] > c) {
+          hi = mid - 1;
+        } else {
+          return kids[mid];
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Inserts the characters of s from start towards end (exclusive),
+     * stepping by step, and flags the final node.
+     *
+     * @param s        The source String.
+     * @param start    The index of the first character.
+     * @param end      The index one past the last character (in the
+     *                 direction of step).
+     * @param step     1 to walk forward, -1 to walk backwards.
+     * @param isPrefix True to flag the final node as a prefix, false to flag
+     *                 it as an exact match.
+     */
+    private void insert(String s, int start, int end, int step,
+      boolean isPrefix) {
+      Node n = this;
+      for (int i = start; i != end; i += step) {
+        char c    = s.charAt(i);
+        Node next = n.child(c);
+        if (next == null) {
+          next = new Node();
+          int pos = 0;
+          while (pos < n.keys.length && n.keys[pos] < c) {
+            pos++;
+          }
+          char[] nk = new char[n.keys.length + 1];
+          Node[] nn = new Node[n.kids.length + 1];
+          System.arraycopy(n.keys, 0, nk, 0, pos);
+          System.arraycopy(n.kids, 0, nn, 0, pos);
+          nk[pos] = c;
+          nn[pos] = next;
+          System.arraycopy(n.keys, pos, nk, pos + 1, n.keys.length - pos);
+          System.arraycopy(n.kids, pos, nn, pos + 1, n.kids.length - pos);
+          n.keys = nk;
+          n.kids = nn;
+        }
+        n = next;
+      }
+      if (isPrefix) {
+        n.prefix = true;
+      } else {
+        n.exact = true;
+      }
+    }
+
+  } // End Node class.
+
+
+  /**
+   * A reusable CharSequence over servletPath followed by pathInfo.
+   */
+  private static final class PathSequence implements CharSequence {
+
+    /**
+     * First part.
+     */
+    private String a = "";
+
+    /**
+     * Second part, never null.
+     */
+    private String b = "";
+
+    /**
+     * Sets the two parts.
+     *
+     * @param inA First part.
+     * @param inB Second part, may be null.
+     */
+    private void set(String inA, String inB) {
+      a = inA == null ? "" : inA;
+      b = inB == null ? "" : inB;
+    }
+
+    /**
+     * @return The length.
+     */
+    public int length() {
+      return a.length() + b.length();
+    }
+
+    /**
+     * @param  i Index.
+     * @return   The character at that index.
+     */
+    public char charAt(int i) {
+      return i < a.length() ? a.charAt(i) : b.charAt(i - a.length());
+    }
+
+    /**
+     * @param  start Start index.
+     * @param  end   End index.
+     * @return       The subsequence (this does allocate, but the regex
+     *               engine only calls it for group extraction, which is
+     *               never done here).
+     */
+    public CharSequence subSequence(int start, int end) {
+      return toString().substring(start, end);
+    }
+
+    /**
+     * @return The full path.
+     */
+    public String toString() {
+      return a + b;
+    }
+
+  } // End PathSequence class.
+
+
+  /**
+   * Holder for the per-thread regex objects.
+   */
+  private static final class RegexState {
+
+    /**
+     * The sequence the matcher works over.
+     */
+    private PathSequence path = new PathSequence();
+
+    /**
+     * The matcher.
+     */
+    private Matcher matcher;
+
+  } // End RegexState class.
+
+
+} // End class.
@@ -0,0 +1,365 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.filter;
+
+
+import java.io.IOException;
+import java.util.Timer;
+import java.util.TimerTask;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * This filter limits how many requests each client, as identified by its
+ * IP address, may make per second.  Every client gets a token bucket which
+ * holds up to burst tokens and gains requestsPerSecond tokens each second.
+ * A request takes a token; when there is none, the request is refused
+ * right away, so a client flooding the webapp cannot tie up the threads
+ * other clients need.  A refused request is redirected or forwarded, like
+ * IPAccessControlFilter does, or, if neither is configured, answered with
+ * 429 (Too Many Requests) and a Retry-After header.
+ * <br><br>
+ * The buckets of clients that have gone quiet are dropped in the
+ * background, so memory use depends on the number of recently active
+ * clients, not on all the clients ever seen.
+ * <br><br>
+ * Init parameters are:
+ * <br>
+ * <ul>
+ * <li><b>pathSpec</b> - Either "include" or "exclude".  This determines whether
+ * the list of paths in the pathList parameter is a list of paths to include in
+ * filter functionality, or a list of paths to exclude.  Required: No.
+ * Default: None.</li>
+ * <br><br>
+ * <li><b>pathList</b> - This is a comma-separated list of paths, which can use
+ * asterisk for wildcard support, that denotes either paths to include or
+ * exclude from the functioning of this filter (depending on what pathSpec
+ * is set to).  The paths ARE case-senitive!  There is no limit to how many
+ * items can be specified, although for performance reasons a developer will
+ * probably want to specify as few as possible to get the job done (each
+ * requested path is matched via regex).  Note also that you are of course
+ * still required to specify a path for the filter itself as per the servlet
+ * spec.  This parameter however, together with pathSpec, gives you more control
+ * and flexibility than that setting alone.  Required: No.  Default: None.
+ * <br><br>
+ * General note on pathSpec and pathList:  If pathSpec is not specified but
+ * pathList IS, then 'exclude' is assumed for pathSpec.  If pathSpec is
+ * specified by pathList IS NOT, then the filter WILL NEVER EXECUTE (this is
+ * technically a misconfiguration).  If NEITHER is defined then the generic
+ * filter mapping will be in effect only.</li>
+ * <br><br>
+ * <li><b>pathDecisionCacheSize</b> - If greater than zero, the result of
+ * matching each requested path against pathList is remembered for up to this
+ * many distinct paths, so repeat requests skip the matching entirely.
+ * Required: No.  Default: 0 (no caching).</li>
+ * <br><br>
+ * <li><b>requestsPerSecond</b> - The number of requests per second each
+ * client is allowed over time.  May be fractional, i.e. 0.5 for one request
+ * every two seconds.  Required: Yes.  Default: None.</li>
+ * <br><br>
+ * <li><b>burst</b> - The number of requests a client that has been quiet
+ * may make in quick succession before being held to requestsPerSecond.
+ * Required: No.  Default: requestsPerSecond, rounded up.</li>
+ * <br><br>
+ * <li><b>idleTimeout</b> - How long, in seconds, a client must have made no
+ * requests before its bucket is dropped.  A bucket is never dropped before
+ * it would have filled up again, so this does not affect which requests are
+ * refused.  Required: No.  Default: 60.</li>
+ * <br><br>
+ * <li><b>redirectTo</b> - The URL to redirect to if the request is refused.
+ * Required: No.  Default: None.</li>
+ * <br><br>
+ * <li><b>forwardTo</b> - The URL to forward to if the request is refused.
+ * Only one of redirectTo and forwardTo may be given; if neither is, refused
+ * requests get a 429 response.  Required: No.  Default: None.</li>
+ * <br><br>
+ * <li><b>headerName</b> - The header name to examine if behind load balancers.
+ * Required: No.  Default: None.</li>
+ * </ul>
+ * <br>
+ * Example configuration in web.xml:
+ * <br><br>
+ * &lt;filter&gt;<br>
+ * &nbsp;&nbsp;&lt;filter-name&gt;RateLimitFilter&lt;/filter-name&gt;<br>
+ * &nbsp;&nbsp;&lt;filter-class&gt;javawebparts.filter.
+ * RateLimitFilter&lt;/filter-class&gt;<br>
+ * &nbsp;&nbsp;&lt;init-param&gt;<br>
+ * &nbsp;&nbsp;&nbsp;&nbsp;&lt;param-name&gt;pathSpec&lt;/param-name&gt;<br>
+ * &nbsp;&nbsp;&nbsp;&nbsp;&lt;param-value&gt;exclude&lt;/param-value&gt;<br>
+ * &nbsp;&nbsp;&lt;/init-param&gt;<br>
+ * &nbsp;&nbsp;&lt;init-param&gt;<br>
+ * &nbsp;&nbsp;&nbsp;&nbsp;&lt;param-name&gt;pathList&lt;/param-name&gt;<br>
+ * &nbsp;&nbsp;&nbsp;&nbsp;&lt;param-value&gt;*.gif,*.css&lt;/param-value&gt;<br>
+ * &nbsp;&nbsp;&lt;/init-param&gt;<br>
+ * &nbsp;&nbsp;&lt;init-param&gt;<br>
+ * &nbsp;&nbsp;&nbsp;&nbsp;&lt;param-name&gt;requestsPerSecond&lt;/param-name
+ * &gt;<br>
+ * &nbsp;&nbsp;&nbsp;&nbsp;&lt;param-value&gt;5&lt;/param-value&gt;<br>
+ * &nbsp;&nbsp;&lt;/init-param&gt;<br>
+ * &nbsp;&nbsp;&lt;init-param&gt;<br>
+ * &nbsp;&nbsp;&nbsp;&nbsp;&lt;param-name&gt;burst&lt;/param-name&gt;<br>
+ * &nbsp;&nbsp;&nbsp;&nbsp;&lt;param-value&gt;20&lt;/param-value&gt;<br>
+ * &nbsp;&nbsp;&lt;/init-param&gt;<br>
+ * &lt;/filter&gt;
+ * <br><br>
+ * &lt;filter-mapping&gt;<br>
+ * &nbsp;&nbsp;&lt;filter-name&gt;RateLimitFilter&lt;/filter-name&gt;<br>
+ * &nbsp;&nbsp;&lt;url-pattern&gt;/*&lt;/url-pattern&gt;<br>
+ * &lt;/filter-mapping&gt;
+ *
+ * @author <a href="mailto:fzammetti@omnytex.com">Frank W. Zammetti</a>.
+ */
+public class RateLimitFilter implements Filter {
+
+
+  /**
+   * This static initializer block tries to load all the classes this one
+   * depends on (those not from standard Java anyway) and prints an error
+   * meesage if any cannot be loaded for any reason.
+   */
+  static {
+    try {
+      Class.forName("javax.servlet.Filter");
+      Class.forName("javax.servlet.FilterChain");
+      Class.forName("javax.servlet.FilterConfig");
+      Class.forName("javax.servlet.http.HttpServletResponse");
+      Class.forName("javax.servlet.ServletException");
+      Class.forName("javax.servlet.ServletRequest");
+      Class.forName("javax.servlet.ServletResponse");
+      Class.forName("org.apache.commons.logging.Log");
+      Class.forName("org.apache.commons.logging.LogFactory");
+    } catch (ClassNotFoundException e) {
+      System.err.println("RateLimitFilter" +
+        " could not be loaded by classloader because classes it depends" +
+        " on could not be found in the classpath...");
+      e.printStackTrace();
+    }
+  }
+
+
+  /**
+   * Log instance.
+   */
+  private static Log log = LogFactory.getLog(RateLimitFilter.class);
+
+
+  /**
+   * The status code of a refused request when there is no redirectTo or
+   * forwardTo.  HttpServletResponse has no constant for it.
+   */
+  public static final int SC_TOO_MANY_REQUESTS = 429;
+
+
+  /**
+   * Seconds a client must be quiet for before its bucket is dropped if
+   * idleTimeout is not specified.
+   */
+  private static final int DEFAULT_IDLE_TIMEOUT = 60;
+
+
+  /**
+   * Number of stripes the buckets are spread over.
+   */
+  private static final int STRIPES = 64;
+
+
+  /**
+   * Whether pathList includes or excludes.
+   */
+  private String pathSpec;
+
+
+  /**
+   * List of paths for filter functionality determination.
+   */
+  private PathMatcher pathList;
+
+
+  /**
+   * The buckets of the clients.
+   */
+  private TokenBuckets buckets;
+
+
+  /**
+   * Timer dropping idle buckets.
+   */
+  private Timer evictor;
+
+
+  /**
+   * A path to redirect to when a request is refused.
+   */
+  private String redirectTo;
+
+
+  /**
+   * A path to forward to when a request is refused.
+   */
+  private String forwardTo;
+
+
+  /**
+   * Header name to examine instead of doing getRemoteAddr()
+   * to retrieve Client IP.
+   */
+  private String headerName;
+
+
+  /**
+   * Destroy.
+   */
+  public void destroy() {
+
+    if (evictor != null) {
+      evictor.cancel();
+    }
+    log.info("Stopped " + buckets);
+
+  } // End destroy.
+
+
+  /**
+   * Initialize this filter.
+   *
+   * @param  filterConfig     The configuration information for this filter.
+   * @throws ServletException ServletException.
+   */
+  public void init(FilterConfig filterConfig) throws ServletException {
+
+    log.info("init() started");
+
+    // Do pathSpec and pathList init work.
+    pathSpec = FilterHelpers.initPathSpec(getClass().getName(), filterConfig);
+    pathList = FilterHelpers.initPathList(getClass().getName(), filterConfig);
+
+    // Get the redirectTo and forwardTo init parameters.  Neither is needed,
+    // but not both.
+    redirectTo = FilterHelpers.initRedirectTo(filterConfig);
+    forwardTo  = FilterHelpers.initForwardTo(filterConfig);
+    if (redirectTo != null || forwardTo != null) {
+      FilterHelpers.checkRedirectForwardTo(getClass().getName(),
+        redirectTo, forwardTo);
+    }
+
+    // Get the requestsPerSecond init parameter and validate it.
+    String rps  = filterConfig.getInitParameter("requestsPerSecond");
+    double rate = -1;
+    if (rps != null) {
+      try {
+        rate = Double.parseDouble(rps.trim());
+      } catch (NumberFormatException e) {
+        log.error("NumberFormatException parsing requestsPerSecond");
+      }
+    }
+    if (!(rate >= 0.001)) {
+      String es = getClass().getName() + " could not initialize " +
+        "because required parameter requestsPerSecond was not found or " +
+        "is not a number of at least 0.001";
+      log.error(es);
+      throw new ServletException(es);
+    }
+    log.info("requestsPerSecond = " + rate);
+
+    int burst = FilterHelpers.initIntParam(getClass().getName(),
+      filterConfig, "burst", (int)Math.ceil(rate));
+    if (burst == 0) {
+      String es = getClass().getName() + " could not initialize " +
+        "because burst must be at least 1";
+      log.error(es);
+      throw new ServletException(es);
+    }
+    buckets = new TokenBuckets(rate, burst, STRIPES);
+
+    // Drop idle buckets in the background.
+    final long idleTimeout = FilterHelpers.initIntParam(getClass().getName(),
+      filterConfig, "idleTimeout", DEFAULT_IDLE_TIMEOUT) * 1000L;
+    long period = Math.max(1000L, idleTimeout);
+    evictor = new Timer(true);
+    evictor.schedule(new TimerTask() {
+      public void run() {
+        int evicted = buckets.evictIdle(System.currentTimeMillis(),
+          idleTimeout);
+        if (log.isDebugEnabled()) {
+          log.debug("Dropped " + evicted + " idle buckets: " + buckets);
+        }
+      }
+    }, period, period);
+
+    // Get the headerName init parameter (if any).
+    headerName = filterConfig.getInitParameter("headerName");
+
+    log.info("init() completed");
+
+  } // End init().
+
+
+  /**
+   * Do filter's work.
+   *
+   * @param  request          The current request object.
+   * @param  response         The current response object.
+   * @param  filterChain      The current filter chain.
+   * @throws ServletException ServletException.
+   * @throws IOException      IOException.
+   */
+  public void doFilter(ServletRequest request, ServletResponse response,
+    FilterChain filterChain) throws ServletException, IOException {
+
+    if (FilterHelpers.filterPath(request, pathList, pathSpec)) {
+
+      // Requests without the header all share one bucket.
+      String client = FilterHelpers.getClientAddr(request, headerName);
+      if (client == null) {
+        client = "";
+      }
+
+      long wait = buckets.tryAcquire(client, System.currentTimeMillis());
+      if (wait > 0) {
+        if (log.isDebugEnabled()) {
+          log.debug("Refusing request from " + client + ", next allowed in " +
+            wait + " ms");
+        }
+        if (redirectTo != null || forwardTo != null) {
+          FilterHelpers.redirectOrForward(redirectTo, forwardTo,
+            request, response);
+        } else {
+          HttpServletResponse res = (HttpServletResponse)response;
+          res.setHeader("Retry-After", Long.toString((wait + 999) / 1000));
+          res.sendError(SC_TOO_MANY_REQUESTS);
+        }
+        return;
+      }
+
+    }
+
+    // If we're here, the request continue.
+    filterChain.doFilter(request, response);
+
+  } // End doFilter().
+
+
+} // End class.
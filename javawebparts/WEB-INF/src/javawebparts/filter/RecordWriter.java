@@ -0,0 +1,486 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.filter;
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import javawebparts.core.RecordedRequest;
+import javawebparts.core.RecordedRequestWriter;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * This class appends lines, or RecordedRequests through a
+ * RecordedRequestWriter, to a file from a background thread, so that
+ * RequestRecorderFilter's request threads only hand their line over and
+ * carry on.  Lines wait in a queue of bounded size; the writer thread takes
+ * everything queued at once, by swapping the queue for an empty one, and
+ * appends the lot with as few writes as it can to a FileChannel it keeps
+ * open.  Handing a line over is an add to a list under a lock that is
+ * never held for longer than a swap, so request threads do not wait on the
+ * file at all.
+ * <br><br>
+ * When the queue is full, lines are either dropped, and counted, or the
+ * request thread waits for the writer to catch up, as chosen.  Dropping
+ * keeps the application at full speed however slow the disk; blocking
+ * records every request.
+ * <br><br>
+ * In what follows, a line also stands for a RecordedRequest.
+ *
+ * @author <a href="mailto:fzammetti@omnytex.com">Frank W. Zammetti</a>.
+ */
+public final class RecordWriter implements Runnable {
+
+
+  /**
+   * This static initializer block tries to load all the classes this one
+   * depends on (those not from standard Java anyway) and prints an error
+   * meesage if any cannot be loaded for any reason.
+   */
+  static {
+    try {
+      Class.forName("javawebparts.core.RecordedRequest");
+      Class.forName("javawebparts.core.RecordedRequestWriter");
+      Class.forName("org.apache.commons.logging.Log");
+      Class.forName("org.apache.commons.logging.LogFactory");
+    } catch (ClassNotFoundException e) {
+      System.err.println("RecordWriter" +
+        " could not be loaded by classloader because classes it depends" +
+        " on could not be found in the classpath...");
+      e.printStackTrace();
+    }
+  }
+
+
+  /**
+   * Log instance.
+   */
+  private static Log log = LogFactory.getLog(RecordWriter.class);
+
+
+  /**
+   * Size of the buffer lines are written from.  Batches larger than this
+   * are written in several goes.
+   */
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+
+  /**
+   * Milliseconds close() waits for queued lines to be written.
+   */
+  private static final long CLOSE_WAIT = 10 * 1000L;
+
+
+  /**
+   * The line separator, as the platform has it.
+   */
+  private static final byte[] NEWLINE =
+    System.getProperty("line.separator").getBytes();
+
+
+  /**
+   * The file.
+   */
+  private File file;
+
+
+  /**
+   * Writes RecordedRequests to file, or null if lines are written.
+   */
+  private RecordedRequestWriter records;
+
+
+  /**
+   * Most lines queued at once.
+   */
+  private int capacity;
+
+
+  /**
+   * Whether to wait, rather than drop lines, when the queue is full.
+   */
+  private boolean block;
+
+
+  /**
+   * Lines waiting to be written.  Guarded by this.
+   */
+  private ArrayList queue = new ArrayList();
+
+
+  /**
+   * Set once close() is called, or the writer thread stops.  Guarded by
+   * this.
+   */
+  private boolean closed;
+
+
+  /**
+   * The writer thread.
+   */
+  private Thread thread;
+
+
+  /**
+   * Number of lines written.
+   */
+  private volatile long written;
+
+
+  /**
+   * Number of lines dropped, because the queue was full or the file could
+   * not be written.  Guarded by this.
+   */
+  private long dropped;
+
+
+  /**
+   * Number of batches written.
+   */
+  private volatile long batches;
+
+
+  /**
+   * Constructor.  Nothing is written until start() is called.
+   *
+   * @param inFile     The file, which lines are appended to.
+   * @param inCapacity Most lines queued at once.
+   * @param inBlock    Whether to wait, rather than drop lines, when the
+   *                   queue is full.
+   */
+  public RecordWriter(File inFile, int inCapacity, boolean inBlock) {
+
+    file     = inFile;
+    capacity = Math.max(1, inCapacity);
+    block    = inBlock;
+
+  } // End RecordWriter().
+
+
+  /**
+   * Constructor, for writing RecordedRequests.  Nothing is written until
+   * start() is called.  The writer is closed when this is.
+   *
+   * @param inRecords  Writes the requests to their file.
+   * @param inCapacity Most requests queued at once.
+   * @param inBlock    Whether to wait, rather than drop requests, when the
+   *                   queue is full.
+   */
+  public RecordWriter(RecordedRequestWriter inRecords, int inCapacity,
+    boolean inBlock) {
+
+    this(inRecords.getFile(), inCapacity, inBlock);
+    records = inRecords;
+
+  } // End RecordWriter().
+
+
+  /**
+   * Starts the writer thread.
+   */
+  public synchronized void start() {
+
+    if (thread == null) {
+      thread = new Thread(this, "RecordWriter " + file.getName());
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+  } // End start().
+
+
+  /**
+   * Queues a line to be written.
+   *
+   * @param  line The line, without a line separator.
+   * @return      True if it was queued, false if it was dropped.
+   */
+  public boolean add(String line) {
+
+    return enqueue(line);
+
+  } // End add().
+
+
+  /**
+   * Queues a request to be written.
+   *
+   * @param  r The request.
+   * @return   True if it was queued, false if it was dropped.
+   */
+  public boolean add(RecordedRequest r) {
+
+    return enqueue(r);
+
+  } // End add().
+
+
+  /**
+   * Queues a line or request to be written.
+   *
+   * @param  line The line or request.
+   * @return      True if it was queued, false if it was dropped.
+   */
+  private synchronized boolean enqueue(Object line) {
+
+    if (closed) {
+      dropped++;
+      return false;
+    }
+    while (queue.size() >= capacity) {
+      if (!block) {
+        dropped++;
+        return false;
+      }
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        dropped++;
+        return false;
+      }
+      if (closed) {
+        dropped++;
+        return false;
+      }
+    }
+    queue.add(line);
+    if (queue.size() == 1) {
+      // The writer may be waiting for something to write.
+      notifyAll();
+    }
+    return true;
+
+  } // End enqueue().
+
+
+  /**
+   * Stops accepting lines, and waits for those queued to be written.
+   */
+  public void close() {
+
+    Thread t;
+    synchronized (this) {
+      closed = true;
+      notifyAll();
+      t = thread;
+    }
+    if (t != null) {
+      try {
+        t.join(CLOSE_WAIT);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+  } // End close().
+
+
+  /**
+   * Writes batches of lines until closed.
+   */
+  public void run() {
+
+    FileChannel ch    = null;
+    ByteBuffer  buf   = null;
+    ArrayList   batch = null;
+    try {
+      if (records == null) {
+        ch  = new FileOutputStream(file, true).getChannel();
+        buf = ByteBuffer.allocate(BUFFER_SIZE);
+      }
+      while (true) {
+        batch = take();
+        if (batch == null) {
+          break;
+        }
+        try {
+          if (records == null) {
+            write(ch, buf, batch);
+          } else {
+            for (int i = 0; i < batch.size(); i++) {
+              records.write((RecordedRequest)batch.get(i));
+            }
+            records.flush();
+          }
+          written += batch.size();
+          batches++;
+        } catch (IOException e) {
+          log.error("Could not write " + batch.size() + " lines to " +
+            file + ": " + e);
+          synchronized (this) {
+            dropped += batch.size();
+          }
+        }
+        batch = null;
+      }
+    } catch (IOException e) {
+      log.error("Could not open " + file + ": " + e);
+    } catch (RuntimeException e) {
+      log.error("Stopped writing to " + file + ": " + e, e);
+      if (batch != null) {
+        synchronized (this) {
+          dropped += batch.size();
+        }
+      }
+    } finally {
+      // However the loop ended, nothing more will be written, so request
+      // threads must not go on waiting for room in the queue.
+      synchronized (this) {
+        closed = true;
+        dropped += queue.size();
+        queue.clear();
+        notifyAll();
+      }
+      try {
+        if (ch != null) {
+          ch.close();
+        }
+        if (records != null) {
+          records.close();
+        }
+      } catch (IOException e) {
+        log.error("Could not close " + file + ": " + e);
+      }
+    }
+
+  } // End run().
+
+
+  /**
+   * Returns the number of lines written.
+   *
+   * @return The count.
+   */
+  public long getWritten() {
+
+    return written;
+
+  } // End getWritten().
+
+
+  /**
+   * Returns the number of lines dropped.
+   *
+   * @return The count.
+   */
+  public synchronized long getDropped() {
+
+    return dropped;
+
+  } // End getDropped().
+
+
+  /**
+   * Returns the counts, for logging purposes.
+   *
+   * @return The counts as a String.
+   */
+  public synchronized String toString() {
+
+    return "RecordWriter[file=" + file + ", written=" + written +
+      ", batches=" + batches + ", dropped=" + dropped + ", queued=" +
+      queue.size() + "]";
+
+  } // End toString().
+
+
+  /**
+   * Waits for lines to be queued, and takes them all.
+   *
+   * @return The lines, or null once closed and everything is written.
+   */
+  private synchronized ArrayList take() {
+
+    while (queue.isEmpty()) {
+      if (closed) {
+        return null;
+      }
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        closed = true;
+      }
+    }
+    ArrayList batch = queue;
+    queue = new ArrayList();
+    // Request threads may be waiting for room.
+    notifyAll();
+    return batch;
+
+  } // End take().
+
+
+  /**
+   * Writes lines, each followed by a line separator.
+   *
+   * @param  ch          Where to write them.
+   * @param  buf         The buffer to write them from.
+   * @param  lines       The lines.
+   * @throws IOException If they cannot be written.
+   */
+  private static void write(FileChannel ch, ByteBuffer buf, ArrayList lines)
+    throws IOException {
+
+    buf.clear();
+    for (int i = 0; i < lines.size(); i++) {
+      byte[] b = ((String)lines.get(i)).getBytes();
+      for (int off = 0; off < b.length;) {
+        if (!buf.hasRemaining()) {
+          drain(ch, buf);
+        }
+        int n = Math.min(buf.remaining(), b.length - off);
+        buf.put(b, off, n);
+        off += n;
+      }
+      if (buf.remaining() < NEWLINE.length) {
+        drain(ch, buf);
+      }
+      buf.put(NEWLINE);
+    }
+    drain(ch, buf);
+
+  } // End write().
+
+
+  /**
+   * Writes out what is in a buffer, and empties it.
+   *
+   * @param  ch          Where to write it.
+   * @param  buf         The buffer.
+   * @throws IOException If it cannot be written.
+   */
+  private static void drain(FileChannel ch, ByteBuffer buf)
+    throws IOException {
+
+    buf.flip();
+    while (buf.hasRemaining()) {
+      ch.write(buf);
+    }
+    buf.clear();
+
+  } // End drain().
+
+
+} // End class.
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.filter;
+
+
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * This class matches a String against a list of regular expressions, such
+ * as IPAccessControlFilter's address list in "regex" mode or
+ * ElapsedTimeFilter's path templates.  The expressions are merged into a
+ * single alternation, each one wrapped in a capturing group, so a String is
+ * checked in one pass by one Matcher rather than by a Matcher per
+ * expression.  The group that took part in the match tells which rule, by
+ * index, matched.  Each thread keeps its own Matcher, which is reset for
+ * every String, so checking allocates nothing.
+ * <br><br>
+ * Backreferences in an expression would refer to the wrong group once the
+ * expressions are merged, so if any expression uses them, the expressions
+ * are instead tried one after another as separate Patterns.
+ *
+ * @author <a href="mailto:fzammetti@omnytex.com">Frank W. Zammetti</a>.
+ */
+public final class RegexListMatcher {
+
+
+  /**
+   * The expressions, compiled individually.
+   */
+  private Pattern[] patterns;
+
+
+  /**
+   * The merged expression, or null if they are tried one by one.
+   */
+  private Pattern combined;
+
+
+  /**
+   * The number of the group wrapping each expression in combined.
+   */
+  private int[] ruleGroup;
+
+
+  /**
+   * Per-thread Matcher for combined.
+   */
+  private ThreadLocal matchers = new ThreadLocal() {
+    protected Object initialValue() {
+      return combined.matcher("");
+    }
+  };
+
+
+  /**
+   * Constructor.
+   */
+  private RegexListMatcher() {
+  } // End RegexListMatcher().
+
+
+  /**
+   * Compiles a list of regular expressions.
+   *
+   * @param  regexList List of Strings, each a regular expression a String
+   *                   must match in full.
+   * @return           The compiled list.
+   * @throws           java.util.regex.PatternSyntaxException If any of the
+   *                   expressions is not valid.
+   */
+  public static RegexListMatcher compile(List regexList) {
+
+    RegexListMatcher m     = new RegexListMatcher();
+    int              n     = regexList.size();
+    StringBuffer     regex = new StringBuffer();
+    boolean          merge = true;
+    m.patterns  = new Pattern[n];
+    m.ruleGroup = new int[n];
+    int group = 1;
+    for (int i = 0; i < n; i++) {
+      String r = (String)regexList.get(i);
+      m.patterns[i]  = Pattern.compile(r);
+      m.ruleGroup[i] = group;
+      group += 1 + m.patterns[i].matcher("").groupCount();
+      if (hasBackreference(r)) {
+        merge = false;
+      }
+      if (i > 0) {
+        regex.append('|');
+      }
+      regex.append('(').append(r).append(')');
+    }
+    if (merge && n > 0) {
+      m.combined = Pattern.compile(regex.toString());
+    }
+    return m;
+
+  } // End compile().
+
+
+  /**
+   * Finds the rule a String matches.
+   *
+   * @param  s The String, such as an address or a path.
+   * @return   The index of the first rule it matches in full, or -1 if it
+   *           matches none or is null.
+   */
+  public int match(String s) {
+
+    if (s == null) {
+      return -1;
+    }
+    if (combined == null) {
+      for (int i = 0; i < patterns.length; i++) {
+        if (patterns[i].matcher(s).matches()) {
+          return i;
+        }
+      }
+      return -1;
+    }
+    Matcher mt = (Matcher)matchers.get();
+    mt.reset(s);
+    if (!mt.matches()) {
+      return -1;
+    }
+    for (int i = 0; i < ruleGroup.length; i++) {
+      if (mt.start(ruleGroup[i]) != -1) {
+        return i;
+      }
+    }
+    return -1;
+
+  } // End match().
+
+
+  /**
+   * Returns the number of rules.
+   *
+   * @return The count.
+   */
+  public int size() {
+
+    return patterns.length;
+
+  } // End size().
+
+
+  /**
+   * Determines whether the rules were merged into a single expression.
+   *
+   * @return True if they were.
+   */
+  public boolean isMerged() {
+
+    return combined != null;
+
+  } // End isMerged().
+
+
+  /**
+   * Determines whether an expression contains a numbered backreference.
+   *
+   * @param  r The expression.
+   * @return   True if it does.
+   */
+  private static boolean hasBackreference(String r) {
+
+    for (int i = 0; i < r.length() - 1; i++) {
+      if (r.charAt(i) == '\\') {
+        char c = r.charAt(i + 1);
+        if (c >= '1' && c <= '9') {
+          return true;
+        }
+        // Skip the escaped character, which may itself be a backslash.
+        i++;
+      }
+    }
+    return false;
+
+  } // End hasBackreference().
+
+
+} // End class.
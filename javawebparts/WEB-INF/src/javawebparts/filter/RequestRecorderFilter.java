@@ -20,9 +20,9 @@ package javawebparts.filter;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.Enumeration;
-import javawebparts.core.JWPHelpers;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -30,6 +30,8 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
+import javawebparts.core.RecordedRequest;
+import javawebparts.core.RecordedRequestWriter;
 import javawebparts.core.org.apache.commons.codec.EncoderException;
 import javawebparts.core.org.apache.commons.codec.net.URLCodec;
 import javawebparts.core.org.apache.commons.lang.StringUtils;
@@ -41,6 +43,25 @@ import org.apache.commons.logging.LogFactory;
  * This is a filter that is used to record each incoming request and write it
  * out to a CSV file.  Each line of the CSV file is a request, and each line
  * contains all the name/value pairs of the request parameters URL-encoded.
+ * The lines are written by a RecordWriter on a thread of its own, so
+ * request threads never wait on the file; they only queue their line.
+ * <br><br>
+ * Alternatively, requests can be recorded in the binary format described by
+ * RecordedRequest, which keeps everything needed to play a request back
+ * faithfully: the method, the URL with its query string, the headers, the
+ * parameters, the first bytes of the body as the application read it, when
+ * the request arrived and how long the rest of the chain took over it.  No
+ * encoding is done, so recording a request costs less than a CSV line.  The
+ * file is rotated once it reaches a given size, and can be appended to
+ * through a region mapped into memory rather than with writes.
+ * <br><br>
+ * Or, when only the requests leading up to an incident are wanted, the most
+ * recent requests can be kept in memory by a FlightRecorder instead of
+ * being written anywhere.  They are dumped as text by FlightRecorderServlet,
+ * which finds the FlightRecorder in the application context under
+ * FLIGHT_RECORDER_KEY, and to a file whenever a request takes longer than a
+ * given time.  Recording a request this way allocates nothing and does no
+ * I/O.
  * <br><br>
  * Init parameters are:
  * <br>
@@ -67,10 +88,55 @@ import org.apache.commons.logging.LogFactory;
  * technically a misconfiguration).  If NEITHER is defined then the generic
  * filter mapping will be in effect only.</li>
  * <br><br>
+ * <li><b>pathDecisionCacheSize</b> - If greater than zero, the result of
+ * matching each requested path against pathList is remembered for up to this
+ * many distinct paths, so repeat requests skip the matching entirely.
+ * Required: No.  Default: 0 (no caching).</li>
+ * <br><br>
  * <li><b>saveFile</b> - This is the file to save the requests to.  If the
  * file exists, it will be overwritten.  This is a relative path and filename,
  * relative to the webapp root.  Required: No.
- * Default: RequestRecorderFilterSaveFile.csv (in root of webapp).
+ * Default: RequestRecorderFilterSaveFile.csv, or
+ * RequestRecorderFilterSaveFile.jwpr for the binary format (in root of
+ * webapp).  For the ring format, dumps go to this name with the time of the
+ * dump added, i.e. RequestRecorderFilterSaveFile.txt.20061017-143000.</li>
+ * <br><br>
+ * <li><b>format</b> - Either "csv", "binary" or "ring".  Required: No.
+ * Default: csv.</li>
+ * <br><br>
+ * <li><b>ringSize</b> - The number of recent requests kept by the ring
+ * format.  Required: No.  Default: 4096.</li>
+ * <br><br>
+ * <li><b>dumpThreshold</b> - For the ring format, the milliseconds a request
+ * must take for the recent requests to be dumped to a file.  Required: No.
+ * Default: 0 (never dumped to a file).</li>
+ * <br><br>
+ * <li><b>dumpInterval</b> - The fewest seconds between dumps to a file, so a
+ * run of slow requests causes one dump rather than many.  Required: No.
+ * Default: 60.</li>
+ * <br><br>
+ * <li><b>bodyPrefix</b> - The most bytes of each request body recorded in
+ * the binary format.  Only what the application reads is recorded; a form
+ * read as parameters is recorded as its parameters.  Required: No.
+ * Default: 4096.</li>
+ * <br><br>
+ * <li><b>maxFileSize</b> - The size, in megabytes, beyond which the binary
+ * file is renamed to saveFile.1, saveFile.2 and so on, oldest first, and a
+ * new one started.  Required: No.  Default: 0 (never rotated).</li>
+ * <br><br>
+ * <li><b>mappedAppend</b> - "true" to append to the binary file through a
+ * region mapped into memory, rather than with writes.  Required: No.
+ * Default: false.</li>
+ * <br><br>
+ * <li><b>queueSize</b> - The most requests waiting to be written at once.
+ * Required: No.  Default: 10000.</li>
+ * <br><br>
+ * <li><b>queueFullPolicy</b> - Either "block" or "drop".  What to do with a
+ * request when queueSize requests are already waiting: "block" holds it up
+ * until there is room, so every request is recorded, while "drop" lets it go
+ * on unrecorded, so a slow disk never slows the application down.  Dropped
+ * requests are counted, and the count logged when the filter is destroyed.
+ * Required: No.  Default: block.</li>
  * </ul>
  * <br>
  * Example configuration in web.xml:
@@ -103,7 +169,6 @@ public class RequestRecorderFilter implements Filter {
    */
   static {
     try {
-      Class.forName("javawebparts.core.JWPHelpers");
       Class.forName("javax.servlet.Filter");
       Class.forName("javax.servlet.FilterChain");
       Class.forName("javax.servlet.FilterConfig");
@@ -111,6 +176,8 @@ public class RequestRecorderFilter implements Filter {
       Class.forName("javax.servlet.ServletException");
       Class.forName("javax.servlet.ServletRequest");
       Class.forName("javax.servlet.ServletResponse");
+      Class.forName("javawebparts.core.RecordedRequest");
+      Class.forName("javawebparts.core.RecordedRequestWriter");
       Class.forName(
         "javawebparts.core.org.apache.commons.codec.EncoderException");
       Class.forName("javawebparts.core.org.apache.commons.codec.net.URLCodec");
@@ -141,7 +208,69 @@ public class RequestRecorderFilter implements Filter {
   /**
    * List of paths for filter functionality determination.
    */
-  private ArrayList pathList = new ArrayList();
+  private PathMatcher pathList;
+
+
+  /**
+   * Requests waiting to be written if queueSize is not specified.
+   */
+  public static final int DEFAULT_QUEUE_SIZE = 10000;
+
+
+  /**
+   * Bytes of each body recorded if bodyPrefix is not specified.
+   */
+  public static final int DEFAULT_BODY_PREFIX = 4096;
+
+
+  /**
+   * Requests kept if ringSize is not specified.
+   */
+  public static final int DEFAULT_RING_SIZE = 4096;
+
+
+  /**
+   * Seconds between dumps if dumpInterval is not specified.
+   */
+  public static final int DEFAULT_DUMP_INTERVAL = 60;
+
+
+  /**
+   * The application context attribute the FlightRecorder is kept under, for
+   * the ring format.
+   */
+  public static final String FLIGHT_RECORDER_KEY =
+    "javawebparts.filter.RequestRecorderFilter.flightRecorder";
+
+
+  /**
+   * Keeps the recent requests, for the ring format, or null.
+   */
+  private FlightRecorder recorder;
+
+
+  /**
+   * Milliseconds a request takes for the ring to be dumped, or 0.
+   */
+  private long dumpThreshold;
+
+
+  /**
+   * Fewest milliseconds between dumps.
+   */
+  private long dumpInterval;
+
+
+  /**
+   * Whether requests are recorded in the binary format.
+   */
+  private boolean binary;
+
+
+  /**
+   * Most bytes of each body recorded in the binary format.
+   */
+  private int bodyPrefix;
 
 
   /**
@@ -150,11 +279,32 @@ public class RequestRecorderFilter implements Filter {
   private String saveFile;
 
 
+  /**
+   * Writes the requests to saveFile.
+   */
+  private RecordWriter writer;
+
+
+  /**
+   * Encodes parameter values.  It keeps no state, so one does for all
+   * requests.
+   */
+  private URLCodec codec = new URLCodec();
+
+
   /**
    * Destroy.
    */
   public void destroy() {
 
+    if (writer != null) {
+      writer.close();
+      log.info("destroy(): " + writer);
+    }
+    if (recorder != null) {
+      log.info("destroy(): " + recorder);
+    }
+
   } // End destroy.
 
 
@@ -172,10 +322,25 @@ public class RequestRecorderFilter implements Filter {
     pathSpec = FilterHelpers.initPathSpec(getClass().getName(), filterConfig);
     pathList = FilterHelpers.initPathList(getClass().getName(), filterConfig);
 
+    // Get the format.
+    String format = filterConfig.getInitParameter("format");
+    if (format == null || format.equalsIgnoreCase("")) {
+      format = "csv";
+    }
+    if (!format.equalsIgnoreCase("csv") &&
+      !format.equalsIgnoreCase("binary") && !format.equalsIgnoreCase("ring")) {
+      String es = getClass().getName() + " could not initialize " +
+                  "because format was not 'csv', 'binary' or 'ring'";
+      log.error(es);
+      throw new ServletException(es);
+    }
+    binary = format.equalsIgnoreCase("binary");
+
     // Get file to save results to.
     saveFile = filterConfig.getInitParameter("saveFile");
     if (saveFile == null || saveFile.equalsIgnoreCase("")) {
-      saveFile = "RequestRecorderFilterSaveFile.csv";
+      saveFile = "RequestRecorderFilterSaveFile." + (binary ? "jwpr" :
+        format.equalsIgnoreCase("ring") ? "txt" : "csv");
     }
 
     // Get the full path to the save file
@@ -183,6 +348,64 @@ public class RequestRecorderFilter implements Filter {
                File.separator;
     saveFile = StringUtils.replace(saveFile, "\\", "\\\\");
 
+    // The ring format writes nothing until it is dumped.
+    if (format.equalsIgnoreCase("ring")) {
+      int ringSize = FilterHelpers.initIntParam(getClass().getName(),
+        filterConfig, "ringSize", DEFAULT_RING_SIZE);
+      dumpThreshold = FilterHelpers.initIntParam(getClass().getName(),
+        filterConfig, "dumpThreshold", 0);
+      dumpInterval = FilterHelpers.initIntParam(getClass().getName(),
+        filterConfig, "dumpInterval", DEFAULT_DUMP_INTERVAL) * 1000L;
+      log.info("ringSize = " + ringSize + ", dumpThreshold = " +
+        dumpThreshold + ", dumpInterval = " + dumpInterval);
+      recorder = new FlightRecorder(ringSize);
+      filterConfig.getServletContext().setAttribute(FLIGHT_RECORDER_KEY,
+        recorder);
+      log.info("init() completed");
+      return;
+    }
+
+    // Get the queueSize and queueFullPolicy init parameters, and start
+    // writing.
+    int queueSize = FilterHelpers.initIntParam(getClass().getName(),
+      filterConfig, "queueSize", DEFAULT_QUEUE_SIZE);
+    String policy = filterConfig.getInitParameter("queueFullPolicy");
+    if (policy == null || policy.equalsIgnoreCase("")) {
+      policy = "block";
+    }
+    if (!policy.equalsIgnoreCase("block") &&
+      !policy.equalsIgnoreCase("drop")) {
+      String es = getClass().getName() + " could not initialize " +
+                  "because queueFullPolicy was not 'block' or 'drop'";
+      log.error(es);
+      throw new ServletException(es);
+    }
+    log.info("queueSize = " + queueSize + ", queueFullPolicy = " + policy);
+    if (binary) {
+      bodyPrefix = FilterHelpers.initIntParam(getClass().getName(),
+        filterConfig, "bodyPrefix", DEFAULT_BODY_PREFIX);
+      int maxFileSize = FilterHelpers.initIntParam(getClass().getName(),
+        filterConfig, "maxFileSize", 0);
+      String mapped = filterConfig.getInitParameter("mappedAppend");
+      log.info("bodyPrefix = " + bodyPrefix + ", maxFileSize = " +
+        maxFileSize + ", mappedAppend = " + mapped);
+      try {
+        writer = new RecordWriter(new RecordedRequestWriter(
+          new File(saveFile), maxFileSize * 1024L * 1024L,
+          "true".equalsIgnoreCase(mapped)), queueSize,
+          policy.equalsIgnoreCase("block"));
+      } catch (IOException e) {
+        String es = getClass().getName() + " could not initialize " +
+                    "because " + saveFile + " could not be opened: " + e;
+        log.error(es);
+        throw new ServletException(es);
+      }
+    } else {
+      writer = new RecordWriter(new File(saveFile), queueSize,
+        policy.equalsIgnoreCase("block"));
+    }
+    writer.start();
+
     log.info("init() completed");
 
   } // End init().
@@ -205,6 +428,14 @@ public class RequestRecorderFilter implements Filter {
 
     // Only operate on paths spcified in filter config.
     if (FilterHelpers.filterPath(request, pathList, pathSpec)) {
+      if (recorder != null) {
+        keep(req, response, filterChain);
+        return;
+      }
+      if (binary) {
+        record(req, response, filterChain);
+        return;
+      }
       StringBuffer sb = new StringBuffer(1024);
       // Append the method used and URL the client requested.  For the URL, we
       // want everything EXCEPT the query string, if any.
@@ -224,24 +455,16 @@ public class RequestRecorderFilter implements Filter {
           sb.append("," + pName + "=");
           // URLEncode the value.
           try {
-            sb.append(new URLCodec().encode(pValues[i]));
+            sb.append(codec.encode(pValues[i]));
           } catch (EncoderException ee) {
             sb.append("??EncoderException??");
           }
         }
       }
-      // If we got something, which we really always should, write it to file.
-      // Note that JWPHelpers.writeToFile() is synchronized, so this filter
-      // has obvious performance implications and should only be used in
-      // development or for production debugging purposes.  By the way, if
-      // this looks a little odd, it's probably because writeToFile() accepts
-      // an array of strings, each string generally a line in a file, that's
-      // why we're dealing in an array here, even though we know it's only
-      // going to be one element.
-      String[] sa = new String[1];
-      sa[0] = sb.toString();
-      if (sa[0] != null && !sa[0].equalsIgnoreCase("")) {
-        JWPHelpers.writeToFile(saveFile, sa, true);
+      // If we got something, which we really always should, queue it to be
+      // written to file.  Unless the queue is full, this does not wait.
+      if (sb.length() > 0) {
+        writer.add(sb.toString());
       }
     }
 
@@ -251,4 +474,87 @@ public class RequestRecorderFilter implements Filter {
   } // End doFilter().
 
 
+  /**
+   * Records a request in the binary format, once the rest of the chain is
+   * done with it.
+   *
+   * @param  req              The current request object.
+   * @param  response         The current response object.
+   * @param  filterChain      The current filter chain.
+   * @throws ServletException ServletException.
+   * @throws IOException      IOException.
+   */
+  private void record(HttpServletRequest req, ServletResponse response,
+    FilterChain filterChain) throws ServletException, IOException {
+
+    long            start = System.currentTimeMillis();
+    RecordedRequest r     = new RecordedRequest();
+    r.setMethod(req.getMethod());
+    StringBuffer url = req.getRequestURL();
+    if (req.getQueryString() != null) {
+      url.append('?').append(req.getQueryString());
+    }
+    r.setUrl(url.toString());
+    for (Enumeration e = req.getHeaderNames(); e.hasMoreElements();) {
+      String hName = (String)e.nextElement();
+      for (Enumeration v = req.getHeaders(hName); v.hasMoreElements();) {
+        r.addHeader(hName, (String)v.nextElement());
+      }
+    }
+    // Parameters are taken before the chain runs, as for the CSV format,
+    // since once the application has read the body they may not be there.
+    for (Enumeration e = req.getParameterNames(); e.hasMoreElements();) {
+      String   pName   = (String)e.nextElement();
+      String[] pValues = req.getParameterValues(pName);
+      for (int i = 0; i < pValues.length; i++) {
+        r.addParameter(pName, pValues[i]);
+      }
+    }
+    BodyCaptureWrapper wrapper = new BodyCaptureWrapper(req, bodyPrefix);
+    try {
+      filterChain.doFilter(wrapper, response);
+    } finally {
+      r.setArrivalNanos(start * 1000000L);
+      r.setElapsedNanos((System.currentTimeMillis() - start) * 1000000L);
+      r.setBody(wrapper.getPrefix(), req.getContentLength());
+      writer.add(r);
+    }
+
+  } // End record().
+
+
+  /**
+   * Keeps a request in the ring, once the rest of the chain is done with it,
+   * and dumps the ring if the request took too long.
+   *
+   * @param  req              The current request object.
+   * @param  response         The current response object.
+   * @param  filterChain      The current filter chain.
+   * @throws ServletException ServletException.
+   * @throws IOException      IOException.
+   */
+  private void keep(HttpServletRequest req, ServletResponse response,
+    FilterChain filterChain) throws ServletException, IOException {
+
+    long start = System.currentTimeMillis();
+    try {
+      filterChain.doFilter(req, response);
+    } finally {
+      long now     = System.currentTimeMillis();
+      long elapsed = now - start;
+      recorder.record(start, elapsed, req.getMethod(), req.getRequestURI(),
+        req.getQueryString(), req.getRemoteAddr());
+      if (dumpThreshold > 0 && elapsed >= dumpThreshold) {
+        File dumpFile = new File(new File(saveFile).getPath() + "." +
+          new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date(now)));
+        if (recorder.dumpInBackground(dumpFile, now, dumpInterval)) {
+          log.warn(req.getRequestURI() + " took " + elapsed + "ms, " +
+            "dumping recent requests to " + dumpFile);
+        }
+      }
+    }
+
+  } // End keep().
+
+
 } // End class.
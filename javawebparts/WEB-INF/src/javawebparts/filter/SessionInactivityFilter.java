@@ -19,7 +19,6 @@ package javawebparts.filter;
 
 
 import java.io.IOException;
-import java.util.ArrayList;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -59,6 +58,11 @@ import org.apache.commons.logging.LogFactory;
  * specified by pathList IS NOT, then the filter WILL NEVER EXECUTE (this is
  * technically a misconfiguration).  If NEITHER is defined then the generic
  * filter mapping will be in effect only.</li>
+ * <br><br>
+ * <li><b>pathDecisionCacheSize</b> - If greater than zero, the result of
+ * matching each requested path against pathList is remembered for up to this
+ * many distinct paths, so repeat requests skip the matching entirely.
+ * Required: No.  Default: 0 (no caching).</li>
  * </ul>
  * <br>
  * Example configuration in web.xml:
@@ -127,7 +131,7 @@ public class SessionInactivityFilter implements Filter {
   /**
    * List of paths for filter functionality determination.
    */
-  private ArrayList pathList = new ArrayList();
+  private PathMatcher pathList;
 
 
   /**
@@ -17,7 +17,9 @@
 package javawebparts.filter;
 
 import java.io.IOException;
-import java.util.ArrayList;
+import java.net.InetAddress;
+import java.util.Timer;
+import java.util.TimerTask;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -82,6 +84,34 @@ import org.apache.commons.logging.LogFactory;
  * technically a misconfiguration).  If NEITHER is defined then the generic
  * filter mapping will be in effect only.</li>
  * <br><br>
+ * <li><b>pathDecisionCacheSize</b> - If greater than zero, the result of
+ * matching each requested path against pathList is remembered for up to this
+ * many distinct paths, so repeat requests skip the matching entirely.
+ * Required: No.  Default: 0 (no caching).</li>
+ * <br><br>
+ * <li><b>registryStore</b> - The class name of a SessionRegistryStore that
+ * keeps count of the sessions of all the nodes of a cluster, so that
+ * maxSessions applies to the cluster as a whole.  The store may read init
+ * parameters of its own; javawebparts.filter.FileSessionRegistryStore, for
+ * instance, which can be shared by several servers on one host, needs
+ * registryFile.  Required: No.  Default:
+ * javawebparts.filter.MemorySessionRegistryStore, which limits the sessions
+ * of this server only.</li>
+ * <br><br>
+ * <li><b>leaseBatch</b> - How many sessions are leased from registryStore
+ * at a time.  A larger batch means fewer calls to the store, but sessions
+ * one node has leased and not used cannot be used by another.
+ * Required: No.  Default: 10.</li>
+ * <br><br>
+ * <li><b>nodeId</b> - The name of this server in registryStore, which must
+ * be unique in the cluster.  Required: No.  Default: the host name followed
+ * by a number unique to this run.</li>
+ * <br><br>
+ * <li><b>nodeTimeout</b> - How long, in seconds, a server may go without
+ * telling registryStore it is alive before the sessions it leased are
+ * reclaimed.  Heartbeats are sent three times in this period.
+ * Required: No.  Default: 60.</li>
+ * <br><br>
  * </ul>
  * <br>
  * Example configuration in web.xml:
@@ -168,6 +198,18 @@ public class SessionLimiterFilter implements Filter {
   private ServletContext ctx;
 
 
+  /**
+   * The sessions registered in the application.
+   */
+  private SessionRegistry registry;
+
+
+  /**
+   * Timer sending heartbeats to the registry's store.
+   */
+  private Timer heartbeat;
+
+
   /**
    * Whether pathList includes or excludes.
    */
@@ -177,7 +219,7 @@ public class SessionLimiterFilter implements Filter {
   /**
    * List of paths for filter functionality determination.
    */
-  private ArrayList pathList = new ArrayList();
+  private PathMatcher pathList;
 
 
   /**
@@ -197,6 +239,14 @@ public class SessionLimiterFilter implements Filter {
    */
   public void destroy() {
 
+    if (heartbeat != null) {
+      heartbeat.cancel();
+    }
+    if (registry != null) {
+      registry.close();
+      log.info("Stopped " + registry);
+    }
+
   } // End destroy.
 
 
@@ -214,7 +264,8 @@ public class SessionLimiterFilter implements Filter {
     pathSpec = FilterHelpers.initPathSpec(getClass().getName(), filterConfig);
     pathList = FilterHelpers.initPathList(getClass().getName(), filterConfig);
 
-    ctx = filterConfig.getServletContext();
+    ctx      = filterConfig.getServletContext();
+    registry = SessionRegistry.getInstance(ctx);
 
     forwardTo = filterConfig.getInitParameter("forwardTo");
     if (forwardTo == null) {
@@ -263,11 +314,68 @@ public class SessionLimiterFilter implements Filter {
       }
     }
 
+    initRegistryStore(filterConfig);
+
     log.info("init() completed");
 
   } // End init().
 
 
+  /**
+   * Sets up the store the registry leases sessions from, and the heartbeats
+   * sent to it.
+   *
+   * @param  filterConfig     The configuration information for this filter.
+   * @throws ServletException If the store cannot be set up.
+   */
+  private void initRegistryStore(FilterConfig filterConfig)
+    throws ServletException {
+
+    String className = filterConfig.getInitParameter("registryStore");
+    if (className == null || className.equalsIgnoreCase("")) {
+      className = MemorySessionRegistryStore.class.getName();
+    }
+    SessionRegistryStore store = null;
+    try {
+      store = (SessionRegistryStore)Class.forName(className).newInstance();
+    } catch (Exception e) {
+      String msg = "SessionLimiterFilter could not initialize " +
+                   "because registryStore " + className +
+                   " could not be instantiated: " + e;
+      log.error(msg);
+      throw new ServletException(msg);
+    }
+    store.init(filterConfig);
+
+    String nodeId = filterConfig.getInitParameter("nodeId");
+    if (nodeId == null || nodeId.equalsIgnoreCase("")) {
+      String host = "localhost";
+      try {
+        host = InetAddress.getLocalHost().getHostName();
+      } catch (IOException e) {
+        log.warn("Could not get the host name: " + e);
+      }
+      nodeId = host + "-" + Long.toString(System.currentTimeMillis(), 36) +
+        Integer.toString(System.identityHashCode(this), 36);
+    }
+    int batch = FilterHelpers.initIntParam(getClass().getName(),
+      filterConfig, "leaseBatch", SessionRegistry.DEFAULT_LEASE_BATCH);
+    registry.setStore(store, nodeId, batch);
+    log.info("registry = " + registry);
+
+    long period = FilterHelpers.initIntParam(getClass().getName(),
+      filterConfig, "nodeTimeout",
+      MemorySessionRegistryStore.DEFAULT_NODE_TIMEOUT) * 1000L / 3;
+    heartbeat = new Timer(true);
+    heartbeat.schedule(new TimerTask() {
+      public void run() {
+        registry.heartbeat();
+      }
+    }, Math.max(period, 1000L), Math.max(period, 1000L));
+
+  } // End initRegistryStore().
+
+
   /**
    * Do filter's work.
    *
@@ -308,8 +416,7 @@ public class SessionLimiterFilter implements Filter {
         // Try to register the session.
         // If we cannot, forward and return.
         log.debug("trying to register the new session");
-        if (!SessionLimiterFilterHelper.registerSession(ctx,
-            session.getId(), maxSessions)) {
+        if (!registry.register(session.getId(), maxSessions)) {
           log.debug("Couldn't register the new session: invalidate, redirect");
           session.invalidate();
           req.getRequestDispatcher(forwardTo).forward(req, resp);
@@ -324,15 +431,13 @@ public class SessionLimiterFilter implements Filter {
         if (req.isRequestedSessionIdValid()) {
           log.debug("Requested session ID is valid");
           // ... but not registered...
-          if (!SessionLimiterFilterHelper.isSessionRegistered(ctx,
-            requestedSessionId)) {
+          if (!registry.contains(requestedSessionId)) {
             log.debug("...but not registered");
             // We try to register it now.
             // But if we cannot because the max sessions
             // has been reached, we forward and return.
             log.debug("Trying to register it");
-            if (!SessionLimiterFilterHelper.registerSession(ctx,
-                requestedSessionId, maxSessions)) {
+            if (!registry.register(requestedSessionId, maxSessions)) {
               log.debug("Couldn't register the new session: " +
                 "invalidate, forward");
               req.getSession().invalidate();
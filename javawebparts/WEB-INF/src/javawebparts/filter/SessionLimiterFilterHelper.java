@@ -18,9 +18,6 @@
 package javawebparts.filter;
 
 
-import java.util.Collections;
-import java.util.Set;
-import java.util.TreeSet;
 import javax.servlet.ServletContext;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -55,8 +52,8 @@ public final class SessionLimiterFilterHelper {
 
 
   /**
-   * Attribute name of the Set containing the allowed session IDs in the
-   * application context.
+   * Attribute name of the SessionRegistry containing the allowed session IDs
+   * in the application context.
    */
   public static final String SET_KEY =
                              "javawebparts.sessionlimiter.registeredSessions";
@@ -89,25 +86,15 @@ public final class SessionLimiterFilterHelper {
                                         int maxSessions) {
 
     log.debug("Registering session: " + sessionId);
-    Set registeredSessions = null;
-    synchronized (ctx) {
-      registeredSessions = (Set)ctx.getAttribute(SET_KEY);
-      if (registeredSessions == null) {
-        registeredSessions = Collections.synchronizedSet(new TreeSet());
-        ctx.setAttribute(SET_KEY, registeredSessions);
-        log.debug("Putting the Set in the appkication context");
-      }
-    }
-    if (log.isDebugEnabled()) {
-      log.debug("Registered sessions: " + registeredSessions.size() +
-          ". Max sessions: "+ maxSessions);
-    }
-    if (registeredSessions.size() < maxSessions) {
-      log.debug("Adding session " + sessionId + " to the Set");
-      registeredSessions.add(sessionId);
+    SessionRegistry registeredSessions = SessionRegistry.getInstance(ctx);
+    if (registeredSessions.register(sessionId, maxSessions)) {
+      log.debug("Added session " + sessionId + " to the registry");
       return true;
     } else {
-      log.debug("Not adding session " + sessionId + " to the Set");
+      if (log.isDebugEnabled()) {
+        log.debug("Not adding session " + sessionId + " to the registry: " +
+          registeredSessions + ". Max sessions: " + maxSessions);
+      }
       return false;
     }
 
@@ -124,16 +111,7 @@ public final class SessionLimiterFilterHelper {
   public static boolean isSessionRegistered(ServletContext ctx,
                                             String sessionId) {
 
-    Set registeredSessions = null;
-    synchronized(ctx) {
-      registeredSessions = (Set)ctx.getAttribute(SET_KEY);
-    }
-    if (registeredSessions == null) {
-       // The Set is not even registered yet.
-      return false;
-    }
-
-    return registeredSessions.contains(sessionId);
+    return SessionRegistry.getInstance(ctx).contains(sessionId);
 
   } // End isSessionRegistered().
 
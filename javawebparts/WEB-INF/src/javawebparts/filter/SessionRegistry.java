@@ -0,0 +1,579 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.filter;
+
+
+import java.io.IOException;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import javax.servlet.ServletContext;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * This class is the set of session IDs the session limiting facility has
+ * admitted.  One instance is kept in the application context, under
+ * SessionLimiterFilterHelper.SET_KEY, where SessionLimiterFilter adds
+ * sessions and SessionLimiterListener removes them.  It is a java.util.Set,
+ * so the listener, which is packaged separately, needs nothing but that
+ * interface to remove a session.
+ * <br><br>
+ * The IDs are spread over a number of stripes, each a HashSet with its own
+ * lock, so registering one session does not wait on others being looked up
+ * or removed.  Admission is decided on a separate count: a session is only
+ * added after the count has been raised, which is done under a lock that
+ * guards nothing but the count, so however many sessions are registered at
+ * once the limit is never overshot.  The count, the highest it has been and
+ * the number of sessions turned away are all available.
+ * <br><br>
+ * Sessions are admitted against slots leased from a SessionRegistryStore,
+ * by default a MemorySessionRegistryStore which only knows of this node.
+ * Slots are leased a batch at a time, when there are none left, and given
+ * back once more than two batches are unused, so the store is consulted
+ * once every so many sessions rather than for each one.  If the store
+ * cannot be reached, no more slots are leased, so new sessions are turned
+ * away rather than the limit being exceeded.
+ *
+ * @author Tamas Szabo
+ */
+public final class SessionRegistry extends AbstractSet {
+
+
+  /**
+   * This static initializer block tries to load all the classes this one
+   * depends on (those not from standard Java anyway) and prints an error
+   * meesage if any cannot be loaded for any reason.
+   */
+  static {
+    try {
+      Class.forName("javax.servlet.ServletContext");
+      Class.forName("org.apache.commons.logging.Log");
+      Class.forName("org.apache.commons.logging.LogFactory");
+    } catch (ClassNotFoundException e) {
+      System.err.println("SessionRegistry" +
+        " could not be loaded by classloader because classes it depends" +
+        " on could not be found in the classpath...");
+      e.printStackTrace();
+    }
+  }
+
+
+  /**
+   * Log instance.
+   */
+  private static Log log = LogFactory.getLog(SessionRegistry.class);
+
+
+  /**
+   * Number of slots leased at a time if setStore() is not called.
+   */
+  public static final int DEFAULT_LEASE_BATCH = 10;
+
+
+  /**
+   * Number of stripes.
+   */
+  private static final int STRIPES = 32;
+
+
+  /**
+   * The stripes, each of which is also its own lock.
+   */
+  private HashSet[] stripes = new HashSet[STRIPES];
+
+
+  /**
+   * Lock for count, peak and rejected.
+   */
+  private Object countLock = new Object();
+
+
+  /**
+   * Number of registered sessions.
+   */
+  private int count;
+
+
+  /**
+   * Highest number of registered sessions so far.
+   */
+  private int peak;
+
+
+  /**
+   * Number of sessions turned away.
+   */
+  private long rejected;
+
+
+  /**
+   * Number of slots leased from store.
+   */
+  private int leased;
+
+
+  /**
+   * Lock held while leasing from or giving back to store, so only one
+   * thread at a time does.
+   */
+  private Object leaseLock = new Object();
+
+
+  /**
+   * Where slots are leased from.
+   */
+  private SessionRegistryStore store = new MemorySessionRegistryStore();
+
+
+  /**
+   * The name of this node in store.
+   */
+  private String node = "local";
+
+
+  /**
+   * Number of slots leased at a time.
+   */
+  private int batch = DEFAULT_LEASE_BATCH;
+
+
+  /**
+   * Constructor.
+   */
+  public SessionRegistry() {
+
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new HashSet();
+    }
+
+  } // End SessionRegistry().
+
+
+  /**
+   * Gets the registry of an application, creating it if needed.  A Set of
+   * session IDs already in the context, which older versions kept there, is
+   * carried over.
+   *
+   * @param  ctx The servlet context.
+   * @return     The registry.
+   */
+  public static SessionRegistry getInstance(ServletContext ctx) {
+
+    Object o = ctx.getAttribute(SessionLimiterFilterHelper.SET_KEY);
+    if (o instanceof SessionRegistry) {
+      return (SessionRegistry)o;
+    }
+    synchronized (ctx) {
+      o = ctx.getAttribute(SessionLimiterFilterHelper.SET_KEY);
+      if (o instanceof SessionRegistry) {
+        return (SessionRegistry)o;
+      }
+      SessionRegistry r = new SessionRegistry();
+      if (o instanceof Set) {
+        r.addAll((Set)o);
+      }
+      ctx.setAttribute(SessionLimiterFilterHelper.SET_KEY, r);
+      return r;
+    }
+
+  } // End getInstance().
+
+
+  /**
+   * Registers a session if fewer than a maximum number are registered.
+   *
+   * @param  sessionId   The session ID.
+   * @param  maxSessions The number of sessions allowed.
+   * @return             True if the session is registered, which includes
+   *                     having been registered already.
+   */
+  public boolean register(String sessionId, int maxSessions) {
+
+    if (contains(sessionId)) {
+      return true;
+    }
+    if (!admit()) {
+      synchronized (leaseLock) {
+        // Another thread may have leased more while this one waited.
+        if (!admit()) {
+          int got = 0;
+          try {
+            got = store.lease(node, batch, maxSessions);
+          } catch (IOException e) {
+            log.error("Could not lease session slots: " + e);
+          }
+          synchronized (countLock) {
+            leased += got;
+          }
+          if (!admit()) {
+            synchronized (countLock) {
+              rejected++;
+            }
+            return false;
+          }
+        }
+      }
+    }
+    if (!addToStripe(sessionId)) {
+      // Another thread registered it in the meantime.
+      release();
+    }
+    return true;
+
+  } // End register().
+
+
+  /**
+   * Registers a session regardless of the number already registered.
+   *
+   * @param  o The session ID.
+   * @return   True if it was not registered already.
+   */
+  public boolean add(Object o) {
+
+    if (!addToStripe(o)) {
+      return false;
+    }
+    synchronized (countLock) {
+      count++;
+      if (count > peak) {
+        peak = count;
+      }
+    }
+    return true;
+
+  } // End add().
+
+
+  /**
+   * Unregisters a session.
+   *
+   * @param  o The session ID.
+   * @return   True if it was registered.
+   */
+  public boolean remove(Object o) {
+
+    HashSet s = stripeFor(o);
+    boolean removed;
+    synchronized (s) {
+      removed = s.remove(o);
+    }
+    if (removed) {
+      release();
+    }
+    return removed;
+
+  } // End remove().
+
+
+  /**
+   * Determines whether a session is registered.
+   *
+   * @param  o The session ID.
+   * @return   True if it is.
+   */
+  public boolean contains(Object o) {
+
+    HashSet s = stripeFor(o);
+    synchronized (s) {
+      return s.contains(o);
+    }
+
+  } // End contains().
+
+
+  /**
+   * Sets the store slots are leased from.  Any slots leased from the
+   * previous store are given back to it.
+   *
+   * @param inStore The store.
+   * @param inNode  The name of this node in the store.
+   * @param inBatch Number of slots to lease at a time, at least 1.
+   */
+  public void setStore(SessionRegistryStore inStore, String inNode,
+    int inBatch) {
+
+    synchronized (leaseLock) {
+      close();
+      synchronized (countLock) {
+        store  = inStore;
+        node   = inNode;
+        batch  = Math.max(1, inBatch);
+        leased = 0;
+      }
+    }
+
+  } // End setStore().
+
+
+  /**
+   * Tells the store this node is alive, and gives back surplus slots.  The
+   * slots leased are set to those the store says this node holds, which
+   * is fewer if the store reclaimed them because this node was silent for
+   * too long, so sessions are not admitted against slots other nodes may
+   * now hold.
+   */
+  public void heartbeat() {
+
+    synchronized (leaseLock) {
+      int held = -1;
+      try {
+        held = store.heartbeat(node);
+      } catch (IOException e) {
+        log.error("Could not send heartbeat: " + e);
+      }
+      synchronized (countLock) {
+        if (held != -1 && held != leased) {
+          log.warn("The store holds " + held + " session slots for node " +
+            node + ", not " + leased);
+          leased = held;
+        }
+      }
+    }
+    trim();
+
+  } // End heartbeat().
+
+
+  /**
+   * Gives back all slots, as this node is shutting down.  Sessions
+   * registered from now on lease slots afresh.
+   */
+  public void close() {
+
+    synchronized (leaseLock) {
+      try {
+        store.remove(node);
+      } catch (IOException e) {
+        log.error("Could not give back session slots: " + e);
+      }
+      synchronized (countLock) {
+        leased = 0;
+      }
+    }
+
+  } // End close().
+
+
+  /**
+   * Returns the number of slots leased from the store.
+   *
+   * @return The count.
+   */
+  public int getLeased() {
+
+    synchronized (countLock) {
+      return leased;
+    }
+
+  } // End getLeased().
+
+
+  /**
+   * Returns the number of registered sessions.
+   *
+   * @return The count.
+   */
+  public int size() {
+
+    synchronized (countLock) {
+      return count;
+    }
+
+  } // End size().
+
+
+  /**
+   * Returns the highest number of sessions registered at once so far.
+   *
+   * @return The count.
+   */
+  public int getPeak() {
+
+    synchronized (countLock) {
+      return peak;
+    }
+
+  } // End getPeak().
+
+
+  /**
+   * Returns the number of sessions turned away because the maximum was
+   * reached.
+   *
+   * @return The count.
+   */
+  public long getRejected() {
+
+    synchronized (countLock) {
+      return rejected;
+    }
+
+  } // End getRejected().
+
+
+  /**
+   * Returns an Iterator over a snapshot of the registered sessions.  Its
+   * remove() unregisters the session.
+   *
+   * @return The Iterator.
+   */
+  public Iterator iterator() {
+
+    final ArrayList ids = new ArrayList();
+    for (int i = 0; i < STRIPES; i++) {
+      synchronized (stripes[i]) {
+        ids.addAll(stripes[i]);
+      }
+    }
+    return new Iterator() {
+      private Iterator it = ids.iterator();
+      private Object   last;
+      public boolean hasNext() {
+        return it.hasNext();
+      }
+      public Object next() {
+        last = it.next();
+        return last;
+      }
+      public void remove() {
+        if (last == null) {
+          throw new IllegalStateException();
+        }
+        SessionRegistry.this.remove(last);
+        last = null;
+      }
+    };
+
+  } // End iterator().
+
+
+  /**
+   * Returns the counts, for logging purposes.
+   *
+   * @return The counts as a String.
+   */
+  public String toString() {
+
+    synchronized (countLock) {
+      return "SessionRegistry[sessions=" + count + ", peak=" + peak +
+        ", rejected=" + rejected + ", leased=" + leased + ", node=" + node +
+        ", store=" + store.getClass().getName() + "]";
+    }
+
+  } // End toString().
+
+
+  /**
+   * Adds a session ID to its stripe.
+   *
+   * @param  o The session ID.
+   * @return   True if it was not there already.
+   */
+  private boolean addToStripe(Object o) {
+
+    HashSet s = stripeFor(o);
+    synchronized (s) {
+      return s.add(o);
+    }
+
+  } // End addToStripe().
+
+
+  /**
+   * Raises the count if a leased slot is free.
+   *
+   * @return True if it was.
+   */
+  private boolean admit() {
+
+    synchronized (countLock) {
+      if (count >= leased) {
+        return false;
+      }
+      count++;
+      if (count > peak) {
+        peak = count;
+      }
+      return true;
+    }
+
+  } // End admit().
+
+
+  /**
+   * Lowers the count after a session has gone, or was not added after all,
+   * and gives slots back to the store once more than two batches are free.
+   */
+  private void release() {
+
+    synchronized (countLock) {
+      count--;
+      if (leased - count <= batch * 2) {
+        return;
+      }
+    }
+    trim();
+
+  } // End release().
+
+
+  /**
+   * Gives back to the store all but a batch of the free slots.
+   */
+  private void trim() {
+
+    synchronized (leaseLock) {
+      int give;
+      synchronized (countLock) {
+        give = leased - Math.max(count, 0) - batch;
+        if (give <= 0) {
+          return;
+        }
+        leased -= give;
+      }
+      try {
+        store.release(node, give);
+      } catch (IOException e) {
+        // The store reclaims them when this node stops sending heartbeats.
+        log.error("Could not give back " + give + " session slots: " + e);
+      }
+    }
+
+  } // End trim().
+
+
+  /**
+   * Returns the stripe a session ID belongs in.
+   *
+   * @param  o The session ID.
+   * @return   The stripe.
+   */
+  private HashSet stripeFor(Object o) {
+
+    int h = o == null ? 0 : o.hashCode();
+    return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+
+  } // End stripeFor().
+
+
+} // End class.
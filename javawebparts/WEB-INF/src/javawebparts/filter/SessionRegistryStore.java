@@ -0,0 +1,113 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.filter;
+
+
+import java.io.IOException;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+
+
+/**
+ * This interface is implemented by classes that keep count of the session
+ * slots every node of a cluster holds, so that SessionLimiterFilter's
+ * maxSessions applies to the cluster as a whole rather than to each node.
+ * A node's SessionRegistry leases slots in batches, so the store is only
+ * consulted once every so many new sessions, and gives back the slots it no
+ * longer needs as its sessions end.
+ * <br><br>
+ * Each node sends a heartbeat at regular intervals.  The slots of a node
+ * that has not been heard from within the node timeout are reclaimed, so a
+ * node that crashes does not hold on to them forever.  The heartbeat
+ * returns the slots the store thinks the node holds, so a node whose slots
+ * were reclaimed while it was merely slow finds out, and stops admitting
+ * sessions against them.
+ * <br><br>
+ * An implementation is named by SessionLimiterFilter's registryStore init
+ * parameter, and must have a public no-argument constructor.  Its init()
+ * method is then called with the filter's configuration, from which it may
+ * read init parameters of its own.
+ *
+ * @author Tamas Szabo
+ */
+public interface SessionRegistryStore {
+
+
+  /**
+   * Initializes the store.
+   *
+   * @param  filterConfig     The configuration of the filter using it.
+   * @throws ServletException If the configuration is not valid.
+   */
+  void init(FilterConfig filterConfig) throws ServletException;
+
+
+  /**
+   * Leases slots to a node, as many as are free up to the number wanted.
+   * This also counts as a heartbeat from the node.
+   *
+   * @param  node        The node.
+   * @param  wanted      The number of slots wanted.
+   * @param  maxSessions The number of slots there are in all.
+   * @return             The number of slots leased, from 0 to wanted.
+   * @throws IOException If the store cannot be reached.
+   */
+  int lease(String node, int wanted, int maxSessions) throws IOException;
+
+
+  /**
+   * Gives back slots a node no longer needs.
+   *
+   * @param  node        The node.
+   * @param  count       The number of slots.
+   * @throws IOException If the store cannot be reached.
+   */
+  void release(String node, int count) throws IOException;
+
+
+  /**
+   * Records that a node is alive, and reclaims the slots of nodes that have
+   * not been heard from within the node timeout.
+   *
+   * @param  node        The node.
+   * @return             The number of slots the node holds, which is 0 if
+   *                     they were reclaimed.
+   * @throws IOException If the store cannot be reached.
+   */
+  int heartbeat(String node) throws IOException;
+
+
+  /**
+   * Removes a node that is shutting down, giving back all its slots.
+   *
+   * @param  node        The node.
+   * @throws IOException If the store cannot be reached.
+   */
+  void remove(String node) throws IOException;
+
+
+  /**
+   * Returns the number of slots leased to all nodes.
+   *
+   * @return             The count.
+   * @throws IOException If the store cannot be reached.
+   */
+  int getLeased() throws IOException;
+
+
+} // End interface.
@@ -0,0 +1,508 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.filter;
+
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * This class finds out where slow requests spend their time.  Every request
+ * ElapsedTimeFilter times is entered in a table of requests in progress,
+ * and a background thread looks through the table at regular intervals.
+ * Each request that has been running longer than the threshold has the
+ * stack of its thread sampled, and the frame at the top of the stack is
+ * counted, together with the first frame below it that is not in the JDK,
+ * since the top is most often a JDK method waiting on a socket or lock.
+ * When the request ends, the frames seen most often are returned, to be
+ * logged along with it.
+ * <br><br>
+ * Entering a request costs next to nothing: each thread has one entry,
+ * created the first time it runs a request and reused for all its later
+ * ones, so a request only sets a few fields.  A request that ends before the
+ * threshold is never looked at.  The memory and time the sampling takes are
+ * bounded: at most MAX_SAMPLED requests are sampled each time round, each
+ * keeps at most MAX_SAMPLES samples and MAX_FRAMES distinct frames, and the
+ * table holds one entry per thread, dropped once the thread is gone.
+ * <br><br>
+ * Sampling another thread's stack needs Thread.getStackTrace(), which is
+ * looked up at run time since it is only there from Java 5 on.  On older
+ * JVMs slow requests are still reported, only without frames.
+ *
+ * @author <a href="mailto:fzammetti@omnytex.com">Frank W. Zammetti</a>.
+ */
+public final class SlowRequestSampler {
+
+
+  /**
+   * This static initializer block tries to load all the classes this one
+   * depends on (those not from standard Java anyway) and prints an error
+   * meesage if any cannot be loaded for any reason.
+   */
+  static {
+    try {
+      Class.forName("org.apache.commons.logging.Log");
+      Class.forName("org.apache.commons.logging.LogFactory");
+    } catch (ClassNotFoundException e) {
+      System.err.println("SlowRequestSampler" +
+        " could not be loaded by classloader because classes it depends" +
+        " on could not be found in the classpath...");
+      e.printStackTrace();
+    }
+  }
+
+
+  /**
+   * Log instance.
+   */
+  private static Log log = LogFactory.getLog(SlowRequestSampler.class);
+
+
+  /**
+   * Most requests sampled each time round.
+   */
+  public static final int MAX_SAMPLED = 16;
+
+
+  /**
+   * Most samples kept for one request.
+   */
+  public static final int MAX_SAMPLES = 1000;
+
+
+  /**
+   * Most distinct frames counted for one request.  Any others are counted
+   * under "(other)".
+   */
+  public static final int MAX_FRAMES = 32;
+
+
+  /**
+   * Number of frames returned by end().
+   */
+  private static final int HOT_FRAMES = 5;
+
+
+  /**
+   * Thread.getStackTrace(), or null if this JVM does not have it.
+   */
+  private static final Method GET_STACK_TRACE = findGetStackTrace();
+
+
+  /**
+   * The entry of each thread.
+   */
+  private ThreadLocal entry = new ThreadLocal();
+
+
+  /**
+   * All the entries.  Never changed once assigned.
+   */
+  private volatile Entry[] entries = new Entry[0];
+
+
+  /**
+   * Milliseconds a request runs before it is sampled.
+   */
+  private long threshold;
+
+
+  /**
+   * Runs sample(), or null if sampling is not supported.
+   */
+  private Timer timer;
+
+
+  /**
+   * Number of times sample() has run.
+   */
+  private long rounds;
+
+
+  /**
+   * Number of samples taken.
+   */
+  private volatile long samples;
+
+
+  /**
+   * Constructor.  Starts sampling.
+   *
+   * @param inThreshold Milliseconds a request runs before it is sampled.
+   * @param interval    Milliseconds between samples.
+   */
+  public SlowRequestSampler(long inThreshold, long interval) {
+
+    threshold = inThreshold;
+    if (GET_STACK_TRACE == null) {
+      log.warn("Thread.getStackTrace() is not available in this JVM, " +
+        "so slow requests are reported without frames");
+      return;
+    }
+    timer = new Timer(true);
+    timer.schedule(new TimerTask() {
+      public void run() {
+        try {
+          sample(System.currentTimeMillis());
+        } catch (RuntimeException e) {
+          log.error("Could not sample requests: " + e);
+        }
+      }
+    }, interval, interval);
+
+  } // End SlowRequestSampler().
+
+
+  /**
+   * Determines whether stacks can be sampled in this JVM.
+   *
+   * @return True if they can.
+   */
+  public static boolean isSamplingSupported() {
+
+    return GET_STACK_TRACE != null;
+
+  } // End isSamplingSupported().
+
+
+  /**
+   * Enters a request of the current thread in the table.
+   *
+   * @param  now The current time, as from System.currentTimeMillis().
+   * @return     The entry, to pass to end(), or null if the thread is
+   *             already running a request.
+   */
+  public Entry begin(long now) {
+
+    Entry e = (Entry)entry.get();
+    if (e == null) {
+      e = new Entry(Thread.currentThread());
+      entry.set(e);
+      add(e);
+    }
+    synchronized (e) {
+      if (e.active) {
+        return null;
+      }
+      e.active = true;
+      e.start  = now;
+      e.request++;
+    }
+    return e;
+
+  } // End begin().
+
+
+  /**
+   * Takes a request out of the table.
+   *
+   * @param  e The entry begin() returned, which may be null.
+   * @return   The frames the request's thread was seen in most often, with
+   *           how often, or null if it was never sampled.
+   */
+  public String end(Entry e) {
+
+    if (e == null) {
+      return null;
+    }
+    synchronized (e) {
+      e.active = false;
+      if (e.sampleCount == 0) {
+        return null;
+      }
+      String hot = e.summarize();
+      e.frames.clear();
+      e.sampleCount = 0;
+      return hot;
+    }
+
+  } // End end().
+
+
+  /**
+   * Samples the requests that have been running longer than the threshold,
+   * and drops the entries of threads that are gone.
+   *
+   * @param now The current time, as from System.currentTimeMillis().
+   */
+  void sample(long now) {
+
+    Entry[] es      = entries;
+    int     sampled = 0;
+    boolean gone    = false;
+    // Start one further along each round, so that with more than
+    // MAX_SAMPLED slow requests every one of them still gets sampled.
+    int     first   = es.length == 0 ? 0 : (int)(rounds++ % es.length);
+    for (int j = 0; j < es.length && sampled < MAX_SAMPLED; j++) {
+      Entry  e = es[(first + j) % es.length];
+      Thread t = (Thread)e.thread.get();
+      if (t == null) {
+        gone = true;
+        continue;
+      }
+      long request;
+      synchronized (e) {
+        if (!e.active || now - e.start < threshold ||
+          e.sampleCount >= MAX_SAMPLES) {
+          continue;
+        }
+        request = e.request;
+      }
+      Object[] stack = stackOf(t);
+      sampled++;
+      synchronized (e) {
+        // The request may have ended while the stack was taken.
+        if (e.active && e.request == request && stack != null) {
+          e.count(frameOf((StackTraceElement[])stack));
+          samples++;
+        }
+      }
+    }
+    if (gone) {
+      purge();
+    }
+
+  } // End sample().
+
+
+  /**
+   * Stops sampling.
+   */
+  public void stop() {
+
+    if (timer != null) {
+      timer.cancel();
+    }
+
+  } // End stop().
+
+
+  /**
+   * Returns the number of threads and samples, for logging purposes.
+   *
+   * @return The counts as a String.
+   */
+  public String toString() {
+
+    return "SlowRequestSampler[threshold=" + threshold + "ms, threads=" +
+      entries.length + ", samples=" + samples + ", supported=" +
+      isSamplingSupported() + "]";
+
+  } // End toString().
+
+
+  /**
+   * Adds an entry to the table.
+   *
+   * @param e The entry.
+   */
+  private synchronized void add(Entry e) {
+
+    Entry[] es = new Entry[entries.length + 1];
+    System.arraycopy(entries, 0, es, 0, entries.length);
+    es[entries.length] = e;
+    entries = es;
+
+  } // End add().
+
+
+  /**
+   * Drops the entries of threads that are gone.
+   */
+  private synchronized void purge() {
+
+    ArrayList live = new ArrayList();
+    for (int i = 0; i < entries.length; i++) {
+      if (entries[i].thread.get() != null) {
+        live.add(entries[i]);
+      }
+    }
+    entries = (Entry[])live.toArray(new Entry[live.size()]);
+
+  } // End purge().
+
+
+  /**
+   * Returns the stack of a thread.
+   *
+   * @param  t The thread.
+   * @return   Its StackTraceElements, top first, or null if they could not
+   *           be had.
+   */
+  private static Object[] stackOf(Thread t) {
+
+    try {
+      return (Object[])GET_STACK_TRACE.invoke(t, new Object[0]);
+    } catch (Exception e) {
+      log.debug("Could not get stack of " + t + ": " + e);
+      return null;
+    }
+
+  } // End stackOf().
+
+
+  /**
+   * Returns what is counted for a sample: the frame at the top of the stack,
+   * and the first frame below it outside the JDK if that is another one.
+   *
+   * @param  stack The stack, top first.
+   * @return       The frames.
+   */
+  static String frameOf(StackTraceElement[] stack) {
+
+    if (stack.length == 0) {
+      return "(no stack)";
+    }
+    for (int i = 0; i < stack.length; i++) {
+      String c = stack[i].getClassName();
+      if (!c.startsWith("java.") && !c.startsWith("javax.") &&
+        !c.startsWith("sun.") && !c.startsWith("com.sun.") &&
+        !c.startsWith("jdk.")) {
+        return i == 0 ? stack[0].toString() :
+          stack[0] + " < " + stack[i];
+      }
+    }
+    return stack[0].toString();
+
+  } // End frameOf().
+
+
+  /**
+   * Looks up Thread.getStackTrace().
+   *
+   * @return The method, or null if this JVM does not have it.
+   */
+  private static Method findGetStackTrace() {
+
+    try {
+      return Thread.class.getMethod("getStackTrace", new Class[0]);
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+
+  } // End findGetStackTrace().
+
+
+  /**
+   * A thread's entry in the table.  All fields but thread are guarded by
+   * the entry itself.
+   */
+  public static final class Entry {
+
+    /**
+     * The thread.
+     */
+    private WeakReference thread;
+
+    /**
+     * Whether the thread is running a request.
+     */
+    private boolean active;
+
+    /**
+     * When the request started.
+     */
+    private long start;
+
+    /**
+     * Number of the request, so samples of one are not counted for another.
+     */
+    private long request;
+
+    /**
+     * Number of samples of the current request.
+     */
+    private int sampleCount;
+
+    /**
+     * How often each frame was seen, as int[1] keyed by frame.
+     */
+    private Map frames = new HashMap();
+
+    /**
+     * Constructor.
+     *
+     * @param inThread The thread.
+     */
+    private Entry(Thread inThread) {
+      thread = new WeakReference(inThread);
+    }
+
+    /**
+     * Counts a sample.
+     *
+     * @param frame The frame at the top of the stack.
+     */
+    private void count(String frame) {
+      int[] n = (int[])frames.get(frame);
+      if (n == null) {
+        if (frames.size() >= MAX_FRAMES) {
+          frame = "(other)";
+          n     = (int[])frames.get(frame);
+        }
+        if (n == null) {
+          n = new int[1];
+          frames.put(frame, n);
+        }
+      }
+      n[0]++;
+      sampleCount++;
+    }
+
+    /**
+     * Returns the frames seen most often.
+     *
+     * @return The frames, with how often, i.e. "75% java.net....".
+     */
+    private String summarize() {
+      List l = new ArrayList(frames.entrySet());
+      Collections.sort(l, new Comparator() {
+        public int compare(Object o1, Object o2) {
+          return ((int[])((Map.Entry)o2).getValue())[0] -
+            ((int[])((Map.Entry)o1).getValue())[0];
+        }
+      });
+      StringBuffer sb = new StringBuffer();
+      sb.append(sampleCount).append(" samples");
+      int shown = 0;
+      for (Iterator it = l.iterator(); it.hasNext() && shown < HOT_FRAMES;
+        shown++) {
+        Map.Entry me = (Map.Entry)it.next();
+        sb.append(", ").append(
+          ((int[])me.getValue())[0] * 100 / sampleCount).append("% ");
+        sb.append(me.getKey());
+      }
+      return sb.toString();
+    }
+
+  } // End Entry class.
+
+
+} // End class.
@@ -0,0 +1,289 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.filter;
+
+
+import java.util.HashMap;
+import java.util.Iterator;
+
+
+/**
+ * This class holds a token bucket for each client of RateLimitFilter.  A
+ * bucket holds up to burst tokens and gains rate tokens a second; each
+ * request takes one, and is refused if there is none.  Tokens are counted
+ * in millionths, so rates below one a second work too, and nothing but
+ * integer arithmetic is done.
+ * <br><br>
+ * The buckets are spread over a number of stripes, each a HashMap with its
+ * own lock, so requests from different clients rarely wait on each other
+ * and never for longer than a map lookup.  A bucket that has not been used
+ * for long enough to have filled up again is no different from a new one,
+ * so evictIdle() drops such buckets, and the memory taken only depends on
+ * how many clients were seen recently.
+ *
+ * @author <a href="mailto:fzammetti@omnytex.com">Frank W. Zammetti</a>.
+ */
+public class TokenBuckets {
+
+
+  /**
+   * Units one token is counted in.
+   */
+  private static final long UNIT = 1000000L;
+
+
+  /**
+   * Units a bucket gains each millisecond.
+   */
+  private long refill;
+
+
+  /**
+   * Units a full bucket holds.
+   */
+  private long capacity;
+
+
+  /**
+   * Milliseconds an empty bucket takes to fill up.
+   */
+  private long fillTime;
+
+
+  /**
+   * The stripes.
+   */
+  private Stripe[] stripes;
+
+
+  /**
+   * Constructor.
+   *
+   * @param rate    Tokens gained per second, at least 0.001.
+   * @param burst   Tokens a full bucket holds, at least 1.
+   * @param nStripe Number of stripes, rounded up to a power of two.
+   */
+  public TokenBuckets(double rate, int burst, int nStripe) {
+
+    refill   = Math.max(1, Math.round(rate * (UNIT / 1000)));
+    capacity = Math.max(1, burst) * UNIT;
+    fillTime = (capacity + refill - 1) / refill;
+    int n = 1;
+    while (n < nStripe) {
+      n <<= 1;
+    }
+    stripes = new Stripe[n];
+    for (int i = 0; i < n; i++) {
+      stripes[i] = new Stripe();
+    }
+
+  } // End TokenBuckets().
+
+
+  /**
+   * Takes a token from a client's bucket, if there is one.
+   *
+   * @param  key The client.
+   * @param  now The current time in milliseconds.
+   * @return     0 if a token was taken, otherwise the number of milliseconds
+   *             until the bucket holds one.
+   */
+  public long tryAcquire(Object key, long now) {
+
+    int    h = key.hashCode();
+    Stripe s = stripes[(h ^ (h >>> 16)) & (stripes.length - 1)];
+    synchronized (s) {
+      Bucket b = (Bucket)s.buckets.get(key);
+      if (b == null) {
+        b        = new Bucket();
+        b.tokens = capacity;
+        b.last   = now;
+        s.buckets.put(key, b);
+      } else if (now > b.last) {
+        long elapsed = now - b.last;
+        b.tokens = elapsed >= fillTime ? capacity :
+          Math.min(capacity, b.tokens + elapsed * refill);
+        b.last   = now;
+      } else if (now < b.last) {
+        // The clock went back; refill from here on.
+        b.last = now;
+      }
+      if (b.tokens >= UNIT) {
+        b.tokens -= UNIT;
+        s.allowed++;
+        return 0;
+      }
+      s.rejected++;
+      return (UNIT - b.tokens + refill - 1) / refill;
+    }
+
+  } // End tryAcquire().
+
+
+  /**
+   * Drops the buckets that have not been used for a while, and would have
+   * filled up by now anyway.
+   *
+   * @param  now     The current time in milliseconds.
+   * @param  idleFor Milliseconds a bucket must have been unused for.
+   * @return         The number of buckets dropped.
+   */
+  public int evictIdle(long now, long idleFor) {
+
+    long cutoff  = now - Math.max(idleFor, fillTime);
+    int  evicted = 0;
+    for (int i = 0; i < stripes.length; i++) {
+      Stripe s = stripes[i];
+      synchronized (s) {
+        int n = 0;
+        for (Iterator it = s.buckets.values().iterator(); it.hasNext();) {
+          if (((Bucket)it.next()).last <= cutoff) {
+            it.remove();
+            n++;
+          }
+        }
+        s.evicted += n;
+        evicted   += n;
+      }
+    }
+    return evicted;
+
+  } // End evictIdle().
+
+
+  /**
+   * Returns the number of clients that currently have a bucket.
+   *
+   * @return The count.
+   */
+  public int getClients() {
+
+    int n = 0;
+    for (int i = 0; i < stripes.length; i++) {
+      synchronized (stripes[i]) {
+        n += stripes[i].buckets.size();
+      }
+    }
+    return n;
+
+  } // End getClients().
+
+
+  /**
+   * Returns the number of requests allowed.
+   *
+   * @return The count.
+   */
+  public long getAllowed() {
+
+    long n = 0;
+    for (int i = 0; i < stripes.length; i++) {
+      synchronized (stripes[i]) {
+        n += stripes[i].allowed;
+      }
+    }
+    return n;
+
+  } // End getAllowed().
+
+
+  /**
+   * Returns the number of requests refused.
+   *
+   * @return The count.
+   */
+  public long getRejected() {
+
+    long n = 0;
+    for (int i = 0; i < stripes.length; i++) {
+      synchronized (stripes[i]) {
+        n += stripes[i].rejected;
+      }
+    }
+    return n;
+
+  } // End getRejected().
+
+
+  /**
+   * Returns the statistics of these buckets, for logging purposes.
+   *
+   * @return The statistics as a String.
+   */
+  public String toString() {
+
+    long evicted = 0;
+    for (int i = 0; i < stripes.length; i++) {
+      synchronized (stripes[i]) {
+        evicted += stripes[i].evicted;
+      }
+    }
+    return "TokenBuckets[clients=" + getClients() + ", allowed=" +
+      getAllowed() + ", rejected=" + getRejected() + ", evicted=" + evicted +
+      ", stripes=" + stripes.length + "]";
+
+  } // End toString().
+
+
+  /**
+   * One client's bucket.
+   */
+  private static final class Bucket {
+
+    /**
+     * Units in the bucket.
+     */
+    private long tokens;
+
+    /**
+     * When tokens was last brought up to date.
+     */
+    private long last;
+
+  } // End Bucket class.
+
+
+  /**
+   * A stripe of buckets, which is also its lock.
+   */
+  private static final class Stripe {
+
+    /**
+     * The buckets, keyed by client.
+     */
+    private HashMap buckets = new HashMap();
+
+    /**
+     * Requests allowed.
+     */
+    private long allowed;
+
+    /**
+     * Requests refused.
+     */
+    private long rejected;
+
+    /**
+     * Buckets evicted.
+     */
+    private long evicted;
+
+  } // End Stripe class.
+
+
+} // End class.
@@ -72,10 +72,9 @@ public final class SessionLimiterListenerHelper {
    */
   public static void unregisterSession(ServletContext ctx, String sessionId) {
 
-    Set registeredSessions = null;
-    synchronized(ctx) {
-      registeredSessions = (Set)ctx.getAttribute(SET_KEY);
-    }
+    // This is the filter's SessionRegistry, which can be updated by any
+    // number of threads at once.
+    Set registeredSessions = (Set)ctx.getAttribute(SET_KEY);
     if (registeredSessions != null) {
       registeredSessions.remove(sessionId);
     }
@@ -0,0 +1,661 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.misc;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.LinkedList;
+import javawebparts.core.LatencyHistogram;
+import javawebparts.core.RecordedRequest;
+
+
+/**
+ * This class sends requests at a set rate, for RecordedRequestPlayer, and
+ * measures how long they take, to find the rate an application can keep up
+ * with.  Unlike threads that each send a request, wait for the answer and
+ * send the next, it sends requests on a schedule of its own whatever the
+ * application does, as real users do: a dispatcher thread hands each request
+ * over at its time to a pool of worker threads, which send it.  If the
+ * workers are all busy, requests wait for one in a backlog.
+ * <br><br>
+ * Each request's latency is measured from the time it was meant to be sent,
+ * not from when a worker got round to it, so time spent waiting because the
+ * application is slow is counted, as it would be by a user.  Measuring from
+ * when it was sent, as a closed loop does, leaves out exactly the requests
+ * that had it worst, which makes a saturated application look fine.  The
+ * time from when it was sent is counted as well, as the service time, and
+ * so is how late each request was sent, as the drift, which shows whether
+ * the generator itself, or the number of workers, is what held it back.
+ * <br><br>
+ * Instead of at a set rate, requests can be sent at the times they arrived
+ * when they were recorded, relative to the first, sped up or slowed down by
+ * a factor, so the bursts and lulls of real traffic are played back as they
+ * were.  The source is expected to hand requests out in order of arrival,
+ * as RecordedRequestPlayer's does, so the next one due is always the next
+ * one read, and the dispatcher only ever waits for that one.  A request
+ * handed out after one that arrived later than it is still sent at its own
+ * time, which has passed, so it is sent at once and its drift shows how
+ * late it was; such requests are counted as reordered.
+ * <br><br>
+ * Responses are read to the end and closed so HttpURLConnection can keep
+ * the connection alive for the next request, and the number of connections
+ * it keeps is raised to the number of workers unless set already.
+ *
+ * @author <a href="mailto:fzammetti@omnytex.com">Frank W. Zammetti</a>.
+ */
+public final class LoadEngine {
+
+
+  /**
+   * Where the requests come from.
+   */
+  public interface RequestSource {
+
+    /**
+     * Returns the next request to send.  Called only from the dispatcher
+     * thread.
+     *
+     * @return             The request, or null if there are no more.
+     * @throws IOException If it cannot be read.
+     */
+    RecordedRequest next() throws IOException;
+
+  } // End RequestSource interface.
+
+
+  /**
+   * Most requests waiting for a worker if setMaxBacklog() is not called.
+   */
+  public static final int DEFAULT_MAX_BACKLOG = 100000;
+
+
+  /**
+   * Where the requests come from.
+   */
+  private RequestSource source;
+
+
+  /**
+   * Requests per second.
+   */
+  private double rate;
+
+
+  /**
+   * The worker threads.
+   */
+  private Thread[] workers;
+
+
+  /**
+   * How much faster than recorded to send requests, or 0 to send them at
+   * rate.
+   */
+  private double speed;
+
+
+  /**
+   * Milliseconds to send requests for, or 0 until the source runs out.
+   */
+  private long duration;
+
+
+  /**
+   * Most requests waiting for a worker; any more are dropped.
+   */
+  private int maxBacklog = DEFAULT_MAX_BACKLOG;
+
+
+  /**
+   * Requests waiting for a worker, as Jobs.  Guarded by itself.
+   */
+  private LinkedList backlog = new LinkedList();
+
+
+  /**
+   * Set once the dispatcher is done.  Guarded by backlog.
+   */
+  private boolean done;
+
+
+  /**
+   * Latencies, from when each request was meant to be sent.
+   */
+  private LatencyHistogram latency = new LatencyHistogram();
+
+
+  /**
+   * Service times, from when each request was sent.
+   */
+  private LatencyHistogram serviceTime = new LatencyHistogram();
+
+
+  /**
+   * How late each request was sent, from when it was meant to be sent.
+   */
+  private LatencyHistogram drift = new LatencyHistogram();
+
+
+  /**
+   * Number of requests answered with a status below 400.  Guarded by this.
+   */
+  private long ok;
+
+
+  /**
+   * Number of requests answered with a status of 400 or more, or not
+   * answered at all.  Guarded by this.
+   */
+  private long errors;
+
+
+  /**
+   * Number of requests dropped because the backlog was full.  Guarded by
+   * this.
+   */
+  private long dropped;
+
+
+  /**
+   * Number of requests that arrived before one handed out ahead of them, in
+   * speed mode.  Guarded by this.
+   */
+  private long reordered;
+
+
+  /**
+   * When the first request was meant to be sent.
+   */
+  private long started;
+
+
+  /**
+   * When the last request was answered.
+   */
+  private long finished;
+
+
+  /**
+   * Constructor.
+   *
+   * @param inSource  Where the requests come from.
+   * @param inRate    Requests per second.
+   * @param inWorkers Most requests sent at once.
+   */
+  public LoadEngine(RequestSource inSource, double inRate, int inWorkers) {
+
+    source  = inSource;
+    rate    = inRate;
+    workers = new Thread[Math.max(1, inWorkers)];
+
+  } // End LoadEngine().
+
+
+  /**
+   * duration mutator.
+   *
+   * @param inDuration Milliseconds to send requests for, or 0 to send them
+   *                   until the source runs out.
+   */
+  public void setDuration(long inDuration) {
+
+    duration = inDuration;
+
+  } // End setDuration().
+
+
+  /**
+   * speed mutator.
+   *
+   * @param inSpeed How much faster than recorded to send requests, i.e. 2
+   *                to send them twice as fast, or 0 to send them at the rate
+   *                given to the constructor.  When not 0, each request is
+   *                sent at its arrival time less that of the first request,
+   *                divided by this.
+   */
+  public void setSpeed(double inSpeed) {
+
+    speed = inSpeed;
+
+  } // End setSpeed().
+
+
+  /**
+   * maxBacklog mutator.
+   *
+   * @param inMaxBacklog Most requests waiting for a worker; any more are
+   *                     dropped and counted.
+   */
+  public void setMaxBacklog(int inMaxBacklog) {
+
+    maxBacklog = inMaxBacklog;
+
+  } // End setMaxBacklog().
+
+
+  /**
+   * Sends the requests, returning once they have all been answered.
+   *
+   * @throws IOException          If the source cannot be read.
+   * @throws InterruptedException If the calling thread is interrupted.
+   */
+  public void run() throws IOException, InterruptedException {
+
+    if (System.getProperty("http.maxConnections") == null) {
+      System.setProperty("http.maxConnections",
+        Integer.toString(workers.length));
+    }
+    for (int i = 0; i < workers.length; i++) {
+      workers[i] = new Thread("LoadEngine worker " + (i + 1)) {
+        public void run() {
+          work();
+        }
+      };
+      workers[i].setDaemon(true);
+      workers[i].start();
+    }
+    try {
+      dispatch();
+    } finally {
+      synchronized (backlog) {
+        done = true;
+        backlog.notifyAll();
+      }
+      for (int i = 0; i < workers.length; i++) {
+        workers[i].join();
+      }
+      finished = System.currentTimeMillis();
+    }
+
+  } // End run().
+
+
+  /**
+   * Hands each request to the workers at its time.
+   *
+   * @throws IOException          If the source cannot be read.
+   * @throws InterruptedException If the calling thread is interrupted.
+   */
+  private void dispatch() throws IOException, InterruptedException {
+
+    double interval      = 1000.0 / rate;
+    long   firstArrival  = 0;
+    long   latestArrival = 0;
+    started = System.currentTimeMillis();
+    for (long i = 0;; i++) {
+      // Read the request before waiting for its time, so reading it does
+      // not make it late.
+      RecordedRequest r = source.next();
+      if (r == null) {
+        break;
+      }
+      long intended;
+      if (speed > 0) {
+        if (i == 0) {
+          firstArrival = r.getArrivalNanos();
+        }
+        intended = started + (long)((r.getArrivalNanos() - firstArrival) /
+          1000000.0 / speed);
+        // It is still sent at its own time, which may have passed; it is
+        // not moved after the one before, which would hide its drift.
+        if (i > 0 && r.getArrivalNanos() < latestArrival) {
+          synchronized (this) {
+            reordered++;
+          }
+        }
+        latestArrival = Math.max(latestArrival, r.getArrivalNanos());
+      } else {
+        intended = started + (long)(i * interval);
+      }
+      if (duration > 0 && intended - started >= duration) {
+        break;
+      }
+      long wait = intended - System.currentTimeMillis();
+      if (wait > 0) {
+        Thread.sleep(wait);
+      }
+      synchronized (backlog) {
+        if (backlog.size() < maxBacklog) {
+          backlog.addLast(new Job(r, intended));
+          backlog.notify();
+          continue;
+        }
+      }
+      synchronized (this) {
+        dropped++;
+      }
+    }
+
+  } // End dispatch().
+
+
+  /**
+   * Sends requests from the backlog until the dispatcher is done and the
+   * backlog is empty.
+   */
+  private void work() {
+
+    while (true) {
+      Job job;
+      synchronized (backlog) {
+        while (backlog.isEmpty() && !done) {
+          try {
+            backlog.wait();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        if (backlog.isEmpty()) {
+          return;
+        }
+        job = (Job)backlog.removeFirst();
+      }
+      long start  = System.currentTimeMillis();
+      int  status = send(job.request);
+      long end    = System.currentTimeMillis();
+      drift.record(start - job.intended);
+      latency.record(end - job.intended);
+      serviceTime.record(end - start);
+      synchronized (this) {
+        if (status < 0 || status >= 400) {
+          errors++;
+        } else {
+          ok++;
+        }
+      }
+    }
+
+  } // End work().
+
+
+  /**
+   * Sends a request with its method, URL, headers and body, and reads the
+   * response to the end so the connection can be used again.
+   *
+   * @param  r The request.
+   * @return   The status of the response, or -1 if there was none.
+   */
+  static int send(RecordedRequest r) {
+
+    return send(r, null);
+
+  } // End send().
+
+
+  /**
+   * Sends a request as send(RecordedRequest) does, noting the message of
+   * the response, or the exception if there was none.
+   *
+   * @param  r       The request.
+   * @param  message Where the message is appended, or null.
+   * @return         The status of the response, or -1 if there was none.
+   */
+  static int send(RecordedRequest r, StringBuffer message) {
+
+    HttpURLConnection huc = null;
+    try {
+      huc = (HttpURLConnection)new URL(r.getUrl()).openConnection();
+      huc.setUseCaches(false);
+      huc.setRequestMethod(r.getMethod());
+      for (int i = 0; i < r.getHeaderCount(); i++) {
+        if (!RecordedRequestPlayer.isSkippedHeader(r.getHeaderName(i))) {
+          huc.addRequestProperty(r.getHeaderName(i), r.getHeaderValue(i));
+        }
+      }
+      byte[] body = r.getBody();
+      if (body.length > 0) {
+        huc.setDoOutput(true);
+        OutputStream out = huc.getOutputStream();
+        out.write(body);
+        out.close();
+      }
+      int status = huc.getResponseCode();
+      if (message != null) {
+        message.append(huc.getResponseMessage());
+      }
+      drain(status >= 400 ? huc.getErrorStream() : huc.getInputStream());
+      return status;
+    } catch (IOException e) {
+      if (huc != null) {
+        huc.disconnect();
+      }
+      if (message != null) {
+        message.setLength(0);
+        message.append(e);
+      }
+      return -1;
+    }
+
+  } // End send().
+
+
+  /**
+   * Reads a response body to the end and closes it.
+   *
+   * @param  in          The body, which may be null.
+   * @throws IOException If it cannot be read.
+   */
+  private static void drain(InputStream in) throws IOException {
+
+    if (in == null) {
+      return;
+    }
+    byte[] buf = new byte[4096];
+    try {
+      while (in.read(buf) != -1) {
+        continue;
+      }
+    } finally {
+      in.close();
+    }
+
+  } // End drain().
+
+
+  /**
+   * Returns the latencies, measured from when each request was meant to be
+   * sent.
+   *
+   * @return The histogram, in milliseconds.
+   */
+  public LatencyHistogram getLatency() {
+
+    return latency;
+
+  } // End getLatency().
+
+
+  /**
+   * Returns the service times, measured from when each request was sent.
+   *
+   * @return The histogram, in milliseconds.
+   */
+  public LatencyHistogram getServiceTime() {
+
+    return serviceTime;
+
+  } // End getServiceTime().
+
+
+  /**
+   * Returns how late requests were sent, measured from when each was meant
+   * to be sent, because the dispatcher was late or the workers were all
+   * busy.
+   *
+   * @return The histogram, in milliseconds.
+   */
+  public LatencyHistogram getDrift() {
+
+    return drift;
+
+  } // End getDrift().
+
+
+  /**
+   * Returns the number of requests answered with a status below 400.
+   *
+   * @return The count.
+   */
+  public synchronized long getOk() {
+
+    return ok;
+
+  } // End getOk().
+
+
+  /**
+   * Returns the number of requests answered with a status of 400 or more,
+   * or not answered at all.
+   *
+   * @return The count.
+   */
+  public synchronized long getErrors() {
+
+    return errors;
+
+  } // End getErrors().
+
+
+  /**
+   * Returns the number of requests dropped because the backlog was full.
+   *
+   * @return The count.
+   */
+  public synchronized long getDropped() {
+
+    return dropped;
+
+  } // End getDropped().
+
+
+  /**
+   * Returns the number of requests, when sent at their recorded times, that
+   * arrived before one the source handed out ahead of them, and so were
+   * sent late.
+   *
+   * @return The count.
+   */
+  public synchronized long getReordered() {
+
+    return reordered;
+
+  } // End getReordered().
+
+
+  /**
+   * Returns the requests answered per second, over the whole run.
+   *
+   * @return The rate.
+   */
+  public synchronized double getThroughput() {
+
+    long elapsed = Math.max(1, finished - started);
+    return (ok + errors) * 1000.0 / elapsed;
+
+  } // End getThroughput().
+
+
+  /**
+   * Writes a report of the run: the counts, the throughput against the
+   * rate asked for, and percentiles of the latencies, service times and
+   * drift.
+   *
+   * @param out Where to write it.
+   */
+  public void report(PrintStream out) {
+
+    out.println("Requests:     " + (getOk() + getErrors()) + " answered, " +
+      getErrors() + " errors, " + getDropped() + " dropped");
+    out.println("Duration:     " + (finished - started) / 1000.0 + "s");
+    out.println("Throughput:   " + Math.round(getThroughput() * 10) / 10.0 +
+      (speed > 0 ? "/s at " + speed + " times recorded speed" :
+      "/s of " + rate + "/s asked for"));
+    if (speed > 0) {
+      out.println("Reordered:    " + getReordered() + " sent after one " +
+        "that arrived later");
+    }
+    out.println("                 p50     p90     p99   p99.9     max");
+    out.println("Latency:    " + percentiles(latency));
+    out.println("Service:    " + percentiles(serviceTime));
+    out.println("Drift:      " + percentiles(drift));
+    out.println("(Latency counts from when each request was due, service " +
+      "from when it was sent,");
+    out.println("drift from when it was due to when it was sent, all in " +
+      "ms.)");
+
+  } // End report().
+
+
+  /**
+   * Returns the percentiles of a histogram, lined up.
+   *
+   * @param  h The histogram.
+   * @return   The percentiles.
+   */
+  private static String percentiles(LatencyHistogram h) {
+
+    long[]       p  = {h.getPercentile(50), h.getPercentile(90),
+      h.getPercentile(99), h.getPercentile(99.9), h.getMax()};
+    StringBuffer sb = new StringBuffer();
+    for (int i = 0; i < p.length; i++) {
+      String s = Long.toString(p[i]);
+      for (int j = s.length(); j < 8; j++) {
+        sb.append(' ');
+      }
+      sb.append(s);
+    }
+    return sb.toString();
+
+  } // End percentiles().
+
+
+  /**
+   * A request, and when it was meant to be sent.
+   */
+  private static final class Job {
+
+    /**
+     * The request.
+     */
+    private RecordedRequest request;
+
+    /**
+     * When it was meant to be sent.
+     */
+    private long intended;
+
+    /**
+     * Constructor.
+     *
+     * @param inRequest  The request.
+     * @param inIntended When it was meant to be sent.
+     */
+    private Job(RecordedRequest inRequest, long inIntended) {
+      request  = inRequest;
+      intended = inIntended;
+    }
+
+  } // End Job class.
+
+
+} // End class.
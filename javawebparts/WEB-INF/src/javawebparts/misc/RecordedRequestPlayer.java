@@ -18,18 +18,28 @@
 package javawebparts.misc;
 
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.ListIterator;
 import java.util.Map;
 import java.util.StringTokenizer;
 import javawebparts.core.JWPHelpers;
+import javawebparts.core.RecordedRequest;
+import javawebparts.core.RecordedRequestReader;
 
 
 /**
@@ -37,12 +47,33 @@ import javawebparts.core.JWPHelpers;
  * the name of a file that was created by the RequestRecorderFilter.  It
  * plays back the requests in that file the specified number of times, or
  * continuously.
+ * <br><br>
+ * The file can be either a CSV file or a file in the binary format of
+ * RecordedRequest, which is told by how it starts.  A binary file is not
+ * read into memory: each thread reads it one request at a time, on each
+ * repetition, with a RecordedRequestReader, so files of any size can be
+ * played.  Requests from a binary file are sent with their method, headers
+ * and body as recorded.
+ * <br><br>
+ * Requests can also be sent at a set rate, or at the times they arrived
+ * when recorded, scaled by a speed factor, by a LoadEngine, which reports
+ * the throughput, latencies and drift at the end.  Only a binary file has
+ * the arrival times.
  *
  * @author <a href="mailto:fzammetti@omnytex.com">Frank W. Zammetti</a>.
  */
 public final class RecordedRequestPlayer {
 
 
+  /**
+   * Headers not sent with a request from a binary file, since they belong to
+   * the connection the request was recorded from, or are set for the new one
+   * by HttpURLConnection.
+   */
+  private static final String[] SKIPPED_HEADERS = {"Host", "Content-Length",
+    "Connection", "Keep-Alive", "Transfer-Encoding"};
+
+
   /**
    * Constructor to avoid static analysis error.
    */
@@ -94,6 +125,58 @@ public final class RecordedRequestPlayer {
       System.exit(-1);
     }
 
+    // Then the options, which send requests at a set rate rather than have
+    // each thread send them one after another.
+    double rate     = 0;
+    double speed    = 0;
+    int    duration = 0;
+    try {
+      for (int i = 3; i < args.length; i++) {
+        if (args[i].equals("--rate") && i + 1 < args.length) {
+          rate = Double.parseDouble(args[++i]);
+        } else if (args[i].equals("--speed") && i + 1 < args.length) {
+          speed = Double.parseDouble(args[++i]);
+        } else if (args[i].equals("--duration") && i + 1 < args.length) {
+          duration = Integer.parseInt(args[++i]);
+        } else {
+          throw new NumberFormatException(args[i]);
+        }
+      }
+    } catch (NumberFormatException nfe) {
+      displayUsageInfo();
+      System.exit(-1);
+    }
+    if (rate < 0 || speed < 0 || duration < 0 || (rate > 0 && speed > 0)) {
+      displayUsageInfo();
+      System.exit(-1);
+    }
+
+    // A binary file is read by each thread as it goes, so there is nothing
+    // more to do here than start them.
+    if (isRecordFile(fileName)) {
+      if (rate > 0 || speed > 0) {
+        runAtRate(new PlaybackSource(new File(fileName), null, iNumReps),
+          rate, speed, iNumThreads, duration);
+        return;
+      }
+      System.out.println("Running...\n");
+      for (int i = 0; i < iNumThreads; i++) {
+        RunnerThread t = new RunnerThread();
+        t.setReps(iNumReps);
+        t.setID(i + 1);
+        t.setRecordFile(new File(fileName));
+        t.setNumThreads(iNumThreads);
+        t.start();
+      }
+      return;
+    }
+
+    if (speed > 0) {
+      System.out.println("--speed needs the arrival times of a binary " +
+                         "file, exiting.");
+      System.exit(-1);
+    }
+
     // Read in the file into an array, one element per line (per request),
     // dealing with any problems that occur.
     String[] requests = null;
@@ -136,6 +219,21 @@ public final class RecordedRequestPlayer {
       requestsAL.add(hm);
     }
 
+    if (rate > 0) {
+      ArrayList recorded = new ArrayList();
+      try {
+        for (Iterator it = requestsAL.iterator(); it.hasNext();) {
+          recorded.add(fromCsv((HashMap)it.next()));
+        }
+      } catch (UnsupportedEncodingException uee) {
+        System.out.println("Could not encode requests: " + uee);
+        System.exit(-1);
+      }
+      runAtRate(new PlaybackSource(null, recorded, iNumReps), rate, 0,
+        iNumThreads, duration);
+      return;
+    }
+
     // Spawn the requested number of threads and start each.
     System.out.println("Running...\n");
     RunnerThread[] threads = new RunnerThread[iNumThreads];
@@ -151,6 +249,190 @@ public final class RecordedRequestPlayer {
   } // End main().
 
 
+  /**
+   * Determines whether a file is in the binary format of RecordedRequest,
+   * exiting if it cannot be read.
+   *
+   * @param  fileName The file.
+   * @return          True if it is.
+   */
+  private static boolean isRecordFile(String fileName) {
+
+    try {
+      InputStream in = new FileInputStream(fileName);
+      try {
+        return RecordedRequestReader.isRecordFile(in);
+      } finally {
+        in.close();
+      }
+    } catch (FileNotFoundException fnfe) {
+      System.out.println("The file " + fileName + " could not be found, " +
+                         "exiting.");
+    } catch (IOException ioe) {
+      System.out.println("IOException reading file: " + ioe);
+    }
+    System.exit(-1);
+    return false;
+
+  } // End isRecordFile().
+
+
+  /**
+   * Determines whether a header is one of SKIPPED_HEADERS.
+   *
+   * @param  name The name of the header.
+   * @return      True if it is.
+   */
+  static boolean isSkippedHeader(String name) {
+
+    for (int i = 0; i < SKIPPED_HEADERS.length; i++) {
+      if (SKIPPED_HEADERS[i].equalsIgnoreCase(name)) {
+        return true;
+      }
+    }
+    return false;
+
+  } // End isSkippedHeader().
+
+
+  /**
+   * Returns the parameters of a request that are not in its query string,
+   * form-encoded.
+   *
+   * @param  r                            The request.
+   * @param  query                        The query string, or null.
+   * @return                              The form.
+   * @throws UnsupportedEncodingException If UTF-8 is not supported.
+   */
+  static byte[] formOf(RecordedRequest r, String query)
+    throws UnsupportedEncodingException {
+
+    // Each name=value of the query string, decoded, so that those are not
+    // sent twice.
+    ArrayList inQuery = new ArrayList();
+    if (query != null) {
+      StringTokenizer st = new StringTokenizer(query, "&");
+      while (st.hasMoreTokens()) {
+        String pair = st.nextToken();
+        int    eq   = pair.indexOf('=');
+        if (eq == -1) {
+          inQuery.add(URLDecoder.decode(pair, "UTF-8") + "=");
+        } else {
+          inQuery.add(URLDecoder.decode(pair.substring(0, eq), "UTF-8") +
+            "=" + URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+        }
+      }
+    }
+    StringBuffer sb = new StringBuffer(1024);
+    for (int i = 0; i < r.getParameterCount(); i++) {
+      String pName = r.getParameterName(i);
+      String pVal  = r.getParameterValue(i);
+      if (inQuery.remove(pName + "=" + pVal)) {
+        continue;
+      }
+      if (sb.length() > 0) {
+        sb.append('&');
+      }
+      sb.append(URLEncoder.encode(pName, "UTF-8")).append('=');
+      sb.append(URLEncoder.encode(pVal, "UTF-8"));
+    }
+    return sb.toString().getBytes("ISO-8859-1");
+
+  } // End formOf().
+
+
+  /**
+   * Puts back in the body of a request the form the container read as
+   * parameters, if the application never read the body itself.  The
+   * parameters not in the query string are sent as the form.
+   *
+   * @param  r           The request.
+   * @throws IOException If its URL is not valid.
+   */
+  static void restoreForm(RecordedRequest r) throws IOException {
+
+    if (r.getBody().length == 0 && r.getBodyLength() > 0) {
+      byte[] body = formOf(r, new URL(r.getUrl()).getQuery());
+      r.setBody(body, body.length);
+    }
+
+  } // End restoreForm().
+
+
+  /**
+   * Returns the request of a line of a CSV file, as parsed by main(), with
+   * the parameters in the query string of a GET or the body of a POST.
+   *
+   * @param  reqData                      The method, URL and parameters.
+   * @return                              The request.
+   * @throws UnsupportedEncodingException If ISO-8859-1 is not supported.
+   */
+  static RecordedRequest fromCsv(HashMap reqData)
+    throws UnsupportedEncodingException {
+
+    String       method = (String)reqData.get("method");
+    String       theURL = (String)reqData.get("theURL");
+    HashMap      params = (HashMap)reqData.get("parameters");
+    StringBuffer form   = new StringBuffer(1024);
+    // The values are URL-encoded already.
+    for (Iterator it = params.entrySet().iterator(); it.hasNext();) {
+      Map.Entry e = (Map.Entry)it.next();
+      if (form.length() > 0) {
+        form.append('&');
+      }
+      form.append(e.getKey()).append('=').append(e.getValue());
+    }
+    RecordedRequest r = new RecordedRequest();
+    r.setMethod(method.toUpperCase());
+    if (method.equalsIgnoreCase("post")) {
+      byte[] body = form.toString().getBytes("ISO-8859-1");
+      r.setUrl(theURL);
+      r.addHeader("Content-Type", "application/x-www-form-urlencoded");
+      r.setBody(body, body.length);
+    } else {
+      r.setUrl(form.length() == 0 ? theURL : theURL + "?" + form);
+    }
+    return r;
+
+  } // End fromCsv().
+
+
+  /**
+   * Sends requests at a set rate, or at their recorded times, with a
+   * LoadEngine, and reports how it went.
+   *
+   * @param source   Where the requests come from.
+   * @param rate     Requests per second.
+   * @param speed    How much faster than recorded to send requests, or 0 to
+   *                 send them at rate.
+   * @param workers  Most requests sent at once.
+   * @param duration Seconds to send requests for, or 0 until the source
+   *                 runs out.
+   */
+  private static void runAtRate(PlaybackSource source, double rate,
+    double speed, int workers, int duration) {
+
+    if (speed > 0) {
+      System.out.println("Sending requests at " + speed + " times the " +
+                         "speed they were recorded at...\n");
+    } else {
+      System.out.println("Sending " + rate + " requests per second...\n");
+    }
+    LoadEngine engine = new LoadEngine(source, rate, workers);
+    engine.setSpeed(speed);
+    engine.setDuration(duration * 1000L);
+    try {
+      engine.run();
+    } catch (IOException ioe) {
+      System.out.println("IOException reading file: " + ioe);
+    } catch (InterruptedException ie) {
+      System.out.println("Interrupted, stopping.");
+    }
+    engine.report(System.out);
+
+  } // End runAtRate().
+
+
   /**
    * When any problems are detected when parsing the command line parameters,
    * display usage information.  This will also happen when no command line
@@ -163,14 +445,32 @@ public final class RecordedRequestPlayer {
     System.out.println("This is a java application that will \"play  back\" " +
                        "a series of requests");
     System.out.println("recorded with the RequestRecorderFilter.  It accepts " +
-                       "two required command");
+                       "three required command");
     System.out.println("line parameters:\n");
     System.out.println("1. The filename containing the recorded requests " +
-                       "(full path to it)");
+                       "(full path to it),");
+    System.out.println("   either a CSV file or a binary file");
     System.out.println("2. The number of times to run through the file, or " +
                        "0 for continuous");
     System.out.println("3. The number of concurrent threads to spawn to run " +
                        "through the parameters");
+    System.out.println("\nand some optional ones:\n");
+    System.out.println("--rate r      Send r requests per second, whatever " +
+                       "the server does, with");
+    System.out.println("              the threads taking turns to send " +
+                       "them, and report the");
+    System.out.println("              throughput and latency percentiles " +
+                       "at the end");
+    System.out.println("--speed f     Instead, send each request at the " +
+                       "time it arrived when");
+    System.out.println("              recorded, f times as fast, i.e. 0.5 " +
+                       "for half speed; needs a");
+    System.out.println("              binary file, and reports how late " +
+                       "requests were sent");
+    System.out.println("--duration s  With --rate or --speed, stop after s " +
+                       "seconds even if the file has");
+    System.out.println("              not been run through the number of " +
+                       "times given");
     System.out.println("\nHere is a usage example:\n");
     System.out.println("RecordedRequestPlayer c:\\temp\\saveFile.csv 5 3\n");
     System.out.println("This will run through all the requests in the file " +
@@ -178,10 +478,259 @@ public final class RecordedRequestPlayer {
     System.out.println("5 times and then stop, and will spawn 3 threads to " +
                        "do so, essentially");
     System.out.println("simulating 3 simultaneous users.\n");
+    System.out.println("RecordedRequestPlayer c:\\temp\\saveFile.jwpr 0 " +
+                       "200 --rate 500 --duration 60\n");
+    System.out.println("This will send 500 requests per second from " +
+                       "saveFile.jwpr for a minute,");
+    System.out.println("with up to 200 at once, and report how long they " +
+                       "took.\n");
+    System.out.println("RecordedRequestPlayer c:\\temp\\saveFile.jwpr 1 " +
+                       "200 --speed 2\n");
+    System.out.println("This will send the requests in saveFile.jwpr at " +
+                       "twice the speed they");
+    System.out.println("were recorded at, keeping their bursts and " +
+                       "lulls.\n");
 
   } // End displayUsageInfo().
 
 
+  /**
+   * This is an inner class that hands the requests of a file to a
+   * LoadEngine, running through them the requested number of times.  A
+   * binary file is read one request at a time, as RunnerThread does, and
+   * the arrival times of each run through it are moved on to follow the
+   * last, so they can be played back at their times.
+   * <br><br>
+   * Requests are recorded as they finish, so a slow one comes after others
+   * that arrived later than it.  The requests of a file are therefore put
+   * back in order of arrival through a small buffer: a request is handed
+   * out once one has been read that arrived more than a window later than
+   * it, the window being the longest a request read so far took, and never
+   * less than DEFAULT_REORDER_WINDOW.  Only a request that took longer than
+   * any before it, and longer than the window, can still come out of order.
+   */
+  static final class PlaybackSource implements LoadEngine.RequestSource {
+
+
+    /**
+     * Milliseconds, in recorded time, of the smallest reorder window.
+     */
+    static final long DEFAULT_REORDER_WINDOW = 5000;
+
+
+    /**
+     * The binary file the requests are read from, or null.
+     */
+    private File recordFile;
+
+
+    /**
+     * The requests, as RecordedRequests, if there is no recordFile.
+     */
+    private ArrayList requests;
+
+
+    /**
+     * Number of times to run through the requests.
+     */
+    private int reps;
+
+
+    /**
+     * Count of the number of times run through so far.
+     */
+    private int repsCount;
+
+
+    /**
+     * Whether any request was handed out in this run through.
+     */
+    private boolean any;
+
+
+    /**
+     * Nanoseconds added to the arrival times of the requests of this run
+     * through the file, so that each run through follows the last.
+     */
+    private long shift;
+
+
+    /**
+     * The latest arrival time handed out, after shifting.
+     */
+    private long lastArrival;
+
+
+    /**
+     * The reader of recordFile, while running through it.
+     */
+    private RecordedRequestReader reader;
+
+
+    /**
+     * Index of the next of requests.
+     */
+    private int index;
+
+
+    /**
+     * Requests read from recordFile but not handed out yet, in order of
+     * arrival.
+     */
+    private LinkedList pending = new LinkedList();
+
+
+    /**
+     * Nanoseconds of the smallest reorder window.
+     */
+    private long window = DEFAULT_REORDER_WINDOW * 1000000L;
+
+
+    /**
+     * The longest any request read so far took, in nanoseconds.
+     */
+    private long maxElapsed;
+
+
+    /**
+     * The latest arrival time read, after shifting.
+     */
+    private long latestRead;
+
+
+    /**
+     * Set once the file has been run through the requested number of
+     * times.
+     */
+    private boolean exhausted;
+
+
+    /**
+     * Constructor.
+     *
+     * @param inRecordFile The binary file the requests are read from, or
+     *                     null.
+     * @param inRequests   The requests, if there is no file.
+     * @param inReps       Number of times to run through the requests.
+     */
+    PlaybackSource(File inRecordFile, ArrayList inRequests, int inReps) {
+
+      recordFile = inRecordFile;
+      requests   = inRequests;
+      reps       = inReps;
+
+    } // End PlaybackSource().
+
+
+    /**
+     * reorderWindow mutator.
+     *
+     * @param inWindow Milliseconds, in recorded time, of the smallest
+     *                 reorder window.
+     */
+    void setReorderWindow(long inWindow) {
+
+      window = inWindow * 1000000L;
+
+    } // End setReorderWindow().
+
+
+    /**
+     * Returns the next request, starting over at the end of the requests
+     * until they have been run through the requested number of times.  The
+     * requests of a file come out in order of arrival, as far as the
+     * reorder window allows.
+     *
+     * @return             The request, or null if there are no more.
+     * @throws IOException If the file cannot be read.
+     */
+    public RecordedRequest next() throws IOException {
+
+      if (recordFile == null) {
+        return read();
+      }
+      while (!exhausted) {
+        if (!pending.isEmpty() && latestRead -
+          ((RecordedRequest)pending.getFirst()).getArrivalNanos() >
+          Math.max(window, maxElapsed)) {
+          break;
+        }
+        RecordedRequest r = read();
+        if (r == null) {
+          exhausted = true;
+          break;
+        }
+        // Nearly all requests are in order, so look from the end for where
+        // each goes, after any that arrived at the same time.
+        ListIterator it = pending.listIterator(pending.size());
+        while (it.hasPrevious()) {
+          if (((RecordedRequest)it.previous()).getArrivalNanos() <=
+            r.getArrivalNanos()) {
+            it.next();
+            break;
+          }
+        }
+        it.add(r);
+        latestRead = Math.max(latestRead, r.getArrivalNanos());
+        maxElapsed = Math.max(maxElapsed, r.getElapsedNanos());
+      }
+      return pending.isEmpty() ? null : (RecordedRequest)pending.removeFirst();
+
+    } // End next().
+
+
+    /**
+     * Reads the next request, in the order recorded, starting over at the
+     * end of the requests until they have been run through the requested
+     * number of times.
+     *
+     * @return             The request, or null if there are no more.
+     * @throws IOException If the file cannot be read.
+     */
+    private RecordedRequest read() throws IOException {
+
+      while (repsCount < reps) {
+        RecordedRequest r = null;
+        if (recordFile != null) {
+          if (reader == null) {
+            reader = new RecordedRequestReader(recordFile);
+          }
+          r = reader.next();
+          if (r == null) {
+            reader.close();
+            reader = null;
+          } else {
+            if (!any && repsCount > 0) {
+              shift = lastArrival - r.getArrivalNanos();
+            }
+            r.setArrivalNanos(r.getArrivalNanos() + shift);
+            lastArrival = Math.max(lastArrival, r.getArrivalNanos());
+          }
+        } else if (index < requests.size()) {
+          r = (RecordedRequest)requests.get(index++);
+        } else {
+          index = 0;
+        }
+        if (r != null) {
+          any = true;
+          restoreForm(r);
+          return r;
+        }
+        if (!any) {
+          // Nothing to run through, however many times.
+          return null;
+        }
+        any = false;
+        repsCount++;
+      }
+      return null;
+
+    } // End read().
+
+
+  } // End inner class.
+
+
   /**
    * This is an inner class that is the thread which is spawned to run through
    * the recorded requests.
@@ -215,6 +764,13 @@ public final class RecordedRequestPlayer {
     private ArrayList requests;
 
 
+    /**
+     * The binary file this thread reads its requests from, or null if they
+     * are in requests.
+     */
+    private File recordFile;
+
+
     /**
      * The response code retrieved from the last request made.
      */
@@ -269,6 +825,18 @@ public final class RecordedRequestPlayer {
     } // End setRequests().
 
 
+    /**
+     * Mutator for the binary file this thread reads its requests from.
+     *
+     * @param inRecordFile The new value to set.
+     */
+    public void setRecordFile(File inRecordFile) {
+
+      recordFile = inRecordFile;
+
+    } // End setRecordFile().
+
+
     /**
      * Mutator for the total number of threads running.
      *
@@ -287,6 +855,10 @@ public final class RecordedRequestPlayer {
     public void run() {
 
       repsCount = 0;
+      if (recordFile != null) {
+        playRecordFile();
+        return;
+      }
 
       // Run through the file the requested number of times.
       while (repsCount < reps) {
@@ -334,6 +906,78 @@ public final class RecordedRequestPlayer {
 
     } // End run().
 
+
+    /**
+     * Runs through the binary file the requested number of times, reading
+     * one request at a time.
+     */
+    private void playRecordFile() {
+
+      while (repsCount < reps) {
+        RecordedRequestReader reader = null;
+        try {
+          reader = new RecordedRequestReader(recordFile);
+          int i = 0;
+          for (RecordedRequest r = reader.next(); r != null;
+            r = reader.next()) {
+            i = i + 1;
+            StringBuffer sb = new StringBuffer(1024);
+            sb.append("* Thread:     " + id + "/" + numThreads + "\n");
+            sb.append("* Repetition: " + (repsCount + 1) + "/" + reps + "\n");
+            sb.append("* Request:    " + i + "\n");
+            sb.append("* URL:        " + r.getMethod() + " " + r.getUrl() +
+                      "\n");
+            sb.append("* Headers:    " + r.getHeaderCount() + "\n");
+            sb.append("* Body:       " + r.getBody().length + " of " +
+                      r.getBodyLength() + " bytes");
+            sendRecordedRequest(r);
+            sb.append("\n* Response:   " + responseCode + " " +
+                      responseMessage + "\n");
+            log(sb);
+          }
+        } catch (IOException ioe) {
+          System.out.println("IOException reading file: " + ioe);
+          return;
+        } finally {
+          if (reader != null) {
+            try {
+              reader.close();
+            } catch (IOException ioe) {
+              System.out.println("IOException closing file: " + ioe);
+            }
+          }
+        }
+        repsCount++;
+      }
+
+    } // End playRecordFile().
+
+
+    /**
+     * Sends a request from a binary file through LoadEngine.send(), with
+     * the method, headers and body it was recorded with, setting the
+     * responseCode and responseMessage class members as sendRequest() does.
+     * If the application never read the body, as when the container read it
+     * as parameters, the parameters not in the query string are sent as a
+     * form instead.
+     *
+     * @param r The request.
+     */
+    private void sendRecordedRequest(RecordedRequest r) {
+
+      try {
+        restoreForm(r);
+      } catch (IOException ioe) {
+        responseCode    = -1;
+        responseMessage = ioe.toString();
+        return;
+      }
+      StringBuffer message = new StringBuffer();
+      responseCode    = LoadEngine.send(r, message);
+      responseMessage = message.toString();
+
+    } // End sendRecordedRequest().
+
     /**
      * This method is called to send a given request.  It sets the responseCode
      * and responseMethod class members upon completion.  No exceptiosn are
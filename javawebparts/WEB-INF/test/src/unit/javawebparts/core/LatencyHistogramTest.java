@@ -0,0 +1,78 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.core;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Tests of the class LatencyHistogram.
+ */
+public class LatencyHistogramTest extends TestCase {
+
+  /**
+   * Every time falls in a bucket that holds it, and buckets are no wider
+   * than about 3% of the times they hold.
+   */
+  public void testBuckets() {
+    int last = -1;
+    for (long v = 0; v <= LatencyHistogram.HIGHEST; v++) {
+      int i = LatencyHistogram.index(v);
+      assertTrue(i == last || i == last + 1);
+      assertTrue(v <= LatencyHistogram.highestIn(i));
+      if (i > 0) {
+        assertTrue(v > LatencyHistogram.highestIn(i - 1));
+      }
+      assertTrue(LatencyHistogram.highestIn(i) - v <= v / 32);
+      last = i;
+    }
+  }
+
+  /**
+   * Percentiles of a known distribution.
+   */
+  public void testPercentiles() {
+    LatencyHistogram h = new LatencyHistogram();
+    assertEquals(0, h.getPercentile(99));
+    for (int v = 1; v <= 1000; v++) {
+      h.record(v);
+    }
+    h.record(-5);
+    assertEquals(1001, h.getCount());
+    assertEquals(1000, h.getMax());
+    assertEquals(500.0, h.getMean(), 0.5);
+    assertEquals(0, h.getPercentile(0));
+    assertEquals(501, h.getPercentile(50), 16);
+    assertEquals(901, h.getPercentile(90), 30);
+    assertEquals(991, h.getPercentile(99), 31);
+    assertEquals(1000, h.getPercentile(100));
+    h.reset();
+    assertEquals(0, h.getCount());
+  }
+
+  /**
+   * Times beyond the last bucket are still counted, and the longest kept.
+   */
+  public void testHuge() {
+    LatencyHistogram h = new LatencyHistogram();
+    h.record(LatencyHistogram.HIGHEST * 10);
+    assertEquals(LatencyHistogram.HIGHEST * 10, h.getMax());
+    assertEquals(LatencyHistogram.HIGHEST * 10, h.getPercentile(50));
+  }
+
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import junit.framework.TestCase;
+
+
+/**
+ * Tests of the classes RecordedRequest, RecordedRequestWriter and
+ * RecordedRequestReader.
+ */
+public class RecordedRequestTest extends TestCase {
+
+  /**
+   * The file written to.
+   */
+  private File file;
+
+  /**
+   * Creates the file.
+   *
+   * @throws IOException If it cannot be created.
+   */
+  protected void setUp() throws IOException {
+    file = File.createTempFile("RecordedRequestTest", ".jwpr");
+  }
+
+  /**
+   * Deletes the file and any it was rotated to.
+   */
+  protected void tearDown() {
+    file.delete();
+    for (int i = 1; new File(file.getPath() + "." + i).delete(); i++) {
+      continue;
+    }
+  }
+
+  /**
+   * Returns a request.
+   *
+   * @param  i Something to tell it from others.
+   * @return   The request.
+   */
+  private static RecordedRequest request(int i) {
+    RecordedRequest r = new RecordedRequest();
+    r.setArrivalNanos(1000000000L * i);
+    r.setElapsedNanos(i);
+    r.setMethod("POST");
+    r.setUrl("http://localhost/app/" + i + "?a=\u00e9");
+    r.addHeader("Content-Type", "text/plain");
+    r.addHeader("Accept", "*/*");
+    r.addParameter("a", "\u00e9");
+    byte[] body = new byte[i % 100];
+    for (int j = 0; j < body.length; j++) {
+      body[j] = (byte)j;
+    }
+    r.setBody(body, i % 3 == 0 ? body.length : body.length + 10);
+    return r;
+  }
+
+  /**
+   * Asserts that a request read back is the one written.
+   *
+   * @param i The number request() was given.
+   * @param r The request read.
+   */
+  private static void check(int i, RecordedRequest r) {
+    RecordedRequest e = request(i);
+    assertNotNull(r);
+    assertEquals(e.getArrivalNanos(), r.getArrivalNanos());
+    assertEquals(e.getElapsedNanos(), r.getElapsedNanos());
+    assertEquals(e.getMethod(), r.getMethod());
+    assertEquals(e.getUrl(), r.getUrl());
+    assertEquals(2, r.getHeaderCount());
+    assertEquals("Accept", r.getHeaderName(1));
+    assertEquals("*/*", r.getHeaderValue(1));
+    assertEquals(1, r.getParameterCount());
+    assertEquals("\u00e9", r.getParameterValue(0));
+    assertEquals(e.getBodyLength(), r.getBodyLength());
+    assertEquals(e.isBodyComplete(), r.isBodyComplete());
+    assertEquals(e.getBody().length, r.getBody().length);
+    for (int j = 0; j < r.getBody().length; j++) {
+      assertEquals(e.getBody()[j], r.getBody()[j]);
+    }
+  }
+
+  /**
+   * Writes requests 0 to n - 1 to the file.
+   *
+   * @param  n           The number of requests.
+   * @param  maxFileSize The size beyond which the file is rotated.
+   * @param  mapped      Whether to append through a mapped region.
+   * @return             The writer, closed.
+   * @throws IOException If the file cannot be written.
+   */
+  private RecordedRequestWriter write(int n, long maxFileSize,
+    boolean mapped) throws IOException {
+    RecordedRequestWriter w = new RecordedRequestWriter(file, maxFileSize,
+      mapped);
+    for (int i = 0; i < n; i++) {
+      w.write(request(i));
+    }
+    w.close();
+    return w;
+  }
+
+  /**
+   * Reads all the requests in a file.
+   *
+   * @param  f           The file.
+   * @return             The requests.
+   * @throws IOException If the file cannot be read.
+   */
+  private static ArrayList read(File f) throws IOException {
+    ArrayList             l = new ArrayList();
+    RecordedRequestReader r = new RecordedRequestReader(f);
+    try {
+      for (RecordedRequest rr = r.next(); rr != null; rr = r.next()) {
+        l.add(rr);
+      }
+    } finally {
+      r.close();
+    }
+    return l;
+  }
+
+  /**
+   * A request survives being made a record and back.
+   *
+   * @throws IOException If something goes wrong.
+   */
+  public void testRecord() throws IOException {
+    check(7, RecordedRequest.fromRecord(request(7).toRecord()));
+    RecordedRequest r = RecordedRequest.fromRecord(
+      new RecordedRequest().toRecord());
+    assertEquals("GET", r.getMethod());
+    assertEquals(0, r.getHeaderCount());
+    assertEquals(-1, r.getBodyLength());
+  }
+
+  /**
+   * A damaged record is refused rather than read as garbage.
+   *
+   * @throws IOException If something goes wrong.
+   */
+  public void testDamagedRecord() throws IOException {
+    byte[] record = request(7).toRecord();
+    record[16]    = 0x7f;
+    try {
+      RecordedRequest.fromRecord(record);
+      fail("Damaged record was read");
+    } catch (IOException e) {
+      // Expected.
+    }
+  }
+
+  /**
+   * Requests written, more than fit the buffer, are read back in order.
+   *
+   * @throws IOException If something goes wrong.
+   */
+  public void testWriteRead() throws IOException {
+    write(20000, 0, false);
+    ArrayList l = read(file);
+    assertEquals(20000, l.size());
+    for (int i = 0; i < l.size(); i++) {
+      check(i, (RecordedRequest)l.get(i));
+    }
+  }
+
+  /**
+   * Requests written through a mapped region, more than fit one region, are
+   * read back in order, and appending to the file adds to them.
+   *
+   * @throws IOException If something goes wrong.
+   */
+  public void testMapped() throws IOException {
+    RecordedRequestWriter w = write(20000, 0, true);
+    if (w.getTruncateFailures() == 0) {
+      assertTrue(file.length() < 20000 * 200);
+    }
+    w = new RecordedRequestWriter(file, 0, true);
+    w.write(request(20000));
+    w.close();
+    ArrayList l = read(file);
+    assertEquals(20001, l.size());
+    check(20000, (RecordedRequest)l.get(20000));
+  }
+
+  /**
+   * The file is rotated before it grows beyond the maximum size, and the
+   * files together hold every request.
+   *
+   * @throws IOException If something goes wrong.
+   */
+  public void testRotate() throws IOException {
+    RecordedRequestWriter w = write(1000, 8 * 1024, false);
+    assertTrue(w.getRotations() > 5);
+    int n = 0;
+    for (int i = 1; i <= w.getRotations(); i++) {
+      File f = new File(file.getPath() + "." + i);
+      assertTrue(f.length() <= 8 * 1024);
+      ArrayList l = read(f);
+      for (int j = 0; j < l.size(); j++) {
+        check(n++, (RecordedRequest)l.get(j));
+      }
+    }
+    ArrayList l = read(file);
+    for (int j = 0; j < l.size(); j++) {
+      check(n++, (RecordedRequest)l.get(j));
+    }
+    assertEquals(1000, n);
+  }
+
+  /**
+   * A record cut short is taken for the end of the records, and dropped when
+   * the file is next appended to.
+   *
+   * @throws IOException If something goes wrong.
+   */
+  public void testTruncated() throws IOException {
+    write(10, 0, false);
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.setLength(raf.length() - 5);
+    raf.close();
+    assertEquals(9, read(file).size());
+    RecordedRequestWriter w = new RecordedRequestWriter(file, 0, false);
+    w.write(request(42));
+    w.close();
+    ArrayList l = read(file);
+    assertEquals(10, l.size());
+    check(8, (RecordedRequest)l.get(8));
+    check(42, (RecordedRequest)l.get(9));
+  }
+
+  /**
+   * Only files of records are read or appended to.
+   *
+   * @throws IOException If something goes wrong.
+   */
+  public void testNotRecords() throws IOException {
+    assertFalse(RecordedRequestReader.isRecordFile(
+      new ByteArrayInputStream("GET,http://localhost/".getBytes())));
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.writeBytes("GET,http://localhost/\n");
+    raf.close();
+    try {
+      new RecordedRequestReader(file);
+      fail("CSV file was read");
+    } catch (IOException e) {
+      // Expected.
+    }
+    try {
+      new RecordedRequestWriter(file, 0, false);
+      fail("CSV file was appended to");
+    } catch (IOException e) {
+      // Expected.
+    }
+  }
+
+}
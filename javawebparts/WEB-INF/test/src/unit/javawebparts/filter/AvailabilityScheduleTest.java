@@ -0,0 +1,90 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.filter;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import junit.framework.TestCase;
+
+
+/**
+ * Tests of the class AvailabilitySchedule.
+ */
+public class AvailabilityScheduleTest extends TestCase {
+
+  /**
+   * Minute of the week of a time on Monday.
+   *
+   * @param  hhmm The time, in 24-hour form.
+   * @return      The minute.
+   */
+  private static int monday(int hhmm) {
+    return 1440 + (hhmm / 100) * 60 + hhmm % 100;
+  }
+
+  /**
+   * A range within a day includes both ends.
+   */
+  public void testRange() {
+    AvailabilitySchedule s = new AvailabilitySchedule();
+    s.setDay(Calendar.MONDAY, 800, 1730);
+    assertFalse(s.isAvailable(monday(759)));
+    assertTrue(s.isAvailable(monday(800)));
+    assertTrue(s.isAvailable(monday(1200)));
+    assertTrue(s.isAvailable(monday(1730)));
+    assertFalse(s.isAvailable(monday(1731)));
+    // Other days are untouched.
+    assertFalse(s.isAvailable(1200));
+    assertFalse(s.isAvailable(1440 * 2 + 600));
+  }
+
+  /**
+   * A range spanning midnight applies to both ends of the same day.
+   */
+  public void testSpanning() {
+    AvailabilitySchedule s = new AvailabilitySchedule();
+    s.setDay(Calendar.MONDAY, 2300, 600);
+    assertTrue(s.isAvailable(monday(0)));
+    assertTrue(s.isAvailable(monday(600)));
+    assertFalse(s.isAvailable(monday(601)));
+    assertFalse(s.isAvailable(monday(2259)));
+    assertTrue(s.isAvailable(monday(2300)));
+    assertTrue(s.isAvailable(monday(2359)));
+    // Setting a day again replaces it.
+    s.setDay(Calendar.MONDAY, 0, 2359);
+    assertTrue(s.isAvailable(monday(1200)));
+  }
+
+  /**
+   * Times are mapped to the right minute, across minute boundaries.
+   */
+  public void testAvailableAt() {
+    AvailabilitySchedule s = new AvailabilitySchedule();
+    s.setDay(Calendar.SATURDAY, 1000, 1000);
+    GregorianCalendar cal = new GregorianCalendar(2005, Calendar.OCTOBER, 15,
+      9, 59, 59);
+    long t = cal.getTime().getTime();
+    assertFalse(s.isAvailableAt(t));
+    assertTrue(s.isAvailableAt(t + 1000));
+    assertTrue(s.isAvailableAt(t + 60999));
+    assertFalse(s.isAvailableAt(t + 61000));
+    assertTrue(s.isAvailableAt(t + 30000));
+    assertFalse(s.isAvailableAt(t));
+  }
+
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.filter;
+
+import java.util.Locale;
+import junit.framework.TestCase;
+
+
+/**
+ * Tests of the class CompressedResponseCache.
+ */
+public class CompressedResponseCacheTest extends TestCase {
+
+  /**
+   * Keys differ by compression type and query string.
+   */
+  public void testKeys() {
+    CompressedResponseCache c = new CompressedResponseCache(100, 0);
+    c.put(CompressedResponseCache.makeKey("/a.js", null, "gzip"),
+      new byte[10], "text/javascript");
+    assertNotNull(c.get(CompressedResponseCache.makeKey("/a.js", null,
+      "gzip")));
+    assertNull(c.get(CompressedResponseCache.makeKey("/a.js", null,
+      "deflate")));
+    assertNull(c.get(CompressedResponseCache.makeKey("/a.js", "v=2",
+      "gzip")));
+  }
+
+  /**
+   * The least recently used entry goes first when the budget is exceeded.
+   */
+  public void testLRUEviction() {
+    CompressedResponseCache c = new CompressedResponseCache(25, 0);
+    c.put("a", new byte[10], null);
+    c.put("b", new byte[10], null);
+    c.get("a");
+    c.put("c", new byte[10], null);
+    assertNotNull(c.get("a"));
+    assertNull(c.get("b"));
+    assertNotNull(c.get("c"));
+    c.put("d", new byte[30], null);
+    assertNull(c.get("d"));
+  }
+
+  /**
+   * The headers and locale a response was given are kept with it.
+   */
+  public void testHeaders() {
+    CompressedResponseCache c = new CompressedResponseCache(100, 0);
+    c.put("a", new byte[1], "text/html", new String[] {"Cache-Control",
+      "max-age=60", "ETag", "\"1\""}, Locale.FRENCH);
+    CompressedResponseCache.Entry e = c.get("a");
+    assertEquals(2, e.getHeaderCount());
+    assertEquals("ETag", e.getHeaderName(1));
+    assertEquals("\"1\"", e.getHeaderValue(1));
+    assertEquals(Locale.FRENCH, e.getLocale());
+    c.put("b", new byte[1], null);
+    assertEquals(0, c.get("b").getHeaderCount());
+    assertNull(c.get("b").getLocale());
+  }
+
+  /**
+   * Headers count against the budget along with the body.
+   */
+  public void testHeaderBytes() {
+    CompressedResponseCache c = new CompressedResponseCache(25, 0);
+    c.put("a", new byte[10], null);
+    // 10 bytes of body and 8 of header.
+    c.put("b", new byte[10], null, new String[] {"ETag", "\"1\""}, null);
+    assertNull(c.get("a"));
+    assertNotNull(c.get("b"));
+    // 10 bytes of body and 23 of header.
+    c.put("c", new byte[10], null, new String[] {"Cache-Control",
+      "max-age=60"}, null);
+    assertNull(c.get("c"));
+    assertNotNull(c.get("b"));
+  }
+
+  /**
+   * Entries expire after the TTL.
+   */
+  public void testTTL() throws InterruptedException {
+    CompressedResponseCache c = new CompressedResponseCache(100, 20);
+    c.put("a", new byte[1], null);
+    assertNotNull(c.get("a"));
+    Thread.sleep(50);
+    assertNull(c.get("a"));
+  }
+
+}
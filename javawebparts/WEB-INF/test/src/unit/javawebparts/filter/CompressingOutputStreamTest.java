@@ -0,0 +1,99 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.filter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Tests of the class CompressingOutputStream.
+ */
+public class CompressingOutputStreamTest extends TestCase {
+
+  private static final String TEXT =
+    "Java Web Parts, Java Web Parts, Java Web Parts, Java Web Parts";
+
+  /**
+   * GZip output can be read back by GZIPInputStream.
+   */
+  public void testGzipRoundTrip() throws IOException {
+    byte[] out = compress(CompressionResWrapper.GZIP);
+    InputStream in = new GZIPInputStream(new ByteArrayInputStream(out));
+    assertEquals(TEXT + TEXT, readAll(in));
+  }
+
+  /**
+   * Deflate output can be read back by InflaterInputStream.
+   */
+  public void testDeflateRoundTrip() throws IOException {
+    byte[] out = compress(CompressionResWrapper.DEFLATE);
+    InputStream in = new InflaterInputStream(new ByteArrayInputStream(out));
+    assertEquals(TEXT + TEXT, readAll(in));
+  }
+
+  /**
+   * After flush() everything written so far can be decoded.
+   */
+  public void testFlushEmitsAllInput() throws Exception {
+    ByteArrayOutputStream bo = new ByteArrayOutputStream();
+    CompressingOutputStream cos = new CompressingOutputStream(bo,
+      CompressionResWrapper.DEFLATE, CompressingOutputStream.createDeflater(
+      CompressionResWrapper.DEFLATE, Deflater.DEFAULT_COMPRESSION),
+      Deflater.DEFAULT_COMPRESSION);
+    cos.write(TEXT.getBytes("UTF-8"));
+    cos.flush();
+    byte[]   part = bo.toByteArray();
+    Inflater inf  = new Inflater();
+    inf.setInput(part);
+    byte[] res = new byte[TEXT.length() * 2];
+    int    n   = inf.inflate(res);
+    assertEquals(TEXT, new String(res, 0, n, "UTF-8"));
+  }
+
+  private byte[] compress(String ct) throws IOException {
+    ByteArrayOutputStream bo = new ByteArrayOutputStream();
+    CompressingOutputStream cos = new CompressingOutputStream(bo, ct,
+      CompressingOutputStream.createDeflater(ct, Deflater.BEST_SPEED),
+      Deflater.BEST_SPEED);
+    cos.write(TEXT.getBytes("UTF-8"));
+    cos.flush();
+    cos.write(TEXT.getBytes("UTF-8"));
+    cos.close();
+    return bo.toByteArray();
+  }
+
+  private String readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream bo = new ByteArrayOutputStream();
+    byte[] b = new byte[256];
+    int    n;
+    while ((n = in.read(b)) != -1) {
+      bo.write(b, 0, n);
+    }
+    return new String(bo.toByteArray(), "UTF-8");
+  }
+
+}
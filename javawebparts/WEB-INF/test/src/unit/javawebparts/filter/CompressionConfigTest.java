@@ -0,0 +1,63 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.filter;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Tests of the class CompressionConfig.
+ */
+public class CompressionConfigTest extends TestCase {
+
+  /**
+   * With no list configured every type is compressible.
+   */
+  public void testDefaultAllowsEverything() {
+    CompressionConfig cc = new CompressionConfig();
+    assertTrue(cc.isCompressibleType("image/png"));
+    assertTrue(cc.isCompressibleType(null));
+  }
+
+  /**
+   * Exact and prefix entries, ignoring case and parameters.
+   */
+  public void testTypeList() {
+    CompressionConfig cc = new CompressionConfig();
+    cc.setCompressibleTypes("text/*, application/json");
+    assertTrue(cc.isCompressibleType("text/html; charset=UTF-8"));
+    assertTrue(cc.isCompressibleType("Application/JSON"));
+    assertFalse(cc.isCompressibleType("application/javascript"));
+    assertFalse(cc.isCompressibleType("image/gif"));
+    assertFalse(cc.isCompressibleType(null));
+  }
+
+  /**
+   * Only HTML and JavaScript are minified, and only when minify is on.
+   */
+  public void testMinifiedTypes() {
+    CompressionConfig cc = new CompressionConfig();
+    assertFalse(cc.isMinifiedType("text/html"));
+    cc.setMinify(true, null);
+    assertTrue(cc.isMinifiedType("text/html; charset=UTF-8"));
+    assertTrue(cc.isMinifiedType("application/x-javascript"));
+    assertFalse(cc.isMinifiedType("text/css"));
+    assertFalse(cc.isMinifiedType(null));
+  }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.filter;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Locale;
+import javax.servlet.http.HttpServletResponse;
+import junit.framework.TestCase;
+
+
+/**
+ * Tests of the class CompressionResWrapper.
+ */
+public class CompressionResWrapperTest extends TestCase {
+
+  /**
+   * Returns a wrapper around a response that ignores everything.
+   *
+   * @return The wrapper.
+   */
+  private static CompressionResWrapper wrapper() {
+    HttpServletResponse r = (HttpServletResponse)Proxy.newProxyInstance(
+      HttpServletResponse.class.getClassLoader(),
+      new Class[] {HttpServletResponse.class}, new InvocationHandler() {
+        public Object invoke(Object proxy, Method m, Object[] args) {
+          return null;
+        }
+      });
+    return new CompressionResWrapper(r, CompressionResWrapper.GZIP);
+  }
+
+  /**
+   * The headers the servlet sets are kept in order, a header set replaces
+   * those of the same name, and Content-Type and Content-Length are not
+   * kept.
+   */
+  public void testTrackedHeaders() {
+    CompressionResWrapper w = wrapper();
+    w.setContentType("text/html");
+    w.setHeader("Content-Length", "10");
+    w.addHeader("X-A", "1");
+    w.setHeader("Cache-Control", "no-cache");
+    w.addHeader("X-A", "2");
+    w.setHeader("cache-control", "max-age=60");
+    w.setDateHeader("Expires", 0);
+    w.setLocale(Locale.GERMAN);
+    String[] h = w.getTrackedHeaders();
+    assertEquals(8, h.length);
+    assertEquals("X-A", h[0]);
+    assertEquals("2", h[3]);
+    assertEquals("max-age=60", h[5]);
+    assertEquals("Thu, 01 Jan 1970 00:00:00 GMT", h[7]);
+    assertEquals(Locale.GERMAN, w.getTrackedLocale());
+    assertTrue(w.isCacheable());
+  }
+
+  /**
+   * A response the servlet encoded itself, that sets a cookie, or that
+   * varies by more than Accept-Encoding, is not cached.
+   */
+  public void testNotCacheable() {
+    CompressionResWrapper w = wrapper();
+    w.setHeader("Content-Encoding", "br");
+    assertFalse(w.isCacheable());
+    w = wrapper();
+    w.addHeader("Set-Cookie", "a=b");
+    assertFalse(w.isCacheable());
+    w = wrapper();
+    w.addHeader("Vary", "accept-encoding");
+    assertTrue(w.isCacheable());
+    w.addHeader("Vary", "Accept-Encoding, Cookie");
+    assertFalse(w.isCacheable());
+  }
+
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.filter;
+
+import java.util.zip.Deflater;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Tests of the class DeflaterPool.
+ */
+public class DeflaterPoolTest extends TestCase {
+
+  /**
+   * A released Deflater is handed out again, but only for its own type.
+   */
+  public void testReuse() {
+    DeflaterPool pool = new DeflaterPool(2, 1, Deflater.DEFAULT_STRATEGY);
+    Deflater d = pool.borrow(CompressionResWrapper.GZIP);
+    pool.release(d, CompressionResWrapper.GZIP);
+    assertEquals(1, pool.getIdle());
+    assertNotSame(d, pool.borrow(CompressionResWrapper.DEFLATE));
+    assertSame(d, pool.borrow(CompressionResWrapper.GZIP));
+    assertEquals(3, pool.getBorrowed());
+    assertEquals(2, pool.getExhausted());
+  }
+
+  /**
+   * Releases beyond the pool size are discarded.
+   */
+  public void testBounded() {
+    DeflaterPool pool = new DeflaterPool(1, 1, Deflater.DEFAULT_STRATEGY);
+    Deflater d1 = pool.borrow(CompressionResWrapper.DEFLATE);
+    Deflater d2 = pool.borrow(CompressionResWrapper.DEFLATE);
+    pool.release(d1, CompressionResWrapper.DEFLATE);
+    pool.release(d2, CompressionResWrapper.DEFLATE);
+    assertEquals(1, pool.getIdle());
+    assertEquals(1, pool.getDiscarded());
+    pool.close();
+    assertEquals(0, pool.getIdle());
+  }
+
+}
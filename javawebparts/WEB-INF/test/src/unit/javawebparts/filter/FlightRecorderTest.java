@@ -0,0 +1,146 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.filter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import junit.framework.TestCase;
+
+
+/**
+ * Tests of the class FlightRecorder.
+ */
+public class FlightRecorderTest extends TestCase {
+
+  /**
+   * Returns the request lines of a dump, without the comments.
+   *
+   * @param  r           The recorder.
+   * @return             The lines.
+   * @throws IOException If they cannot be read.
+   */
+  private static ArrayList dump(FlightRecorder r) throws IOException {
+    StringWriter sw = new StringWriter();
+    r.dump(new PrintWriter(sw));
+    return lines(new BufferedReader(new StringReader(sw.toString())));
+  }
+
+  /**
+   * Reads the request lines of a dump, without the comments.
+   *
+   * @param  in          The dump.
+   * @return             The lines.
+   * @throws IOException If they cannot be read.
+   */
+  private static ArrayList lines(BufferedReader in) throws IOException {
+    ArrayList l = new ArrayList();
+    for (String s = in.readLine(); s != null; s = in.readLine()) {
+      if (!s.startsWith("#")) {
+        l.add(s);
+      }
+    }
+    in.close();
+    return l;
+  }
+
+  /**
+   * Only the most recent requests are kept, and dumped oldest first.
+   *
+   * @throws IOException If something goes wrong.
+   */
+  public void testRing() throws IOException {
+    FlightRecorder r = new FlightRecorder(3);
+    assertEquals(0, dump(r).size());
+    r.record(0, 5, "GET", "/a", null, "10.0.0.1");
+    ArrayList l = dump(r);
+    assertEquals(1, l.size());
+    assertTrue(((String)l.get(0)).endsWith(" 5 GET /a 10.0.0.1"));
+    for (int i = 1; i < 10; i++) {
+      r.record(i, i, "POST", "/p" + i, "x=" + i, "10.0.0.2");
+    }
+    l = dump(r);
+    assertEquals(3, l.size());
+    assertTrue(((String)l.get(0)).endsWith(" 7 POST /p7?x=7 10.0.0.2"));
+    assertTrue(((String)l.get(2)).endsWith(" 9 POST /p9?x=9 10.0.0.2"));
+    assertEquals(10, r.getRecorded());
+  }
+
+  /**
+   * Requests recorded from many threads are all counted, and the ring holds
+   * whole requests.
+   *
+   * @throws Exception If something goes wrong.
+   */
+  public void testThreads() throws Exception {
+    final FlightRecorder r  = new FlightRecorder(100);
+    Thread[]             ts = new Thread[4];
+    for (int t = 0; t < ts.length; t++) {
+      final String addr = "10.0.0." + t;
+      ts[t] = new Thread() {
+        public void run() {
+          for (int i = 0; i < 10000; i++) {
+            r.record(i, i, "GET", "/" + addr, null, addr);
+          }
+        }
+      };
+      ts[t].start();
+    }
+    for (int t = 0; t < ts.length; t++) {
+      ts[t].join();
+    }
+    assertEquals(40000, r.getRecorded());
+    ArrayList l = dump(r);
+    assertEquals(100, l.size());
+    for (int i = 0; i < l.size(); i++) {
+      String s = (String)l.get(i);
+      String addr = s.substring(s.lastIndexOf(' ') + 1);
+      assertTrue(s.indexOf(" GET /" + addr + " ") != -1);
+    }
+  }
+
+  /**
+   * Dumps to a file are written, but not more often than asked.
+   *
+   * @throws Exception If something goes wrong.
+   */
+  public void testDumpInBackground() throws Exception {
+    FlightRecorder r = new FlightRecorder(10);
+    r.record(0, 5, "GET", "/a", null, "10.0.0.1");
+    File f = File.createTempFile("FlightRecorderTest", ".txt");
+    try {
+      assertTrue(r.dumpInBackground(f, 1000, 60000));
+      assertFalse(r.dumpInBackground(f, 2000, 60000));
+      for (int i = 0; i < 100 && f.length() == 0; i++) {
+        Thread.sleep(50);
+      }
+      Thread.sleep(50);
+      assertEquals(1, lines(new BufferedReader(new FileReader(f))).size());
+      assertTrue(r.dumpInBackground(f, 61000, 60000));
+    } finally {
+      Thread.sleep(100);
+      f.delete();
+    }
+  }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2006 Herman van Rosmalen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.filter;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Tests of the class HtmlScriptMinifier.
+ */
+public class HtmlScriptMinifierTest extends TestCase {
+
+  /**
+   * Script bodies are minified, whatever the case of the tags, and the rest
+   * of the page is left alone.
+   */
+  public void testMinifiesScripts() throws IOException {
+    String page = "<html>  <body>\n<SCRIPT type=\"text/javascript\">\n" +
+      "  var a = 1;  // one\n</Script>\n<p>  x < y  </p>" +
+      "<script>var b = 2;</script></body></html>";
+    StringWriter sw = new StringWriter();
+    assertEquals(2, new HtmlScriptMinifier().minify(new StringReader(page),
+      sw));
+    assertEquals("<html>  <body>\n<SCRIPT type=\"text/javascript\">" +
+      "\nvar a=1;</Script>\n<p>  x < y  </p>" +
+      "<script>\nvar b=2;</script></body></html>", sw.toString());
+  }
+
+  /**
+   * Scripts that are not JavaScript, and tags that merely start with
+   * "script", are copied unchanged.
+   */
+  public void testLeavesOtherElements() throws IOException {
+    String page = "<script type=\"text/template\">  <b> x </b>  </script>" +
+      "<scripting>  a  </scripting><script src=\"a.js\" />";
+    StringWriter sw = new StringWriter();
+    assertEquals(0, new HtmlScriptMinifier().minify(new StringReader(page),
+      sw));
+    assertEquals(page, sw.toString());
+  }
+
+  /**
+   * Only the type and language attributes themselves decide whether a
+   * script is JavaScript, whatever other attributes say.
+   */
+  public void testTypeAttribute() throws IOException {
+    String page = "<script type=\"text/template\" id=\"script-row\">" +
+      "  <b> x </b>  </script>" +
+      "<script data-type=\"text/javascript\" type='text/x-tmpl'> a </script>" +
+      "<script language=\"vbscript\"> a </script>";
+    StringWriter sw = new StringWriter();
+    assertEquals(0, new HtmlScriptMinifier().minify(new StringReader(page),
+      sw));
+    assertEquals(page, sw.toString());
+    page = "<script data-type=\"text/template\" TYPE = Text/JavaScript>" +
+      "var a = 1;</script><script type=\"\" language=\"JavaScript1.2\">" +
+      "var b = 2;</script>";
+    sw = new StringWriter();
+    assertEquals(2, new HtmlScriptMinifier().minify(new StringReader(page),
+      sw));
+    assertNull(HtmlScriptMinifier.attributeValue("script data-type=x>",
+      "type"));
+    assertEquals("", HtmlScriptMinifier.attributeValue("script type async>",
+      "type"));
+  }
+
+  /**
+   * A script JSMin rejects is copied unchanged, and later ones are still
+   * minified.
+   */
+  public void testRejectedScriptIsCopied() throws IOException {
+    String bad  = "<script>var s = 'unterminated;\nvar t = 1;</script>";
+    String page = bad + "<script>var u = 2;</script>";
+    StringWriter sw = new StringWriter();
+    assertEquals(1, new HtmlScriptMinifier().minify(new StringReader(page),
+      sw));
+    assertEquals(bad + "<script>\nvar u=2;</script>", sw.toString());
+  }
+
+  /**
+   * JSMin gives the same result through compress(String) as through
+   * compress(Reader, Writer).
+   */
+  public void testJSMinReaderWriter() throws Exception {
+    String js = "function f(a, b) {\n  return a / b; /* c */\n}\n";
+    StringWriter sw = new StringWriter();
+    new JSMin().compress(new StringReader(js), sw);
+    assertEquals(new JSMin().compress(js), sw.toString());
+    assertEquals("\nfunction f(a,b){return a/b;}", sw.toString());
+  }
+
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.filter;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Tests of the class IPAddressMatcher.
+ */
+public class IPAddressMatcherTest extends TestCase {
+
+  private static final LocalAddresses LOCAL = new LocalAddresses(0);
+
+  /**
+   * Literal addresses and "localhost".
+   */
+  public void testLiteralsAndLocalhost() {
+    IPAddressMatcher m = IPAddressMatcher.compile(
+      "192.168.1.10, localhost ,::1");
+    assertTrue(m.matches("192.168.1.10", LOCAL));
+    assertFalse(m.matches("192.168.1.11", LOCAL));
+    assertTrue(m.matches("127.0.0.1", LOCAL));
+    assertEquals(0, LOCAL.getRefreshFailures());
+    assertFalse(IPAddressMatcher.compile("::1").matches("127.0.0.1", LOCAL));
+    assertTrue(m.matches("0:0:0:0:0:0:0:1", LOCAL));
+    assertFalse(m.matches("::2", LOCAL));
+    assertFalse(m.matches("not.an.address", LOCAL));
+    assertFalse(m.matches(null, LOCAL));
+  }
+
+  /**
+   * Trailing wildcards are prefixes, others are still honoured.
+   */
+  public void testWildcards() {
+    IPAddressMatcher m = IPAddressMatcher.compile("10.1.*.*,172.*.0.1");
+    assertTrue(m.matches("10.1.200.3", LOCAL));
+    assertFalse(m.matches("10.2.0.0", LOCAL));
+    assertTrue(m.matches("172.45.0.1", LOCAL));
+    assertFalse(m.matches("172.45.0.2", LOCAL));
+  }
+
+  /**
+   * Ranges match exactly their bounds and everything in between.
+   */
+  public void testRange() {
+    IPAddressMatcher m = IPAddressMatcher.compile("10.0.0.5-10.0.1.20");
+    assertFalse(m.matches("10.0.0.4", LOCAL));
+    assertTrue(m.matches("10.0.0.5", LOCAL));
+    assertTrue(m.matches("10.0.0.255", LOCAL));
+    assertTrue(m.matches("10.0.1.20", LOCAL));
+    assertFalse(m.matches("10.0.1.21", LOCAL));
+  }
+
+  /**
+   * CIDR blocks, IPv4 and IPv6, including IPv4-mapped IPv6 addresses.
+   */
+  public void testCidr() {
+    IPAddressMatcher m = IPAddressMatcher.compile(
+      "192.168.0.0/16,2001:db8::/32");
+    assertTrue(m.matches("192.168.77.1", LOCAL));
+    assertTrue(m.matches("::ffff:192.168.0.1", LOCAL));
+    assertFalse(m.matches("192.169.0.1", LOCAL));
+    assertTrue(m.matches("2001:db8:1234::1", LOCAL));
+    assertFalse(m.matches("2001:db9::1", LOCAL));
+  }
+
+  /**
+   * Invalid entries are refused.
+   */
+  public void testInvalid() {
+    String[] bad = {"10.0.0", "10.0.0.256", "10.0.0.0/33", "1.2.3.4-x",
+      "host.example.com", "1.*.3"};
+    for (int i = 0; i < bad.length; i++) {
+      try {
+        IPAddressMatcher.compile(bad[i]);
+        fail(bad[i]);
+      } catch (IllegalArgumentException e) {
+        assertNotNull(e.getMessage());
+      }
+    }
+  }
+
+}
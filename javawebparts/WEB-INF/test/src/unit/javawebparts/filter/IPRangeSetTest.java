@@ -0,0 +1,95 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.filter;
+
+import java.io.StringReader;
+import junit.framework.TestCase;
+
+
+/**
+ * Tests of the class IPRangeSet.
+ */
+public class IPRangeSetTest extends TestCase {
+
+  private static IPRangeSet read(String list) throws Exception {
+    return IPRangeSet.read(new StringReader(list));
+  }
+
+  private static boolean contains(IPRangeSet s, String addr) {
+    return s.contains(IPAddressMatcher.parse(addr));
+  }
+
+  /**
+   * Every kind of entry, with comments and blank lines.
+   */
+  public void testEntries() throws Exception {
+    IPRangeSet s = read("# feed\n\n1.2.3.4\n10.0.0.0/8 ; SBL1\n" +
+      "192.168.1.250-192.168.2.5\n172.16.*.*\n2001:db8::1\n");
+    assertEquals(5, s.getEntries());
+    assertEquals(1, s.getSkipped());
+    assertTrue(contains(s, "1.2.3.4"));
+    assertFalse(contains(s, "1.2.3.5"));
+    assertTrue(contains(s, "10.255.255.255"));
+    assertFalse(contains(s, "11.0.0.0"));
+    assertFalse(contains(s, "192.168.1.249"));
+    assertTrue(contains(s, "192.168.1.255"));
+    assertTrue(contains(s, "192.168.2.5"));
+    assertFalse(contains(s, "192.168.2.6"));
+    assertTrue(contains(s, "172.16.9.9"));
+    assertFalse(contains(s, "172.17.0.0"));
+    assertFalse(contains(s, "2001:db8::1"));
+    assertFalse(s.contains((byte[])null));
+  }
+
+  /**
+   * Overlapping and adjacent entries are merged, across the sign bit too.
+   */
+  public void testMerge() throws Exception {
+    IPRangeSet s = read("128.0.0.0/1\n127.255.255.255\n10.0.0.1\n" +
+      "10.0.0.0-10.0.0.9\n10.0.0.10\n255.255.255.255\n");
+    assertEquals(2, s.getRanges());
+    assertEquals(16, s.getBytes());
+    assertEquals(11 + 0x80000001L, s.getAddresses());
+    assertTrue(contains(s, "255.255.255.255"));
+    assertTrue(contains(s, "127.255.255.255"));
+    assertFalse(contains(s, "127.255.255.254"));
+    assertTrue(contains(s, "10.0.0.10"));
+    assertFalse(contains(s, "10.0.0.11"));
+    assertFalse(contains(s, "0.0.0.0"));
+    assertEquals(0, read("").getRanges());
+    assertFalse(contains(read(""), "1.1.1.1"));
+    assertTrue(contains(read("*.*.*.*"), "0.0.0.0"));
+  }
+
+  /**
+   * Invalid lines are reported with their number.
+   */
+  public void testInvalid() throws Exception {
+    String[] bad = { "1.2.3", "1.2.3.4/33", "1.*.3.4", "9.9.9.9-1.1.1.1",
+      "localhost", "10.1*.*.*", "1*.*.*.*" };
+    for (int i = 0; i < bad.length; i++) {
+      try {
+        read("1.1.1.1\n" + bad[i]);
+        fail(bad[i]);
+      } catch (IllegalArgumentException e) {
+        assertTrue(e.getMessage().indexOf("line 2") != -1);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.filter;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Tests of the class LatencyStats.
+ */
+public class LatencyStatsTest extends TestCase {
+
+  /**
+   * Paths beyond the maximum are counted under OTHER.
+   */
+  public void testStats() {
+    LatencyStats s = new LatencyStats(2);
+    s.record("/a", 10);
+    s.record("/b", 20);
+    s.record("/c", 30);
+    s.record("/d", 40);
+    s.record("/a", 50);
+    assertEquals(5, s.getAll().getCount());
+    assertEquals(2, s.get("/a").getCount());
+    assertNull(s.get("/c"));
+    assertEquals(2, s.get(LatencyStats.OTHER).getCount());
+    assertEquals(3, s.getPaths().size());
+    s.reset();
+    assertEquals(0, s.getPaths().size());
+    assertEquals(0, s.getAll().getCount());
+  }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2006 Herman van Rosmalen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.filter;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Tests of the class MinificationCache.
+ */
+public class MinificationCacheTest extends TestCase {
+
+  /**
+   * Identical scripts share a key, different ones do not.
+   */
+  public void testKeys() {
+    char[] a = "var a = 1;".toCharArray();
+    char[] b = "xvar a = 1;".toCharArray();
+    assertEquals(MinificationCache.makeKey(a, 0, a.length),
+      MinificationCache.makeKey(b, 1, a.length));
+    assertFalse(MinificationCache.makeKey(a, 0, a.length).equals(
+      MinificationCache.makeKey(b, 0, a.length)));
+  }
+
+  /**
+   * The least recently used entry is evicted to stay within the budget.
+   */
+  public void testEviction() {
+    // Room for two entries of a 10-character script from a 5-character one,
+    // but not three.
+    MinificationCache cache = new MinificationCache(2 * (64 + 30));
+    Object k1 = key("one");
+    Object k2 = key("two");
+    Object k3 = key("three");
+    cache.put(k1, new char[10]);
+    cache.put(k2, new char[10]);
+    assertNotNull(cache.get(k1));
+    cache.put(k3, new char[10]);
+    assertNotNull(cache.get(k1));
+    assertNull(cache.get(k2));
+    assertNotNull(cache.get(k3));
+  }
+
+  /**
+   * An entry keeps its own copy of the script, and only the same script
+   * finds it, even once the buffer it was made from is reused.
+   */
+  public void testKeepsScript() {
+    MinificationCache cache = new MinificationCache(100000);
+    char[] buf = "var a = 1;".toCharArray();
+    cache.put(MinificationCache.makeKey(buf, 0, buf.length),
+      "var a=1;".toCharArray());
+    buf[4] = 'b';
+    assertNull(cache.get(MinificationCache.makeKey(buf, 0, buf.length)));
+    assertEquals("var a=1;", new String(cache.get(key("var a = 1;"))));
+  }
+
+  /**
+   * A script block repeated across pages is only minified once, and a
+   * rejected one is remembered as such.
+   */
+  public void testScannerUsesCache() throws IOException {
+    MinificationCache  cache    = new MinificationCache(100000);
+    HtmlScriptMinifier minifier = new HtmlScriptMinifier();
+    minifier.setCache(cache);
+    String page = "<p>x</p><script> var a = 1; </script>" +
+      "<script>var s = 'bad\n</script>";
+    String first  = run(minifier, page);
+    String second = run(minifier, page);
+    assertEquals(first, second);
+    assertEquals("<p>x</p><script>\nvar a=1;</script>" +
+      "<script>var s = 'bad\n</script>", second);
+    assertEquals(0.5, cache.getHitRatio(), 0.001);
+    assertEquals(" var a = 1; ".length() + "var s = 'bad\n".length(),
+      cache.getCharsSkipped());
+  }
+
+  private static Object key(String s) {
+    char[] c = s.toCharArray();
+    return MinificationCache.makeKey(c, 0, c.length);
+  }
+
+  private static String run(HtmlScriptMinifier minifier, String page)
+    throws IOException {
+    StringWriter sw = new StringWriter();
+    minifier.minify(new StringReader(page), sw);
+    return sw.toString();
+  }
+
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.filter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Tests of the class ParallelDeflater, through CompressingOutputStream.
+ */
+public class ParallelDeflaterTest extends TestCase {
+
+  private ParallelDeflater parallel;
+
+  protected void setUp() {
+    parallel = new ParallelDeflater(3, ParallelDeflater.WINDOW_SIZE,
+      Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_STRATEGY);
+  }
+
+  protected void tearDown() {
+    parallel.shutdown();
+  }
+
+  /**
+   * A GZip response spanning many blocks can be read back.
+   */
+  public void testGzipBlocks() throws IOException {
+    if (!ParallelDeflater.isSupported()) {
+      return;
+    }
+    byte[] data = makeData(500000);
+    byte[] out  = compress(CompressionResWrapper.GZIP, data, false);
+    InputStream in = new GZIPInputStream(new ByteArrayInputStream(out));
+    assertTrue(Arrays.equals(data, readAll(in)));
+    assertTrue(parallel.getBlocks() > 10);
+  }
+
+  /**
+   * A Deflate response spanning many blocks, flushed along the way, can be
+   * read back.
+   */
+  public void testDeflateBlocksWithFlush() throws IOException {
+    if (!ParallelDeflater.isSupported()) {
+      return;
+    }
+    byte[] data = makeData(300000);
+    byte[] out  = compress(CompressionResWrapper.DEFLATE, data, true);
+    InputStream in = new InflaterInputStream(new ByteArrayInputStream(out));
+    assertTrue(Arrays.equals(data, readAll(in)));
+  }
+
+  /**
+   * Blocks submitted after shutdown are compressed by the caller.
+   */
+  public void testSubmitAfterShutdown() throws IOException {
+    parallel.shutdown();
+    byte[] data = makeData(1000);
+    ParallelDeflater.Block b = parallel.submit(data, data.length, null, 0, 0,
+      true);
+    assertTrue(b.isDone());
+    assertNotNull(b.await());
+  }
+
+  private byte[] compress(String ct, byte[] data, boolean flush)
+    throws IOException {
+    ByteArrayOutputStream bo = new ByteArrayOutputStream();
+    CompressingOutputStream cos = new CompressingOutputStream(bo, ct,
+      CompressingOutputStream.createDeflater(ct,
+      Deflater.DEFAULT_COMPRESSION), Deflater.DEFAULT_COMPRESSION,
+      parallel, 10000);
+    for (int i = 0; i < data.length; i += 7000) {
+      cos.write(data, i, Math.min(7000, data.length - i));
+      if (flush && i % 70000 == 0) {
+        cos.flush();
+      }
+    }
+    assertTrue(cos.isParallel());
+    cos.finish();
+    return bo.toByteArray();
+  }
+
+  private byte[] makeData(int len) {
+    String[] words = {"java ", "web ", "parts ", "filter ", "compression "};
+    Random   rnd   = new Random(42);
+    byte[]   data  = new byte[len];
+    int      i     = 0;
+    while (i < len) {
+      byte[] w = words[rnd.nextInt(words.length)].getBytes();
+      for (int j = 0; j < w.length && i < len; j++) {
+        data[i++] = w[j];
+      }
+    }
+    return data;
+  }
+
+  private byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream bo  = new ByteArrayOutputStream();
+    byte[]                buf = new byte[4096];
+    int                   n;
+    while ((n = in.read(buf)) != -1) {
+      bo.write(buf, 0, n);
+    }
+    return bo.toByteArray();
+  }
+
+}
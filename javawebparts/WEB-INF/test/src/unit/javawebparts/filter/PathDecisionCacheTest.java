@@ -0,0 +1,81 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.filter;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Tests of the class PathDecisionCache.
+ */
+public class PathDecisionCacheTest extends TestCase {
+
+  /**
+   * Stored decisions come back, and the counters reflect it.
+   */
+  public void testLookupAndCounters() {
+    PathDecisionCache dc = new PathDecisionCache(16);
+    assertEquals(PathDecisionCache.UNKNOWN, dc.lookup("/a", null));
+    dc.store("/a", null, true);
+    dc.store("/a", "/b", false);
+    assertEquals(1, dc.lookup("/a", null));
+    assertEquals(0, dc.lookup("/a", "/b"));
+    assertEquals(2, dc.getHits());
+    assertEquals(1, dc.getMisses());
+  }
+
+  /**
+   * The cache never holds more than its capacity.
+   */
+  public void testBounded() {
+    PathDecisionCache dc = new PathDecisionCache(8);
+    for (int i = 0; i < 100; i++) {
+      dc.store("/p" + i, null, true);
+    }
+    int found = 0;
+    for (int i = 0; i < 100; i++) {
+      if (dc.lookup("/p" + i, null) != PathDecisionCache.UNKNOWN) {
+        found++;
+      }
+    }
+    assertTrue(found <= dc.getCapacity());
+    assertTrue(dc.getEvictions() > 0);
+  }
+
+  /**
+   * A size beyond the maximum is clamped rather than overflowing.
+   */
+  public void testMaxSize() {
+    assertEquals(PathDecisionCache.MAX_SIZE,
+      new PathDecisionCache(Integer.MAX_VALUE).getCapacity());
+    assertEquals(8, new PathDecisionCache(5).getCapacity());
+  }
+
+  /**
+   * A matcher with a cache attached gives the same answers.
+   */
+  public void testAttachedToMatcher() {
+    PathMatcher pm = PathMatcher.compile("/secure/*");
+    pm.setDecisionCache(new PathDecisionCache(4));
+    assertTrue(pm.matches("/secure/x", null));
+    assertTrue(pm.matches("/secure/x", null));
+    assertFalse(pm.matches("/open", null));
+    assertEquals(1, pm.getDecisionCache().getHits());
+  }
+
+}
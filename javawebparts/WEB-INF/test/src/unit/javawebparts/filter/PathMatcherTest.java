@@ -0,0 +1,86 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.filter;
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Tests of the class PathMatcher.
+ */
+public class PathMatcherTest extends TestCase {
+
+  /**
+   * Exact entries match only the full path.
+   */
+  public void testExact() {
+    PathMatcher pm = PathMatcher.compile("/index.jsp,/a/b.do");
+    assertTrue(pm.matches("/index.jsp", null));
+    assertTrue(pm.matches("/a", "/b.do"));
+    assertFalse(pm.matches("/index.jsp2", null));
+    assertFalse(pm.matches("/index", null));
+  }
+
+  /**
+   * A trailing wildcard matches anything under the prefix.
+   */
+  public void testPrefix() {
+    PathMatcher pm = PathMatcher.compile("/secure/*");
+    assertTrue(pm.matches("/secure/", null));
+    assertTrue(pm.matches("/secure", "/x/y.jsp"));
+    assertFalse(pm.matches("/secur", null));
+    assertTrue(PathMatcher.compile("*").matches("/anything", "/at/all"));
+  }
+
+  /**
+   * A leading wildcard matches anything ending with the suffix.
+   */
+  public void testSuffix() {
+    PathMatcher pm = PathMatcher.compile("*/bigimage2.gif");
+    assertTrue(pm.matches("/img/bigimage2.gif", null));
+    assertTrue(pm.matches("/img", "/bigimage2.gif"));
+    assertFalse(pm.matches("/img/bigimage2.gif.bak", null));
+  }
+
+  /**
+   * Anything else goes through the combined regex.
+   */
+  public void testRegex() {
+    PathMatcher pm = PathMatcher.compile("/a/*/c.jsp,/(x|y)\\.do");
+    assertTrue(pm.matches("/a/b/c.jsp", null));
+    assertTrue(pm.matches("/a", "/b/b/c.jsp"));
+    assertTrue(pm.matches("/y.do", null));
+    assertFalse(pm.matches("/z.do", null));
+    assertFalse(pm.matches("/a/b/d.jsp", null));
+  }
+
+  /**
+   * The regex form list used by the deprecated filterPath() still works.
+   */
+  public void testRegexList() {
+    ArrayList al = new ArrayList();
+    al.add("/foo/.*");
+    PathMatcher pm = PathMatcher.compileRegexList(al);
+    assertTrue(pm.matches("/foo/bar", null));
+    assertFalse(pm.matches("/bar", null));
+    assertTrue(PathMatcher.compile(null).isEmpty());
+  }
+
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.filter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import javawebparts.core.RecordedRequest;
+import javawebparts.core.RecordedRequestReader;
+import javawebparts.core.RecordedRequestWriter;
+import junit.framework.TestCase;
+
+
+/**
+ * Tests of the class RecordWriter.
+ */
+public class RecordWriterTest extends TestCase {
+
+  /**
+   * The file written to.
+   */
+  private File file;
+
+  /**
+   * Creates the file.
+   *
+   * @throws IOException If it cannot be created.
+   */
+  protected void setUp() throws IOException {
+    file = File.createTempFile("RecordWriterTest", ".csv");
+  }
+
+  /**
+   * Deletes the file.
+   */
+  protected void tearDown() {
+    file.delete();
+  }
+
+  /**
+   * Reads the file.
+   *
+   * @return             Its lines.
+   * @throws IOException If it cannot be read.
+   */
+  private ArrayList lines() throws IOException {
+    ArrayList      l  = new ArrayList();
+    BufferedReader in = new BufferedReader(new FileReader(file));
+    try {
+      for (String s = in.readLine(); s != null; s = in.readLine()) {
+        l.add(s);
+      }
+    } finally {
+      in.close();
+    }
+    return l;
+  }
+
+  /**
+   * Lines from many threads, some longer than the buffer, are all written
+   * whole when blocking.
+   *
+   * @throws Exception If something goes wrong.
+   */
+  public void testBlock() throws Exception {
+    final RecordWriter w = new RecordWriter(file, 3, true);
+    w.start();
+    final StringBuffer big = new StringBuffer();
+    for (int i = 0; i < 100000; i++) {
+      big.append('x');
+    }
+    Thread[] ts = new Thread[4];
+    for (int t = 0; t < ts.length; t++) {
+      final int n = t;
+      ts[t] = new Thread() {
+        public void run() {
+          for (int i = 0; i < 250; i++) {
+            assertTrue(w.add(i == 100 ? big.toString() : n + "," + i));
+          }
+        }
+      };
+      ts[t].start();
+    }
+    for (int t = 0; t < ts.length; t++) {
+      ts[t].join();
+    }
+    w.close();
+    assertEquals(1000, w.getWritten());
+    assertEquals(0, w.getDropped());
+    ArrayList l = lines();
+    assertEquals(1000, l.size());
+    assertTrue(l.contains("3,249"));
+    assertTrue(l.contains(big.toString()));
+    assertFalse(w.add("late"));
+  }
+
+  /**
+   * Lines beyond the queue's capacity are dropped, and lines are appended.
+   *
+   * @throws Exception If something goes wrong.
+   */
+  public void testDrop() throws Exception {
+    RecordWriter w = new RecordWriter(file, 2, false);
+    assertTrue(w.add("a"));
+    assertTrue(w.add("b"));
+    assertFalse(w.add("c"));
+    w.start();
+    w.close();
+    w = new RecordWriter(file, 2, false);
+    w.add("d");
+    w.start();
+    w.close();
+    assertEquals(1, w.getWritten());
+    ArrayList l = lines();
+    assertEquals(3, l.size());
+    assertEquals("a", l.get(0));
+    assertEquals("d", l.get(2));
+  }
+
+  /**
+   * RecordedRequests are written through a RecordedRequestWriter, which is
+   * closed along with the RecordWriter.
+   *
+   * @throws Exception If something goes wrong.
+   */
+  public void testRecords() throws Exception {
+    file.delete();
+    RecordWriter w = new RecordWriter(new RecordedRequestWriter(file, 0,
+      false), 10, true);
+    w.start();
+    for (int i = 0; i < 100; i++) {
+      RecordedRequest r = new RecordedRequest();
+      r.setUrl("http://localhost/" + i);
+      assertTrue(w.add(r));
+    }
+    w.close();
+    assertEquals(100, w.getWritten());
+    RecordedRequestReader in = new RecordedRequestReader(file);
+    try {
+      for (int i = 0; i < 100; i++) {
+        assertEquals("http://localhost/" + i, in.next().getUrl());
+      }
+      assertNull(in.next());
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * A request that cannot be written stops the writer, and requests queued
+   * after it are dropped rather than left waiting for room.
+   *
+   * @throws Exception If something goes wrong.
+   */
+  public void testWriterFails() throws Exception {
+    file.delete();
+    final RecordWriter w = new RecordWriter(new RecordedRequestWriter(file,
+      0, false), 2, true);
+    w.start();
+    // The writer fails on a request with no URL.
+    assertTrue(w.add((RecordedRequest)null));
+    Thread t = new Thread() {
+      public void run() {
+        for (int i = 0; i < 10; i++) {
+          w.add(new RecordedRequest());
+        }
+      }
+    };
+    t.start();
+    t.join(5000);
+    assertFalse("Request thread still waiting", t.isAlive());
+    assertFalse(w.add(new RecordedRequest()));
+    assertEquals(0, w.getWritten());
+    assertTrue(w.getDropped() >= 10);
+    w.close();
+  }
+
+}
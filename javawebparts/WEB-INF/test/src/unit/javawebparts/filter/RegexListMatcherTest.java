@@ -0,0 +1,79 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.filter;
+
+import java.util.Arrays;
+import java.util.regex.PatternSyntaxException;
+import junit.framework.TestCase;
+
+
+/**
+ * Tests of the class RegexListMatcher.
+ */
+public class RegexListMatcherTest extends TestCase {
+
+  /**
+   * The index of the first matching rule is reported, even when rules have
+   * groups of their own.
+   */
+  public void testRuleIndex() {
+    RegexListMatcher m = RegexListMatcher.compile(Arrays.asList(
+      new String[] { "\\b10\\.(1|2)\\.\\d+\\.\\d+\\b",
+                     "\\b192\\.168\\.(\\d+)\\.(\\d+)\\b",
+                     "\\b192\\.168\\.0\\.1\\b",
+                     "\\b127\\.0\\.0\\.1\\b" }));
+    assertTrue(m.isMerged());
+    assertEquals(4, m.size());
+    assertEquals(0, m.match("10.2.3.4"));
+    assertEquals(1, m.match("192.168.5.6"));
+    assertEquals(1, m.match("192.168.0.1"));
+    assertEquals(3, m.match("127.0.0.1"));
+    assertEquals(-1, m.match("10.3.3.4"));
+    assertEquals(-1, m.match("127.0.0.10"));
+    assertEquals(-1, m.match(null));
+    assertEquals(-1, m.match("10.2."));
+  }
+
+  /**
+   * Rules with backreferences are still honoured, one by one.
+   */
+  public void testBackreference() {
+    RegexListMatcher m = RegexListMatcher.compile(Arrays.asList(
+      new String[] { "(\\d+)\\.\\1\\.\\d+\\.\\d+", "\\\\1" }));
+    assertFalse(m.isMerged());
+    assertEquals(0, m.match("7.7.1.2"));
+    assertEquals(-1, m.match("7.8.1.2"));
+    assertTrue(RegexListMatcher.compile(Arrays.asList(
+      new String[] { "\\\\1" })).isMerged());
+  }
+
+  /**
+   * Invalid expressions are rejected when compiled.
+   */
+  public void testInvalid() {
+    try {
+      RegexListMatcher.compile(Arrays.asList(new String[] { "10.(" }));
+      fail();
+    } catch (PatternSyntaxException e) {
+      // Expected.
+    }
+    assertEquals(-1, RegexListMatcher.compile(Arrays.asList(
+      new String[0])).match("10.0.0.1"));
+  }
+
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.filter;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.Set;
+import junit.framework.TestCase;
+
+
+/**
+ * Tests of the class SessionRegistry.
+ */
+public class SessionRegistryTest extends TestCase {
+
+  /**
+   * Sessions are admitted up to the maximum, and counted.
+   */
+  public void testRegister() {
+    SessionRegistry r = new SessionRegistry();
+    assertTrue(r.register("a", 2));
+    assertTrue(r.register("a", 2));
+    assertTrue(r.register("b", 2));
+    assertFalse(r.register("c", 2));
+    assertEquals(2, r.size());
+    assertEquals(1, r.getRejected());
+    // The listener only sees a Set.
+    Set s = r;
+    assertTrue(s.remove("a"));
+    assertFalse(s.remove("a"));
+    assertTrue(r.register("c", 2));
+    assertTrue(r.contains("c"));
+    assertFalse(r.contains("a"));
+    assertEquals(2, r.getPeak());
+    Iterator it = r.iterator();
+    it.next();
+    it.remove();
+    assertEquals(1, r.size());
+  }
+
+  /**
+   * Registering from many threads at once never overshoots the maximum.
+   */
+  public void testConcurrentRegister() throws Exception {
+    final SessionRegistry r       = new SessionRegistry();
+    final int[]           granted = new int[1];
+    Thread[]              threads = new Thread[16];
+    for (int t = 0; t < threads.length; t++) {
+      final int base = t * 1000;
+      threads[t] = new Thread() {
+        public void run() {
+          for (int i = 0; i < 1000; i++) {
+            if (r.register("s" + (base + i), 100)) {
+              synchronized (granted) {
+                granted[0]++;
+              }
+            }
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (int t = 0; t < threads.length; t++) {
+      threads[t].join();
+    }
+    assertEquals(100, granted[0]);
+    assertEquals(100, r.size());
+    assertEquals(100, r.getPeak());
+    assertEquals(15900, r.getRejected());
+  }
+
+  /**
+   * Two nodes sharing a file store admit maxSessions between them, and
+   * give slots back as sessions end.
+   */
+  public void testFileStore() throws Exception {
+    File f = File.createTempFile("sessions", ".txt");
+    f.deleteOnExit();
+    SessionRegistry a = new SessionRegistry();
+    SessionRegistry b = new SessionRegistry();
+    a.setStore(new FileSessionRegistryStore(f), "a", 4);
+    b.setStore(new FileSessionRegistryStore(f), "b", 4);
+    int admitted = 0;
+    for (int i = 0; i < 20; i++) {
+      if ((i % 2 == 0 ? a : b).register("s" + i, 10)) {
+        admitted++;
+      }
+    }
+    assertEquals(10, admitted);
+    assertEquals(10, new FileSessionRegistryStore(f).getLeased());
+    // Ending sessions frees slots for the other node, all but a batch of
+    // them once a heartbeat is sent.
+    for (int i = 0; i < 20; i += 2) {
+      a.remove("s" + i);
+    }
+    assertEquals(0, a.size());
+    a.heartbeat();
+    assertEquals(4, a.getLeased());
+    assertTrue(b.register("x", 10));
+    a.close();
+    assertEquals(b.getLeased(), new FileSessionRegistryStore(f).getLeased());
+  }
+
+  /**
+   * A store whose time only moves when told to.
+   */
+  private static final class ClockedStore
+    extends MemorySessionRegistryStore {
+
+    /**
+     * The current time.
+     */
+    private long time = 1000000;
+
+    /**
+     * @return The current time.
+     */
+    protected long currentTime() {
+      return time;
+    }
+
+  } // End ClockedStore class.
+
+  /**
+   * The slots of a node that stops sending heartbeats are reclaimed.
+   */
+  public void testNodeTimeout() throws Exception {
+    ClockedStore store = new ClockedStore();
+    store.setNodeTimeout(50);
+    assertEquals(5, store.lease("dead", 5, 8));
+    assertEquals(3, store.lease("live", 5, 8));
+    store.time += 100;
+    store.heartbeat("live");
+    assertEquals(3, store.getLeased());
+    assertEquals(5, store.lease("live", 5, 8));
+  }
+
+  /**
+   * A node whose slots were reclaimed while it was silent finds out at its
+   * next heartbeat, and admits no sessions against them.
+   */
+  public void testReclaimedNode() throws Exception {
+    ClockedStore store = new ClockedStore();
+    store.setNodeTimeout(50);
+    SessionRegistry slow = new SessionRegistry();
+    slow.setStore(store, "slow", 4);
+    assertTrue(slow.register("a", 8));
+    assertEquals(4, slow.getLeased());
+    store.time += 100;
+    assertEquals(8, store.lease("other", 8, 8));
+    slow.heartbeat();
+    assertEquals(0, slow.getLeased());
+    assertFalse(slow.register("b", 8));
+    assertEquals(8, store.getLeased());
+  }
+
+}
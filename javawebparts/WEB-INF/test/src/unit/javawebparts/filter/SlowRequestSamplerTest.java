@@ -0,0 +1,122 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.filter;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Tests of the class SlowRequestSampler.
+ */
+public class SlowRequestSamplerTest extends TestCase {
+
+  /**
+   * Lock the slow request waits on.
+   */
+  private Object lock = new Object();
+
+  /**
+   * Set once the slow request has begun.
+   */
+  private boolean begun;
+
+  /**
+   * Set once the slow request may end.
+   */
+  private boolean done;
+
+  /**
+   * What end() returned for the slow request.
+   */
+  private String hot;
+
+  /**
+   * The part of the slow request it spends its time in.
+   *
+   * @throws InterruptedException If interrupted.
+   */
+  private void slowPart() throws InterruptedException {
+    synchronized (lock) {
+      begun = true;
+      lock.notifyAll();
+      while (!done) {
+        lock.wait();
+      }
+    }
+  }
+
+  /**
+   * A request running past the threshold is sampled, and a fast one is not.
+   *
+   * @throws Exception If something goes wrong.
+   */
+  public void testSampling() throws Exception {
+    if (!SlowRequestSampler.isSamplingSupported()) {
+      return;
+    }
+    final SlowRequestSampler s = new SlowRequestSampler(100, 3600000);
+    final long start = System.currentTimeMillis();
+    Thread t = new Thread() {
+      public void run() {
+        SlowRequestSampler.Entry e = s.begin(start);
+        try {
+          slowPart();
+        } catch (InterruptedException ie) {
+          return;
+        }
+        hot = s.end(e);
+      }
+    };
+    t.start();
+    synchronized (lock) {
+      while (!begun) {
+        lock.wait();
+      }
+    }
+    // Below the threshold, nothing is sampled.
+    s.sample(start + 50);
+    for (int i = 0; i < 3; i++) {
+      s.sample(start + 200);
+    }
+    synchronized (lock) {
+      done = true;
+      lock.notifyAll();
+    }
+    t.join();
+    s.stop();
+    assertNotNull(hot);
+    assertTrue(hot, hot.startsWith("3 samples, 100% "));
+    assertTrue(hot, hot.indexOf("slowPart") != -1);
+    // The current thread has no request running.
+    SlowRequestSampler.Entry e = s.begin(start);
+    assertNull(s.begin(start));
+    assertNull(s.end(e));
+  }
+
+  /**
+   * The first frame outside the JDK is added to the top one.
+   */
+  public void testFrameOf() {
+    StackTraceElement[] stack = new Throwable().getStackTrace();
+    assertTrue(SlowRequestSampler.frameOf(stack).startsWith(
+      "javawebparts.filter.SlowRequestSamplerTest.testFrameOf"));
+    assertEquals("(no stack)",
+      SlowRequestSampler.frameOf(new StackTraceElement[0]));
+  }
+
+}
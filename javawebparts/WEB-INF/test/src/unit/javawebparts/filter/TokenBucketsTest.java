@@ -0,0 +1,78 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.filter;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Tests of the class TokenBuckets.
+ */
+public class TokenBucketsTest extends TestCase {
+
+  /**
+   * A burst is allowed, then requests at the refill rate only.
+   */
+  public void testBurstAndRefill() {
+    TokenBuckets b = new TokenBuckets(2, 3, 4);
+    for (int i = 0; i < 3; i++) {
+      assertEquals(0, b.tryAcquire("a", 1000));
+    }
+    assertEquals(500, b.tryAcquire("a", 1000));
+    assertEquals(0, b.tryAcquire("b", 1000));
+    assertEquals(100, b.tryAcquire("a", 1400));
+    assertEquals(0, b.tryAcquire("a", 1500));
+    assertTrue(b.tryAcquire("a", 1500) > 0);
+    // Never more than burst, however long the client was quiet.
+    for (int i = 0; i < 3; i++) {
+      assertEquals(0, b.tryAcquire("a", 100000));
+    }
+    assertTrue(b.tryAcquire("a", 100000) > 0);
+    assertEquals(4, b.getRejected());
+    assertEquals(8, b.getAllowed());
+  }
+
+  /**
+   * Rates below one a second.
+   */
+  public void testSlowRate() {
+    TokenBuckets b = new TokenBuckets(0.1, 1, 1);
+    assertEquals(0, b.tryAcquire("a", 0));
+    assertEquals(10000, b.tryAcquire("a", 0));
+    assertEquals(1, b.tryAcquire("a", 9999));
+    assertEquals(0, b.tryAcquire("a", 10000));
+  }
+
+  /**
+   * Only buckets that have been quiet long enough to be full are dropped.
+   */
+  public void testEvictIdle() {
+    TokenBuckets b = new TokenBuckets(1, 10, 8);
+    for (int i = 0; i < 100; i++) {
+      b.tryAcquire(new Integer(i), i < 50 ? 0 : 5000);
+    }
+    assertEquals(100, b.getClients());
+    // Idle for 8 seconds, but a bucket takes 10 to fill up.
+    assertEquals(0, b.evictIdle(8000, 1000));
+    assertEquals(50, b.evictIdle(10000, 1000));
+    assertEquals(50, b.getClients());
+    assertEquals(50, b.evictIdle(20000, 1000));
+    assertEquals(0, b.getClients());
+  }
+
+}
@@ -0,0 +1,347 @@
+/*
+ * Copyright 2005 Frank W. Zammetti
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package javawebparts.misc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import javawebparts.core.RecordedRequest;
+import javawebparts.core.RecordedRequestWriter;
+import junit.framework.TestCase;
+
+
+/**
+ * Tests of the class LoadEngine, against a stand-in server.
+ */
+public class LoadEngineTest extends TestCase {
+
+  /**
+   * The stand-in server.
+   */
+  private ServerSocket server;
+
+  /**
+   * Milliseconds the server takes over each request.
+   */
+  private volatile long delay;
+
+  /**
+   * Number of connections the server has accepted.  Guarded by this.
+   */
+  private int connections;
+
+  /**
+   * The request lines and bodies the server has received.  Guarded by this.
+   */
+  private ArrayList received = new ArrayList();
+
+  /**
+   * Starts the server, which answers /err with 500 and anything else with
+   * 200, keeping connections open.
+   *
+   * @throws IOException If it cannot be started.
+   */
+  protected void setUp() throws IOException {
+    server = new ServerSocket(0);
+    Thread t = new Thread() {
+      public void run() {
+        try {
+          while (true) {
+            final Socket s = server.accept();
+            synchronized (LoadEngineTest.this) {
+              connections++;
+            }
+            new Thread() {
+              public void run() {
+                serve(s);
+              }
+            }.start();
+          }
+        } catch (IOException e) {
+          // Closed.
+        }
+      }
+    };
+    t.setDaemon(true);
+    t.start();
+  }
+
+  /**
+   * Stops the server.
+   *
+   * @throws IOException If it cannot be stopped.
+   */
+  protected void tearDown() throws IOException {
+    server.close();
+  }
+
+  /**
+   * Answers the requests on a connection until it is closed.
+   *
+   * @param s The connection.
+   */
+  private void serve(Socket s) {
+    try {
+      InputStream  in  = s.getInputStream();
+      OutputStream out = s.getOutputStream();
+      while (true) {
+        String line = readLine(in);
+        if (line == null) {
+          break;
+        }
+        int length = 0;
+        for (String h = readLine(in); h != null && h.length() > 0;
+          h = readLine(in)) {
+          if (h.toLowerCase().startsWith("content-length:")) {
+            length = Integer.parseInt(h.substring(15).trim());
+          }
+        }
+        byte[] body = new byte[length];
+        for (int n = 0; n < length;) {
+          n += in.read(body, n, length - n);
+        }
+        synchronized (this) {
+          received.add(line + " " + new String(body, "ISO-8859-1"));
+        }
+        if (delay > 0) {
+          Thread.sleep(delay);
+        }
+        String status = line.indexOf(" /err") != -1 ?
+          "500 Error" : "200 OK";
+        out.write(("HTTP/1.1 " + status + "\r\nContent-Length: 2\r\n\r\nok")
+          .getBytes("ISO-8859-1"));
+        out.flush();
+      }
+      s.close();
+    } catch (Exception e) {
+      // The connection is gone.
+      return;
+    }
+  }
+
+  /**
+   * Reads a line of a request.
+   *
+   * @param  in          The connection.
+   * @return             The line, or null at the end.
+   * @throws IOException If it cannot be read.
+   */
+  private static String readLine(InputStream in) throws IOException {
+    StringBuffer sb = new StringBuffer();
+    for (int c = in.read(); c != '\n'; c = in.read()) {
+      if (c == -1) {
+        return null;
+      }
+      if (c != '\r') {
+        sb.append((char)c);
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Returns a source of requests.
+   *
+   * @param  paths The paths of the requests.
+   * @param  reps  Number of times to run through them.
+   * @return       The source.
+   */
+  private LoadEngine.RequestSource source(String[] paths, int reps) {
+    ArrayList l = new ArrayList();
+    for (int i = 0; i < paths.length; i++) {
+      RecordedRequest r = new RecordedRequest();
+      r.setUrl("http://localhost:" + server.getLocalPort() + paths[i]);
+      l.add(r);
+    }
+    return new RecordedRequestPlayer.PlaybackSource(null, l, reps);
+  }
+
+  /**
+   * Requests are all sent, at about the rate asked for, over connections
+   * kept alive, and errors are counted.
+   *
+   * @throws Exception If something goes wrong.
+   */
+  public void testRate() throws Exception {
+    LoadEngine e = new LoadEngine(source(new String[] {"/a", "/err"}, 25),
+      200, 4);
+    e.run();
+    assertEquals(25, e.getOk());
+    assertEquals(25, e.getErrors());
+    assertEquals(0, e.getDropped());
+    assertEquals(50, e.getLatency().getCount());
+    assertEquals(50, received.size());
+    // 50 requests at 200/s take at least a quarter of a second, since none
+    // is sent early; how much longer depends on the machine.
+    assertTrue("throughput " + e.getThroughput(), e.getThroughput() <= 210);
+    assertTrue("throughput " + e.getThroughput(), e.getThroughput() > 0);
+    synchronized (this) {
+      assertTrue("connections: " + connections, connections < 50);
+    }
+  }
+
+  /**
+   * When the server cannot keep up, the time requests wait to be sent is
+   * counted in their latency, though not in their service time.
+   *
+   * @throws Exception If something goes wrong.
+   */
+  public void testCoordinatedOmission() throws Exception {
+    delay = 100;
+    LoadEngine e = new LoadEngine(source(new String[] {"/a"}, 10), 50, 1);
+    e.run();
+    assertEquals(10, e.getOk());
+    assertTrue(e.getServiceTime().getMax() < 500);
+    // The last request is due at 180ms but sent after nine others taking
+    // 100ms each.
+    assertTrue("latency: " + e.getLatency(),
+      e.getLatency().getMax() >= 700);
+  }
+
+  /**
+   * Requests beyond the duration are not sent, and a full backlog drops
+   * requests.
+   *
+   * @throws Exception If something goes wrong.
+   */
+  public void testLimits() throws Exception {
+    LoadEngine e = new LoadEngine(source(new String[] {"/a"}, 1000), 100, 2);
+    e.setDuration(200);
+    e.run();
+    assertEquals(20, e.getOk());
+    delay = 200;
+    e = new LoadEngine(source(new String[] {"/a"}, 10), 1000, 1);
+    e.setMaxBacklog(2);
+    e.run();
+    assertTrue(e.getDropped() >= 6);
+    assertEquals(10, e.getOk() + e.getDropped());
+  }
+
+  /**
+   * CSV requests have their parameters in the query string of a GET, or
+   * the body of a POST, and a source with no requests runs out.
+   *
+   * @throws Exception If something goes wrong.
+   */
+  public void testCsv() throws Exception {
+    HashMap params = new HashMap();
+    params.put("x", "1%202");
+    HashMap get = new HashMap();
+    get.put("method", "get");
+    get.put("theURL", "http://localhost:" + server.getLocalPort() + "/g");
+    get.put("parameters", params);
+    HashMap post = new HashMap(get);
+    post.put("method", "post");
+    ArrayList l = new ArrayList();
+    l.add(RecordedRequestPlayer.fromCsv(get));
+    l.add(RecordedRequestPlayer.fromCsv(post));
+    new LoadEngine(new RecordedRequestPlayer.PlaybackSource(null, l, 1), 100,
+      1).run();
+    assertEquals("GET /g?x=1%202 HTTP/1.1 ", received.get(0));
+    assertEquals("POST /g HTTP/1.1 x=1%202", received.get(1));
+    assertNull(new RecordedRequestPlayer.PlaybackSource(null,
+      new ArrayList(), 1000).next());
+  }
+
+  /**
+   * Writes requests to a binary file.
+   *
+   * @param  f           The file.
+   * @param  arrivals    The milliseconds each arrived at, in the order they
+   *                     are written.
+   * @throws IOException If the file cannot be written.
+   */
+  private void write(File f, long[] arrivals) throws IOException {
+    RecordedRequestWriter w = new RecordedRequestWriter(f, 0, false);
+    for (int i = 0; i < arrivals.length; i++) {
+      RecordedRequest r = new RecordedRequest();
+      r.setUrl("http://localhost:" + server.getLocalPort() + "/" + i);
+      r.setArrivalNanos(arrivals[i] * 1000000L);
+      w.write(r);
+    }
+    w.close();
+  }
+
+  /**
+   * Requests are sent at their recorded times, scaled by the speed, one
+   * recorded out of order is put back in order, and each run through a file
+   * follows the last.
+   *
+   * @throws Exception If something goes wrong.
+   */
+  public void testSpeed() throws Exception {
+    File f = File.createTempFile("LoadEngineTest", ".jwpr");
+    try {
+      write(f, new long[] {1000, 1100, 1050, 1400});
+      LoadEngine e = new LoadEngine(new RecordedRequestPlayer.PlaybackSource(
+        f, null, 2), 0, 4);
+      e.setSpeed(2);
+      long start = System.currentTimeMillis();
+      e.run();
+      long took = System.currentTimeMillis() - start;
+      assertEquals(8, e.getOk());
+      assertEquals(8, e.getDrift().getCount());
+      assertEquals(0, e.getReordered());
+      // The last is due 400ms in: 200ms for each run through at twice the
+      // recorded speed.
+      assertTrue("took " + took, took >= 390);
+      assertTrue("took " + took, took < 10000);
+      assertTrue("drift " + e.getDrift(), e.getDrift().getMax() < took);
+      synchronized (this) {
+        assertTrue(((String)received.get(7)).startsWith("GET /3 "));
+      }
+    } finally {
+      f.delete();
+    }
+  }
+
+  /**
+   * The requests of a file come out in order of arrival, and one that comes
+   * too long after others that arrived later is counted as reordered.
+   *
+   * @throws Exception If something goes wrong.
+   */
+  public void testReorder() throws Exception {
+    File f = File.createTempFile("LoadEngineTest", ".jwpr");
+    try {
+      write(f, new long[] {1000, 1100, 1200, 1050, 1400});
+      RecordedRequestPlayer.PlaybackSource s =
+        new RecordedRequestPlayer.PlaybackSource(f, null, 1);
+      String[] order = {"/0", "/3", "/1", "/2", "/4"};
+      for (int i = 0; i < order.length; i++) {
+        assertTrue(s.next().getUrl().endsWith(order[i]));
+      }
+      assertNull(s.next());
+      s = new RecordedRequestPlayer.PlaybackSource(f, null, 1);
+      s.setReorderWindow(10);
+      LoadEngine e = new LoadEngine(s, 0, 2);
+      e.setSpeed(10);
+      e.run();
+      assertEquals(5, e.getOk());
+      assertEquals(1, e.getReordered());
+    } finally {
+      f.delete();
+    }
+  }
+
+}